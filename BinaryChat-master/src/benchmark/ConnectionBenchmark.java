@@ -0,0 +1,164 @@
+package benchmark;
+
+import server.AttachmentStore;
+import server.ConnectionManager;
+import server.ServerThreads;
+import utils.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Measures what an idle connection costs the threaded server, and the ping latency of a message between two users.
+ * Run it once per thread mode and compare the output:
+ *   java -Dbinarychat.port=2100 benchmark.ConnectionBenchmark 2000 5000
+ *   java -Dbinarychat.port=2100 -Dbinarychat.threads=virtual benchmark.ConnectionBenchmark 2000 5000
+ * The idle clients live in the same JVM but are drained by one selector thread, so the difference
+ * between the runs is the cost of the server threads.
+ *
+ * @author Lukas
+ */
+public class ConnectionBenchmark {
+    private static final String HOST = "127.0.0.1";
+
+    public static void main(String[] args) throws Exception {
+        int idleConnections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int port = Integer.getInteger("binarychat.port", 2023);
+
+        Thread server = new Thread(new ConnectionManager(new AttachmentStore("Attachments")), "benchmark-server");
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        System.out.println("Thread mode: " + (ServerThreads.isVirtual() ? "virtual" : "platform"));
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        Selector drain = Selector.open();
+        for (int i = 0; i < idleConnections; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOST, port));
+            channel.write(ByteBuffer.wrap(FrameCodec.PREAMBLE));
+            channel.write(frame(clientInfo(new User("idle" + i))));
+            readFrame(channel); // Wait for OK so the handshake is done before the next client connects
+            channel.configureBlocking(false);
+            channel.register(drain, SelectionKey.OP_READ);
+            drain.selectNow();
+            discard(drain);
+        }
+        Thread drainThread = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    drain.select(100);
+                    discard(drain);
+                }
+            } catch (IOException e) {
+                System.out.println("Drain failed: " + e.getMessage());
+            }
+        }, "benchmark-drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+        Thread.sleep(1000);
+
+        long heapAfter = usedHeap();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.printf("Idle connections: %d%n", idleConnections);
+        System.out.printf("Platform threads added: %d (%.2f per connection)%n",
+                threadsAfter - threadsBefore, (threadsAfter - threadsBefore) / (double) idleConnections);
+        System.out.printf("Heap added: %d KB (%.1f KB per connection)%n",
+                (heapAfter - heapBefore) / 1024, (heapAfter - heapBefore) / 1024.0 / idleConnections);
+
+        measureLatency(port, messages);
+        System.exit(0);
+    }
+
+    private static void measureLatency(int port, int messages) throws Exception {
+        User alice = new User("latencyAlice");
+        User bob = new User("latencyBob");
+        try (Socket aliceSocket = new Socket(HOST, port);
+             Socket bobSocket = new Socket(HOST, port);
+             MessageStream aliceStream = MessageStream.open(aliceSocket, true);
+             MessageStream bobStream = MessageStream.open(bobSocket, true)) {
+            aliceStream.write(clientInfo(alice));
+            bobStream.write(clientInfo(bob));
+
+            long[] latencies = new long[messages];
+            for (int i = 0; i < messages; i++) {
+                long start = System.nanoTime();
+                aliceStream.write(Message.builder()
+                        .sender(alice)
+                        .receiver(bob)
+                        .text("ping " + i)
+                        .build());
+                Message message;
+                do {
+                    message = bobStream.read();
+                } while (message.getMessageType() != Message.MessageType.REGULAR_MESSAGE);
+                latencies[i] = System.nanoTime() - start;
+            }
+
+            Arrays.sort(latencies);
+            System.out.printf("Message latency over %d messages: p50 %d us, p99 %d us, max %d us%n", messages,
+                    latencies[messages / 2] / 1000, latencies[messages * 99 / 100] / 1000, latencies[messages - 1] / 1000);
+        }
+    }
+
+    private static Message clientInfo(User user) {
+        return Message.builder()
+                .messageType(Message.MessageType.CLIENT_INFO)
+                .sender(user)
+                .build();
+    }
+
+    private static ByteBuffer frame(Message message) throws IOException {
+        byte[] body = FrameCodec.encode(message);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(body.length);
+        out.write(body);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static void readFrame(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH);
+        while (header.hasRemaining() && channel.read(header) != -1) {
+            Thread.onSpinWait();
+        }
+        ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+        while (body.hasRemaining() && channel.read(body) != -1) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private static void discard(Selector selector) throws IOException {
+        ByteBuffer sink = ByteBuffer.allocate(64 * 1024);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            sink.clear();
+            if (((SocketChannel) key.channel()).read(sink) == -1) {
+                key.cancel();
+            }
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
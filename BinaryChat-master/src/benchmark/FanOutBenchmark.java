@@ -0,0 +1,103 @@
+package benchmark;
+
+import utils.FrameCodec;
+import utils.Message;
+import utils.User;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Compares sending one message to many receivers by encoding it once per receiver, the way every
+ * broadcast used to work, with encoding it once and writing the shared frame to every receiver.
+ * Every receiver has its own ByteBuffer standing in for its socket buffer, so the shared run still
+ * pays the copy to each receiver, the same as a socket write.
+ * Run with the receiver counts to test, e.g. java benchmark.FanOutBenchmark 1000 10000
+ *
+ * @author Lukas
+ */
+public class FanOutBenchmark {
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int[] receiverCounts = args.length > 0
+                ? java.util.Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1_000, 10_000};
+
+        ArrayList<User> joined = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            joined.add(new User("user" + i));
+        }
+        System.out.printf("%-10s %-11s %14s %14s %14s %14s%n", "receivers", "format",
+                "per-recv us", "shared us", "per-recv KB", "shared KB");
+        for (int receivers : receiverCounts) {
+            ByteBuffer[] sockets = new ByteBuffer[receivers];
+            for (int i = 0; i < receivers; i++) {
+                sockets[i] = ByteBuffer.allocate(4 * 1024);
+            }
+            for (Message.WireFormat format : Message.WireFormat.values()) {
+                Result perReceiver = measure(() -> {
+                    Message delta = delta(joined, false);
+                    for (ByteBuffer socket : sockets) {
+                        socket.clear();
+                        socket.put(FrameCodec.frame(delta, format));
+                    }
+                });
+                Result shared = measure(() -> {
+                    Message delta = delta(joined, true);
+                    for (ByteBuffer socket : sockets) {
+                        socket.clear();
+                        socket.put(ByteBuffer.wrap(FrameCodec.frame(delta, format)));
+                    }
+                });
+                System.out.printf("%-10d %-11s %14d %14d %14d %14d%n", receivers, format,
+                        perReceiver.nanos / 1000, shared.nanos / 1000, perReceiver.bytes / 1024, shared.bytes / 1024);
+            }
+        }
+    }
+
+    private static Message delta(ArrayList<User> joined, boolean broadcast) {
+        return Message.builder()
+                .messageType(Message.MessageType.PRESENCE_DELTA)
+                .onlineUsers(joined)
+                .offlineUsers(new ArrayList<>())
+                .basePresenceVersion(41)
+                .presenceVersion(42)
+                .broadcast(broadcast)
+                .build();
+    }
+
+    /**
+     * @return the average time and allocated bytes of one broadcast, after as many rounds to warm up
+     */
+    private static Result measure(Broadcast broadcast) throws IOException {
+        for (int i = 0; i < ROUNDS; i++) {
+            broadcast.run();
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            broadcast.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        return new Result(elapsed / ROUNDS, allocated / ROUNDS);
+    }
+
+    private interface Broadcast {
+        void run() throws IOException;
+    }
+
+    private static class Result {
+        private final long nanos;
+        private final long bytes;
+
+        Result(long nanos, long bytes) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+    }
+}
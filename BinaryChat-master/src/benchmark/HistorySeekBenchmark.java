@@ -0,0 +1,111 @@
+package benchmark;
+
+import server.HistoryStore;
+import utils.Message;
+import utils.User;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Measures how long it takes to find a history page in conversations of different lengths.
+ * Each conversation is written once, then read by a new store the way a restarted server reads it:
+ * the first page opens the SparseIndex of the log from its checkpoint, the pages after it are at random
+ * places in the conversation. The first page is also timed with the checkpoint deleted, when the index is
+ * built again from the whole log.
+ * Run with the lengths to measure, e.g. java benchmark.HistorySeekBenchmark 10000 1000000 10000000
+ * 10 million messages take about a gigabyte in the temporary directory, pass -Djava.io.tmpdir to use another disk.
+ *
+ * @author Baseer
+ */
+public class HistorySeekBenchmark {
+    private static final int PAGE = 50;
+    private static final int SEEKS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        long[] lengths = args.length > 0
+                ? Arrays.stream(args).mapToLong(Long::parseLong).toArray()
+                : new long[] {10_000, 1_000_000, 10_000_000};
+        User alice = new User("alice");
+        User bob = new User("bob");
+        System.out.printf("%12s %14s %14s %10s %10s %10s%n",
+                "messages", "open us", "rebuild us", "p50 us", "p99 us", "max us");
+        for (long length : lengths) {
+            Path directory = Files.createTempDirectory("history-seek");
+            try {
+                write(directory, alice, bob, length);
+                long open = firstPage(directory, alice, bob, false);
+                long rebuild = firstPage(directory, alice, bob, true);
+                long[] seeks = seeks(directory, alice, bob, length);
+                System.out.printf("%12d %14d %14d %10d %10d %10d%n", length, open / 1000, rebuild / 1000,
+                        seeks[seeks.length / 2] / 1000, seeks[(int) (seeks.length * 0.99)] / 1000, seeks[seeks.length - 1] / 1000);
+            } finally {
+                delete(directory);
+            }
+        }
+    }
+
+    private static void write(Path directory, User alice, User bob, long length) throws IOException {
+        HistoryStore store = new HistoryStore(directory.toString(), HistoryStore.Durability.BUFFERED);
+        for (long i = 0; i < length; i++) {
+            boolean even = i % 2 == 0;
+            store.append(Message.builder()
+                    .messageType(Message.MessageType.REGULAR_MESSAGE)
+                    .sender(even ? alice : bob)
+                    .receiver(even ? bob : alice)
+                    .text("Message number " + i + " of a long conversation")
+                    .build());
+            if (i % 10_000 == 9_999) {
+                store.flush(); // Keeps the queue from holding the whole conversation
+            }
+        }
+        store.close();
+    }
+
+    /**
+     * @return the time to read the newest page with a new store, which opens the index of the log
+     */
+    private static long firstPage(Path directory, User alice, User bob, boolean withoutCheckpoint) throws IOException {
+        if (withoutCheckpoint) {
+            Files.delete(directory.resolve(HistoryStore.conversationId(alice, bob) + "_conversation.sidx"));
+        }
+        HistoryStore store = new HistoryStore(directory.toString(), HistoryStore.Durability.BUFFERED);
+        long start = System.nanoTime();
+        store.loadPage(alice, bob, Long.MAX_VALUE, PAGE);
+        long elapsed = System.nanoTime() - start;
+        store.close();
+        return elapsed;
+    }
+
+    /**
+     * @return the sorted times to read pages ending at random messages of the conversation
+     */
+    private static long[] seeks(Path directory, User alice, User bob, long length) throws IOException {
+        HistoryStore store = new HistoryStore(directory.toString(), HistoryStore.Durability.BUFFERED);
+        Random random = new Random(42);
+        store.loadPage(alice, bob, Long.MAX_VALUE, PAGE);
+        long[] times = new long[SEEKS];
+        for (int i = 0; i < SEEKS; i++) {
+            long before = PAGE + (long) (random.nextDouble() * (length - PAGE));
+            long start = System.nanoTime();
+            if (store.loadPage(alice, bob, before, PAGE).getHistory(bob).size() != PAGE) {
+                throw new IllegalStateException("Short page before " + before);
+            }
+            times[i] = System.nanoTime() - start;
+        }
+        store.close();
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
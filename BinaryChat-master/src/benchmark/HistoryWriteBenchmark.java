@@ -0,0 +1,119 @@
+package benchmark;
+
+import server.HistoryStore;
+import server.ServerMetrics;
+import utils.Message;
+import utils.User;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Measures the throughput and the latency of saving chat messages with every HistoryStore.Durability.
+ * Every sender thread does what a connection does with a regular message: appends it to the conversation
+ * of the sender and the receiver, then waits for afterAppends() the way the sender waits for MESSAGE_SAVED.
+ * The latency is the time from the first append until the action runs, the throughput counts until
+ * every message is written.
+ * Run with the number of senders and messages per sender, e.g. java benchmark.HistoryWriteBenchmark 8 2000
+ * Group commit is set with -Dbinarychat.groupCommitMillis and -Dbinarychat.groupCommitRecords.
+ * The logs are written to a temporary directory, pass -Djava.io.tmpdir to measure a different disk.
+ *
+ * @author Baseer
+ */
+public class HistoryWriteBenchmark {
+    private static final int USERS = 50;
+
+    public static void main(String[] args) throws Exception {
+        int senders = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        User[] users = new User[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = new User("user" + i);
+        }
+        run(HistoryStore.Durability.ASYNC, users, senders, Math.min(messages, 200)); // Warm up
+        System.out.printf("%-13s %12s %10s %10s %10s %10s%n", "durability", "messages/s", "p50 us", "p99 us", "max us", "forces");
+        for (HistoryStore.Durability durability : HistoryStore.Durability.values()) {
+            long forcesBefore = ServerMetrics.counter("history.forces");
+            Result result = run(durability, users, senders, messages);
+            long[] latencies = result.latencies;
+            Arrays.sort(latencies);
+            System.out.printf("%-13s %12d %10d %10d %10d %10d%n", durability,
+                    latencies.length * 1_000_000_000L / result.nanos,
+                    latencies[latencies.length / 2] / 1000,
+                    latencies[(int) (latencies.length * 0.99)] / 1000,
+                    latencies[latencies.length - 1] / 1000,
+                    ServerMetrics.counter("history.forces") - forcesBefore);
+        }
+    }
+
+    /**
+     * @return the time until the last message was saved, and the latency of every message
+     */
+    private static Result run(HistoryStore.Durability durability, User[] users, int senders, int messages)
+            throws Exception {
+        Path directory = Files.createTempDirectory("history-benchmark");
+        HistoryStore store = new HistoryStore(directory.toString(), durability);
+        long[] latencies = new long[senders * messages];
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch saved = new CountDownLatch(latencies.length);
+        Thread[] threads = new Thread[senders];
+        long start = System.nanoTime();
+        for (int t = 0; t < senders; t++) {
+            int first = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < messages; i++) {
+                    User sender = users[(first + i) % USERS];
+                    User receiver = users[(first + i + 1 + i % (USERS - 1)) % USERS];
+                    Message message = Message.builder()
+                            .messageType(Message.MessageType.REGULAR_MESSAGE)
+                            .sender(sender)
+                            .receiver(receiver)
+                            .text("Message " + i + " from " + sender.getName())
+                            .build();
+                    long sent = System.nanoTime();
+                    try {
+                        store.append(message);
+                    } catch (IOException e) {
+                        System.out.println("Failed to save message: " + e.getMessage());
+                        saved.countDown(); // Counted as not saved, the run still ends
+                        continue;
+                    }
+                    store.afterAppends(() -> {
+                        latencies[next.getAndIncrement()] = System.nanoTime() - sent;
+                        saved.countDown();
+                    });
+                }
+            }, "benchmark-sender-" + t);
+            threads[t].start();
+        }
+        saved.await();
+        store.flush(); // ASYNC has run its actions before the writes, the throughput counts them too
+        long elapsed = System.nanoTime() - start;
+        store.close();
+        delete(directory);
+        return new Result(elapsed, latencies);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static class Result {
+        private final long nanos;
+        private final long[] latencies;
+
+        Result(long nanos, long[] latencies) {
+            this.nanos = nanos;
+            this.latencies = latencies;
+        }
+    }
+}
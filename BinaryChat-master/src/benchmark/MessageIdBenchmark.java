@@ -0,0 +1,133 @@
+package benchmark;
+
+import server.HistoryStore;
+import server.MessageIds;
+import utils.Message;
+import utils.User;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/**
+ * Measures what numbering a routed message costs: taking an id from MessageIds with one thread and with several
+ * threads at once, and appending to a HistoryStore, which gives the message its sequence number, with and without
+ * the ids. At 100 000 messages a second the server has 10 us for each message, the cost is printed against that.
+ * Run with the number of threads, e.g. java benchmark.MessageIdBenchmark 8
+ *
+ * @author Baseer
+ */
+public class MessageIdBenchmark {
+    private static final int IDS = 5_000_000;
+    private static final int APPENDS = 200_000;
+    private static final int ROUNDS = 5;
+    private static final double BUDGET_NS = 1e9 / 100_000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        System.out.printf("%-28s %10s %14s %10s%n", "", "ns/message", "messages/s", "of budget");
+        print("id, 1 thread", best(() -> ids(new MessageIds(1), 1)));
+        print("id, " + threads + " threads", best(() -> ids(new MessageIds(1), threads)));
+        print("append", best(() -> appends(false)));
+        print("id + append with sequence", best(() -> appends(true)));
+    }
+
+    private static void print(String what, double nanos) {
+        System.out.printf("%-28s %10.1f %14.0f %9.2f%%%n", what, nanos, 1e9 / nanos, 100 * nanos / BUDGET_NS);
+    }
+
+    /**
+     * @return the ns for each id, the threads taking IDS of them together
+     */
+    private static double ids(MessageIds ids, int threads) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        long[] sinks = new long[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long sink = 0;
+                for (int i = thread; i < IDS; i += threads) {
+                    sink ^= ids.next();
+                }
+                sinks[thread] = sink;
+            }));
+        }
+        workers.forEach(Thread::start);
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (double) (System.nanoTime() - begin) / IDS;
+    }
+
+    /**
+     * Appends to an ASYNC store, which only queues the writes, so the time is that of the routing thread.
+     * @return the ns for each message appended, with an id taken first if numbered
+     */
+    private static double appends(boolean numbered) throws Exception {
+        Path directory = Files.createTempDirectory("message-ids");
+        HistoryStore store = new HistoryStore(directory.toString(), HistoryStore.Durability.ASYNC);
+        try {
+            MessageIds ids = new MessageIds(1);
+            User[] users = new User[16];
+            for (int i = 0; i < users.length; i++) {
+                users[i] = new User("user" + i);
+            }
+            Message[] messages = new Message[APPENDS];
+            for (int i = 0; i < APPENDS; i++) {
+                messages[i] = Message.builder()
+                        .messageType(Message.MessageType.REGULAR_MESSAGE)
+                        .sender(users[i % users.length])
+                        .receiver(users[(i / users.length + i + 1) % users.length])
+                        .text("message " + i)
+                        .build();
+            }
+            long begin = System.nanoTime();
+            for (Message message : messages) {
+                if (numbered) {
+                    long id = ids.next();
+                    message.setId(id);
+                    message.setTimestamp(MessageIds.timestamp(id));
+                }
+                store.append(message);
+            }
+            double nanos = (double) (System.nanoTime() - begin) / APPENDS;
+            store.flush();
+            return nanos;
+        } finally {
+            store.close();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * @return the fewest ns a message in one of the rounds, after a round to warm up
+     */
+    private static double best(Measure measure) throws Exception {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            double nanos = measure.run();
+            if (round > 0) {
+                best = Math.min(best, nanos);
+            }
+        }
+        return best;
+    }
+
+    private interface Measure {
+        double run() throws Exception;
+    }
+}
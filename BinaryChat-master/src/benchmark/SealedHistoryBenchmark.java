@@ -0,0 +1,233 @@
+package benchmark;
+
+import server.HistoryStore;
+import server.SealedSegment;
+import utils.BinaryCodec;
+import utils.ChatHistory;
+import utils.Message;
+import utils.User;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Compares the formats a conversation can be stored in: the records of a conversation log, the serialized
+ * ChatHistory older servers saved, and a SealedSegment with and without its trained dictionary.
+ * For each it prints the bytes per message, the compression ratio against the log, and how many messages a
+ * second are decoded reading the whole conversation. Pages are then read at random places through a HistoryStore,
+ * once from the log and once after the conversation was sealed.
+ * Run with the number of messages, e.g. java benchmark.SealedHistoryBenchmark 100000
+ *
+ * @author Baseer
+ */
+public class SealedHistoryBenchmark {
+    private static final int PAGE = 50;
+    private static final int PAGES = 2000;
+    private static final int ROUNDS = 5;
+    private static final String[] WORDS = ("the a to and of you I it is that in we for on are this with be have"
+            + " not at was so can do just what but me my your will if all get about like know when out up time"
+            + " meeting tomorrow tonight lunch call later sure thanks sorry great sounds good see there here"
+            + " today project code review build test deploy branch server client message photo file link coffee"
+            + " weekend plans home work office train bus late early yes no maybe okay haha lol nice cool").split(" ");
+
+    public static void main(String[] args) throws Exception {
+        int length = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        User alice = new User("alice");
+        User bob = new User("bob");
+        List<Message> messages = conversation(alice, bob, length);
+        List<byte[]> bodies = new ArrayList<>(length);
+        BinaryCodec codec = new BinaryCodec();
+        for (Message message : messages) {
+            bodies.add(Arrays.copyOf(codec.buffer(), codec.encode(message)));
+        }
+        Path directory = Files.createTempDirectory("sealed-history");
+        try {
+            System.out.printf("%-22s %12s %10s %8s %14s%n", "format", "bytes", "B/message", "ratio", "messages/s");
+            long log = logBytes(bodies);
+            print("log records", log, log, length, decodeLog(bodies));
+
+            ChatHistory history = new ChatHistory(alice);
+            for (Message message : messages) {
+                history.addHistory(message.getSender(), message.getReceiver(), message);
+            }
+            byte[] serialized = serialize(history);
+            print("serialized history", serialized.length, log, length, decodeSerialized(serialized));
+
+            File plain = directory.resolve("plain.seg").toFile();
+            writeSegment(plain, bodies, new byte[0]);
+            print("segment", plain.length(), log, length, decodeSegment(plain));
+
+            File trained = directory.resolve("trained.seg").toFile();
+            List<byte[]> samples = new ArrayList<>();
+            for (int i = 0; i < length; i += Math.max(1, length / 256)) {
+                samples.add(bodies.get(i));
+            }
+            writeSegment(trained, bodies, SealedSegment.train(samples));
+            print("segment + dictionary", trained.length(), log, length, decodeSegment(trained));
+
+            pages(directory.resolve("store"), messages, alice, bob);
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static List<Message> conversation(User alice, User bob, int length) {
+        Random random = new Random(42);
+        List<Message> messages = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int words = 2 + random.nextInt(15); words > 0; words--) {
+                text.append(WORDS[(int) Math.min(WORDS.length - 1, -Math.log(random.nextDouble()) * 20)]).append(' ');
+            }
+            boolean even = random.nextBoolean();
+            messages.add(Message.builder()
+                    .messageType(Message.MessageType.REGULAR_MESSAGE)
+                    .sender(even ? alice : bob)
+                    .receiver(even ? bob : alice)
+                    .text(text.toString().trim())
+                    .build());
+        }
+        return messages;
+    }
+
+    private static void print(String format, long bytes, long log, int length, double perSecond) {
+        System.out.printf("%-22s %12d %10.1f %8.2f %14.0f%n", format, bytes, (double) bytes / length,
+                (double) log / bytes, perSecond);
+    }
+
+    /**
+     * @return the bytes of the conversation as a log, MAGIC and a header of 8 bytes for each record
+     */
+    private static long logBytes(List<byte[]> bodies) {
+        long bytes = 4;
+        for (byte[] body : bodies) {
+            bytes += 8 + body.length;
+        }
+        return bytes;
+    }
+
+    private static double decodeLog(List<byte[]> bodies) throws Exception {
+        ByteBuffer log = ByteBuffer.allocate((int) logBytes(bodies) - 4);
+        for (byte[] body : bodies) {
+            log.putInt(body.length).putInt(0).put(body);
+        }
+        byte[] records = log.array();
+        return best(() -> {
+            int position = 0;
+            int decoded = 0;
+            while (position < records.length) {
+                int length = ByteBuffer.wrap(records, position, 4).getInt();
+                BinaryCodec.decode(records, position + 8, length);
+                position += 8 + length;
+                decoded++;
+            }
+            return decoded;
+        });
+    }
+
+    private static byte[] serialize(ChatHistory history) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(history);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static double decodeSerialized(byte[] serialized) throws Exception {
+        return best(() -> {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+                ChatHistory history = (ChatHistory) in.readObject();
+                return history.getHistory(new User("bob")).size();
+            }
+        });
+    }
+
+    private static void writeSegment(File file, List<byte[]> bodies, byte[] dictionary) throws IOException {
+        try (SealedSegment.Writer writer = new SealedSegment.Writer(file, 0, dictionary)) {
+            for (byte[] body : bodies) {
+                writer.add(body, body.length);
+            }
+        }
+    }
+
+    private static double decodeSegment(File file) throws Exception {
+        SealedSegment segment = SealedSegment.open(file);
+        return best(() -> segment.read(0, segment.count()).size());
+    }
+
+    /**
+     * Prints the times to read pages at random places of the conversation from its log, then from its segment.
+     */
+    private static void pages(Path directory, List<Message> messages, User alice, User bob) throws IOException {
+        HistoryStore store = new HistoryStore(directory.toString(), HistoryStore.Durability.BUFFERED);
+        for (int i = 0; i < messages.size(); i++) {
+            store.append(messages.get(i));
+            if (i % 10_000 == 9_999) {
+                store.flush();
+            }
+        }
+        store.flush();
+        System.out.printf("%n%-22s %10s %10s %10s%n", "pages of " + PAGE, "p50 us", "p99 us", "max us");
+        printPages("log", pageTimes(store, alice, bob, messages.size()));
+        store.seal(HistoryStore.conversationId(alice, bob), 0);
+        printPages("segment + dictionary", pageTimes(store, alice, bob, messages.size()));
+        store.close();
+    }
+
+    private static long[] pageTimes(HistoryStore store, User alice, User bob, int length) throws IOException {
+        Random random = new Random(7);
+        long[] times = new long[PAGES];
+        for (int round = -1; round < 1; round++) { // The first round warms up
+            for (int i = 0; i < PAGES; i++) {
+                long before = PAGE + (long) (random.nextDouble() * (length - PAGE - 1));
+                long start = System.nanoTime();
+                if (store.loadPage(alice, bob, before, PAGE).getHistory(bob).size() != PAGE) {
+                    throw new IllegalStateException("Short page before " + before);
+                }
+                times[i] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static void printPages(String format, long[] times) {
+        System.out.printf("%-22s %10d %10d %10d%n", format, times[times.length / 2] / 1000,
+                times[(int) (times.length * 0.99)] / 1000, times[times.length - 1] / 1000);
+    }
+
+    /**
+     * @return the most messages a second decoded in one of the rounds, after a round to warm up
+     */
+    private static double best(Decode decode) throws Exception {
+        double best = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            int decoded = decode.run();
+            double perSecond = decoded / ((System.nanoTime() - start) / 1e9);
+            if (round > 0) {
+                best = Math.max(best, perSecond);
+            }
+        }
+        return best;
+    }
+
+    private interface Decode {
+        int run() throws Exception;
+    }
+}
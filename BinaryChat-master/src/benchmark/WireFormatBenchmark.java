@@ -0,0 +1,122 @@
+package benchmark;
+
+import utils.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares Java serialization (FrameCodec) with the binary format (BinaryCodec) for every MessageType:
+ * the size of a frame body, the time to encode and decode one message, and the bytes allocated doing it.
+ * Run with an optional number of iterations, e.g. java benchmark.WireFormatBenchmark 200000
+ * Every measurement is run once to warm up the JIT before it is timed.
+ *
+ * @author Lukas
+ */
+public class WireFormatBenchmark {
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+
+        System.out.printf("%-16s %10s %10s %12s %12s %12s %12s%n", "type", "ser bytes", "bin bytes",
+                "ser ns/op", "bin ns/op", "ser B/op", "bin B/op");
+        for (Map.Entry<String, Message> entry : messages().entrySet()) {
+            Message message = entry.getValue();
+            BinaryCodec codec = new BinaryCodec();
+            int serializedSize = FrameCodec.encode(message).length;
+            int binarySize = codec.encode(message);
+
+            Result serialized = measure(iterations, () -> {
+                byte[] body = FrameCodec.encode(message);
+                sink = FrameCodec.decode(body, 0, body.length);
+            });
+            Result binary = measure(iterations, () -> {
+                int length = codec.encode(message);
+                sink = BinaryCodec.decode(codec.buffer(), 0, length);
+            });
+            System.out.printf("%-16s %10d %10d %12d %12d %12d %12d%n", entry.getKey(), serializedSize, binarySize,
+                    serialized.nanosPerOp, binary.nanosPerOp, serialized.bytesPerOp, binary.bytesPerOp);
+        }
+    }
+
+    private static Map<String, Message> messages() {
+        User alice = new User("alice");
+        User bob = new User("bob");
+        ArrayList<User> users = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            users.add(new User("user" + i));
+        }
+        ChatHistory history = new ChatHistory(alice);
+        for (int i = 0; i < 100; i++) {
+            history.addHistory(alice, bob, Message.builder().sender(alice).receiver(bob).text("message " + i).build());
+        }
+
+        Map<String, Message> messages = new LinkedHashMap<>();
+        messages.put("REGULAR_MESSAGE", Message.builder()
+                .sender(alice)
+                .receiver(bob)
+                .text("Hej Bob, ses vi på mötet klockan tre?")
+                .build());
+        messages.put("CHAT_HISTORY", Message.builder()
+                .messageType(Message.MessageType.CHAT_HISTORY)
+                .chatHistory(history)
+                .build());
+        messages.put("CLIENT_LIST", Message.builder()
+                .messageType(Message.MessageType.CLIENT_LIST)
+                .onlineUsers(users)
+                .presenceVersion(1234)
+                .build());
+        messages.put("CLIENT_INFO", Message.builder()
+                .messageType(Message.MessageType.CLIENT_INFO)
+                .sender(alice)
+                .wireFormat(Message.WireFormat.BINARY)
+                .build());
+        ArrayList<User> joined = new ArrayList<>(users.subList(0, 3));
+        messages.put("PRESENCE_DELTA", Message.builder()
+                .messageType(Message.MessageType.PRESENCE_DELTA)
+                .onlineUsers(joined)
+                .offlineUsers(new ArrayList<>())
+                .basePresenceVersion(1234)
+                .presenceVersion(1235)
+                .build());
+        messages.put("PRESENCE_RESYNC", Message.builder()
+                .messageType(Message.MessageType.PRESENCE_RESYNC)
+                .sender(alice)
+                .presenceVersion(1234)
+                .build());
+        return messages;
+    }
+
+    private static Result measure(int iterations, Operation operation) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        return new Result(elapsed / iterations, allocated / iterations);
+    }
+
+    private interface Operation {
+        void run() throws IOException, ClassNotFoundException;
+    }
+
+    private static class Result {
+        private final long nanosPerOp;
+        private final long bytesPerOp;
+
+        Result(long nanosPerOp, long bytesPerOp) {
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+}
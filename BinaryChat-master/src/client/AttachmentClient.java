@@ -0,0 +1,323 @@
+package client;
+
+import utils.Attachment;
+import utils.AttachmentTransfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Uploads and downloads attachments over the attachment port, see AttachmentTransfer for the protocol.
+ * A file is uploaded with its SHA-256, the upload is skipped if the server already stores that content.
+ * Files are streamed between the socket and the disk with FileChannel.transferTo/transferFrom, so a file
+ * is never read into a byte[]. Downloaded files are kept in a cache directory named by attachment id.
+ * A transfer that loses its connection reconnects and continues where it stopped, up to ATTEMPTS times.
+ * Blocks while transferring, must not be called on the Swing thread.
+ *
+ * @author David
+ */
+public class AttachmentClient {
+    private static final int ATTEMPTS = 4;
+    private static final long RETRY_DELAY_MILLIS = 500;
+    private static final int MAX_THUMBNAIL_BYTES = 1024 * 1024;
+
+    private final InetSocketAddress address;
+    private final Path cacheDirectory;
+
+    /**
+     * Told how far a transfer has come, called on the transferring thread.
+     */
+    public interface Progress {
+        /**
+         * @param done, the bytes transferred so far.
+         * @param total, the size of the file.
+         */
+        void update(long done, long total);
+
+        /**
+         * @param reason, why the transfer was given up.
+         */
+        default void failed(String reason) {
+        }
+
+        Progress NONE = (done, total) -> {
+        };
+    }
+
+    /**
+     * @pre assumes host && cacheDirectory != null, port > 0
+     * @param host, the host of the attachment server.
+     * @param port, the attachment port.
+     * @param cacheDirectory, the directory downloaded files are kept in.
+     * @post Creates the cache directory if it does not exist
+     */
+    public AttachmentClient(String host, int port, Path cacheDirectory) {
+        this.address = new InetSocketAddress(host, port);
+        this.cacheDirectory = cacheDirectory;
+        try {
+            Files.createDirectories(cacheDirectory);
+        } catch (IOException e) {
+            System.out.println("Failed to create attachment cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @pre assumes file != null
+     * @param file, the file to be uploaded.
+     * @return the descriptor of the uploaded file, to be sent in a Message
+     * @throws IOException if the file could not be read or the server did not accept it
+     */
+    public Attachment upload(File file) throws IOException {
+        return upload(file, Progress.NONE);
+    }
+
+    /**
+     * @pre assumes file && progress != null
+     * @param file, the file to be uploaded.
+     * @param progress, told about every chunk the server has acknowledged.
+     * @return the descriptor of the uploaded file, to be sent in a Message
+     * @throws IOException if the file could not be read, the server did not accept it or every attempt failed
+     */
+    public Attachment upload(File file, Progress progress) throws IOException {
+        String contentType = Files.probeContentType(file.toPath());
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+        }
+        String hash;
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            hash = AttachmentTransfer.sha256(source);
+        }
+        String uploadId = "";
+        for (int attempt = 1; ; attempt++) {
+            Upload upload = new Upload(uploadId, hash, contentType);
+            try {
+                return upload.run(file, progress);
+            } catch (RejectedException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt == ATTEMPTS) {
+                    throw e;
+                }
+                uploadId = upload.uploadId; // Resumed from the last acknowledged chunk
+                System.out.println("Upload of " + file.getName() + " interrupted, retrying: " + e.getMessage());
+                pause(attempt);
+            }
+        }
+    }
+
+    /**
+     * Downloads the file if it is not in the cache yet.
+     * @pre assumes attachment != null
+     * @param attachment, the attachment to be downloaded.
+     * @return the cached file holding the attachment
+     * @throws IOException if the server does not have the file or the transfer failed
+     */
+    public File download(Attachment attachment) throws IOException {
+        return download(attachment, Progress.NONE);
+    }
+
+    /**
+     * Downloads the file if it is not in the cache yet. A download that was interrupted, also in an earlier
+     * run of the client, continues from the bytes already in the cache directory.
+     * @pre assumes attachment && progress != null
+     * @param attachment, the attachment to be downloaded.
+     * @param progress, told about every chunk received.
+     * @return the cached file holding the attachment
+     * @throws IOException if the server does not have the file or every attempt failed
+     */
+    public File download(Attachment attachment, Progress progress) throws IOException {
+        if (!attachment.getId().matches("[0-9a-f-]+")) { // The id names a file in the cache, it must not hold a path
+            throw new IOException("Invalid attachment id " + attachment.getId());
+        }
+        Path target = cachedPath(attachment);
+        if (Files.isRegularFile(target)) {
+            return target.toFile();
+        }
+        Path part = cacheDirectory.resolve(attachment.getId() + ".part");
+        for (int attempt = 1; ; attempt++) {
+            try {
+                downloadPart(attachment, part, progress);
+                verify(attachment, part);
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+                return target.toFile();
+            } catch (RejectedException e) {
+                Files.deleteIfExists(part);
+                throw e;
+            } catch (IOException e) {
+                if (attempt == ATTEMPTS) {
+                    throw e;
+                }
+                System.out.println("Download of " + attachment.getId() + " interrupted, retrying: " + e.getMessage());
+                pause(attempt);
+            }
+        }
+    }
+
+    private void downloadPart(Attachment attachment, Path part, Progress progress) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address);
+             FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = file.size();
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            out.write(AttachmentTransfer.MAGIC);
+            out.writeByte(AttachmentTransfer.DOWNLOAD);
+            out.writeUTF(attachment.getId());
+            out.writeLong(position);
+
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            byte status = in.readByte();
+            if (status == AttachmentTransfer.REJECTED) { // The part file does not fit the file on the server
+                file.truncate(0);
+                throw new IOException("Download of " + attachment.getId() + " restarted");
+            }
+            if (status != AttachmentTransfer.OK) {
+                throw new RejectedException("Attachment " + attachment.getId() + " not available, status " + status);
+            }
+            long size = in.readLong();
+            progress.update(position, size);
+            while (position < size) {
+                int length = in.readInt();
+                if (length <= 0 || length > AttachmentTransfer.CHUNK_SIZE || length > size - position) {
+                    throw new RejectedException("Invalid chunk of " + length + " bytes from the server");
+                }
+                long end = position + length;
+                while (position < end) {
+                    long transferred = file.transferFrom(channel, position, end - position);
+                    if (transferred <= 0) {
+                        throw new EOFException("Download ended after " + position + " of " + size + " bytes");
+                    }
+                    position += transferred;
+                }
+                progress.update(position, size);
+            }
+        }
+    }
+
+    private static void verify(Attachment attachment, Path part) throws IOException {
+        if (attachment.getId().length() != 64) { // Stored before files were named by their SHA-256
+            return;
+        }
+        try (FileChannel file = FileChannel.open(part, StandardOpenOption.READ)) {
+            if (attachment.getId().equals(AttachmentTransfer.sha256(file))) {
+                return;
+            }
+        }
+        Files.delete(part);
+        throw new IOException("Download of " + attachment.getId() + " does not match its SHA-256");
+    }
+
+    private Path cachedPath(Attachment attachment) {
+        return cacheDirectory.resolve(attachment.getId());
+    }
+
+    private static void pause(int attempt) throws IOException {
+        try {
+            Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to retry");
+        }
+    }
+
+    /**
+     * One connection of an upload. Remembers the upload id the server gave it, so the next attempt can resume it.
+     */
+    private class Upload {
+        private String uploadId;
+        private final String hash;
+        private final String contentType;
+
+        Upload(String uploadId, String hash, String contentType) {
+            this.uploadId = uploadId;
+            this.hash = hash;
+            this.contentType = contentType;
+        }
+
+        Attachment run(File file, Progress progress) throws IOException {
+            try (SocketChannel channel = SocketChannel.open(address);
+                 FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = source.size();
+                DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+                DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+                out.write(AttachmentTransfer.MAGIC);
+                out.writeByte(AttachmentTransfer.UPLOAD);
+                out.writeUTF(uploadId);
+                out.writeUTF(hash);
+                out.writeUTF(contentType);
+                out.writeLong(size);
+
+                byte status = in.readByte();
+                if (status == AttachmentTransfer.EXISTS) { // The server has the file already, nothing to send
+                    progress.update(size, size);
+                    return new Attachment(in.readUTF(), size, contentType, readThumbnail(in));
+                }
+                if (status == AttachmentTransfer.NOT_FOUND) { // The server dropped the upload, the next attempt starts over
+                    uploadId = "";
+                    throw new IOException("Upload expired on the server");
+                }
+                if (status == AttachmentTransfer.TOO_LARGE) {
+                    throw new RejectedException(file.getName() + " is larger than the max of " + in.readLong() + " bytes");
+                }
+                if (status != AttachmentTransfer.OK) {
+                    throw new RejectedException("Attachment rejected by the server, status " + status);
+                }
+                uploadId = in.readUTF();
+                long position = in.readLong();
+                progress.update(position, size);
+                while (position < size) {
+                    int length = (int) Math.min(AttachmentTransfer.CHUNK_SIZE, size - position);
+                    out.writeInt(length);
+                    long sent = 0;
+                    while (sent < length) {
+                        sent += source.transferTo(position + sent, length - sent, channel);
+                    }
+                    status = in.readByte();
+                    if (status != AttachmentTransfer.ACK) {
+                        throw new RejectedException("Chunk at " + position + " rejected by the server, status " + status);
+                    }
+                    position = in.readLong();
+                    progress.update(position, size);
+                }
+                status = in.readByte();
+                if (status != AttachmentTransfer.OK) {
+                    throw new RejectedException("Attachment rejected by the server, status " + status);
+                }
+                return new Attachment(in.readUTF(), size, contentType, readThumbnail(in));
+            }
+        }
+    }
+
+    private static byte[] readThumbnail(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_THUMBNAIL_BYTES) {
+            throw new RejectedException("Invalid thumbnail of " + length + " bytes from the server");
+        }
+        if (length == 0) {
+            return null;
+        }
+        byte[] thumbnail = new byte[length];
+        in.readFully(thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * A transfer the server refused, retrying it would not help.
+     */
+    private static class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String message) {
+            super(message);
+        }
+    }
+}
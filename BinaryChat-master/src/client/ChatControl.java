@@ -6,7 +6,6 @@ import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.io.File;
-import java.io.IOException;
 import java.util.Objects;
 import utils.*;
 
@@ -92,22 +91,19 @@ public class ChatControl implements KeyListener {
 
     private void sendMessage() {
         pictureButton.setBackground(standardColor);
-        FileSerialized file = null;
         String text = "";
+        if(!textField.getText().isEmpty()) {
+            text = textField.getText();
+        }
         if(selectedFile != null) {
-            try {
-                file = new FileSerialized(this.selectedFile.getAbsolutePath());
-            }catch(IOException e) {
-                System.out.println("Failed to serialize file");
-            }catch (NullPointerException e) {
+            if (selectedFile.isFile()) {
+                clientNetwork.createMessage(receiver, text, selectedFile, uploadProgress()); //Uploaded in the background, sent when done
+            } else {
                 System.out.println("No file at location: " + this.selectedFile.getAbsolutePath());
             }
+        } else if(!textField.getText().isEmpty()) {
+            clientNetwork.createMessage(receiver, text, (Attachment) null);
         }
-        if(!textField.getText().isEmpty()) {
-            text = textField.getText();
-        }
-        if( !textField.getText().isEmpty() || selectedFile != null )
-            clientNetwork.createMessage(receiver, text, file);
 
         textField.setText("");
         if(selectedFile != null) {
@@ -116,6 +112,27 @@ public class ChatControl implements KeyListener {
         }
     }
 
+    /**
+     * Shows how far the upload has come on the attach button, it is back to normal when the upload is done.
+     */
+    private AttachmentClient.Progress uploadProgress() {
+        return new AttachmentClient.Progress() {
+            @Override
+            public void update(long done, long total) {
+                String label = done >= total ? "Attach Image" : "Uploading " + (done * 100 / total) + "%";
+                SwingUtilities.invokeLater(() -> pictureButton.setText(label));
+            }
+
+            @Override
+            public void failed(String reason) {
+                SwingUtilities.invokeLater(() -> {
+                    pictureButton.setText("Attach Image");
+                    JOptionPane.showMessageDialog(controlPanel, "The image could not be sent: " + reason);
+                });
+            }
+        };
+    }
+
     private void attachFile() {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setAcceptAllFileFilterUsed(false);
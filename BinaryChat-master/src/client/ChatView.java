@@ -3,8 +3,18 @@ package client;
 import javax.swing.*;
 import javax.swing.text.*;
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.WeakHashMap;
 import javax.swing.JScrollPane;
 import javax.swing.JTextPane;
 import utils.*;
@@ -13,15 +23,34 @@ import utils.*;
  * The ChatView class is responsible for displaying the chat history of a particular user.
  * Uses the Observer pattern to receive updates from the ClientModel when there are changes to the chat history.
  * Implements the getHistory method to fetch the chat history of the user and displays it on the chat history panel.
+ * Images are shown as the thumbnail made by the server, decoded once. The full image is downloaded
+ * and shown when the user clicks the thumbnail.
+ * Only the newest messages of a conversation are sent at login, the older ones are asked for a page at a time
+ * when the user scrolls to the top. The view then keeps its distance to the bottom, so what the user
+ * was reading stays in place.
+ * Messages carry the time they were sent as a timestamp, formatted here the first time a message is shown and kept
+ * for the next renders. A message from an earlier day is shown with its date.
  *
  * @author Natan
  */
 public class ChatView implements Observer {
+    // Thread safe, shared by every view
+    private static final DateTimeFormatter TIME_OF_DAY = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter DATE_AND_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
     private final ClientModel model;
 
     private final JTextPane chatHistoryArea;
     private JScrollPane chatHistoryScrollPane;
     private User receiver;
+    private final Map<String, ImageIcon> thumbnails = new HashMap<>();
+    private final Map<FileSerialized, ImageIcon> legacyImages = new WeakHashMap<>();
+    private final Map<Message, String> times = new WeakHashMap<>();
+    private LocalDate timesDay; // The day the times were formatted on, those of that day are shown without a date
+    private Attachment opening;
+    private Message shownFirst;
+    private Message shownLast;
 
     /**
      * Creates a new ChatView instance with the given model, receiver and mainframe.
@@ -47,6 +76,11 @@ public class ChatView implements Observer {
         chatHistoryScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
 
         chatHistoryScrollPane.setPreferredSize(new Dimension(560, 380));
+        chatHistoryScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting() && e.getValue() == e.getAdjustable().getMinimum()) {
+                model.requestOlderHistory(receiver);
+            }
+        });
         getHistory();
     }
 
@@ -58,14 +92,35 @@ public class ChatView implements Observer {
     @Override
     public synchronized void update() {
         getHistory();
+        showOpenedImage();
+    }
+    private String formatTime(Message message) {
+        if (message.getTimestamp() == 0) { // Saved by an older server, formatted by it
+            return String.valueOf(message.getTime());
+        }
+        Instant sent = Instant.ofEpochMilli(message.getTimestamp());
+        boolean today = sent.atZone(ZoneId.systemDefault()).toLocalDate().equals(timesDay);
+        return (today ? TIME_OF_DAY : DATE_AND_TIME).format(sent);
     }
+
     private void getHistory() {
         try {
+            JScrollBar scrollBar = chatHistoryScrollPane.getVerticalScrollBar();
+            int fromBottom = scrollBar.getMaximum() - scrollBar.getValue();
             chatHistoryArea.setText("");
 
             ArrayList<Message> chatHistory = model.getHistory(receiver);
+            // An older page came in front of the messages shown, nothing was added at the end
+            boolean olderPage = !chatHistory.isEmpty() && shownLast == chatHistory.get(chatHistory.size() - 1)
+                    && shownFirst != chatHistory.get(0);
+            shownFirst = chatHistory.isEmpty() ? null : chatHistory.get(0);
+            shownLast = chatHistory.isEmpty() ? null : chatHistory.get(chatHistory.size() - 1);
 
             StyledDocument doc = chatHistoryArea.getStyledDocument();
+            if (!LocalDate.now().equals(timesDay)) {
+                times.clear();
+                timesDay = LocalDate.now();
+            }
 
             if(chatHistory.size() > 0) {
                 for (Message msg : chatHistory) {
@@ -79,26 +134,21 @@ public class ChatView implements Observer {
                     int offset = doc.getLength();
                     doc.insertString(offset, msg.getText() + "\n", messageTextAttributes());
                     doc.setParagraphAttributes(offset, msg.getText().length() + 1, attributes, false);
-                    doc.insertString(doc.getLength(), msg.getTime() + " " + msg.getSender() + ": " + "\n", infoTextAttributes());
-                    doc.setParagraphAttributes(offset, msg.getTime().length() + msg.getSender().getName().length(), attributes, false);
-
-                    if (msg.getFile() != null) {
-
-                        ImageIcon imageIcon = new ImageIcon(msg.getFile().getData());
+                    String time = times.computeIfAbsent(msg, this::formatTime);
+                    doc.insertString(doc.getLength(), time + " " + msg.getSender() + ": " + "\n", infoTextAttributes());
+                    doc.setParagraphAttributes(offset, time.length() + msg.getSender().getName().length(), attributes, false);
 
-                        if (imageIcon.getIconWidth() > 150 || imageIcon.getIconHeight() > 150) {
-                            imageIcon.setImage(imageIcon.getImage().getScaledInstance(150, 150, Image.SCALE_REPLICATE));  //Scala bilden till
-                        }
-
-                        chatHistoryArea.setCaretPosition(chatHistoryArea.getDocument().getLength());
-                        doc.insertString(doc.getLength(), "               " + "\n", infoTextAttributes());
-                        doc.insertString(doc.getLength(), " ", infoTextAttributes());
-                        chatHistoryArea.insertIcon(imageIcon);
-                        doc.insertString(doc.getLength(), "\n", infoTextAttributes());
+                    if (msg.getAttachment() != null && msg.getAttachment().isImage()) {
+                        insertImage(doc, thumbnail(msg.getAttachment()), msg.getAttachment());
+                    } else if (msg.getFile() != null) { //Messages from older clients hold the image itself
+                        insertImage(doc, legacyImages.computeIfAbsent(msg.getFile(), f -> scaled(new ImageIcon(f.getData()))), null);
                     }
                 }
                 chatHistoryArea.setCaretPosition(chatHistoryArea.getDocument().getLength());
                 chatHistoryArea.setStyledDocument(doc);
+                if (olderPage) {
+                    SwingUtilities.invokeLater(() -> scrollBar.setValue(scrollBar.getMaximum() - fromBottom));
+                }
             }
 
         } catch (NullPointerException e) {
@@ -108,6 +158,73 @@ public class ChatView implements Observer {
         }
     }
 
+    private void insertImage(StyledDocument doc, ImageIcon imageIcon, Attachment attachment) throws BadLocationException {
+        chatHistoryArea.setCaretPosition(chatHistoryArea.getDocument().getLength());
+        doc.insertString(doc.getLength(), "               " + "\n", infoTextAttributes());
+        doc.insertString(doc.getLength(), " ", infoTextAttributes());
+        if (attachment == null) {
+            chatHistoryArea.insertIcon(imageIcon);
+        } else {
+            JLabel label = imageIcon != null ? new JLabel(imageIcon) : new JLabel("[image, click to open]");
+            label.setToolTipText("Click to open the full image");
+            label.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+            label.addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    open(attachment);
+                }
+            });
+            chatHistoryArea.insertComponent(label);
+        }
+        doc.insertString(doc.getLength(), "\n", infoTextAttributes());
+    }
+
+    /**
+     * null for an image sent without a thumbnail, it is shown as a link to the full image.
+     */
+    private ImageIcon thumbnail(Attachment attachment) {
+        ImageIcon icon = thumbnails.get(attachment.getId());
+        if (icon == null && attachment.getThumbnail() != null) {
+            icon = new ImageIcon(attachment.getThumbnail());
+            thumbnails.put(attachment.getId(), icon);
+        }
+        return icon;
+    }
+
+    private static ImageIcon scaled(ImageIcon imageIcon) {
+        int longest = Math.max(imageIcon.getIconWidth(), imageIcon.getIconHeight());
+        if (longest > 150) {
+            int width = Math.max(1, imageIcon.getIconWidth() * 150 / longest);
+            int height = Math.max(1, imageIcon.getIconHeight() * 150 / longest);
+            imageIcon.setImage(imageIcon.getImage().getScaledInstance(width, height, Image.SCALE_SMOOTH));
+        }
+        return imageIcon;
+    }
+
+    private synchronized void open(Attachment attachment) {
+        opening = attachment;
+        showOpenedImage();
+    }
+
+    /**
+     * Shows the image the user clicked once it is downloaded, the model updates the view when it is.
+     */
+    private void showOpenedImage() {
+        if (opening == null) {
+            return;
+        }
+        File file = model.getAttachmentFile(opening);
+        if (file == null) {
+            return;
+        }
+        opening = null;
+        SwingUtilities.invokeLater(() -> {
+            JScrollPane image = new JScrollPane(new JLabel(new ImageIcon(file.getPath())));
+            image.setPreferredSize(new Dimension(800, 600));
+            JOptionPane.showMessageDialog(chatHistoryScrollPane, image, file.getName(), JOptionPane.PLAIN_MESSAGE);
+        });
+    }
+
     private static SimpleAttributeSet infoTextAttributes() {
         SimpleAttributeSet attrs = new SimpleAttributeSet();
         StyleConstants.setFontSize(attrs, 6);
@@ -147,6 +264,8 @@ public class ChatView implements Observer {
      */
     public void setReceiver(String rec){
         this.receiver = new User(rec);
+        shownFirst = null;
+        shownLast = null;
         getHistory();
     }
 }
@@ -1,7 +1,13 @@
 package client;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import utils.*;
 
@@ -16,6 +22,12 @@ public class ClientModel implements Observable {
     private final ObservableSupport obs = new ObservableSupport();
     private ChatHistory chatHistory;
     private ArrayList<User> userList = new ArrayList<>();
+    private long presenceVersion;
+    private final Map<String, File> attachmentFiles = new HashMap<>();
+    private final HashSet<String> requestedAttachments = new HashSet<>();
+    private Consumer<Attachment> attachmentFetcher;
+    private final HashSet<User> requestedPages = new HashSet<>();
+    private BiConsumer<User, Long> historyPageFetcher;
     private User user;
     private Message.VALIDATE validated;
     private Message.VALIDATE serverOnline;
@@ -46,6 +58,108 @@ public class ClientModel implements Observable {
             this.obs.update();
         }
 
+    /**
+     * Replaces the user list with a full snapshot from the server.
+     * @pre userList != null
+     * @param userList, the Arraylist to be added.
+     * @param presenceVersion, the presence version the snapshot was taken at.
+     * @post Sets this.userList = userList and this.presenceVersion = presenceVersion
+     *       Calls the method update on all Observers in obs.
+     */
+    public synchronized void updateUserList(ArrayList<User> userList, long presenceVersion) {
+        this.presenceVersion = presenceVersion;
+        updateUserList(userList);
+    }
+
+    /**
+     * Applies a PRESENCE_DELTA to the user list. The list is replaced rather than changed in place,
+     * so a list already handed out by getUserList is never modified.
+     * @pre assumes delta != null
+     * @param delta, the message holding the users that joined and left.
+     * @return false if a version was missed and a full user list is needed, true otherwise
+     * @post if delta.basePresenceVersion = presenceVersion the joined users are added, the users that left
+     *       are removed, presenceVersion = delta.presenceVersion and update is called on all Observers in obs.
+     *       A delta already covered by the current version is ignored.
+     */
+    public synchronized boolean applyPresenceDelta(Message delta) {
+        if (delta.getPresenceVersion() <= this.presenceVersion) {
+            return true;
+        }
+        if (delta.getBasePresenceVersion() != this.presenceVersion) {
+            return false;
+        }
+        ArrayList<User> updated = new ArrayList<>(this.userList);
+        if (delta.getOfflineUsers() != null) {
+            updated.removeAll(new HashSet<>(delta.getOfflineUsers()));
+        }
+        if (delta.getOnlineUsers() != null) {
+            HashSet<User> present = new HashSet<>(updated);
+            for (User joined : delta.getOnlineUsers()) {
+                if (present.add(joined)) {
+                    updated.add(joined);
+                }
+            }
+        }
+        this.presenceVersion = delta.getPresenceVersion();
+        updateUserList(updated);
+        return true;
+    }
+
+    /**
+     * @pre None
+     * @return the presence version of the current user list
+     * @post presenceVersion is unchanged
+     */
+    public synchronized long getPresenceVersion() {
+        return this.presenceVersion;
+    }
+
+    /**
+     * @pre None
+     * @param attachmentFetcher, called with an attachment that is shown but not downloaded yet.
+     *                           Must not block, it is called from the view.
+     * @post Sets this.attachmentFetcher = attachmentFetcher
+     */
+    public synchronized void setAttachmentFetcher(Consumer<Attachment> attachmentFetcher) {
+        this.attachmentFetcher = attachmentFetcher;
+    }
+
+    /**
+     * Asks for the attachment the first time it is missing, so only attachments that are opened are downloaded.
+     * @pre assumes attachment != null
+     * @param attachment, the attachment to be shown.
+     * @return the local file holding the attachment, or null if it is not downloaded yet
+     * @post If the file is missing, the attachmentFetcher is called once for the attachment.
+     */
+    public synchronized File getAttachmentFile(Attachment attachment) {
+        File file = attachmentFiles.get(attachment.getId());
+        if (file == null && attachmentFetcher != null && requestedAttachments.add(attachment.getId())) {
+            attachmentFetcher.accept(attachment);
+        }
+        return file;
+    }
+
+    /**
+     * @pre assumes attachment && file != null
+     * @param attachment, the attachment that is now available.
+     * @param file, the local file holding it.
+     * @post The file is used for the attachment from now on
+     *       Calls the method update on all Observers in obs.
+     */
+    public synchronized void addAttachmentFile(Attachment attachment, File file) {
+        attachmentFiles.put(attachment.getId(), file);
+        this.obs.update();
+    }
+
+    /**
+     * Lets the attachment be asked for again, after a download failed.
+     * @pre assumes attachment != null
+     * @param attachment, the attachment that could not be downloaded.
+     */
+    public synchronized void attachmentFailed(Attachment attachment) {
+        requestedAttachments.remove(attachment.getId());
+    }
+
     /**
      * Updates the chat history with the specified chat history.
      * @pre chathistory != null
@@ -56,9 +170,49 @@ public class ClientModel implements Observable {
      */
     public synchronized void updateChatHistory(ChatHistory chatHistory) {
             this.chatHistory = chatHistory;
+            this.requestedPages.clear();
             this.obs.update();
         }
 
+    /**
+     * @pre None
+     * @param historyPageFetcher, called with a user and the history start of the conversation with it, to ask
+     *                           for the page before. Must not block, it is called from the view.
+     * @post Sets this.historyPageFetcher = historyPageFetcher
+     */
+    public synchronized void setHistoryPageFetcher(BiConsumer<User, Long> historyPageFetcher) {
+        this.historyPageFetcher = historyPageFetcher;
+    }
+
+    /**
+     * Asks for the page before the oldest message held, once until it arrives.
+     * @pre assumes receiver != null
+     * @param receiver, the user the conversation is with.
+     * @post If the conversation has older messages, the historyPageFetcher is called for the page before them
+     */
+    public synchronized void requestOlderHistory(User receiver) {
+        long start = this.chatHistory.getHistoryStart(receiver);
+        if (start > 0 && historyPageFetcher != null && requestedPages.add(receiver)) {
+            historyPageFetcher.accept(receiver, start);
+        }
+    }
+
+    /**
+     * @pre assumes page != null
+     * @param page, a history holding the page of one conversation sent by the server.
+     * @post The messages of the page are put in front of the conversation
+     *       Calls the method update on all Observers in obs.
+     */
+    public synchronized void addOlderHistory(ChatHistory page) {
+        for (User receiver : page.getChatPartners()) {
+            if (page.getHistoryStart(receiver) < this.chatHistory.getHistoryStart(receiver)) {
+                this.chatHistory.addOlderHistory(receiver, page.getHistory(receiver), page.getHistoryStart(receiver));
+            }
+            requestedPages.remove(receiver);
+        }
+        this.obs.update();
+    }
+
     /**
      * Adds an observer to the class ObservableSupport
      * @pre assumes obs != null
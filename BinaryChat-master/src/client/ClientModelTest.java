@@ -172,6 +172,52 @@ class ClientModelTest {
 
     }
 
+    @org.junit.jupiter.api.Test
+    void applyPresenceDelta() {
+        ClientModel model = new ClientModel();
+        ArrayList<User> snapshot = new ArrayList<>();
+        snapshot.add(new User("Alice"));
+        snapshot.add(new User("Bob"));
+        model.updateUserList(snapshot, 5);
+
+        ArrayList<User> joined = new ArrayList<>();
+        joined.add(new User("Charlie"));
+        ArrayList<User> left = new ArrayList<>();
+        left.add(new User("Alice"));
+        Message delta = Message.builder()
+                .messageType(Message.MessageType.PRESENCE_DELTA)
+                .onlineUsers(joined)
+                .offlineUsers(left)
+                .basePresenceVersion(5)
+                .presenceVersion(6)
+                .build();
+
+        //Deltat läggs på version 5 och ger Bob och Charlie, den gamla listan ändras inte
+        assertTrue(model.applyPresenceDelta(delta));
+        assertEquals(6, model.getPresenceVersion());
+        assertEquals(2, model.getUserList().size());
+        assertTrue(model.getUserList().contains(new User("Bob")));
+        assertTrue(model.getUserList().contains(new User("Charlie")));
+        assertEquals(2, snapshot.size());
+        assertTrue(snapshot.contains(new User("Alice")));
+
+        //Samma delta igen ignoreras
+        assertTrue(model.applyPresenceDelta(delta));
+        assertEquals(2, model.getUserList().size());
+
+        //Ett delta som hoppar över version 7 kan inte läggas på, listan måste hämtas om
+        Message gap = Message.builder()
+                .messageType(Message.MessageType.PRESENCE_DELTA)
+                .onlineUsers(new ArrayList<>())
+                .offlineUsers(joined)
+                .basePresenceVersion(7)
+                .presenceVersion(8)
+                .build();
+        assertFalse(model.applyPresenceDelta(gap));
+        assertEquals(6, model.getPresenceVersion());
+        assertTrue(model.getUserList().contains(new User("Charlie")));
+    }
+
     @org.junit.jupiter.api.Test
     void addLocalHistory(){
         clientModel.updateChatHistory(chatHistory); //Lägg till en tom chathistory i modellen.
@@ -301,8 +347,30 @@ class ClientModelTest {
         assertFalse(clientModel2.loggedIn());
     }
 
+    /**
+     * Tests that an older page is asked for once, and put in front of the conversation when it arrives
+     */
+    @org.junit.jupiter.api.Test
+    void requestOlderHistory() {
+        ArrayList<Long> requested = new ArrayList<>();
+        clientModel.setHistoryPageFetcher((receiver, before) -> requested.add(before));
+        chatHistory.addHistory(sender_kalle, reveicer_Anders, message);
+        chatHistory.setHistoryStart(reveicer_Anders, 50);
+        clientModel.updateChatHistory(chatHistory);
 
-}
-
+        clientModel.requestOlderHistory(reveicer_Anders);
+        clientModel.requestOlderHistory(reveicer_Anders);
+        assertEquals(1, requested.size());
+        assertEquals(50L, (long) requested.get(0));
 
+        ChatHistory page = new ChatHistory(sender_kalle);
+        Message older = Message.builder().sender(reveicer_Anders).receiver(sender_kalle).text("older").build();
+        page.addOlderHistory(reveicer_Anders, java.util.List.of(older), 0);
+        clientModel.addOlderHistory(page);
 
+        assertEquals(2, clientModel.getHistory(reveicer_Anders).size());
+        assertSame(older, clientModel.getHistory(reveicer_Anders).get(0));
+        clientModel.requestOlderHistory(reveicer_Anders); // Nothing older than the start of the conversation
+        assertEquals(1, requested.size());
+    }
+}
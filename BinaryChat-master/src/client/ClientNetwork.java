@@ -2,17 +2,20 @@ package client;
 
 import utils.*;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * The class is responsible for managing the network connection between the client and the server.
  * It establishes the connection with the server and sends/receives
- * messages using ObjectOutputStream and ObjectInputStream.
+ * messages using a MessageStream, framed by default or a plain object stream with -Dbinarychat.transport=object
  * It also handles the different types of messages received and updates the ClientModel accordingly.
+ * Attachments are uploaded and downloaded over the attachment port by an AttachmentClient, on a thread of their own.
  *
  * @author Ebrahim
  */
@@ -20,12 +23,16 @@ import java.net.SocketException;
 public class ClientNetwork {
     private final int PORT = 2023;
     private final String HOST = "127.0.0.1";
+    private final boolean FRAMED = !"object".equalsIgnoreCase(System.getProperty("binarychat.transport"));
+    private final boolean BINARY = FRAMED && !"serialized".equalsIgnoreCase(System.getProperty("binarychat.wire"));
     private final ClientModel clientModel;
     private boolean connected;
     private User sender;
     private Socket socket;
-    private ObjectOutputStream objectOutputStream;
+    private MessageStream messageStream;
     private Thread incomingThread;
+    private final AttachmentClient attachmentClient;
+    private final ExecutorService transfers;
 
     /**
      * Constructs a new ClientNetwork object
@@ -41,14 +48,23 @@ public class ClientNetwork {
         this.connected = false;
 
         this.clientModel = clientModel;
+        this.attachmentClient = new AttachmentClient(HOST, Integer.getInteger("binarychat.attachmentPort", PORT + 1),
+                Paths.get("AttachmentCache"));
+        this.transfers = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "attachment-transfers");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
      * @pre None
      * @post Sets connected to true
+     *       The model fetches attachments and history pages through this network, set here and not in the
+     *       constructor so this is never handed out before it is constructed
      *       Creates a new thread to handle the connection
      *       tries to create a new socket with the hardcoded host and port
-     *       Creates an outputstream
+     *       Creates a MessageStream, framed unless the transport property says object
      *       sets serverstatus to allowed, meaning the connection established.
      *       runs waitforMessage() which listens ti incoming messages from the server
      *       runs sendClientInfo which send a message to the server containing the clients username
@@ -59,11 +75,13 @@ public class ClientNetwork {
     public void connectToServer(User user) {
         connected = true;
         this.sender = user;
+        clientModel.setAttachmentFetcher(this::fetchAttachment);
+        clientModel.setHistoryPageFetcher(this::fetchHistoryPage);
         Thread connectionThread = new Thread(() -> {
             try(Socket socket = new Socket(this.HOST, this.PORT);
-                ObjectOutputStream objectOutputStream = new ObjectOutputStream(socket.getOutputStream())) {
+                MessageStream messageStream = MessageStream.open(socket, this.FRAMED)) {
                 this.socket = socket;
-                this.objectOutputStream = objectOutputStream;
+                this.messageStream = messageStream;
                 clientModel.setServerStatus(Message.VALIDATE.ALLOWED);
 
                 waitForMessage();
@@ -115,17 +133,18 @@ public class ClientNetwork {
         Message message = Message.builder()
                 .messageType(Message.MessageType.CLIENT_INFO)
                 .sender(this.sender)
+                .wireFormat(BINARY ? Message.WireFormat.BINARY : null)
                 .build();
         sendMessage(message);
     }
     private void waitForMessage() {
         // Create and start a new thread to handle incoming messages
         incomingThread = new Thread(() -> {
-            try(ObjectInputStream objectInputStream = new ObjectInputStream(this.socket.getInputStream())) {
+            try {
                 // Loop to listen for incoming messages
                 while (connected) {
-                    //Read the incoming message object from the input stream and type-cast to Message class
-                    Message message = (Message) objectInputStream.readObject();
+                    //Read the incoming message from the message stream
+                    Message message = this.messageStream.read();
 
                     //Checks which type of message that is received
                     if (message.getMessageType() == Message.MessageType.REGULAR_MESSAGE) {
@@ -139,17 +158,35 @@ public class ClientNetwork {
                         } catch (NullPointerException e) {
                             System.out.println("ERROR fetching history");
                         }
+                    } else if (message.getMessageType() == Message.MessageType.HISTORY_PAGE) {
+                        if (message.getChatHistory() != null) {
+                            clientModel.addOlderHistory(message.getChatHistory());
+                        }
                     } else if (message.getMessageType() == Message.MessageType.CLIENT_LIST) {
                         System.out.println("I received a client_list");
                         try {
-                            clientModel.updateUserList(message.getOnlineUsers());
+                            clientModel.updateUserList(message.getOnlineUsers(), message.getPresenceVersion());
 
                         } catch (NullPointerException e) {
                             System.out.println("ERROR fetching user list");
                         }
+                    } else if (message.getMessageType() == Message.MessageType.PRESENCE_DELTA) {
+                        if (!clientModel.applyPresenceDelta(message)) {
+                            // A version was missed, ask the server for the full list
+                            sendMessage(Message.builder()
+                                    .messageType(Message.MessageType.PRESENCE_RESYNC)
+                                    .sender(this.sender)
+                                    .presenceVersion(clientModel.getPresenceVersion())
+                                    .build());
+                        }
+                    } else if (message.getMessageType() == Message.MessageType.MESSAGE_SAVED) {
+                        System.out.println("Message " + message.getId() + " was saved by the server");
                     } else if (message.getMessageType() == Message.MessageType.CLIENT_INFO) {
                         System.out.println("I received client info");
                         if(message.getText().equals("OK")) {
+                            if (message.getWireFormat() == Message.WireFormat.BINARY) {
+                                messageStream.useBinary(); // Before validating, nothing is sent until the login is done
+                            }
                             clientModel.setValidated(Message.VALIDATE.ALLOWED);
                         }else {
                             clientModel.setValidated(Message.VALIDATE.DENIED);
@@ -176,11 +213,11 @@ public class ClientNetwork {
     /**
      * @pre message != null.
      * @param message, the message to be sent.
-     * @post Tries to send the messages via the objectOutputstream to the server.
+     * @post Tries to send the messages via the messageStream to the server.
      */
     public void sendMessage(Message message) {
         try {
-            objectOutputStream.writeObject(message);
+            messageStream.write(message);
         } catch (IOException e) {
             System.out.println("Exception sending message to server: " + e);
         }
@@ -188,22 +225,22 @@ public class ClientNetwork {
 
     /**
      * Adds a new message to the local chat history and sends it to the server.
-     * @pre receiver != null. Text & File can be null
+     * @pre receiver != null. Text & attachment can be null
      * @param receiver, the user that are the receiver.
      * @param text, the text to be sent to the receiver
-     * @param file , the file, if any, to be sent to the receiver.
+     * @param attachment, the descriptor of an uploaded file, if any, to be sent to the receiver.
      * @post Creates a message with the given constituents
      *       runs the method addLocalHistory
      *       Calls the method sendMessage via the clientnetwork class, which sends the message to the server.
      */
-    public void createMessage(User receiver, String text, FileSerialized file) {
+    public void createMessage(User receiver, String text, Attachment attachment) {
         if (receiver == null) {
             throw new NullPointerException("Receiver cannot be null");
         }
         Message message = Message.builder()
                 .sender(clientModel.getUser())
                 .receiver(receiver)
-                .file(file)
+                .attachment(attachment)
                 .text(text)
                 .messageType(Message.MessageType.REGULAR_MESSAGE)
                 .build();
@@ -212,4 +249,63 @@ public class ClientNetwork {
         sendMessage(message);
     }
 
+    /**
+     * Uploads the file on the transfer thread and sends the message once the upload is done,
+     * so the Swing thread never waits for the file.
+     * @pre receiver && file != null. Text can be null
+     * @param receiver, the user that are the receiver.
+     * @param text, the text to be sent with the file
+     * @param file, the file to be attached.
+     * @post The file is uploaded to the attachment server and a message with its Attachment is created.
+     *       The sender shows its own copy of the file, no download is needed.
+     */
+    public void createMessage(User receiver, String text, File file) {
+        createMessage(receiver, text, file, AttachmentClient.Progress.NONE);
+    }
+
+    /**
+     * As createMessage(receiver, text, file), reporting how much of the file is uploaded.
+     * @pre receiver && file && progress != null. Text can be null
+     * @param receiver, the user that are the receiver.
+     * @param text, the text to be sent with the file
+     * @param file, the file to be attached.
+     * @param progress, told about the upload on the transfer thread.
+     * @post The file is uploaded and the message created, or progress is told why the upload failed
+     */
+    public void createMessage(User receiver, String text, File file, AttachmentClient.Progress progress) {
+        if (receiver == null) {
+            throw new NullPointerException("Receiver cannot be null");
+        }
+        transfers.execute(() -> {
+            try {
+                Attachment attachment = attachmentClient.upload(file, progress);
+                clientModel.addAttachmentFile(attachment, file);
+                createMessage(receiver, text, attachment);
+            } catch (IOException e) {
+                System.out.println("Failed to upload attachment: " + e.getMessage());
+                progress.failed(e.getMessage());
+            }
+        });
+    }
+
+    private void fetchHistoryPage(User receiver, long before) {
+        sendMessage(Message.builder()
+                .messageType(Message.MessageType.HISTORY_PAGE)
+                .sender(this.sender)
+                .receiver(receiver)
+                .historyCursor(before)
+                .build());
+    }
+
+    private void fetchAttachment(Attachment attachment) {
+        transfers.execute(() -> {
+            try {
+                clientModel.addAttachmentFile(attachment, attachmentClient.download(attachment));
+            } catch (IOException e) {
+                System.out.println("Failed to download attachment: " + e.getMessage());
+                clientModel.attachmentFailed(attachment);
+            }
+        });
+    }
+
 }
@@ -0,0 +1,294 @@
+package server;
+
+import utils.AttachmentTransfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves uploads and downloads of attachments on a port of its own, see AttachmentTransfer for the protocol.
+ * Runs next to the chat server in both the threaded and the nio mode, every transfer gets a thread from
+ * ServerThreads for as long as it lasts.
+ * Files move in chunks of at most AttachmentTransfer.CHUNK_SIZE. Every uploaded chunk is acknowledged once it
+ * is on disk, so an upload that loses its connection is resumed from the last acknowledged offset.
+ * Interrupted uploads are kept for ServerConfig.uploadResumeSeconds and deleted after that.
+ * An upload of a file the store already has is answered with EXISTS, no bytes are sent twice. The file is pinned
+ * for the resume time, so it is not deleted before the message of the client refers to it.
+ * The reply to an upload of an image carries its thumbnail, made once by the store, which the client puts in its message.
+ * Downloads are sent with FileChannel.transferTo, which lets the OS copy the file straight to the socket.
+ *
+ * @author David
+ */
+public class AttachmentServer implements Runnable {
+    private final int port;
+    private final AttachmentStore store;
+    private final long maxBytes;
+    private final long resumeNanos;
+    private final Map<String, PendingUpload> pending = new ConcurrentHashMap<>();
+    private volatile long lastSweep = System.nanoTime();
+
+    /**
+     * @pre port > 0, assumes store != null
+     * @param port, the port to listen on.
+     * @param store, the store the attachments are kept in.
+     * @post Creates a server with the max size and resume time of ServerConfig, started by run()
+     */
+    public AttachmentServer(int port, AttachmentStore store) {
+        this(port, store, ServerConfig.maxAttachmentBytes(), ServerConfig.uploadResumeSeconds());
+    }
+
+    /**
+     * @pre port > 0, assumes store != null, maxBytes >= 0, resumeSeconds > 0
+     * @param port, the port to listen on.
+     * @param store, the store the attachments are kept in.
+     * @param maxBytes, the largest attachment that is accepted.
+     * @param resumeSeconds, the time an interrupted upload is kept.
+     * @post Creates a server that is started by run()
+     */
+    public AttachmentServer(int port, AttachmentStore store, long maxBytes, int resumeSeconds) {
+        this.port = port;
+        this.store = store;
+        this.maxBytes = maxBytes;
+        this.resumeNanos = resumeSeconds * 1_000_000_000L;
+    }
+
+    /**
+     * @pre None
+     * @post Accepts transfers until the server channel fails, each on a thread of its own
+     */
+    @Override
+    public void run() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Attachment server listening on port " + port);
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                ServerThreads.start("attachment-transfer", () -> handle(channel));
+            }
+        } catch (IOException e) {
+            System.out.println("Attachment server is offline");
+            e.printStackTrace();
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        try (channel) {
+            // Not buffered, so no bytes of the file are read into the stream before transferFrom takes over
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            byte[] magic = new byte[AttachmentTransfer.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, AttachmentTransfer.MAGIC)) {
+                throw new IOException("Not an attachment transfer");
+            }
+            byte operation = in.readByte();
+            if (operation == AttachmentTransfer.UPLOAD) {
+                upload(channel, in, out);
+            } else if (operation == AttachmentTransfer.DOWNLOAD) {
+                download(channel, in, out);
+            } else {
+                throw new IOException("Unknown attachment operation " + operation);
+            }
+        } catch (IOException e) {
+            System.out.println("Attachment transfer failed: " + e.getMessage());
+            ServerMetrics.increment("attachments.failed");
+        }
+    }
+
+    private void upload(SocketChannel channel, DataInputStream in, DataOutputStream out) throws IOException {
+        String uploadId = in.readUTF();
+        String hash = in.readUTF();
+        String contentType = in.readUTF();
+        long size = in.readLong();
+        removeExpiredUploads();
+
+        if (store.pin(hash, resumeNanos / 1_000_000)) { // Sent before, kept until the message of the client refers to it
+            out.writeByte(AttachmentTransfer.EXISTS);
+            out.writeUTF(hash);
+            writeThumbnail(out, hash, contentType);
+            ServerMetrics.increment("attachments.deduplicated");
+            ServerMetrics.add("attachments.deduplicatedBytes", size);
+            return;
+        }
+        PendingUpload upload;
+        if (uploadId.isEmpty()) {
+            if (size < 0 || !hash.matches("[0-9a-f]{64}")) {
+                out.writeByte(AttachmentTransfer.REJECTED);
+                return;
+            }
+            if (size > maxBytes) { // Refused before a single byte of the file is read
+                out.writeByte(AttachmentTransfer.TOO_LARGE);
+                out.writeLong(maxBytes);
+                ServerMetrics.increment("attachments.tooLarge");
+                return;
+            }
+            upload = new PendingUpload(store.begin(), hash, size);
+            pending.put(upload.id, upload);
+        } else {
+            upload = pending.get(uploadId);
+            if (upload == null || upload.size != size || !upload.hash.equals(hash)) {
+                out.writeByte(AttachmentTransfer.NOT_FOUND);
+                return;
+            }
+            ServerMetrics.increment("attachments.resumed");
+        }
+
+        upload.takeOver(channel);
+        try {
+            long start = System.nanoTime();
+            long resumedAt = upload.offset;
+            out.writeByte(AttachmentTransfer.OK);
+            out.writeUTF(upload.id);
+            out.writeLong(upload.offset);
+            while (upload.offset < size) {
+                int length = in.readInt();
+                if (length <= 0 || length > AttachmentTransfer.CHUNK_SIZE || length > size - upload.offset) {
+                    out.writeByte(AttachmentTransfer.REJECTED);
+                    throw new IOException("Invalid chunk of " + length + " bytes at " + upload.offset + " of " + size);
+                }
+                store.write(upload.id, channel, upload.offset, length);
+                upload.offset += length;
+                upload.touch();
+                out.writeByte(AttachmentTransfer.ACK);
+                out.writeLong(upload.offset);
+            }
+            pending.remove(upload.id);
+            String id;
+            try {
+                id = store.complete(upload.id, upload.hash);
+            } catch (IOException e) {
+                out.writeByte(AttachmentTransfer.REJECTED);
+                throw e;
+            }
+            out.writeByte(AttachmentTransfer.OK);
+            out.writeUTF(id);
+            writeThumbnail(out, id, contentType);
+            ServerMetrics.increment("attachments.uploaded");
+            ServerMetrics.add("attachments.uploadedBytes", size - resumedAt);
+            ServerMetrics.recordTime("attachments.uploadTime", System.nanoTime() - start);
+            System.out.println("Stored attachment " + id + " (" + contentType + ", " + size + " bytes)");
+        } finally {
+            upload.release();
+        }
+    }
+
+    private void writeThumbnail(DataOutputStream out, String id, String contentType) throws IOException {
+        byte[] thumbnail = contentType.startsWith("image/") ? store.thumbnail(id) : null;
+        if (thumbnail == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(thumbnail.length);
+        out.write(thumbnail);
+    }
+
+    private void download(SocketChannel channel, DataInputStream in, DataOutputStream out) throws IOException {
+        String id = in.readUTF();
+        long offset = in.readLong();
+        try (FileChannel file = store.open(id)) {
+            if (file == null) {
+                out.writeByte(AttachmentTransfer.NOT_FOUND);
+                return;
+            }
+            long size = file.size();
+            if (offset < 0 || offset > size) {
+                out.writeByte(AttachmentTransfer.REJECTED);
+                return;
+            }
+            out.writeByte(AttachmentTransfer.OK);
+            out.writeLong(size);
+            long start = System.nanoTime();
+            long position = offset;
+            while (position < size) {
+                int length = (int) Math.min(AttachmentTransfer.CHUNK_SIZE, size - position);
+                out.writeInt(length);
+                long end = position + length;
+                while (position < end) {
+                    position += file.transferTo(position, end - position, channel);
+                }
+            }
+            if (offset > 0) {
+                ServerMetrics.increment("attachments.resumed");
+            }
+            ServerMetrics.increment("attachments.downloaded");
+            ServerMetrics.add("attachments.downloadedBytes", size - offset);
+            ServerMetrics.recordTime("attachments.downloadTime", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Deletes the uploads no client has resumed in time, and at most once a resume time the files
+     * that were uploaded but never sent in a message.
+     * Runs whenever an upload starts, an idle server has no uploads to clean up.
+     */
+    private void removeExpiredUploads() {
+        long now = System.nanoTime();
+        if (now - lastSweep > resumeNanos) {
+            lastSweep = now;
+            store.removeUnreferenced(resumeNanos / 1_000_000);
+        }
+        for (PendingUpload upload : pending.values()) {
+            if (now - upload.lastActive > resumeNanos && upload.lock.tryLock()) {
+                try {
+                    if (pending.remove(upload.id, upload)) {
+                        store.discard(upload.id);
+                        ServerMetrics.increment("attachments.expired");
+                    }
+                } finally {
+                    upload.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * An upload that has not received all of its bytes yet.
+     * Only one connection writes to it at a time, a resume closes the connection the client lost
+     * so its thread lets go of the upload.
+     */
+    private static class PendingUpload {
+        private final String id;
+        private final String hash;
+        private final long size;
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile long offset;
+        private volatile long lastActive = System.nanoTime();
+        private volatile SocketChannel owner;
+
+        PendingUpload(String id, String hash, long size) {
+            this.id = id;
+            this.hash = hash;
+            this.size = size;
+        }
+
+        void takeOver(SocketChannel channel) throws IOException {
+            SocketChannel previous = owner;
+            if (previous != null) {
+                previous.close(); // Wakes a thread still blocked on the connection that was lost
+            }
+            lock.lock();
+            owner = channel;
+            touch();
+        }
+
+        void release() {
+            owner = null;
+            touch();
+            lock.unlock();
+        }
+
+        void touch() {
+            lastActive = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package server;
+
+import utils.AttachmentTransfer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the files uploaded to the attachment server in the Attachments directory, one file per content,
+ * named by the SHA-256 of its bytes. A file sent to many users, or many times, is stored once.
+ * Every chat message holding a file is a reference to it, counted in memory. A reference retained or released
+ * only appends a line, +id or -id, to a journal, so routing a message with a file costs one small write and not a
+ * rewrite of every count. Once the journal holds more lines than twice the files referenced, the counts are
+ * saved as a snapshot in the references file, which names the journal that follows it, and a new journal is
+ * started. A restart loads the snapshot and replays its journal, a line cut off by a crash is dropped.
+ * A file is deleted when its last reference is released, or when it was never referenced at all. A file a client was
+ * told exists is pinned until the message of the client had the time to refer to it, it is not deleted before.
+ * An upload in progress is kept in a .part file next to them until complete() moves it in place.
+ * The thumbnail of an image is made once and kept in a .thumb file next to it.
+ * Files are written with FileChannel.transferFrom and read with transferTo by the AttachmentServer,
+ * so the server never holds a whole attachment in memory.
+ *
+ * @author David
+ */
+public class AttachmentStore {
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+    private static final Pattern UPLOAD_ID = Pattern.compile("[0-9a-f-]{36}"); // Also the id of files stored before hashing
+    private static final String REFERENCES = "references.properties";
+    private static final String JOURNAL_KEY = "journal"; // In the references file, the generation of its journal
+    private static final Pattern JOURNAL = Pattern.compile("references\\.(\\d+)\\.journal");
+    private static final int MIN_JOURNAL_LINES = 1024;
+
+    private final Path directory;
+    private final Map<String, Integer> references = new HashMap<>();
+    private final Map<String, Long> pins = new HashMap<>(); // Until when, in currentTimeMillis, a file is kept
+    private FileChannel journal;
+    private long journalGeneration;
+    private int journalLines;
+
+    /**
+     * @pre assumes directoryName != null
+     * @param directoryName, the directory holding the attachments.
+     * @post Creates the directory if it does not exist and loads the reference counts, journals of older
+     *       snapshots are deleted
+     */
+    public AttachmentStore(String directoryName) {
+        this.directory = new File(directoryName).toPath();
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            System.out.println("Failed to create directory");
+        }
+        loadReferences();
+    }
+
+    /**
+     * @pre None
+     * @return the id of a new, empty upload
+     * @throws IOException if the .part file could not be created
+     */
+    public String begin() throws IOException {
+        String uploadId = UUID.randomUUID().toString();
+        Files.createFile(partFile(uploadId));
+        return uploadId;
+    }
+
+    /**
+     * @pre assumes in != null, offset >= 0, length >= 0, the upload is begun and not completed
+     * @param uploadId, the upload the bytes belong to.
+     * @param in, the channel the bytes are read from.
+     * @param offset, where in the file the bytes go.
+     * @param length, the number of bytes to read.
+     * @post The bytes are written to the .part file of the upload, which is cut at offset + length
+     * @throws IOException if the channel ends early or the file could not be written
+     */
+    public void write(String uploadId, ReadableByteChannel in, long offset, int length) throws IOException {
+        try (FileChannel file = FileChannel.open(partFile(uploadId), StandardOpenOption.WRITE)) {
+            file.truncate(offset); // Drops what a broken connection wrote after the last acknowledged chunk
+            long written = 0;
+            while (written < length) {
+                long transferred = file.transferFrom(in, offset + written, length - written);
+                if (transferred <= 0) {
+                    throw new EOFException("Upload ended after " + (offset + written) + " bytes");
+                }
+                written += transferred;
+            }
+        }
+    }
+
+    /**
+     * @pre The whole file is written
+     * @param uploadId, the upload to be completed.
+     * @param expectedHash, the SHA-256 the client says the file has, or null if it is not known.
+     * @return the id of the stored file, its SHA-256
+     * @post The .part file is stored under its hash, or deleted if a file with the same content is already stored
+     *       or the hash is not the expected one
+     * @throws IOException if the file has another hash than expected or could not be moved
+     */
+    public String complete(String uploadId, String expectedHash) throws IOException {
+        Path part = partFile(uploadId);
+        String hash;
+        try (FileChannel file = FileChannel.open(part, StandardOpenOption.READ)) {
+            hash = AttachmentTransfer.sha256(file);
+        }
+        if (expectedHash != null && !expectedHash.equals(hash)) {
+            discard(uploadId);
+            throw new IOException("Upload " + uploadId + " has SHA-256 " + hash + ", expected " + expectedHash);
+        }
+        if (contains(hash)) { // Uploaded by someone else while this upload was running
+            discard(uploadId);
+        } else {
+            Files.move(part, directory.resolve(hash), StandardCopyOption.ATOMIC_MOVE);
+        }
+        return hash;
+    }
+
+    /**
+     * @pre None
+     * @param uploadId, an upload that will not be completed.
+     * @post The .part file of the upload is deleted
+     */
+    public void discard(String uploadId) {
+        try {
+            Files.deleteIfExists(partFile(uploadId));
+        } catch (IOException e) {
+            System.out.println("Failed to delete upload " + uploadId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stores a whole file in one go.
+     * @pre assumes in != null, 0 <= size <= Integer.MAX_VALUE
+     * @param in, the channel the file is read from.
+     * @param size, the number of bytes to read.
+     * @return the id of the stored file
+     * @post The file is stored under the returned id, nothing is stored if it fails
+     * @throws IOException if the channel ends early or the file could not be written
+     */
+    public String store(ReadableByteChannel in, long size) throws IOException {
+        String uploadId = begin();
+        try {
+            write(uploadId, in, 0, Math.toIntExact(size));
+            return complete(uploadId, null);
+        } catch (IOException | ArithmeticException e) {
+            discard(uploadId);
+            throw e instanceof IOException ? (IOException) e : new IOException("File too large");
+        }
+    }
+
+    /**
+     * Marks the file as in use, so an unreferenced file is not removed just after a client was told it exists.
+     * @pre None
+     * @param id, the id of a file.
+     * @return true if the file is stored
+     */
+    public boolean contains(String id) {
+        Path path = blobFile(id);
+        if (path == null || !Files.isRegularFile(path)) {
+            return false;
+        }
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            System.out.println("Failed to touch attachment " + id + ": " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * A provisional reference, only kept in memory, for a client that was told the file exists and will send a
+     * message referring to it. Unlike contains(), the file is also kept if its last reference is released meanwhile.
+     * @pre millis >= 0
+     * @param id, the id of a file.
+     * @param millis, how long the file is kept at least.
+     * @return true if the file is stored, and kept for millis
+     */
+    public synchronized boolean pin(String id, long millis) {
+        if (!contains(id)) {
+            return false;
+        }
+        pins.merge(id, System.currentTimeMillis() + millis, Math::max);
+        return true;
+    }
+
+    /**
+     * @pre None
+     * @param id, the id of a stored file.
+     * @return a channel for reading the file, or null if there is no file with that id
+     * @throws IOException if the file exists but could not be opened
+     */
+    public FileChannel open(String id) throws IOException {
+        Path path = blobFile(id);
+        if (path == null || !Files.isRegularFile(path)) {
+            return null;
+        }
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    /**
+     * Makes the thumbnail the first time it is asked for, later calls read the .thumb file.
+     * @pre None
+     * @param id, the id of a stored image.
+     * @return the encoded thumbnail, or null if the file is not stored or not an image that can be read
+     */
+    public byte[] thumbnail(String id) {
+        Path path = blobFile(id);
+        if (path == null) {
+            return null;
+        }
+        Path thumbnailFile = directory.resolve(id + ".thumb");
+        try {
+            if (!Files.isRegularFile(thumbnailFile)) {
+                if (!Files.isRegularFile(path)) {
+                    return null;
+                }
+                long start = System.nanoTime();
+                byte[] created = Thumbnails.create(path);
+                Path temporary = directory.resolve(id + ".thumb.tmp");
+                Files.write(temporary, created != null ? created : new byte[0]); // Empty, not tried again
+                Files.move(temporary, thumbnailFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                ServerMetrics.recordTime("attachments.thumbnailTime", System.nanoTime() - start);
+                return created;
+            }
+            byte[] stored = Files.readAllBytes(thumbnailFile);
+            return stored.length > 0 ? stored : null;
+        } catch (IOException | RuntimeException e) { // A broken image must not fail the upload
+            System.out.println("Failed to make thumbnail of " + id + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @pre None
+     * @param id, the id of a file a new message refers to.
+     * @return true if the file is stored and the reference was counted
+     * @post The reference count of the file is one higher and appended to the journal
+     */
+    public synchronized boolean retain(String id) {
+        Path path = blobFile(id);
+        if (path == null || !Files.isRegularFile(path)) {
+            return false;
+        }
+        references.merge(id, 1, Integer::sum);
+        journal('+', id);
+        return true;
+    }
+
+    /**
+     * @pre None
+     * @param id, the id of a file a message no longer refers to.
+     * @post The reference count of the file is one lower and appended to the journal, the file is deleted when
+     *       it reaches 0 unless it is pinned, removeUnreferenced() deletes it once the pin expired
+     */
+    public synchronized void release(String id) {
+        Integer count = references.get(id);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            references.put(id, count - 1);
+        } else {
+            references.remove(id);
+        }
+        journal('-', id); // Before the file is gone, a crash in between leaves an unreferenced file removed later
+        if (count == 1 && !pinned(id)) {
+            delete(id);
+        }
+    }
+
+    /**
+     * @pre None
+     * @param id, the id of a file.
+     * @return the number of messages referring to the file
+     */
+    public synchronized int references(String id) {
+        return references.getOrDefault(id, 0);
+    }
+
+    /**
+     * Deletes files that were uploaded but never sent in a message, e.g. because the sender quit.
+     * @pre idleMillis >= 0
+     * @param idleMillis, how long a file without references is kept after it was stored or last asked for.
+     * @post Every file without references or pin that is older than idleMillis is deleted, expired pins are dropped
+     */
+    public synchronized void removeUnreferenced(long idleMillis) {
+        long now = System.currentTimeMillis();
+        long oldest = now - idleMillis;
+        pins.values().removeIf(until -> until <= now);
+        try (var files = Files.list(directory)) {
+            files.filter(path -> HASH.matcher(path.getFileName().toString()).matches())
+                    .filter(path -> !references.containsKey(path.getFileName().toString()))
+                    .filter(path -> !pins.containsKey(path.getFileName().toString()))
+                    .filter(path -> lastModified(path) < oldest)
+                    .forEach(path -> delete(path.getFileName().toString()));
+        } catch (IOException e) {
+            System.out.println("Failed to list attachments: " + e.getMessage());
+        }
+    }
+
+    private boolean pinned(String id) {
+        Long until = pins.get(id);
+        return until != null && until > System.currentTimeMillis();
+    }
+
+    private Path blobFile(String id) {
+        // Never let an id point outside the directory
+        if (id == null || !(HASH.matcher(id).matches() || UPLOAD_ID.matcher(id).matches())) {
+            return null;
+        }
+        return directory.resolve(id);
+    }
+
+    private Path partFile(String uploadId) {
+        return directory.resolve(uploadId + ".part");
+    }
+
+    private void delete(String id) {
+        try {
+            Files.deleteIfExists(directory.resolve(id));
+            Files.deleteIfExists(directory.resolve(id + ".thumb"));
+            ServerMetrics.increment("attachments.deleted");
+        } catch (IOException e) {
+            System.out.println("Failed to delete attachment " + id + ": " + e.getMessage());
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return Long.MAX_VALUE; // Kept, it is looked at again next time
+        }
+    }
+
+    private void loadReferences() {
+        Path file = directory.resolve(REFERENCES);
+        if (Files.isRegularFile(file)) {
+            Properties stored = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                stored.load(in);
+                journalGeneration = Long.parseLong(stored.getProperty(JOURNAL_KEY, "0"));
+                for (String id : stored.stringPropertyNames()) {
+                    if (blobFile(id) != null) {
+                        references.put(id, Integer.parseInt(stored.getProperty(id)));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                System.out.println("Failed to load attachment references: " + e.getMessage());
+            }
+        }
+        try {
+            replayJournal(journalFile(journalGeneration));
+            deleteOtherJournals();
+        } catch (IOException e) {
+            System.out.println("Failed to load attachment references journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Applies the complete lines of the journal to the counts and cuts away a last line a crash left unfinished.
+     */
+    private void replayJournal(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        byte[] lines = Files.readAllBytes(file);
+        int start = 0;
+        for (int end = 0; end < lines.length; end++) {
+            if (lines[end] != '\n') {
+                continue;
+            }
+            String id = new String(lines, start + 1, Math.max(0, end - start - 1), StandardCharsets.US_ASCII);
+            if (end > start && blobFile(id) != null) {
+                if (lines[start] == '+') {
+                    references.merge(id, 1, Integer::sum);
+                } else if (lines[start] == '-') {
+                    references.computeIfPresent(id, (key, count) -> count > 1 ? count - 1 : null);
+                }
+                journalLines++;
+            }
+            start = end + 1;
+        }
+        if (start < lines.length) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(start);
+            }
+            System.out.println("Dropped " + (lines.length - start) + " bytes of a broken line in " + file);
+        }
+    }
+
+    private void deleteOtherJournals() throws IOException {
+        try (var files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                var matcher = JOURNAL.matcher(path.getFileName().toString());
+                if (matcher.matches() && Long.parseLong(matcher.group(1)) != journalGeneration) {
+                    Files.deleteIfExists(path); // Left by a crash just after a snapshot
+                }
+            }
+        }
+    }
+
+    private Path journalFile(long generation) {
+        return directory.resolve("references." + generation + ".journal");
+    }
+
+    // Called with the monitor held, the journal is opened by its first line
+    private void journal(char change, String id) {
+        try {
+            if (journal == null) {
+                journal = FileChannel.open(journalFile(journalGeneration), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer line = ByteBuffer.wrap((change + id + "\n").getBytes(StandardCharsets.US_ASCII));
+            while (line.hasRemaining()) {
+                journal.write(line);
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to save attachment references: " + e.getMessage());
+        }
+        if (++journalLines > Math.max(MIN_JOURNAL_LINES, 2 * references.size())) {
+            saveReferences();
+        }
+    }
+
+    /**
+     * Saves the counts as a snapshot naming the next journal, which the next line starts. Until the snapshot is
+     * renamed in place the old snapshot and journal are still complete.
+     */
+    private void saveReferences() {
+        long generation = journalGeneration + 1;
+        Properties stored = new Properties();
+        references.forEach((id, count) -> stored.setProperty(id, Integer.toString(count)));
+        stored.setProperty(JOURNAL_KEY, Long.toString(generation));
+        Path file = directory.resolve(REFERENCES);
+        Path temporary = directory.resolve(REFERENCES + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                stored.store(out, null);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            Files.deleteIfExists(journalFile(journalGeneration));
+            journalGeneration = generation;
+            journalLines = 0;
+            ServerMetrics.increment("attachments.referenceSnapshots");
+        } catch (IOException e) {
+            System.out.println("Failed to save attachment references: " + e.getMessage());
+        }
+    }
+}
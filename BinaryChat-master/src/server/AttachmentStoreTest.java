@@ -0,0 +1,227 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AttachmentStoreTest {
+
+    Path directory;
+    AttachmentStore store;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("attachments");
+        store = new AttachmentStore(directory.toString());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void storeAndOpen() throws IOException {
+        byte[] data = "a picture".getBytes();
+        String id = store.store(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+
+        try (FileChannel file = store.open(id)) {
+            assertEquals(data.length, file.size());
+            ByteBuffer read = ByteBuffer.allocate(data.length);
+            file.read(read);
+            assertArrayEquals(data, read.array());
+        }
+    }
+
+    /**
+     * Tests that an upload that ends early leaves nothing behind
+     */
+    @Test
+    void truncatedUploadIsNotStored() throws IOException {
+        byte[] data = new byte[10];
+        assertThrows(IOException.class, () -> store.store(Channels.newChannel(new ByteArrayInputStream(data)), 20));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    /**
+     * Tests that a chunk written again after a lost acknowledgement replaces what was written before
+     */
+    @Test
+    void resumedChunksReplaceUnacknowledgedBytes() throws IOException {
+        String uploadId = store.begin();
+        store.write(uploadId, Channels.newChannel(new ByteArrayInputStream("hello ".getBytes())), 0, 6);
+        store.write(uploadId, Channels.newChannel(new ByteArrayInputStream("wor".getBytes())), 6, 3);
+        store.write(uploadId, Channels.newChannel(new ByteArrayInputStream("world".getBytes())), 6, 5);
+        assertNull(store.open(uploadId));
+        String id = store.complete(uploadId, null);
+
+        try (FileChannel file = store.open(id)) {
+            ByteBuffer read = ByteBuffer.allocate((int) file.size());
+            file.read(read);
+            assertEquals("hello world", new String(read.array()));
+        }
+    }
+
+    /**
+     * Tests that the same content is stored once, under its SHA-256
+     */
+    @Test
+    void sameContentIsStoredOnce() throws IOException {
+        byte[] data = "the same meme".getBytes();
+        String first = store.store(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+        String second = store.store(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+
+        assertEquals(first, second);
+        assertEquals(64, first.length());
+        assertTrue(store.contains(first));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void wrongHashIsRejected() throws IOException {
+        String uploadId = store.begin();
+        store.write(uploadId, Channels.newChannel(new ByteArrayInputStream("abc".getBytes())), 0, 3);
+        assertThrows(IOException.class, () -> store.complete(uploadId, "0".repeat(64)));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    /**
+     * Tests that a file is deleted when the last message referring to it is released, also after a restart
+     */
+    @Test
+    void lastReleaseDeletesFile() throws IOException {
+        byte[] data = "a picture".getBytes();
+        String id = store.store(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+        assertTrue(store.retain(id));
+        assertTrue(store.retain(id));
+        assertFalse(store.retain("0".repeat(64)));
+
+        store = new AttachmentStore(directory.toString());
+        assertEquals(2, store.references(id));
+        store.release(id);
+        assertTrue(store.contains(id));
+        store.release(id);
+        assertFalse(store.contains(id));
+        assertEquals(0, store.references(id));
+    }
+
+    /**
+     * Tests that a long journal is saved as a snapshot, and that a restart drops a line cut off by a crash
+     */
+    @Test
+    void journalIsSnapshottedAndReplayed() throws IOException {
+        byte[] data = "a picture".getBytes();
+        String id = store.store(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+        for (int i = 0; i < 3000; i++) {
+            store.retain(id);
+        }
+        store.release(id);
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.filter(path -> path.getFileName().toString().endsWith(".journal")).count());
+        }
+        assertTrue(Files.isRegularFile(directory.resolve("references.properties")));
+        Path journal;
+        try (Stream<Path> files = Files.list(directory)) {
+            journal = files.filter(path -> path.getFileName().toString().endsWith(".journal")).findFirst().orElseThrow();
+        }
+        assertTrue(Files.size(journal) < 3000L * (id.length() + 2));
+        Files.write(journal, ("+" + id.substring(0, 10)).getBytes(), StandardOpenOption.APPEND);
+
+        store = new AttachmentStore(directory.toString());
+        assertEquals(2999, store.references(id));
+        store.retain(id);
+        store = new AttachmentStore(directory.toString());
+        assertEquals(3000, store.references(id));
+    }
+
+    /**
+     * Tests that a pinned file survives the release of its last reference and the removal of unreferenced files
+     * until the pin expires
+     */
+    @Test
+    void pinnedFileIsKeptUntilThePinExpires() throws IOException {
+        byte[] data = "a picture".getBytes();
+        String id = store.store(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+        assertTrue(store.retain(id));
+        assertTrue(store.pin(id, 60_000));
+        assertFalse(store.pin("0".repeat(64), 60_000));
+
+        store.release(id);
+        store.removeUnreferenced(-1);
+        assertTrue(store.contains(id));
+        assertTrue(store.retain(id)); // The message of the client that was told it exists
+
+        String expired = store.store(Channels.newChannel(new ByteArrayInputStream("old".getBytes())), 3);
+        assertTrue(store.pin(expired, 0));
+        store.removeUnreferenced(-1);
+        assertFalse(store.contains(expired));
+    }
+
+    @Test
+    void unreferencedFileIsRemoved() throws IOException {
+        byte[] data = "never sent".getBytes();
+        String id = store.store(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+        String sent = store.store(Channels.newChannel(new ByteArrayInputStream("sent".getBytes())), 4);
+        store.retain(sent);
+
+        store.removeUnreferenced(60_000);
+        assertTrue(store.contains(id));
+        store.removeUnreferenced(-1);
+        assertFalse(store.contains(id));
+        assertTrue(store.contains(sent));
+    }
+
+    @Test
+    void thumbnailIsMadeOnce() throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(1200, 600, BufferedImage.TYPE_INT_RGB), "png", png);
+        byte[] data = png.toByteArray();
+        String id = store.store(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+
+        byte[] thumbnail = store.thumbnail(id);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(thumbnail));
+        assertEquals(150, image.getWidth());
+        assertEquals(75, image.getHeight());
+        assertTrue(Files.isRegularFile(directory.resolve(id + ".thumb")));
+        assertArrayEquals(thumbnail, store.thumbnail(id));
+    }
+
+    @Test
+    void noThumbnailOfOtherFiles() throws IOException {
+        byte[] data = "not an image".getBytes();
+        String id = store.store(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+        assertNull(store.thumbnail(id));
+        assertNull(store.thumbnail("0".repeat(64)));
+    }
+
+    @Test
+    void unknownOrInvalidIdIsNotFound() throws IOException {
+        assertNull(store.open("00000000-0000-0000-0000-000000000000"));
+        assertNull(store.open("../ChatHistory/alice_chatHistory.ser"));
+        assertNull(store.open(null));
+    }
+}
@@ -2,309 +2,236 @@ package server;
 
 import utils.*;
 
-import java.io.*;
+import java.io.IOException;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Represents a connection between a client and the server.
  * Implements the Runnable interface
- * Responsbile for creating directory holding Chat history
+ * Responsible for detecting which protocol the client speaks (object stream or frames)
  * Responsible for catching incoming messages from the User
- * Responsible for saving messages to accurate history-file.
- * Responsible for Load the history and send it to the User
- * Responsible for giving the User the Userlist of connected users on the server.
+ * Responsible for handing the messages to the MessageRouter, which saves them and loads the history of the User
+ * Responsible for giving the User the Userlist of connected users on the server, through the PresenceTracker.
+ * Messages to the client are put in a bounded OutboundQueue and written by a writer task of their own.
+ * Uses a ReentrantLock instead of synchronized/wait so the connection can run on a virtual thread
+ * without pinning its carrier thread (see ServerThreads).
  *
  * @author Baseer
  */
 
-public class ClientConnection implements Runnable {
+public class ClientConnection implements Runnable, Session {
     private final Socket socket;
-    private ObjectInputStream objectInputStream;
-    private ObjectOutputStream objectOutputStream;
-    private utils.ChatHistory chatHistory;
-    private List<ClientConnection> clientConnections;
-    private User user;
+    private final MessageRouter router;
+    private MessageStream messageStream;
+    private final OutboundQueue<Message> outboundQueue;
+    private volatile User user;
+    private volatile boolean binary;
 
-    private boolean connected;
-    private boolean loaded;
+    private final ReentrantLock lock;
+    private boolean disconnected;
+    private volatile boolean writerStarted;
 
     /**
-     * @pre Assumes socket && connectionList && connectionManager != null
+     * @pre Assumes socket && router != null
      * @param socket the socket the User connected to the server with
-     * @param connectionList the current User list in server of users connected/online
-     * @post boolean connected = false
-     *       this.socket = socket
-     *       A new Threadsafe CopyOnWriteArrayList is created which holds connectionList
+     * @param router the router shared by the server, which logs the user in and out and handles its messages
+     * @post this.socket = socket
      *
      */
 
-    public ClientConnection(Socket socket, List<ClientConnection> connectionList) {
-        this.connected = false;
-        this.loaded = true;
+    public ClientConnection(Socket socket, MessageRouter router) {
+        this.lock = new ReentrantLock();
         this.socket = Objects.requireNonNull(socket);
-        Objects.requireNonNull(connectionList);
-        this.clientConnections = new CopyOnWriteArrayList<>();
-        this.clientConnections.addAll(connectionList);
+        this.router = Objects.requireNonNull(router);
+        this.outboundQueue = new OutboundQueue<>(ServerConfig.outboundQueueCapacity(), ServerConfig.outboundPolicy(),
+                ServerConfig.outboundBlockMillis(), ClientConnection::isPresence);
     }
 
     /**
-     * Handles the communication between a client and the server.
+     * Runs the login of the client, called by the handshake pool of the ConnectionManager.
      * @pre None
-     * @post ObjectinputStream is created with current socket
-     *       Objectoutputstream is created with current socket
-     *       The username from the client is captured via inputstream
-     *       Validation is made where the username is checked. If it already exits in the Userlist DENIED is sent back, else OK is sent back.
-     *       A new directory is created if no existed
+     * @return true if the user was validated and the connection is ready for run(), false if DENIED
+     * @post A MessageStream is created with current socket, using the protocol the client speaks
+     *       The username from the client is captured via the CLIENT_INFO message
+     *       Validation is made where the user is registered in the SessionRegistry. If it is already registered, or the
+     *       CLIENT_INFO has no sender, DENIED is sent back, else OK is sent back.
+     *       If the client asked for the binary format and speaks the framed protocol, OK says so and the stream switches to it.
+     *       The writer task draining the outbound queue is started
+     *       The user gets the list of online users, all other users online get the new user as a presence delta.
      *       The history for the current user is loaded from file and sent to the user
-     *       Info about the new user connection is broadcasted to all other users online.
-     *       Waitformessage starts to loop on a new thread
-     *       Closes the streams and stops the thread if method disconnet us runned or validation fails (Denied)
+     *       The connection is closed if validation fails (Denied)
+     * @throws IOException if the client disconnects or the handshake times out
+     * @throws ClassNotFoundException if the client sends an unknown object
      */
+    public boolean handshake() throws IOException, ClassNotFoundException {
+        this.messageStream = MessageStream.accept(this.socket);
+        Message message = messageStream.read();
+
+        this.user = message.getSender();
+
+        boolean connected = user != null && router.register(this);
+        binary = connected && message.getWireFormat() == Message.WireFormat.BINARY && messageStream.supportsBinary();
+        Message validationMessage = Message.builder()
+                .messageType(Message.MessageType.CLIENT_INFO)
+                .text(connected ? "OK" : "DENIED")
+                .wireFormat(binary ? Message.WireFormat.BINARY : null)
+                .build();
+        messageStream.write(validationMessage); // Written before the writer starts, so it is always the first message
+        if (binary) {
+            messageStream.useBinary();
+        }
 
-    @Override
-    public void run() {
-        try (ObjectInputStream objectInputStream = new ObjectInputStream(this.socket.getInputStream());
-             ObjectOutputStream objectOutputStream = new ObjectOutputStream(this.socket.getOutputStream())) {
-            this.objectInputStream = objectInputStream;
-            this.objectOutputStream = objectOutputStream;
-            Message message = (Message) objectInputStream.readObject();
-
-            this.user = message.getSender();
-
-            setConnected(validateUser());
-            Message validationMessage;
-            if(connected) {
-                validationMessage = Message.builder()
-                        .messageType(Message.MessageType.CLIENT_INFO)
-                        .text("OK")
-                        .build();
-            }else {
-                validationMessage = Message.builder()
-                        .messageType(Message.MessageType.CLIENT_INFO)
-                        .text("DENIED")
-                        .build();
-            }
-            sendMessage(validationMessage);
-
-            if(connected) {
-                System.out.println("New client connected: " + user.getName());
-
-                createDirectoryIfNotExists("ChatHistory");
-
-                broadcastClientList();
-
-                loadHistory();
-
-                waitForMessage();
+        if (!connected) {
+            close();
+            return false;
+        }
+        System.out.println("New client connected: " + user.getName());
 
-                Thread connectionLoopThread = new Thread(() -> {
-                    try {
-                        setLoaded(true);
-                        connectionLoop();
-                    } catch (InterruptedException e) {
-                        System.out.println("Validation error");
-                        e.printStackTrace();
-                    }
-                });
-                connectionLoopThread.start();
-                connectionLoopThread.join();
-            }
+        ServerMetrics.gauge("outbound.queueDepth." + user.getName(), outboundQueue::size);
+        writerStarted = true;
+        ServerThreads.start("writer-" + user.getName(), this::writeMessages);
 
-            disconnectionBroadcast();
+        router.join(this);
+        return true;
+    }
 
+    /**
+     * Listens for messages from the client until it disconnects, started by the ConnectionManager after handshake()
+     * @pre handshake() returned true
+     * @post Every message read is handed to the MessageRouter, which saves a regular message once, in the
+     *       conversation of the two users, and forwards it to its receiver.
+     *       Broadcasts the new user list and closes the streams when the client disconnects
+     */
+    @Override
+    public void run() {
+        try {
+            waitForMessage();
         } catch (IOException | ClassNotFoundException e) {
-            System.out.println("Error handling client connection: " + e.getMessage());
-            disconnectionBroadcast();
-        } catch (InterruptedException e) {
-            System.out.println("ClientConnection thread error: " + e.getMessage());
+            System.out.println("Error handling client waitForMessage: " + e.getMessage());
+        } finally {
             disconnectionBroadcast();
+            close();
         }
     }
-    private synchronized void connectionLoop() throws InterruptedException {
-        while(connected) {
-            try {
-                wait();
-            }catch(InterruptedException e) {
-                e.printStackTrace();
+
+    private void disconnectionBroadcast() {
+        lock.lock();
+        try {
+            if (disconnected) {
+                return;
             }
+            disconnected = true;
+        } finally {
+            lock.unlock();
         }
-    }
-    private synchronized void disconnectionBroadcast() {
         System.out.println(this.user.getName() + " disconnected!");
-        if(this.clientConnections.contains(this)){
-            this.clientConnections.remove(this);
-        }
-        broadcastClientList();
-        setLoaded(true); //Sets loaded to true if the connection between client and server is disconnected while client is validated.
+        router.leave(this);
     }
 
-    private boolean validateUser() {
-        for (ClientConnection conn : this.clientConnections) {
-            if (this.user.equals(conn.getUser())) {
-                return false;
-            }
+    private void waitForMessage() throws IOException, ClassNotFoundException {
+        while (true) { /* Loop to listen for incoming messages */
+            Message message = this.messageStream.read(); /* Waiting and reads incoming messages from the client */
+            router.route(this, message);
         }
-        return true;
     }
 
-    private void waitForMessage() {
-        new Thread(() -> { /* Create and start a new thread to handle incoming messages without blocking the main thread */
-            try {
-                while (connected) { /* Loop to listen for incoming messages */
-                    Message message = (Message) this.objectInputStream.readObject(); /* Waiting and reads incoming messages from the client */
-
-                    for (ClientConnection connection : clientConnections) {  /* Forward the message to the appropriate recipients */
-                        if (connection != this && connection.getUser().equals(message.getReceiver())) {
-                            if (message.getMessageType() == Message.MessageType.REGULAR_MESSAGE) {
-                                addHistory(message);
-                                connection.addHistory(message);
-                            }
-                            connection.sendMessage(message);
-                        }
-                    }
-                }
-            } catch (IOException | ClassNotFoundException e) {
-                System.out.println("Error handling client waitForMessage: " + e.getMessage());
-                disconnectionBroadcast();
+    /**
+     * Never waits for the client, unless the overflow policy is BLOCK.
+     * @pre assumes message != null
+     * @param message, the message to be sent to the client.
+     * @post The message is put in the outbound queue, to be written by the writer task.
+     *       If the queue is full and the overflow policy gives up, the slow client is disconnected.
+     */
+    @Override
+    public void sendMessage(Message message) {
+        try {
+            if (!outboundQueue.offer(message)) {
+                closeSlowConsumer();
             }
-        }).start();
-    }
-
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private void saveHistory() throws IOException {
-        File savefile = new File("ChatHistory/" + this.user.getName() + "_chatHistory.ser");
-        savefile.delete(); // Ignore if delete fails.
-        savefile.createNewFile();
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(savefile))) {
-            out.writeObject(this.chatHistory);
-        }
-    }
-
-    private void loadHistory() throws IOException {
-        this.chatHistory = new ChatHistory(this.user);
-        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream("ChatHistory/" + this.user.getName() + "_chatHistory.ser"))) {
-            this.chatHistory= (ChatHistory)in.readObject();
-            Message chatHistoryMessage = Message.builder()
-                    .messageType(Message.MessageType.CHAT_HISTORY)
-                    .chatHistory(this.chatHistory)
-                    .build();
-            sendMessage(chatHistoryMessage);
-        } catch (FileNotFoundException e) {
-            saveHistory();
-        } catch (Exception e) {
-            System.out.println("Load Error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-
     /**
-     * Called by ConnectionManager everytime a user connects to the server
-     * @pre connectionList != null
-     * @param connectionList, the list to be added.
-     * @post adds the connectionList to this.clientConnections
-     * @throws NullPointerException if Connectionlist is null;
-     *
+     * Never waits for the client.
+     * @pre assumes message != null
+     * @param message, the message to be sent to the client.
+     * @post The message is put in the outbound queue, to be written by the writer task.
+     *       If the queue is full and the overflow policy gives up, the slow client is disconnected, with BLOCK at once.
      */
-    public synchronized void updateConnectionList(List<ClientConnection> connectionList) {
-        this.clientConnections = connectionList;
-    }
-
-    private synchronized void broadcastClientList() {
-        ArrayList<User> onlineUsers = new ArrayList<>();
-        for (ClientConnection connection : this.clientConnections) {
-            onlineUsers.add(connection.getUser());
+    @Override
+    public void sendMessageNow(Message message) {
+        if (!outboundQueue.offerNow(message)) {
+            closeSlowConsumer();
         }
-        Message clientListMessage = Message.builder()
-                .messageType(Message.MessageType.CLIENT_LIST)
-                .onlineUsers(onlineUsers)
-                .build();
+    }
 
-        for (ClientConnection connection : this.clientConnections) {
-            connection.sendMessage(clientListMessage);
+    private void closeSlowConsumer() {
+        if (!socket.isClosed()) {
+            ServerMetrics.increment("outbound.slowConsumerDisconnects");
+            System.out.println("Disconnecting slow client: " + user.getName());
+            close();
         }
-
     }
 
-    private synchronized void sendMessage(Message message) {
+    private void writeMessages() {
         try {
-            objectOutputStream.writeObject(message);
-            objectOutputStream.flush();
+            Message message;
+            while ((message = outboundQueue.take()) != null) {
+                messageStream.write(message);
+            }
         } catch (IOException e) {
             System.out.println("Failed to send message");
+            close();
+        } catch (InterruptedException e) {
+            close();
         }
     }
 
     /**
-     * Checks if client is connected to the server
-     * @pre None
-     * @return true if socket is NOT closed, else false.
-     * @post socket is unchanged.
+     * A dropped CLIENT_LIST or PRESENCE_DELTA is repaired by the client, it sees a version gap and asks for a resync.
+     * @pre assumes message != null
+     * @param message, the queued message.
+     * @return true if the message may be dropped by the DROP_OLDEST_PRESENCE policy
      */
-    public synchronized boolean isActive() {
-        return !socket.isClosed();
+    static boolean isPresence(Message message) {
+        return message.getMessageType() == Message.MessageType.CLIENT_LIST
+                || message.getMessageType() == Message.MessageType.PRESENCE_DELTA;
     }
 
     /**
-     * Checks if client is connected to the server
      * @pre None
-     * @return the value if connected. True || False
-     * @post connected is unchanged
+     * @return the user of this connection, null before the handshake.
      */
-    public synchronized boolean isConnected() throws InterruptedException {
-        while (!connected && isActive()) {
-            wait();
-        }
-        return connected;
-    }
-
-    private void createDirectoryIfNotExists(String directoryName) {
-        File directory = new File(directoryName);
-
-        // Check if the directory already exists
-        if (!directory.exists()) {
-            boolean success = directory.mkdir(); // Create the new directory
-            if(!success) System.out.println("Failed to create directory");
-        }
-    }
-
-    private synchronized void addHistory(Message message) throws IOException {
-        this.chatHistory.addHistory(message.getSender(), message.getReceiver(), message);
-        saveHistory();
-    }
-
-    private synchronized User getUser() {
+    @Override
+    public User getUser() {
         return this.user;
     }
 
-
-    private synchronized void setLoaded(boolean loaded) {
-        this.loaded = loaded;
-        notifyAll();
-    }
-
-    private synchronized void setConnected(boolean connected) {
-        this.connected = connected;
-        notifyAll();
+    @Override
+    public Message.WireFormat getWireFormat() {
+        return binary ? Message.WireFormat.BINARY : Message.WireFormat.SERIALIZED;
     }
 
-
     /**
-     * ConnectionManager waits for this thread to load before loading the next connection in the queue
      * @pre None
-     * @return the value if loaded. True || False
-     * @post loaded is unchanged
-     * @throws InterruptedException if thread.wait fails
+     * @post The socket is closed, which also ends a handshake or read that is blocked on it.
      */
-    public synchronized boolean isLoaded() throws InterruptedException {
-        while (!loaded) {
-            wait();
+    public void close() {
+        outboundQueue.close();
+        if (writerStarted) { // Only validated connections have a gauge, a denied one must not remove the online users gauge
+            ServerMetrics.removeGauge("outbound.queueDepth." + user.getName());
+        }
+        try {
+            if (messageStream != null) {
+                messageStream.close();
+            }
+            socket.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close connection: " + e.getMessage());
         }
-        return loaded;
     }
-
-
-}
\ No newline at end of file
+}
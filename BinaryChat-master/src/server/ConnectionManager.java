@@ -1,77 +1,147 @@
 package server;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
     /**
      * Manages all client connection threads
      * Responsible for creating new instances of ClientConnection when a client user is connecting.
-     * Adds all Validated ClientConnections to the list activeConnections.
-     * Responsible for updating all ClienctConnections in activeConnections List with new activeConnection list when new client is connected and Validated
+     * Runs the handshakes of new clients in parallel on a bounded handshake pool, so one slow client
+     * or a big history load does not hold up the logins of everyone else.
+     * All Validated ClientConnections are registered in the SessionRegistry shared by the connections.
      *
      * @author Lukas
      */
 public class ConnectionManager implements Runnable{
-    private final static int PORT = 2023;
-    private final List<ClientConnection> activeConnections;
+    private final SessionRegistry registry;
+    private final PresenceTracker presence;
+    private final HistoryStore historyStore;
+    private final HistoryCompactor compactor;
+    private final MessageRouter router;
+    private final ThreadPoolExecutor handshakePool;
+    private final ScheduledExecutorService handshakeTimer;
+    private final int handshakeTimeout;
     private boolean online;
 
         /**
          *
-         * @pre None
-         * @post Creates a new List tmpList that holds ClientConnctions objects.
-         *       Creates a threadsafe synchronizedList activeConnections that holds tmpList
+         * @pre assumes attachments != null
+         * @param attachments, the store of the attachment server, counting the messages that refer to each file.
+         * @post Creates the SessionRegistry holding the validated connections
+         *       Creates the PresenceTracker sending the user list and its changes
+         *       Creates the HistoryStore shared by all connections, and the HistoryCompactor keeping it within its retention
+         *       Creates the MessageRouter handling the messages of all connections, giving them ids with ServerConfig.nodeId()
+         *       Creates the handshake pool with ServerConfig.handshakeThreads() threads and a queue
+         *       of ServerConfig.handshakeQueue() waiting sockets
+         *       Registers the queued and in-flight handshake gauges in ServerMetrics
          */
-    public ConnectionManager() {
-        List<ClientConnection> tmpList = new ArrayList<>();
-        this.activeConnections = Collections.synchronizedList(tmpList);
+    public ConnectionManager(AttachmentStore attachments) {
+        this.registry = new SessionRegistry();
+        this.presence = new PresenceTracker();
+        this.historyStore = new HistoryStore("ChatHistory");
+        this.router = new MessageRouter(registry, presence, historyStore, attachments, new MessageIds(ServerConfig.nodeId()),
+                Runnable::run); // Every connection has threads of its own to load its history on
+        this.compactor = new HistoryCompactor(historyStore, attachments, new File("ChatHistory", "retention.properties"),
+                ServerConfig.historyRetainMessages(), ServerConfig.historyRetainDays(), ServerConfig.historyArchive(),
+                ServerConfig.historySealMessages());
+        this.handshakeTimeout = ServerConfig.handshakeTimeoutMillis();
+        this.handshakePool = new ThreadPoolExecutor(ServerConfig.handshakeThreads(), ServerConfig.handshakeThreads(),
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(ServerConfig.handshakeQueue()), ServerThreads.factory());
+        this.handshakeTimer = Executors.newSingleThreadScheduledExecutor(ServerThreads.factory());
+
+        ServerMetrics.gauge("handshake.queued", () -> handshakePool.getQueue().size());
+        ServerMetrics.gauge("handshake.inFlight", handshakePool::getActiveCount);
+        ServerMetrics.gauge("connections.active", registry::size);
     }
 
     //comment
     private void startServer() {
         online = true;
+        ServerThreads.start("history-compactor", compactor);
         // Create a new ServerSocket object to listen for incoming client connections
-        try (SocketQueue socketQueue = new SocketQueue(ConnectionManager.PORT)) {
+        try (SocketQueue socketQueue = new SocketQueue(ServerConfig.port())) {
 
-            // Wait for incoming client connections and create a new Socket object for each one
+            // Wait for incoming client connections and hand each one to the handshake pool
             while (online) {
-
-                System.out.println("Ready for new connection: ");
                 Socket socket = socketQueue.getNextSocket();
                 System.out.println("New client connected: " + socket);
 
-                ClientConnection clientConnection = new ClientConnection(socket, activeConnections);
-                new Thread(clientConnection).start();
-
-                clientConnection.isConnected();
-
-                if(clientConnection.isActive()) {
-                    this.activeConnections.add(clientConnection);
-                    //Update every connection with a new updated list with active connections
-                    Iterator<ClientConnection> iterator = this.activeConnections.iterator();
-                    while (iterator.hasNext()) {
-                        ClientConnection connection = iterator.next();
-                        if (connection.isActive()) {
-                            connection.updateConnectionList(this.activeConnections);
-                        } else {
-                            iterator.remove();
-                        }
-                    }
+                try {
+                    long queuedAt = System.nanoTime();
+                    handshakePool.execute(() -> handshake(socket, queuedAt));
+                } catch (RejectedExecutionException e) {
+                    // Every handshake thread is busy and the queue is full, shed the login instead of queueing forever
+                    ServerMetrics.increment("handshake.rejected");
+                    System.out.println("Too many logins in progress, closing " + socket);
+                    socket.close();
                 }
-                System.out.println("Waiting for socket to load");
-                clientConnection.isLoaded();
             }
         }catch (IOException | InterruptedException e) {
             online = false;
             System.out.println("Server is offline");
             e.printStackTrace();
 
+        } finally {
+            handshakePool.shutdownNow();
+            handshakeTimer.shutdownNow();
+            presence.close();
+            compactor.close();
+            historyStore.close();
+        }
+    }
+
+    private void handshake(Socket socket, long queuedAt) {
+        ServerMetrics.recordTime("handshake.queueTime", System.nanoTime() - queuedAt);
+        long start = System.nanoTime();
+        ClientConnection clientConnection = new ClientConnection(socket, router);
+
+        // Closing the socket ends any read or write the handshake is blocked on. A user that already joined is
+        // logged out at once, a history load still running does not keep it online for the others
+        AtomicBoolean done = new AtomicBoolean();
+        ScheduledFuture<?> timeout = handshakeTimer.schedule(() -> {
+            if (done.compareAndSet(false, true)) {
+                ServerMetrics.increment("handshake.timedOut");
+                System.out.println("Handshake timed out: " + socket);
+                clientConnection.close();
+                router.leave(clientConnection);
+            }
+        }, handshakeTimeout, TimeUnit.MILLISECONDS);
+
+        try {
+            socket.setSoTimeout(handshakeTimeout);
+            boolean validated = clientConnection.handshake();
+            if (!done.compareAndSet(false, true)) {
+                throw new IOException("Handshake timed out");
+            }
+            timeout.cancel(false);
+
+            if (validated) {
+                socket.setSoTimeout(0);
+                ServerThreads.start("connection-" + clientConnection.getUser().getName(), clientConnection);
+                ServerMetrics.increment("handshake.completed");
+            } else {
+                ServerMetrics.increment("handshake.denied");
+            }
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            timeout.cancel(false);
+            if (done.compareAndSet(false, true)) { // Already counted if the timeout closed the socket
+                ServerMetrics.increment("handshake.failed");
+            }
+            System.out.println("Handshake failed: " + e.getMessage());
+            router.leave(clientConnection); // Also after a timeout, the handshake may have joined since, run() will not log it out
+            clientConnection.close();
+        } finally {
+            ServerMetrics.recordTime("handshake.time", System.nanoTime() - start);
         }
     }
+
         /**
          * @pre None
-         * @post calls the method startServer which checks the next incoming connection in the SocketQueue and creates ClientConnections objects.
+         * @post calls the method startServer which checks the next incoming connection in the SocketQueue and
+         *       hands it to the handshake pool, which creates the ClientConnections objects.
          */
     @Override
     public void run() {
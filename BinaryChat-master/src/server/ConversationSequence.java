@@ -0,0 +1,195 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The sequence numbers of the messages of one conversation, kept in ChatHistory/id_conversation.seq.
+ * A number handed out is never handed out again, not even after a crash lost the message it was given to:
+ * numbers are reserved in blocks of RESERVED, and the reservation is forced before a number of it is used.
+ * A store opening the conversation goes on from the end of the last reservation, close() gives back what was
+ * not used so a server that was stopped goes on without a gap.
+ * Numbers only grow with the index of a message in the conversation, but can skip some: the messages of a gap were
+ * lost, or were never written. Where they skip is kept as a jump, the index of the first message after the gap and
+ * its number, so a number is turned into an index and back without reading the log.
+ * The file starts with MAGIC followed by entries of [long index][long sequence], an entry with the index -1 being
+ * a reservation: no message got a number from sequence on. Entries are only appended, a later one replaces the
+ * jumps from its index on. A cut off entry is left out.
+ *
+ * @author Baseer
+ */
+public class ConversationSequence {
+    /** The number of sequence numbers reserved at once */
+    public static final int RESERVED = 1024;
+
+    private static final byte[] MAGIC = {'B', 'C', 'Q', 1};
+    private static final int ENTRY = 2 * Long.BYTES;
+
+    private final File file;
+    private long[] jumpIndexes = new long[4];
+    private long[] jumpSequences = new long[4];
+    private int jumps;
+    private long next = -1; // Until load()
+    private long reserved;
+
+    /**
+     * @pre assumes file != null
+     * @param file, the file of the conversation, created by the first reservation.
+     * @post Creates the sequence of a conversation, to be loaded before it is used, see load()
+     */
+    public ConversationSequence(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @pre None
+     * @return true once load() read the file
+     */
+    public synchronized boolean loaded() {
+        return next >= 0;
+    }
+
+    /**
+     * @pre end >= 0
+     * @param end, the index after the last message stored of the conversation.
+     * @post The jumps and the reservation of the file are read, jumps after end were written for messages the log
+     *       lost and are dropped. The next number follows the last message stored and the last reservation
+     * @throws IOException if the file could not be read
+     */
+    public synchronized void load(long end) throws IOException {
+        jumps = 0;
+        reserved = 0;
+        if (file.exists() && file.length() >= MAGIC.length) {
+            ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            byte[] magic = new byte[MAGIC.length];
+            entries.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a sequence file: " + file);
+            }
+            while (entries.remaining() >= ENTRY) {
+                long index = entries.getLong();
+                long sequence = entries.getLong();
+                if (index < 0) {
+                    reserved = sequence;
+                } else {
+                    addJump(index, sequence);
+                }
+            }
+        }
+        while (jumps > 0 && jumpIndexes[jumps - 1] > end) {
+            jumps--;
+        }
+        next = Math.max(reserved, sequenceOf(end));
+    }
+
+    /**
+     * @pre loaded()
+     * @return the number of the next message, never returned before
+     * @post The number is used, a new block is reserved and forced first when the last one is used up
+     * @throws IOException if the reservation could not be written, the number is then not used
+     */
+    public synchronized long next() throws IOException {
+        if (next >= reserved) {
+            write(-1, next + RESERVED);
+            reserved = next + RESERVED;
+        }
+        return next++;
+    }
+
+    /**
+     * Used by the writer before it writes a message, a message is written at the index of its number unless a
+     * jump is written first.
+     * @pre loaded(), index >= 0
+     * @param index, the index the message is written at.
+     * @param sequence, the number of the message.
+     * @post sequenceOf(index) == sequence
+     * @throws IOException if the jump could not be written, the message must then not be written
+     */
+    public synchronized void written(long index, long sequence) throws IOException {
+        if (sequenceOf(index) != sequence) {
+            write(index, sequence);
+            addJump(index, sequence);
+        }
+    }
+
+    /**
+     * @pre index >= 0
+     * @param index, the index of a message in the conversation.
+     * @return the number of the message
+     */
+    public synchronized long sequenceOf(long index) {
+        int jump = lastJump(jumpIndexes, index);
+        return jump < 0 ? index : jumpSequences[jump] + index - jumpIndexes[jump];
+    }
+
+    /**
+     * @pre sequence >= 0
+     * @param sequence, a sequence number, of a message or of the gap before one.
+     * @return the index of the first message numbered sequence or higher
+     */
+    public synchronized long indexOf(long sequence) {
+        int jump = lastJump(jumpSequences, sequence);
+        long index = jump < 0 ? 0 : jumpIndexes[jump];
+        long from = jump < 0 ? 0 : jumpSequences[jump];
+        long after = sequence - from > Long.MAX_VALUE - index ? Long.MAX_VALUE : index + sequence - from;
+        return jump + 1 < jumps ? Math.min(after, jumpIndexes[jump + 1]) : after;
+    }
+
+    /**
+     * @pre loaded()
+     * @post The numbers reserved but not used are given back, used when the store is closed
+     * @throws IOException if the file could not be written, the numbers are then skipped after a restart
+     */
+    public synchronized void close() throws IOException {
+        if (next < reserved) {
+            write(-1, next);
+            reserved = next;
+        }
+    }
+
+    /**
+     * @return the last jump at or before the value, -1 if there is none
+     */
+    private int lastJump(long[] values, long value) {
+        int found = Arrays.binarySearch(values, 0, jumps, value);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    private void addJump(long index, long sequence) {
+        while (jumps > 0 && jumpIndexes[jumps - 1] >= index) { // Written for messages that were lost
+            jumps--;
+        }
+        if (jumps == jumpIndexes.length) {
+            jumpIndexes = Arrays.copyOf(jumpIndexes, jumps * 2);
+            jumpSequences = Arrays.copyOf(jumpSequences, jumps * 2);
+        }
+        jumpIndexes[jumps] = index;
+        jumpSequences[jumps++] = sequence;
+    }
+
+    /**
+     * Appends an entry and forces it, a number must not be used before the entry that allows it is on the disk.
+     */
+    private void write(long index, long sequence) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(MAGIC.length + ENTRY);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            if (channel.size() == 0) {
+                entry.put(MAGIC);
+            } else if (channel.size() % ENTRY != MAGIC.length % ENTRY) { // An entry cut off by a crash
+                channel.truncate(channel.size() - (channel.size() - MAGIC.length) % ENTRY);
+            }
+            entry.putLong(index).putLong(sequence).flip();
+            while (entry.hasRemaining()) {
+                channel.write(entry);
+            }
+            channel.force(false);
+        }
+        ServerMetrics.increment("history.sequenceWrites");
+    }
+}
@@ -0,0 +1,98 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConversationSequenceTest {
+
+    Path directory;
+    File file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("sequence");
+        file = directory.resolve("5_alice_bob_conversation.seq").toFile();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private ConversationSequence load(long end) throws IOException {
+        ConversationSequence sequence = new ConversationSequence(file);
+        sequence.load(end);
+        return sequence;
+    }
+
+    /**
+     * Tests that a crash skips the rest of the block reserved, while a close gives it back
+     */
+    @Test
+    void numbersAreNeverGivenTwice() throws IOException {
+        ConversationSequence sequence = load(0);
+        assertEquals(0, sequence.next());
+        assertEquals(1, sequence.next());
+
+        sequence = load(0); // The messages were lost in a crash
+        assertEquals(ConversationSequence.RESERVED, sequence.next());
+        sequence.close();
+        assertEquals(ConversationSequence.RESERVED + 1, load(0).next());
+    }
+
+    /**
+     * Tests that numbers and indexes are turned into each other across the jumps, also after a restart
+     */
+    @Test
+    void jumpsMapNumbersToIndexes() throws IOException {
+        ConversationSequence sequence = load(0);
+        for (int i = 0; i < 2; i++) {
+            sequence.written(i, sequence.next());
+        }
+        sequence.written(2, 100);
+        sequence.written(3, 101);
+        sequence.written(4, 200);
+
+        for (ConversationSequence loaded : new ConversationSequence[] {sequence, load(5)}) {
+            assertEquals(1, loaded.sequenceOf(1));
+            assertEquals(101, loaded.sequenceOf(3));
+            assertEquals(201, loaded.sequenceOf(5));
+            assertEquals(1, loaded.indexOf(1));
+            assertEquals(2, loaded.indexOf(2)); // In the gap, the message after it
+            assertEquals(2, loaded.indexOf(100));
+            assertEquals(4, loaded.indexOf(150));
+            assertEquals(5, loaded.indexOf(201));
+            assertTrue(loaded.indexOf(Long.MAX_VALUE) > 5); // After every message
+        }
+        assertEquals(102, load(3).sequenceOf(4)); // The jump of the message at 4, lost in a crash, is dropped
+    }
+
+    /**
+     * Tests that an entry cut off by a crash is left out, and cut away before the next one is written
+     */
+    @Test
+    void entryCutOffIsDropped() throws IOException {
+        ConversationSequence sequence = load(0);
+        sequence.written(0, 7);
+        Files.write(file.toPath(), new byte[] {1, 2, 3}, StandardOpenOption.APPEND);
+
+        sequence = load(1);
+        assertEquals(7, sequence.sequenceOf(0));
+        sequence.written(1, 20);
+        assertEquals(20, load(2).sequenceOf(1));
+        assertEquals(7, load(2).sequenceOf(0));
+    }
+}
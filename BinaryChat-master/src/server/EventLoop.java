@@ -0,0 +1,163 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread running a Selector. Every NioConnection belongs to exactly one EventLoop, and all reads,
+ * writes and state changes of that connection happen on the loop thread.
+ * Other threads hand work to the loop with execute(), which wakes the selector up. Work that is due later, like the
+ * handshake deadline of a connection, is scheduled on the loop itself, select() waits no longer than the first one.
+ *
+ * @author Lukas
+ */
+class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(); // Only used by the loop thread
+    private volatile Thread thread;
+
+    /**
+     * @pre None
+     * @post Opens a new Selector
+     *       Creates an empty task queue
+     * @throws IOException if the selector could not be opened
+     */
+    EventLoop() throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @pre None
+     * @return the selector of this loop, only to be used from the loop thread.
+     */
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * @pre None
+     * @return true if the calling thread is the thread running this loop
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @pre assumes task != null
+     * @param task, the task to be run on the loop thread.
+     * @post task is queued and the selector is woken up if called from another thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Must be called on the loop thread. There is no cancel, a task checks whether it is still needed.
+     * @pre assumes task != null, delayMillis >= 0
+     * @param task, the task to be run on the loop thread.
+     * @param delayMillis, the time after which it is run.
+     * @post task is run by the loop once delayMillis passed, after the keys selected then
+     */
+    void schedule(Runnable task, long delayMillis) {
+        timers.add(new Timer(System.nanoTime() + delayMillis * 1_000_000, task));
+    }
+
+    /**
+     * @pre None
+     * @post Selects ready keys and dispatches them to the attached NioServer or NioConnection
+     *       until the thread is interrupted. Runs queued and due scheduled tasks after the keys are handled.
+     *       A key or task that fails only closes its own connection, the loop keeps serving the others.
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (!thread.isInterrupted()) {
+            try {
+                Timer first = timers.peek();
+                if (first == null) {
+                    selector.select();
+                } else {
+                    long millis = (first.due - System.nanoTime() + 999_999) / 1_000_000;
+                    if (millis > 0) {
+                        selector.select(millis);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    dispatch(key);
+                }
+                // Tasks queued while handling keys run before the next select
+                runTasks();
+            } catch (IOException e) {
+                System.out.println("Event loop error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        Object attachment = key.attachment();
+        try {
+            if (attachment instanceof NioConnection) {
+                ((NioConnection) attachment).onSelected(key);
+            } else if (attachment instanceof NioServer && key.isAcceptable()) {
+                ((NioServer) attachment).accept();
+            }
+        } catch (RuntimeException | Error e) { // Whatever one client sent, the other connections of the loop go on
+            System.out.println("Event loop error: " + e);
+            if (attachment instanceof NioConnection) {
+                ((NioConnection) attachment).close();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            run(task);
+        }
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().due - now <= 0) {
+            run(timers.poll().task);
+        }
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException | Error e) {
+            System.out.println("Event loop task failed: " + e);
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        private final long due; // In nanoTime
+        private final Runnable task;
+
+        Timer(long due, Runnable task) {
+            this.due = due;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(due - other.due, 0);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package server;
+
+import utils.ChatHistory;
+import utils.Message;
+import utils.User;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The newest messages of the conversations read lately, shared by every connection of the server, so a login
+ * or a page of recent messages is served without reading the logs. Older pages are read from the logs.
+ * A conversation keeps at most perConversation messages, the conversations least recently read or written
+ * are dropped once the messages of all of them pass the byte budget. The size of a message is estimated from its text,
+ * names and the image bytes it holds.
+ * The writer of the HistoryStore adds messages to a conversation as they are written, so a cached conversation
+ * always ends with the newest message written. A conversation the writer could not keep up to date is dropped.
+ *
+ * @author Baseer
+ */
+public class HistoryCache {
+    private final long maxBytes;
+    private final int perConversation;
+    private final LinkedHashMap<String, Conversation> conversations = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * @pre maxBytes > 0, perConversation > 0
+     * @param maxBytes, the estimated bytes of messages kept before the least recently used conversations are dropped.
+     * @param perConversation, the most messages kept of one conversation.
+     * @post Creates an empty cache
+     */
+    public HistoryCache(long maxBytes, int perConversation) {
+        this.maxBytes = maxBytes;
+        this.perConversation = perConversation;
+    }
+
+    /**
+     * @pre assumes history && partner && conversationId != null, before >= 0, limit > 0
+     * @param history, the history the page is added to.
+     * @param partner, the user the conversation is with.
+     * @param conversationId, the id of the conversation, see HistoryStore.conversationId().
+     * @param before, the index in the conversation the page ends before.
+     * @param limit, the max number of messages of the page.
+     * @return true if the whole page was cached and is added to the history, in front of what it holds of the
+     *         conversation and with its history start set. Counted in history.cacheHits or history.cacheMisses
+     */
+    public synchronized boolean addPage(ChatHistory history, User partner, String conversationId, long before, int limit) {
+        Conversation conversation = conversations.get(conversationId);
+        long to = conversation == null ? 0 : Math.min(before, conversation.end);
+        long first = Math.max(0, to - limit);
+        if (conversation == null || first < conversation.start()) {
+            ServerMetrics.increment("history.cacheMisses");
+            return false;
+        }
+        ServerMetrics.increment("history.cacheHits");
+        List<Message> page = new ArrayList<>((int) (to - first));
+        Iterator<Message> messages = conversation.messages.iterator();
+        for (long i = conversation.start(); i < to; i++) {
+            Message message = messages.next();
+            if (i >= first) {
+                page.add(message);
+            }
+        }
+        history.addOlderHistory(partner, page, first);
+        return true;
+    }
+
+    /**
+     * Used with a page read from the log, only the newest messages of the page are kept.
+     * @pre assumes conversationId && messages != null, messages are the messages before end in the conversation
+     * @param conversationId, the id of the conversation.
+     * @param messages, the newest messages of the conversation.
+     * @param end, the number of messages in the conversation.
+     * @post The conversation is cached unless it already is with as many messages or newer ones, which may drop
+     *       the least recently used ones
+     */
+    public synchronized void put(String conversationId, List<Message> messages, long end) {
+        Conversation cached = conversations.get(conversationId);
+        if (cached != null && (cached.end > end
+                || cached.end == end && cached.messages.size() >= Math.min(perConversation, messages.size()))) {
+            return;
+        }
+        remove(conversationId);
+        Conversation conversation = new Conversation(end);
+        conversations.put(conversationId, conversation);
+        add(conversation, messages.subList(Math.max(0, messages.size() - perConversation), messages.size()));
+        evict();
+    }
+
+    /**
+     * @pre assumes conversationId != null
+     * @param conversationId, the id of the conversation.
+     * @param end, the number of messages the conversation had when it was put.
+     * @post The conversation is dropped if nothing was added to it since it was put, used when the log has grown
+     *       in the meantime and the writer could not add the new messages
+     */
+    public synchronized void removeIfEnds(String conversationId, long end) {
+        Conversation conversation = conversations.get(conversationId);
+        if (conversation != null && conversation.end == end) {
+            remove(conversationId);
+        }
+    }
+
+    /**
+     * @pre assumes conversationId && messages != null
+     * @param conversationId, the id of the conversation.
+     * @param messages, the messages just written to the end of its log.
+     * @param end, the number of messages in the conversation with them.
+     * @post The messages are added to the conversation if it is cached, which may drop its oldest messages and the
+     *       least recently used conversations. A cached conversation missing messages before them is dropped
+     */
+    public synchronized void appended(String conversationId, List<Message> messages, long end) {
+        Conversation conversation = conversations.get(conversationId);
+        if (conversation == null) {
+            return;
+        }
+        if (conversation.end != end - messages.size()) {
+            remove(conversationId);
+            return;
+        }
+        conversation.end = end;
+        add(conversation, messages);
+        evict();
+    }
+
+    /**
+     * @pre assumes conversationId != null
+     * @param conversationId, the id of the conversation.
+     * @post The conversation is not cached, used when its log is changed by other means than appending
+     */
+    public synchronized void remove(String conversationId) {
+        Conversation conversation = conversations.remove(conversationId);
+        if (conversation != null) {
+            bytes -= conversation.bytes;
+        }
+    }
+
+    /**
+     * @pre None
+     * @return the estimated bytes of the messages cached
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @pre None
+     * @return the number of conversations cached
+     */
+    public synchronized int size() {
+        return conversations.size();
+    }
+
+    private void add(Conversation conversation, List<Message> messages) {
+        for (Message message : messages) {
+            conversation.messages.addLast(message);
+            conversation.bytes += sizeOf(message);
+            bytes += sizeOf(message);
+        }
+        while (conversation.messages.size() > perConversation) {
+            long size = sizeOf(conversation.messages.removeFirst());
+            conversation.bytes -= size;
+            bytes -= size;
+        }
+    }
+
+    /**
+     * Drops the least recently used conversations until the budget is kept, the one just used stays.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Conversation>> eldest = conversations.entrySet().iterator();
+        while (bytes > maxBytes && conversations.size() > 1) {
+            bytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            ServerMetrics.increment("history.cacheEvictions");
+        }
+    }
+
+    /**
+     * @return the estimated heap bytes of the message, with the strings as UTF-16 and the image bytes it holds
+     */
+    static long sizeOf(Message message) {
+        long size = 128; // The message and its users
+        size += 2L * message.getSender().getName().length() + 2L * message.getReceiver().getName().length();
+        if (message.getText() != null) {
+            size += 2L * message.getText().length();
+        }
+        if (message.getAttachment() != null && message.getAttachment().getThumbnail() != null) {
+            size += message.getAttachment().getThumbnail().length;
+        }
+        if (message.getFile() != null && message.getFile().getData() != null) {
+            size += message.getFile().getData().length;
+        }
+        return size;
+    }
+
+    private static class Conversation {
+        private final ArrayDeque<Message> messages = new ArrayDeque<>();
+        private long end; // The number of messages in the conversation
+        private long bytes;
+
+        Conversation(long end) {
+            this.end = end;
+        }
+
+        long start() {
+            return end - messages.size();
+        }
+    }
+}
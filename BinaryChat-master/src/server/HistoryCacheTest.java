@@ -0,0 +1,96 @@
+package server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utils.ChatHistory;
+import utils.Message;
+import utils.User;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryCacheTest {
+
+    HistoryCache cache;
+    User alice;
+    User bob;
+
+    @BeforeEach
+    void setUp() {
+        cache = new HistoryCache(10_000, 5);
+        alice = new User("alice");
+        bob = new User("bob");
+    }
+
+    private List<Message> messages(int from, int to) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            messages.add(Message.builder()
+                    .messageType(Message.MessageType.REGULAR_MESSAGE)
+                    .sender(alice)
+                    .receiver(bob)
+                    .text("message " + i)
+                    .build());
+        }
+        return messages;
+    }
+
+    @Test
+    void onlyTheNewestMessagesAreKept() {
+        cache.put("c", messages(0, 8), 8);
+
+        ChatHistory recent = new ChatHistory(alice);
+        assertTrue(cache.addPage(recent, bob, "c", Long.MAX_VALUE, 5));
+        assertEquals("message 3", recent.getHistory(bob).get(0).getText());
+        assertEquals(3, recent.getHistoryStart(bob));
+
+        ChatHistory page = new ChatHistory(alice);
+        assertTrue(cache.addPage(page, bob, "c", 6, 2));
+        assertEquals("message 4", page.getHistory(bob).get(0).getText());
+        assertFalse(cache.addPage(new ChatHistory(alice), bob, "c", 6, 4)); // Message 2 is only in the log
+    }
+
+    @Test
+    void appendedMessagesAreAdded() {
+        cache.put("c", messages(0, 2), 2);
+        cache.appended("c", messages(2, 3), 3);
+
+        ChatHistory recent = new ChatHistory(alice);
+        assertTrue(cache.addPage(recent, bob, "c", Long.MAX_VALUE, 3));
+        assertEquals("message 2", recent.getHistory(bob).get(2).getText());
+
+        cache.appended("c", messages(4, 5), 5); // Message 3 was missed
+        assertFalse(cache.addPage(new ChatHistory(alice), bob, "c", Long.MAX_VALUE, 1));
+    }
+
+    @Test
+    void conversationGrownSincePutIsRemoved() {
+        cache.put("c", messages(0, 2), 2);
+        cache.appended("c", messages(2, 3), 3);
+        cache.removeIfEnds("c", 2);
+        assertEquals(1, cache.size());
+
+        cache.removeIfEnds("c", 3);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+    }
+
+    @Test
+    void leastRecentlyUsedIsEvicted() {
+        long perConversation = 0;
+        for (Message message : messages(0, 5)) {
+            perConversation += HistoryCache.sizeOf(message);
+        }
+        cache = new HistoryCache(perConversation * 2, 5);
+        cache.put("a", messages(0, 5), 5);
+        cache.put("b", messages(0, 5), 5);
+        assertTrue(cache.addPage(new ChatHistory(alice), bob, "a", Long.MAX_VALUE, 1));
+        cache.put("c", messages(0, 5), 5);
+
+        assertEquals(2, cache.size());
+        assertFalse(cache.addPage(new ChatHistory(alice), bob, "b", Long.MAX_VALUE, 1));
+        assertTrue(cache.addPage(new ChatHistory(alice), bob, "a", Long.MAX_VALUE, 1));
+    }
+}
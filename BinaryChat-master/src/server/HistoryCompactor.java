@@ -0,0 +1,201 @@
+package server;
+
+import utils.Message;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Keeps the conversations of a HistoryStore within their retention, on a thread of its own that wakes every
+ * ServerConfig.compactionMinutes(). The retention of the server is ServerConfig.historyRetainMessages().
+ * Messages older than ServerConfig.historyRetainDays() are dropped too, by the timestamp the server gave them.
+ * A conversation may be given a lower retention in the retention file, a line conversationId=messages and a line
+ * conversationId.days=days per conversation, read again on every run. A higher one than the server allows is ignored.
+ * A conversation is compacted once it holds a quarter more than its retention, at least SparseIndex.STRIDE
+ * more, or once it holds messages a quarter older than its retention in days, so its log is not rewritten for
+ * every new message.
+ * The attachments of the messages dropped are released, the AttachmentStore deletes a file no message refers to.
+ * With a seal size, the older messages of a log are then moved to a SealedSegment once the log holds twice
+ * as many, so every segment holds at least that many messages and the log never more than twice.
+ *
+ * @author Baseer
+ */
+public class HistoryCompactor implements Runnable {
+    private static final String DAYS_SUFFIX = ".days";
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final HistoryStore store;
+    private final AttachmentStore attachments;
+    private final File retentionFile;
+    private final int retain;
+    private final int retainDays;
+    private final boolean archive;
+    private final int seal;
+    private volatile boolean closed;
+    private volatile Thread thread;
+
+    /**
+     * @pre assumes store && attachments && retentionFile != null, retain >= 0
+     * @param store, the store whose conversations are compacted.
+     * @param attachments, the store the attachments of the messages dropped are released in.
+     * @param retentionFile, the properties file with the retention of single conversations, it need not exist.
+     * @param retain, the number of newest messages kept of every conversation, 0 keeps every message.
+     * @param archive, true to move the messages dropped to the archive of the store.
+     * @post Creates a compactor that seals nothing, see HistoryCompactor(HistoryStore, AttachmentStore, File, int, boolean, int)
+     */
+    public HistoryCompactor(HistoryStore store, AttachmentStore attachments, File retentionFile, int retain, boolean archive) {
+        this(store, attachments, retentionFile, retain, archive, 0);
+    }
+
+    /**
+     * @pre assumes store && attachments && retentionFile != null, retain >= 0, seal >= 0
+     * @param store, the store whose conversations are compacted.
+     * @param attachments, the store the attachments of the messages dropped are released in.
+     * @param retentionFile, the properties file with the retention of single conversations, it need not exist.
+     * @param retain, the number of newest messages kept of every conversation, 0 keeps every message.
+     * @param archive, true to move the messages dropped to the archive of the store.
+     * @param seal, the number of newest messages left in the log of a conversation when the older ones are sealed,
+     *        0 never seals.
+     * @post Creates a compactor that keeps messages whatever their age, see
+     *       HistoryCompactor(HistoryStore, AttachmentStore, File, int, int, boolean, int)
+     */
+    public HistoryCompactor(HistoryStore store, AttachmentStore attachments, File retentionFile, int retain, boolean archive,
+                            int seal) {
+        this(store, attachments, retentionFile, retain, 0, archive, seal);
+    }
+
+    /**
+     * @pre assumes store && attachments && retentionFile != null, retain >= 0, retainDays >= 0, seal >= 0
+     * @param store, the store whose conversations are compacted.
+     * @param attachments, the store the attachments of the messages dropped are released in.
+     * @param retentionFile, the properties file with the retention of single conversations, it need not exist.
+     * @param retain, the number of newest messages kept of every conversation, 0 keeps every message.
+     * @param retainDays, the number of days the messages of every conversation are kept, 0 keeps them whatever their age.
+     * @param archive, true to move the messages dropped to the archive of the store.
+     * @param seal, the number of newest messages left in the log of a conversation when the older ones are sealed,
+     *        0 never seals.
+     * @post Creates a compactor, run() compacts on the calling thread until close()
+     */
+    public HistoryCompactor(HistoryStore store, AttachmentStore attachments, File retentionFile, int retain, int retainDays,
+                            boolean archive, int seal) {
+        this.store = store;
+        this.attachments = attachments;
+        this.retentionFile = retentionFile;
+        this.retain = retain;
+        this.retainDays = retainDays;
+        this.archive = archive;
+        this.seal = seal;
+    }
+
+    /**
+     * @pre None
+     * @post Compacts the conversations every ServerConfig.compactionMinutes() until close()
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        long interval = ServerConfig.compactionMinutes() * 60_000L;
+        while (!closed) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            compactAll();
+        }
+    }
+
+    /**
+     * @pre None
+     * @post Every conversation holding more or older messages than its retention allows is compacted, and the attachments
+     *       of the messages dropped are released. Then the logs holding twice the seal size are sealed.
+     *       A conversation that fails is logged and left as it was
+     */
+    public void compactAll() {
+        Properties retention = readRetention();
+        if (retain == 0 && retainDays == 0 && retention.isEmpty() && seal == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        for (String id : store.conversationIds()) {
+            if (closed) {
+                return;
+            }
+            int keep = retention(retention, id, retain);
+            int days = retention(retention, id + DAYS_SUFFIX, retainDays);
+            try {
+                long stored = store.storedMessages(id);
+                long kept = keep > 0 && stored > keep + Math.max(SparseIndex.STRIDE, keep / 4) ? keep : stored;
+                if (days > 0 && store.storedSince(id, now - days * DAY_MILLIS * 5 / 4) < stored) {
+                    kept = Math.min(kept, store.storedSince(id, now - days * DAY_MILLIS));
+                }
+                if (kept < stored) {
+                    release(store.compact(id, (int) kept, archive));
+                    ServerMetrics.increment("history.compactions");
+                }
+                if (seal > 0 && store.unsealedMessages(id) >= 2L * seal) {
+                    store.seal(id, seal);
+                    ServerMetrics.increment("history.seals");
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to compact history " + id + ": " + e.getMessage());
+                ServerMetrics.increment("history.failedCompactions");
+            }
+        }
+        ServerMetrics.recordTime("history.compactionTime", System.nanoTime() - start);
+    }
+
+    /**
+     * @pre None
+     * @post The compactor stops, a compaction in progress is finished first unless it waits for the store
+     */
+    public void close() {
+        closed = true;
+        Thread running = thread;
+        if (running != null) {
+            running.interrupt();
+        }
+    }
+
+    /**
+     * @return the retention in the file under the key if it is lower than that of the server, 0 if every message is kept
+     */
+    private static int retention(Properties retention, String key, int server) {
+        String value = retention.getProperty(key);
+        if (value == null) {
+            return server;
+        }
+        try {
+            int limit = Integer.parseInt(value.trim());
+            return limit > 0 && (server == 0 || limit < server) ? limit : server;
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid retention of " + key + ": " + value);
+            return server;
+        }
+    }
+
+    private Properties readRetention() {
+        Properties retention = new Properties();
+        if (retentionFile.exists()) {
+            try (InputStream in = new FileInputStream(retentionFile)) {
+                retention.load(in);
+            } catch (IOException e) {
+                System.out.println("Failed to read " + retentionFile + ": " + e.getMessage());
+            }
+        }
+        return retention;
+    }
+
+    private void release(List<Message> dropped) {
+        for (Message message : dropped) {
+            if (message.getAttachment() != null) {
+                attachments.release(message.getAttachment().getId());
+            }
+        }
+    }
+}
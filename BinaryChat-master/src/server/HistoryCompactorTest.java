@@ -0,0 +1,137 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utils.Attachment;
+import utils.Message;
+import utils.User;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryCompactorTest {
+
+    Path directory;
+    HistoryStore store;
+    AttachmentStore attachments;
+    File retention;
+    User alice;
+    User bob;
+    User carol;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("compactor");
+        store = new HistoryStore(directory.resolve("ChatHistory").toString());
+        attachments = new AttachmentStore(directory.resolve("Attachments").toString());
+        retention = directory.resolve("ChatHistory").resolve("retention.properties").toFile();
+        alice = new User("alice");
+        bob = new User("bob");
+        carol = new User("carol");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private void send(User sender, User receiver, int count, Attachment attachment) throws IOException {
+        for (int i = 0; i < count; i++) {
+            store.append(Message.builder()
+                    .messageType(Message.MessageType.REGULAR_MESSAGE)
+                    .sender(sender)
+                    .receiver(receiver)
+                    .text("message " + i)
+                    .attachment(i == 0 ? attachment : null)
+                    .build());
+        }
+        store.flush();
+    }
+
+    @Test
+    void attachmentsOfDroppedMessagesAreReleased() throws IOException {
+        byte[] data = "a picture".getBytes();
+        String id = attachments.store(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+        assertTrue(attachments.retain(id));
+        send(alice, bob, 300, new Attachment(id, data.length, "image/png"));
+
+        new HistoryCompactor(store, attachments, retention, 100, false).compactAll();
+
+        assertEquals(100, store.storedMessages(HistoryStore.conversationId(alice, bob)));
+        assertEquals(0, attachments.references(id));
+        assertFalse(attachments.contains(id));
+    }
+
+    @Test
+    void conversationMayKeepLessThanTheServer() throws IOException {
+        send(alice, bob, 250, null);
+        send(alice, carol, 300, null);
+        Files.writeString(retention.toPath(), HistoryStore.conversationId(alice, carol) + "=50\n"
+                + HistoryStore.conversationId(alice, bob) + "=1000\n");
+
+        new HistoryCompactor(store, attachments, retention, 200, false).compactAll();
+
+        assertEquals(50, store.storedMessages(HistoryStore.conversationId(alice, carol)));
+        assertEquals(250, store.storedMessages(HistoryStore.conversationId(alice, bob))); // Within 200 and the slack
+    }
+
+    /**
+     * Tests that messages older than the retention in days are dropped, by the server and by a conversation
+     * keeping them less long, and that a conversation is left alone until they are a quarter older
+     */
+    @Test
+    void messagesOlderThanTheRetentionAreDropped() throws IOException {
+        long day = 24 * 60 * 60 * 1000L;
+        long now = System.currentTimeMillis();
+        sendAged(alice, bob, 100, now - 20 * day);
+        sendAged(alice, bob, 50, now - day);
+        sendAged(alice, carol, 80, now - 5 * day);
+        sendAged(alice, carol, 20, now);
+        sendAged(bob, carol, 30, now - 11 * day);
+        Files.writeString(retention.toPath(), HistoryStore.conversationId(alice, carol) + ".days=3\n");
+
+        new HistoryCompactor(store, attachments, retention, 0, 10, false, 0).compactAll();
+
+        assertEquals(50, store.storedMessages(HistoryStore.conversationId(alice, bob)));
+        assertEquals(20, store.storedMessages(HistoryStore.conversationId(alice, carol)));
+        assertEquals(30, store.storedMessages(HistoryStore.conversationId(bob, carol))); // Within 10 days and the slack
+    }
+
+    private void sendAged(User sender, User receiver, int count, long timestamp) throws IOException {
+        for (int i = 0; i < count; i++) {
+            store.append(Message.builder()
+                    .messageType(Message.MessageType.REGULAR_MESSAGE)
+                    .sender(sender)
+                    .receiver(receiver)
+                    .text("message " + i)
+                    .timestamp(timestamp + i)
+                    .build());
+        }
+        store.flush();
+    }
+
+    @Test
+    void logsAreSealedOnceTwiceTheSealSize() throws IOException {
+        send(alice, bob, 150, null);
+        send(alice, carol, 250, null);
+
+        new HistoryCompactor(store, attachments, retention, 0, false, 100).compactAll();
+
+        assertEquals(150, store.unsealedMessages(HistoryStore.conversationId(alice, bob)));
+        assertEquals(100, store.unsealedMessages(HistoryStore.conversationId(alice, carol)));
+        assertEquals(250, store.storedMessages(HistoryStore.conversationId(alice, carol)));
+        assertEquals("message 0", store.load(carol).getHistory(alice).get(0).getText());
+    }
+}
@@ -0,0 +1,141 @@
+package server;
+
+import utils.BinaryCodec;
+import utils.ChatHistory;
+import utils.Message;
+import utils.User;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits the histories older servers kept per user, in username_chatHistory.log or username_chatHistory.ser, into
+ * the conversations of a HistoryStore. Both users of a conversation kept a copy of it, the longer copy is the one
+ * kept. Run by the store when it is created, before its writer starts.
+ * The old files are renamed last, a migration stopped by a crash is run again by the next server and
+ * skips the conversations it already wrote.
+ *
+ * @author Baseer
+ */
+class HistoryMigration {
+    private static final String LEGACY_LOG_SUFFIX = "_chatHistory.log";
+    private static final String LEGACY_SER_SUFFIX = "_chatHistory.ser";
+
+    private final HistoryStore store;
+    private final File directory;
+
+    /**
+     * @pre assumes store && directory != null
+     * @param store, the store the conversations are written to.
+     * @param directory, the directory of the store, holding the old histories.
+     * @post Creates a migration, see run()
+     */
+    HistoryMigration(HistoryStore store, File directory) {
+        this.store = store;
+        this.directory = directory;
+    }
+
+    /**
+     * @pre None
+     * @post The histories of older servers in the directory are written as conversations and renamed with the
+     *       suffix .migrated
+     * @throws IOException if a history could not be read or a conversation not written
+     * @throws ClassNotFoundException if a .ser history holds a class this server does not have
+     */
+    void run() throws IOException, ClassNotFoundException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(LEGACY_LOG_SUFFIX) || name.endsWith(LEGACY_SER_SUFFIX));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        Map<String, List<Message>> conversations = new LinkedHashMap<>();
+        Map<User, Set<User>> partners = new LinkedHashMap<>();
+        for (File file : files) {
+            boolean serialized = file.getName().endsWith(LEGACY_SER_SUFFIX);
+            String name = file.getName().substring(0, file.getName().length() - LEGACY_LOG_SUFFIX.length());
+            User owner = new User(name);
+            if (serialized && new File(directory, name + LEGACY_LOG_SUFFIX).exists()) {
+                continue; // Left over by the migration to per-user logs, the log is newer
+            }
+            ChatHistory history = serialized ? readSerialized(owner, file) : readUserLog(owner, file);
+            if (history == null) {
+                continue;
+            }
+            for (User partner : history.getChatPartners()) {
+                List<Message> messages = history.getHistory(partner);
+                String id = HistoryStore.conversationId(owner, partner);
+                List<Message> copy = conversations.get(id);
+                if (copy == null || copy.size() < messages.size()) {
+                    conversations.put(id, messages);
+                }
+                partners.computeIfAbsent(owner, user -> new LinkedHashSet<>()).add(partner);
+                partners.computeIfAbsent(partner, user -> new LinkedHashSet<>()).add(owner);
+            }
+        }
+
+        for (Map.Entry<String, List<Message>> conversation : conversations.entrySet()) {
+            File log = store.logFile(conversation.getKey());
+            if (log.exists()) {
+                continue;
+            }
+            File temporary = new File(directory, log.getName() + ".tmp"); // The log only appears when it is complete
+            Files.deleteIfExists(temporary.toPath());
+            try (FileChannel channel = LogRecords.open(temporary)) {
+                LogRecords.write(channel, LogRecords.encode(conversation.getValue()));
+                channel.force(false);
+            }
+            Files.move(temporary.toPath(), log.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        for (Map.Entry<User, Set<User>> index : partners.entrySet()) {
+            File indexFile = store.indexFile(index.getKey());
+            List<String> known = indexFile.exists() ? store.readIndex(indexFile) : List.of();
+            for (User partner : index.getValue()) {
+                if (!known.contains(partner.getName())) {
+                    store.appendToIndex(index.getKey(), partner, true);
+                }
+            }
+        }
+        for (File file : files) {
+            if (file.exists() && !file.renameTo(new File(directory, file.getName() + ".migrated"))) {
+                System.out.println("Failed to rename " + file + " after migrating it");
+            }
+        }
+        System.out.println("Migrated " + files.length + " chat histories to " + conversations.size() + " conversations");
+    }
+
+    /**
+     * Reads a log of the per-user format, where a CHAT_HISTORY record holds a whole history and the
+     * messages after it are added to it.
+     */
+    private static ChatHistory readUserLog(User owner, File log) throws IOException {
+        ChatHistory[] history = {new ChatHistory(owner)};
+        LogRecords.readRecords(log, (body, length) -> {
+            Message message = BinaryCodec.decode(body, 0, length);
+            if (message.getMessageType() == Message.MessageType.CHAT_HISTORY) {
+                history[0] = message.getChatHistory();
+            } else {
+                history[0].addHistory(message.getSender(), message.getReceiver(), message);
+            }
+        });
+        return history[0];
+    }
+
+    private static ChatHistory readSerialized(User owner, File file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+            return (ChatHistory) in.readObject();
+        } catch (EOFException e) {
+            System.out.println("Empty chat history of " + owner.getName() + " in " + file.getName());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,1085 @@
+package server;
+
+import utils.BinaryCodec;
+import utils.ChatHistory;
+import utils.Message;
+import utils.User;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes the chat history to the ChatHistory directory.
+ * Every conversation between two users has one append-only log, ChatHistory/id_conversation.log where id is
+ * conversationId() of the two, so a message is written once and not once for each of its users.
+ * Each user has an index, ChatHistory/username_conversations.idx, naming the users it has a conversation with.
+ * The history of a user is built from the logs its index points to, at login only the newest page of each.
+ * Messages are found by their index in the conversation, counted from 0. append() gives a message its sequence
+ * number from the ConversationSequence of the conversation before it is queued, which a client uses as the cursor
+ * when it asks for the page before the oldest message it has. A number is never given twice, a write that fails or
+ * a crash that loses queued messages leaves a gap, so cursors are turned into indexes by the ConversationSequence.
+ * Logs and indexes are files of LogRecords: the body of a log record is a message encoded with BinaryCodec, of an
+ * index record the UTF-8 name of a user. A record cut off by a crash is found by its length or checksum and cut away the first time the file is used.
+ * Logs are read through MappedLogs, which keeps the most recently read ones mapped up to
+ * ServerConfig.historyMappedBytes(), so a page is taken out of the page cache without streaming the log.
+ * compact() drops the oldest messages of a conversation, see HistoryCompactor, and can move them to a gzip
+ * archive in ChatHistory/archive. Messages keep their index in the conversation when it is compacted.
+ * seal() moves the older messages of a log to a SealedSegment, ChatHistory/id_conversation.first.seg where first is
+ * the index of its first message, compressed in blocks that a page is read from without inflating the rest.
+ * The segments of a conversation and its log follow each other without a gap, the log starting where the newest
+ * segment ends.
+ * A page is found with the SparseIndex of its log, checkpointed in ChatHistory/id_conversation.sidx, so the
+ * time to find it does not grow with the length of the conversation. So is a time range, see loadRange().
+ * The newest messages of the conversations used lately are kept in a HistoryCache shared by every connection,
+ * up to ServerConfig.historyCacheBytes(), and the writer adds messages to it as they are written. A login is
+ * then served from memory, the connections keep no history of their own.
+ * Histories saved per user by older servers are split into conversations by HistoryMigration when the store is
+ * created.
+ * Appends are queued and written by the HistoryWriter of the store, so the disk is never on the path of a message
+ * to its receiver. What a queued write promises is set by the Durability of the store.
+ *
+ * @author Baseer
+ */
+public class HistoryStore {
+    /** The most messages a client gets in one history page */
+    public static final int MAX_PAGE = 500;
+
+    private static final String LOG_SUFFIX = "_conversation.log";
+    private static final String INDEX_SUFFIX = "_conversations.idx";
+    private static final String INDEX_SPARSE_SUFFIX = "_conversation.sidx";
+    private static final String SEQUENCE_SUFFIX = "_conversation.seq";
+    private static final String COMPACTING_SUFFIX = ".compacting";
+    private static final String ARCHIVE_SUFFIX = "_conversation.log.gz";
+    private static final String SEGMENT_INFIX = "_conversation.";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    /**
+     * When a message counts as saved, and so when its sender is told, see append(Message, Runnable).
+     * Ordered from the fastest to the safest.
+     */
+    public enum Durability {
+        /** Queued, the actions run at once. A message can be lost if the server crashes before it is written */
+        ASYNC,
+        /** Written to the OS before the actions run, but never forced. Survives a crash of the server, not of the machine */
+        BUFFERED,
+        /** Written, and forced with the rest of its group before the actions run, see HistoryStore(String, Durability, int, int) */
+        GROUP_COMMIT,
+        /** Written and forced one message at a time before the actions run */
+        PER_MESSAGE
+    }
+
+    private final File directory;
+    private final Durability durability;
+    private final MappedLogs mappedLogs = new MappedLogs(ServerConfig.historyMappedBytes());
+    private final Map<File, SparseIndex> sparseIndexes = new ConcurrentHashMap<>();
+    private final Map<File, Object> sparseIndexLoads = new ConcurrentHashMap<>(); // Locked while the index of one log is loaded
+    private final Map<String, List<SealedSegment>> segments = new ConcurrentHashMap<>();
+    private final Map<String, ConversationSequence> sequences = new ConcurrentHashMap<>();
+    private final HistoryWriter writer;
+    private final ReentrantReadWriteLock compactionLock = new ReentrantReadWriteLock();
+    private final HistoryCache cache = new HistoryCache(ServerConfig.historyCacheBytes(), ServerConfig.historyPageSize());
+
+    /**
+     * @pre assumes directoryName != null
+     * @param directoryName, the directory holding the history files.
+     * @post Creates a store with ServerConfig.historyDurability(), see HistoryStore(String, Durability)
+     */
+    public HistoryStore(String directoryName) {
+        this(directoryName, ServerConfig.historyDurability());
+    }
+
+    /**
+     * @pre assumes directoryName && durability != null
+     * @param directoryName, the directory holding the history files.
+     * @param durability, what a queued append promises.
+     * @post Creates a store with the group commit settings of ServerConfig, see HistoryStore(String, Durability, int, int)
+     */
+    public HistoryStore(String directoryName, Durability durability) {
+        this(directoryName, durability, ServerConfig.groupCommitMillis(), ServerConfig.groupCommitRecords());
+    }
+
+    /**
+     * @pre assumes directoryName && durability != null, groupMillis >= 0, groupRecords > 0
+     * @param directoryName, the directory holding the history files.
+     * @param durability, what a queued append promises.
+     * @param groupMillis, the longest time a GROUP_COMMIT write waits to be forced.
+     * @param groupRecords, the number of records written that makes GROUP_COMMIT force them at once.
+     * @post Creates the directory if it does not exist and migrates the histories of older servers.
+     *       Starts the writer thread, stopped by close()
+     */
+    public HistoryStore(String directoryName, Durability durability, int groupMillis, int groupRecords) {
+        this.directory = new File(directoryName);
+        this.durability = durability;
+        if (!directory.exists()) {
+            boolean success = directory.mkdir(); // Create the new directory
+            if(!success) System.out.println("Failed to create directory");
+        }
+        File[] compacting = directory.listFiles((dir, name) -> name.endsWith(COMPACTING_SUFFIX));
+        for (File file : compacting == null ? new File[0] : compacting) { // Left by a compaction stopped by a crash
+            if (!file.delete()) System.out.println("Failed to delete " + file);
+        }
+        try {
+            new HistoryMigration(this, directory).run();
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Failed to migrate chat histories: " + e.getMessage());
+        }
+        this.writer = new HistoryWriter(durability, groupMillis, groupRecords, new HistoryWriter.Logs() {
+            @Override
+            public File conversationLog(Message message) throws IOException {
+                return HistoryStore.this.conversationLog(message);
+            }
+
+            @Override
+            public void writeMessages(File file, FileChannel log, ByteBuffer records, List<Message> messages)
+                    throws IOException {
+                HistoryStore.this.writeMessages(file, log, records, messages);
+            }
+        });
+        ServerMetrics.gauge("history.cacheBytes", cache::bytes);
+        ServerMetrics.gauge("history.cacheConversations", cache::size);
+    }
+
+    /**
+     * @pre assumes first && second != null
+     * @param first, one user of the conversation.
+     * @param second, the other user of the conversation.
+     * @return the id of the conversation between the two users, the same in whichever order they are given.
+     *         The length of the first name is part of the id, so no two pairs of names share one
+     */
+    public static String conversationId(User first, User second) {
+        String a = first.getName();
+        String b = second.getName();
+        if (a.compareTo(b) > 0) {
+            String swap = a;
+            a = b;
+            b = swap;
+        }
+        return a.length() + "_" + a + "_" + b;
+    }
+
+    /**
+     * @pre assumes user != null
+     * @param user, the user whose history is loaded.
+     * @return the whole history of the user built from its conversations, or null if the user has no history yet.
+     * @throws IOException if a file could not be read
+     */
+    public ChatHistory load(User user) throws IOException {
+        return loadRecent(user, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Only the messages kept are decoded, the rest of a conversation is skipped.
+     * @pre assumes user != null, limit > 0
+     * @param user, the user whose history is loaded.
+     * @param limit, the max number of messages kept of each conversation.
+     * @return the newest messages of every conversation of the user, with the history start of each set,
+     *         or null if the user has no history yet.
+     * @post The conversations of the user are numbered, the next message appended to one does not read its log
+     *       on the thread routing it
+     * @throws IOException if a file could not be read
+     */
+    public ChatHistory loadRecent(User user, int limit) throws IOException {
+        writer.awaitWritten(); // Messages of the user still in the queue belong in the history
+        File index = indexFile(user);
+        if (!index.exists()) {
+            return null;
+        }
+        ChatHistory history = new ChatHistory(user);
+        for (String partner : readIndex(index)) {
+            readPageBefore(history, user, new User(partner), Long.MAX_VALUE, limit);
+        }
+        return history;
+    }
+
+    /**
+     * @pre assumes user && partner != null, before >= 0, limit > 0
+     * @param user, the user asking for the page.
+     * @param partner, the user the conversation is with.
+     * @param before, the sequence number the page ends before, the history start of the oldest page the user has.
+     * @param limit, the max number of messages of the page.
+     * @return a history holding only the page, with the sequence number of its first message as its history start.
+     *         Empty, with history start 0, if there is nothing before
+     * @throws IOException if a file could not be read
+     */
+    public ChatHistory loadPage(User user, User partner, long before, int limit) throws IOException {
+        writer.awaitWritten();
+        ChatHistory page = new ChatHistory(user);
+        readPageBefore(page, user, partner, before, limit);
+        return page;
+    }
+
+    /**
+     * The entries of the SparseIndex around the range are found by a binary search of their timestamps, only the
+     * messages between them are read. Sealed segments have no timestamps, they are read when the range starts
+     * before the log.
+     * @pre assumes user && partner != null, from <= to
+     * @param user, the user asking for the messages.
+     * @param partner, the user the conversation is with.
+     * @param from, the first timestamp of the range, in milliseconds since the epoch.
+     * @param to, the timestamp the range ends before.
+     * @return a history holding the messages of the conversation with a timestamp in the range, with the sequence
+     *         number of the first one as its history start. Empty, with history start 0, if there are none
+     * @throws IOException if a file could not be read
+     */
+    public ChatHistory loadRange(User user, User partner, long from, long to) throws IOException {
+        writer.awaitWritten();
+        ChatHistory range = new ChatHistory(user);
+        String id = conversationId(user, partner);
+        File log = logFile(id);
+        List<Message> messages = new ArrayList<>();
+        long first = -1; // The index of the first message in the range
+        compactionLock.readLock().lock();
+        try {
+            SparseIndex index = log.exists() ? sparseIndex(log) : null;
+            if (index != null && log.exists()) {
+                long offset = index.first();
+                List<Message> read = new ArrayList<>();
+                long start = offset;
+                if (log.length() > Integer.MAX_VALUE) { // Too long for one mapping, read through
+                    LogRecords.readRecords(log, (body, length) -> read.add(BinaryCodec.decode(body, 0, length)));
+                } else if (index.count() > 0) {
+                    // One entry more on each side, for messages routed at the same moment and saved out of order
+                    int before = index.entryBefore(from);
+                    int after = index.entryBefore(to) + 2;
+                    start = offset + Math.max(before - 1, 0) * (long) SparseIndex.STRIDE;
+                    long end = offset + Math.min(index.count(), after * (long) SparseIndex.STRIDE);
+                    readLogRecords(log, index, start, end, read);
+                }
+                if (index.entries() == 0 || index.timestamp(0) >= from) { // The range may start in the segments
+                    for (SealedSegment segment : segments(id, offset)) {
+                        first = addInRange(segment.read(segment.first(), segment.first() + segment.count()),
+                                segment.first(), from, to, messages, first);
+                    }
+                }
+                first = addInRange(read, start, from, to, messages, first);
+            }
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        range.addOlderHistory(partner, messages, first >= 0 ? sequence(id).sequenceOf(first) : 0);
+        return range;
+    }
+
+    /**
+     * Adds the messages read from the index start on that are in the range.
+     * @return the index of the first message in the range, first if it was found before
+     */
+    private static long addInRange(List<Message> read, long start, long from, long to, List<Message> messages, long first) {
+        for (int i = 0; i < read.size(); i++) {
+            Message message = read.get(i);
+            if (message.getTimestamp() >= from && message.getTimestamp() < to) {
+                messages.add(message);
+                first = first < 0 ? start + i : first;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * @pre None
+     * @return the id of every conversation with a log in the store
+     */
+    public List<String> conversationIds() {
+        List<String> ids = new ArrayList<>();
+        String[] names = directory.list((dir, name) -> name.endsWith(LOG_SUFFIX));
+        if (names != null) {
+            for (String name : names) {
+                ids.add(name.substring(0, name.length() - LOG_SUFFIX.length()));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @pre assumes conversationId != null
+     * @param conversationId, the id of a conversation, see conversationId().
+     * @return the number of messages stored of the conversation, in its log and its segments, without those
+     *         compact() dropped
+     * @throws IOException if the log or a segment could not be read
+     */
+    public long storedMessages(String conversationId) throws IOException {
+        File log = logFile(conversationId);
+        if (!log.exists()) {
+            return 0;
+        }
+        compactionLock.readLock().lock();
+        try {
+            SparseIndex index = sparseIndex(log);
+            List<SealedSegment> sealed = segments(conversationId, index.first());
+            return index.first() + index.count() - (sealed.isEmpty() ? index.first() : sealed.get(0).first());
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Used for a retention in days, found with the timestamps of the SparseIndex. Of the segments only the first
+     * block of each is read, and all of the one the time falls in.
+     * @pre assumes conversationId != null
+     * @param conversationId, the id of a conversation, see conversationId().
+     * @param timestamp, a timestamp in milliseconds since the epoch.
+     * @return the number of newest messages stored of the conversation that were sent at timestamp or later, a
+     *         message without a timestamp is older than any
+     * @throws IOException if the log or a segment could not be read
+     */
+    public long storedSince(String conversationId, long timestamp) throws IOException {
+        File log = logFile(conversationId);
+        if (!log.exists()) {
+            return 0;
+        }
+        compactionLock.readLock().lock();
+        try {
+            SparseIndex index = sparseIndex(log);
+            long offset = index.first();
+            long end = offset + index.count();
+            if (log.length() > Integer.MAX_VALUE) { // Too long for one mapping, read through
+                List<Message> read = new ArrayList<>();
+                LogRecords.readRecords(log, (body, length) -> read.add(BinaryCodec.decode(body, 0, length)));
+                return read.size() - older(read, timestamp);
+            }
+            int entry = index.entryBefore(timestamp);
+            if (entry >= 0) { // The messages before the entry are older, and the message of the next entry is not
+                long from = offset + entry * (long) SparseIndex.STRIDE;
+                List<Message> block = new ArrayList<>();
+                readLogRecords(log, index, from, Math.min(end, from + SparseIndex.STRIDE), block);
+                return end - from - older(block, timestamp);
+            }
+            long since = end - offset;
+            List<SealedSegment> sealed = segments(conversationId, offset);
+            for (int i = sealed.size() - 1; i >= 0; i--) {
+                SealedSegment segment = sealed.get(i);
+                long last = segment.first() + segment.count();
+                if (segment.read(segment.first(), segment.first() + 1).get(0).getTimestamp() >= timestamp) {
+                    since += segment.count();
+                } else {
+                    return since + segment.count() - older(segment.read(segment.first(), last), timestamp);
+                }
+            }
+            return since;
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    private static long older(List<Message> messages, long timestamp) {
+        return messages.stream().filter(message -> message.getTimestamp() < timestamp).count();
+    }
+
+    /**
+     * @pre assumes conversationId != null
+     * @param conversationId, the id of a conversation, see conversationId().
+     * @return the number of messages in the log of the conversation, those seal() has not moved to a segment
+     * @throws IOException if the log could not be read
+     */
+    public long unsealedMessages(String conversationId) throws IOException {
+        File log = logFile(conversationId);
+        return log.exists() ? sparseIndex(log).count() : 0;
+    }
+
+    /**
+     * Drops the oldest messages of a conversation without holding up the appends to it. The messages kept are
+     * copied to a new log beside the writer, which then only copies what it wrote in the meantime and puts the
+     * new log in place of the old one. Messages keep their index in the conversation: a compacted log starts with
+     * COMPACTED_MAGIC and the index of its first message, a page before it is empty.
+     * Segments are only dropped whole, one holding messages on both sides of the cut is kept.
+     * @pre assumes conversationId != null, keep >= 0
+     * @param conversationId, the id of a conversation, see conversationId().
+     * @param keep, the number of newest messages kept.
+     * @param archive, true to add the messages dropped from the log to ChatHistory/archive/id_conversation.log.gz
+     *        first, a gzip member each time holding MAGIC and the records as they were in the log. Segments
+     *        dropped are moved to ChatHistory/archive as they are.
+     * @return the messages dropped, to release what they refer to. Empty if no more than keep are stored
+     * @throws IOException if the new log or the archive could not be written, the old log is then kept
+     */
+    public List<Message> compact(String conversationId, int keep, boolean archive) throws IOException {
+        File log = logFile(conversationId);
+        if (writer.isClosed() || !log.exists()) {
+            return List.of();
+        }
+        SparseIndex index = sparseIndex(log);
+        long count = index.count();
+        long cut = index.first() + count - keep; // The index of the first message kept
+        List<Message> dropped = dropSegments(conversationId, log, cut, archive);
+        long drop = Math.min(count, cut - index.first());
+        File archiveFile = archive ? archiveFile(conversationId) : null;
+        if (drop > 0 && rewrite(log, index, drop,
+                in -> readDropped(in.position(index.start()), drop, dropped, archiveFile), null, null)) {
+            ServerMetrics.add("history.compactedMessages", drop);
+        }
+        return dropped;
+    }
+
+    /**
+     * Moves the oldest messages of a conversation out of its log to a new SealedSegment, the same way compact()
+     * drops them. The segment is written beside the writer and put in place with the new log. Messages keep
+     * their index in the conversation and pages are read across the segments and the log alike.
+     * The records are read twice: once for the samples the dictionary of the segment is trained on, once to be
+     * compressed.
+     * @pre assumes conversationId != null, keep >= 0
+     * @param conversationId, the id of a conversation, see conversationId().
+     * @param keep, the number of newest messages left in the log.
+     * @return the number of messages sealed, 0 if no more than keep are in the log
+     * @throws IOException if the segment or the new log could not be written, the old log is then kept
+     */
+    public long seal(String conversationId, int keep) throws IOException {
+        File log = logFile(conversationId);
+        if (writer.isClosed() || !log.exists()) {
+            return 0;
+        }
+        SparseIndex index = sparseIndex(log);
+        long drop = index.count() - keep;
+        if (drop <= 0) {
+            return 0;
+        }
+        File segment = segmentFile(conversationId, index.first());
+        File sealing = new File(directory, segment.getName() + COMPACTING_SUFFIX);
+        try {
+            if (!rewrite(log, index, drop, in -> writeSegment(in, index.start(), drop, sealing, index.first()),
+                    sealing, segment)) {
+                return 0;
+            }
+        } finally {
+            Files.deleteIfExists(sealing.toPath());
+        }
+        ServerMetrics.add("history.sealedMessages", drop);
+        return drop;
+    }
+
+    /**
+     * Copies the log from the message after the ones dropped to a new log, hands the records dropped to the
+     * reader, then has the writer copy what it wrote in the meantime and put the new log in place.
+     * @return false if the log was not replaced, see replace()
+     */
+    private boolean rewrite(File log, SparseIndex index, long drop, DroppedReader dropped, File sealing, File segment)
+            throws IOException {
+        long count;
+        long copied;
+        synchronized (index) { // The writer adds to both at once
+            count = index.count();
+            copied = index.end();
+        }
+        File compacted = new File(directory, log.getName() + COMPACTING_SUFFIX);
+        boolean swapped = false;
+        try {
+            try (FileChannel in = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+                long cut = drop == count ? copied : index.seek(drop);
+                ByteBuffer header = ByteBuffer.allocate(LogRecords.HEADER);
+                for (long skip = drop == count ? 0 : drop % SparseIndex.STRIDE; skip > 0; skip--) {
+                    header.clear();
+                    LogRecords.readFully(in, header, cut);
+                    cut += LogRecords.HEADER + header.getInt(0);
+                }
+                dropped.read(in);
+                try (FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    LogRecords.writeFully(out, ByteBuffer.allocate(LogRecords.COMPACTED_HEADER).put(LogRecords.COMPACTED_MAGIC)
+                            .putLong(index.first() + drop).flip());
+                    LogRecords.transferFully(in, cut, copied, out);
+                }
+            }
+            CountDownLatch done = new CountDownLatch(1);
+            IOException[] failure = {null};
+            boolean[] replaced = {false};
+            writer.runCommitted(() -> { // Run by the writer once the logs it keeps open are forced and closed
+                try {
+                    replaced[0] = replace(log, compacted, index, copied, sealing, segment);
+                } catch (IOException e) {
+                    failure[0] = e;
+                } finally {
+                    done.countDown();
+                }
+            });
+            done.await();
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            swapped = replaced[0];
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!swapped) {
+                Files.deleteIfExists(compacted.toPath());
+            }
+        }
+        return swapped;
+    }
+
+    /**
+     * Decodes the records dropped by compact(), and adds them to the archive if there is one.
+     */
+    private static void readDropped(FileChannel in, long drop, List<Message> dropped, File archive) throws IOException {
+        OutputStream archived = null;
+        try {
+            if (archive != null) {
+                Files.createDirectories(archive.toPath().getParent());
+                archived = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(archive, true)));
+                archived.write(LogRecords.MAGIC);
+            }
+            OutputStream out = archived;
+            CRC32 crc = new CRC32();
+            LogRecords.streamRecords(in, drop, (body, length) -> {
+                dropped.add(BinaryCodec.decode(body, 0, length));
+                if (out != null) {
+                    crc.reset();
+                    crc.update(body, 0, length);
+                    out.write(ByteBuffer.allocate(LogRecords.HEADER).putInt(length).putInt((int) crc.getValue()).array());
+                    out.write(body, 0, length);
+                }
+            });
+        } finally {
+            if (archived != null) {
+                archived.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the records sealed by seal() to the segment, with a dictionary trained on about 256 of them.
+     */
+    private static void writeSegment(FileChannel in, long start, long drop, File segment, long first) throws IOException {
+        long every = Math.max(1, drop / 256);
+        List<byte[]> samples = new ArrayList<>();
+        long[] read = {0};
+        LogRecords.streamRecords(in.position(start), drop, (body, length) -> {
+            if (read[0]++ % every == 0) {
+                samples.add(Arrays.copyOf(body, length));
+            }
+        });
+        try (SealedSegment.Writer writer = new SealedSegment.Writer(segment, first, SealedSegment.train(samples))) {
+            LogRecords.streamRecords(in.position(start), drop, writer::add);
+        }
+    }
+
+    /**
+     * Drops the segments of the conversation holding only messages before the cut. They are read first, then
+     * taken out of the conversation unless it was sealed or compacted in the meantime.
+     * @return the messages of the segments dropped
+     */
+    private List<Message> dropSegments(String conversationId, File log, long cut, boolean archive) throws IOException {
+        List<SealedSegment> sealed;
+        List<Message> dropped = new ArrayList<>();
+        int drop = 0;
+        compactionLock.readLock().lock();
+        try {
+            sealed = segments(conversationId, sparseIndex(log).first());
+            while (drop < sealed.size() && sealed.get(drop).first() + sealed.get(drop).count() <= cut) {
+                SealedSegment segment = sealed.get(drop++);
+                dropped.addAll(segment.read(segment.first(), segment.first() + segment.count()));
+            }
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        if (drop == 0) {
+            return dropped;
+        }
+        compactionLock.writeLock().lock();
+        try {
+            if (segments.get(conversationId) != sealed) {
+                return new ArrayList<>();
+            }
+            for (SealedSegment segment : sealed.subList(0, drop)) {
+                if (archive) {
+                    File archived = new File(new File(directory, "archive"), segment.file().getName());
+                    Files.createDirectories(archived.toPath().getParent());
+                    Files.move(segment.file().toPath(), archived.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.delete(segment.file().toPath());
+                }
+                ServerMetrics.add("history.compactedMessages", segment.count());
+            }
+            segments.put(conversationId, List.copyOf(sealed.subList(drop, sealed.size())));
+            cache.remove(conversationId);
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+        return dropped;
+    }
+
+    /**
+     * Runs on the writer thread. Copies what was written to the log after the compacted log was made, and puts
+     * the compacted log in its place, after the segment sealed from the old one if there is one.
+     * @return false if the log was indexed again since, the copy may not match it and is dropped
+     */
+    private boolean replace(File log, File compacted, SparseIndex index, long copied, File sealing, File segment)
+            throws IOException {
+        compactionLock.writeLock().lock();
+        try {
+            if (sparseIndexes.get(log) != index) {
+                return false;
+            }
+            try (FileChannel in = FileChannel.open(log.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                LogRecords.transferFully(in, copied, index.end(), out);
+                out.force(false);
+            }
+            String name = log.getName();
+            String id = name.substring(0, name.length() - LOG_SUFFIX.length());
+            if (sealing != null) { // A crash before the log is moved leaves a segment the log still holds, see loadSegments()
+                Files.move(sealing.toPath(), segment.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                segments.remove(id);
+            }
+            Files.move(compacted.toPath(), log.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            sparseIndexes.remove(log);
+            Files.deleteIfExists(sparseIndexFile(log).toPath());
+            mappedLogs.remove(log);
+            cache.remove(id);
+            return true;
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+    }
+
+    private File archiveFile(String conversationId) {
+        return new File(new File(directory, "archive"), conversationId + ARCHIVE_SUFFIX);
+    }
+
+    /**
+     * Adds the page before the sequence number to the history, with the sequence number of its first message as its
+     * history start. The conversation is numbered even when the page comes from the cache, the next message
+     * appended to it does not read its log on the thread routing it.
+     */
+    private void readPageBefore(ChatHistory history, User user, User partner, long before, int limit) throws IOException {
+        ConversationSequence sequence = sequence(conversationId(user, partner));
+        readPage(history, user, partner, sequence.indexOf(before), limit);
+        if (!history.getHistory(partner).isEmpty()) {
+            history.setHistoryStart(partner, sequence.sequenceOf(history.getHistoryStart(partner)));
+        }
+    }
+
+    /**
+     * Adds the last limit messages before the index to the history, in front of what it holds of the conversation.
+     * The page is found with the SparseIndex of the log and read through its mapping, only its records are copied.
+     */
+    private void readPage(ChatHistory history, User user, User partner, long before, int limit) throws IOException {
+        String id = conversationId(user, partner);
+        if (cache.addPage(history, partner, id, before, limit)) {
+            return;
+        }
+        File log = logFile(id);
+        if (!log.exists()) { // The user index is written first, a crash can leave it pointing at no log
+            return;
+        }
+        compactionLock.readLock().lock(); // The log is not replaced by a compacted one while it is read
+        try {
+            SparseIndex index = sparseIndex(log);
+            if (!log.exists()) {
+                return;
+            }
+            if (log.length() > Integer.MAX_VALUE) { // Too long for one mapping
+                readPageStreamed(history, log, partner, before, limit, index.first());
+                return;
+            }
+            long offset = index.first(); // The messages before it were sealed or dropped by compact()
+            long count = index.count();
+            long end = offset + count;
+            List<SealedSegment> sealed = segments(id, offset);
+            long to = Math.min(before, end);
+            long first = Math.max(sealed.isEmpty() ? offset : sealed.get(0).first(), to - limit);
+            if (first >= to) {
+                history.addOlderHistory(partner, List.of(), 0); // Nothing is kept before
+                return;
+            }
+            List<Message> messages = new ArrayList<>((int) (to - first));
+            for (SealedSegment segment : sealed) {
+                long from = Math.max(first, segment.first());
+                long until = Math.min(to, segment.first() + segment.count());
+                if (from < until) {
+                    messages.addAll(segment.read(from, until));
+                }
+            }
+            if (to > offset) {
+                readLogRecords(log, index, Math.max(first, offset), to, messages);
+            }
+            if (to == end && messages.size() == to - first) {
+                cache.put(id, messages, end);
+                if (index.count() != count) { // Written after the read, before the conversation was cached
+                    cache.removeIfEnds(id, end);
+                }
+            }
+            history.addOlderHistory(partner, messages, first);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the messages of the log from the index from up to the index to, counted in the conversation.
+     */
+    private void readLogRecords(File log, SparseIndex index, long from, long to, List<Message> messages) throws IOException {
+        long offset = index.first();
+        ByteBuffer records = mappedLogs.map(log);
+        int position = (int) index.seek(from - offset);
+        for (long skip = (from - offset) % SparseIndex.STRIDE; skip > 0; skip--) {
+            position += LogRecords.HEADER + records.getInt(position);
+        }
+        LogRecords.RecordPositions positions = new LogRecords.RecordPositions();
+        LogRecords.scanRecords(records, position, to - from, positions);
+        byte[] body = new byte[256];
+        for (int i = 0; i < positions.count; i++) {
+            int at = positions.at[i];
+            int length = records.getInt(at);
+            if (body.length < length) {
+                body = new byte[Math.max(length, body.length * 2)];
+            }
+            records.get(at + LogRecords.HEADER, body, 0, length);
+            messages.add(BinaryCodec.decode(body, 0, length));
+        }
+    }
+
+    private static void readPageStreamed(ChatHistory history, File log, User partner, long before, int limit, long offset)
+            throws IOException {
+        ArrayDeque<byte[]> page = new ArrayDeque<>();
+        long[] count = {offset};
+        LogRecords.readRecords(log, (body, length) -> {
+            if (count[0]++ < before) {
+                if (page.size() == limit) {
+                    page.removeFirst();
+                }
+                page.addLast(Arrays.copyOf(body, length));
+            }
+        });
+        List<Message> messages = new ArrayList<>(page.size());
+        for (byte[] body : page) {
+            messages.add(BinaryCodec.decode(body, 0, body.length));
+        }
+        history.addOlderHistory(partner, messages, Math.min(before, count[0]) - messages.size());
+    }
+
+    /**
+     * Loads the SparseIndex of a log the first time it is used, checks the entries of its checkpoint against the log
+     * and adds the messages after the last one. A record broken by a crash is found there and cut away, before
+     * the log is mapped or written: reading a mapping past the end of its file crashes the JVM.
+     */
+    private SparseIndex sparseIndex(File log) throws IOException {
+        SparseIndex index = sparseIndexes.get(log);
+        if (index != null) {
+            return index;
+        }
+        synchronized (sparseIndexLoads.computeIfAbsent(log, key -> new Object())) { // Other logs are not held up by the scan
+            index = sparseIndexes.get(log);
+            if (index == null) {
+                index = loadSparseIndex(log);
+                sparseIndexes.put(log, index);
+            }
+        }
+        return index;
+    }
+
+    private SparseIndex loadSparseIndex(File log) throws IOException {
+        File file = sparseIndexFile(log);
+        if (log.exists() && log.length() < LogRecords.MAGIC.length) {
+            Files.delete(log.toPath()); // Cut off while its first record was written
+        }
+        if (!log.exists()) {
+            SparseIndex index = new SparseIndex(file, LogRecords.MAGIC.length, 0);
+            index.keep(0);
+            return index;
+        }
+        long length = log.length();
+        if (length > Integer.MAX_VALUE) { // Too long to be mapped, read as a stream
+            ByteBuffer header = ByteBuffer.allocate(LogRecords.COMPACTED_HEADER);
+            try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+                LogRecords.readFully(channel, header, 0);
+            }
+            SparseIndex index = new SparseIndex(file, LogRecords.headerLength(header, log), LogRecords.firstMessage(header));
+            index.keep(0);
+            long[] position = {index.start()};
+            LogRecords.readRecords(log, (body, bodyLength) -> index.add(position[0], position[0] += LogRecords.HEADER + bodyLength,
+                    index.entryDue() ? BinaryCodec.decode(body, 0, bodyLength).getTimestamp() : 0));
+            return index;
+        }
+        SparseIndex index;
+        int end;
+        try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, length); // Not shared, the log may be cut
+            index = new SparseIndex(file, LogRecords.headerLength(records, log), LogRecords.firstMessage(records));
+            int kept = 0;
+            while (kept < index.entries() && index.entry(kept) < length
+                    && (kept == 0 ? index.entry(0) == index.start() : index.entry(kept) > index.entry(kept - 1))) {
+                kept++;
+            }
+            while (kept > 0 && LogRecords.scanRecords(records, (int) index.entry(kept - 1), 1, null) == index.entry(kept - 1)) {
+                kept--; // The checkpoint has an entry the log lost in a crash
+            }
+            if (kept < index.entries()) {
+                ServerMetrics.add("history.sparseIndexDropped", index.entries() - kept);
+            }
+            index.keep(kept);
+            LogRecords.RecordPositions positions = new LogRecords.RecordPositions();
+            end = LogRecords.scanRecords(records, (int) index.end(), Long.MAX_VALUE, positions);
+            for (int i = 0; i < positions.count; i++) {
+                index.add(positions.at[i], i + 1 < positions.count ? positions.at[i + 1] : end,
+                        index.entryDue() ? LogRecords.timestampAt(records, positions.at[i]) : 0);
+            }
+        }
+        if (end < length) { // A crash cut the last record, new records must not follow its remains
+            System.out.println("Dropped " + (length - end) + " bytes of a broken record in " + log);
+            try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Opens the segments of a conversation the first time they are used. Only the segments leading up to the log
+     * without a gap are used. A segment reaching into the log was put in place by a seal() stopped by a crash
+     * before the log was replaced, the log still holds its messages and it is deleted.
+     * Called with the compactionLock held, the segments are only changed with its write lock.
+     */
+    private List<SealedSegment> segments(String conversationId, long offset) throws IOException {
+        List<SealedSegment> sealed = segments.get(conversationId);
+        if (sealed == null) {
+            sealed = loadSegments(conversationId, offset);
+            segments.put(conversationId, sealed);
+        }
+        return sealed;
+    }
+
+    private List<SealedSegment> loadSegments(String conversationId, long offset) throws IOException {
+        String prefix = conversationId + SEGMENT_INFIX;
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null || files.length == 0) {
+            return List.of();
+        }
+        List<SealedSegment> found = new ArrayList<>();
+        for (File file : files) {
+            try {
+                found.add(SealedSegment.open(file));
+            } catch (IOException e) {
+                System.out.println("Failed to open sealed history " + file + ": " + e.getMessage());
+            }
+        }
+        found.sort((a, b) -> Long.compare(b.first(), a.first()));
+        ArrayDeque<SealedSegment> sealed = new ArrayDeque<>();
+        long next = offset;
+        for (SealedSegment segment : found) {
+            if (segment.first() >= offset) {
+                Files.deleteIfExists(segment.file().toPath());
+            } else if (segment.first() + segment.count() == next) {
+                sealed.addFirst(segment);
+                next = segment.first();
+            } else {
+                System.out.println("Skipped sealed history " + segment.file() + ", it does not lead up to the next one");
+            }
+        }
+        return List.copyOf(sealed);
+    }
+
+    private File segmentFile(String conversationId, long first) {
+        return new File(directory, conversationId + SEGMENT_INFIX + first + SEGMENT_SUFFIX);
+    }
+
+    private File sparseIndexFile(File log) {
+        String id = log.getName().substring(0, log.getName().length() - LOG_SUFFIX.length());
+        return new File(directory, id + INDEX_SPARSE_SUFFIX);
+    }
+
+    /**
+     * Never waits for the disk. Appends to one conversation are written in the order they are queued.
+     * @pre assumes message != null, message.getSender() && message.getReceiver() != null
+     * @param message, the message to be added to the history of its sender and receiver.
+     * @post The message gets its sequence number, higher than that of every message of the conversation before it,
+     *       and is queued to be appended to the log of their conversation, which is created and added to the index of
+     *       both users if it does not exist
+     * @throws IOException if the log could not be read to number the first message of the conversation, or the
+     *         numbers could not be reserved. The message is not saved and the next one tries again
+     */
+    public void append(Message message) throws IOException {
+        append(message, null);
+    }
+
+    /**
+     * Used to tell the sender of a message once it is saved, the receiver gets it without waiting for the disk.
+     * @pre assumes message != null, message.getSender() && message.getReceiver() != null
+     * @param message, the message to be added to the history of its sender and receiver.
+     * @param saved, what to do once the message is saved as the Durability promises, or null. Not run if the write
+     *        failed. Run on the writer thread like the actions of afterAppends(), and never for an ASYNC store
+     * @post See append(Message)
+     * @throws IOException see append(Message)
+     */
+    public void append(Message message, Runnable saved) throws IOException {
+        Runnable action = durability == Durability.ASYNC ? null : saved;
+        String id = conversationId(message.getSender(), message.getReceiver());
+        ConversationSequence sequence = sequence(id);
+        synchronized (sequence) { // Held until the write is queued, so the log has the messages in the order of their numbers
+            message.setSequence(sequence.next());
+            writer.append(message, action);
+        }
+    }
+
+    /**
+     * Loads the sequence of a conversation from the end of its log, the first time the conversation is loaded or
+     * appended to. Only the appends to that conversation wait for its log to be read.
+     */
+    private ConversationSequence sequence(String conversationId) throws IOException {
+        ConversationSequence sequence = sequences.computeIfAbsent(conversationId,
+                id -> new ConversationSequence(new File(directory, id + SEQUENCE_SUFFIX)));
+        synchronized (sequence) {
+            if (!sequence.loaded()) {
+                SparseIndex index = sparseIndex(logFile(conversationId));
+                sequence.load(index.first() + index.count());
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Used to do something once the appends queued before it are saved, unless the store is ASYNC.
+     * Actions run in the order they are given, with the actions of append(Message, Runnable).
+     * @pre assumes action != null
+     * @param action, what to do once the appends queued before it are saved.
+     * @post ASYNC: the action is run at once on this thread.
+     *       Otherwise the action is run on the writer thread once the appends queued before it are saved as the
+     *       Durability promises, or failed, which is logged and counted in history.failedWrites. There it must not
+     *       wait, every write queued after it waits with it
+     */
+    public void afterAppends(Runnable action) {
+        writer.afterAppends(action);
+    }
+
+    /**
+     * @pre None
+     * @return what a queued append promises
+     */
+    public Durability durability() {
+        return durability;
+    }
+
+    /**
+     * @pre None
+     * @post Every append queued before the call is written, and forced unless the store is ASYNC or BUFFERED
+     */
+    public void flush() {
+        writer.flush();
+    }
+
+    /**
+     * @pre None
+     * @post Writes what is queued and stops the writer thread, later appends are written at once
+     */
+    public void close() {
+        if (writer.isClosed()) {
+            return;
+        }
+        writer.close();
+        for (ConversationSequence sequence : sequences.values()) {
+            try {
+                if (sequence.loaded()) {
+                    sequence.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to give back sequence numbers: " + e.getMessage());
+            }
+        }
+        ServerMetrics.removeGauge("history.cacheBytes");
+        ServerMetrics.removeGauge("history.cacheConversations");
+    }
+
+    /**
+     * @return the log of the conversation the message belongs to, a new conversation is added to both indexes first
+     */
+    private File conversationLog(Message message) throws IOException {
+        User sender = message.getSender();
+        User receiver = message.getReceiver();
+        File log = logFile(conversationId(sender, receiver));
+        sparseIndex(log); // Built before the log is opened to be written, it is checked against the log
+        if (!log.exists()) {
+            boolean force = durability.compareTo(Durability.GROUP_COMMIT) >= 0;
+            appendToIndex(sender, receiver, force);
+            appendToIndex(receiver, sender, force);
+            ServerMetrics.increment("history.conversations");
+        }
+        return log;
+    }
+
+    void appendToIndex(User owner, User partner, boolean force) throws IOException {
+        byte[] name = partner.getName().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        ByteBuffer record = ByteBuffer.allocate(LogRecords.HEADER + name.length);
+        record.putInt(name.length).putInt((int) crc.getValue()).put(name).flip();
+        try (FileChannel index = LogRecords.open(indexFile(owner))) {
+            LogRecords.write(index, record);
+            if (force) {
+                index.force(false);
+            }
+        }
+    }
+
+    List<String> readIndex(File index) throws IOException {
+        Set<String> partners = new LinkedHashSet<>(); // A crash between two appends of the same partner can repeat it
+        LogRecords.readRecords(index, (body, length) -> partners.add(new String(body, 0, length, StandardCharsets.UTF_8)));
+        return new ArrayList<>(partners);
+    }
+
+    /**
+     * Writes the records at the end of the file, and adds them to its SparseIndex and the cache if it has an index.
+     * Where the numbers of the messages skip some, the ConversationSequence is told first.
+     */
+    private void writeMessages(File file, FileChannel log, ByteBuffer records, List<Message> messages) throws IOException {
+        int bytes = records.remaining();
+        SparseIndex index = sparseIndexes.get(file); // None for a log being migrated
+        long position = Math.max(log.size(), LogRecords.MAGIC.length);
+        String id = conversationId(messages.get(0).getSender(), messages.get(0).getReceiver());
+        ConversationSequence sequence = sequences.get(id);
+        if (index != null && index.end() == position && sequence != null && sequence.loaded()) {
+            long at = index.first() + index.count();
+            for (Message message : messages) {
+                sequence.written(at++, message.getSequence());
+            }
+        }
+        ByteBuffer written = records.duplicate();
+        LogRecords.write(log, records);
+        ServerMetrics.add("history.appends", messages.size());
+        ServerMetrics.add("history.appendedBytes", bytes);
+        if (index == null) {
+            return;
+        }
+        if (index.end() != position) { // Not what the index was built from, it is built again from the log
+            sparseIndexes.remove(file);
+            cache.remove(id);
+            return;
+        }
+        for (Message message : messages) {
+            long next = position + LogRecords.HEADER + written.getInt(written.position());
+            index.add(position, next, message.getTimestamp());
+            written.position(written.position() + (int) (next - position));
+            position = next;
+        }
+        cache.appended(id, messages, index.first() + index.count());
+    }
+
+    File logFile(String conversationId) {
+        return new File(directory, conversationId + LOG_SUFFIX);
+    }
+
+    File indexFile(User user) {
+        return new File(directory, user.getName() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Gets the channel of the log being compacted or sealed, to read the records dropped from it.
+     */
+    private interface DroppedReader {
+        void read(FileChannel in) throws IOException;
+    }
+
+}
+
@@ -0,0 +1,626 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utils.ChatHistory;
+import utils.Message;
+import utils.User;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryStoreTest {
+
+    Path directory;
+    HistoryStore store;
+    User alice;
+    User bob;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("history");
+        store = new HistoryStore(directory.toString());
+        alice = new User("alice");
+        bob = new User("bob");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private Message message(User sender, User receiver, String text) {
+        return Message.builder()
+                .messageType(Message.MessageType.REGULAR_MESSAGE)
+                .sender(sender)
+                .receiver(receiver)
+                .text(text)
+                .build();
+    }
+
+    private Path conversationLog(User first, User second) {
+        return directory.resolve(HistoryStore.conversationId(first, second) + "_conversation.log");
+    }
+
+    @Test
+    void appendAndLoad() throws Exception {
+        assertNull(store.load(alice));
+        store.append(message(alice, bob, "hi bob"));
+        store.append(message(bob, alice, "hi alice"));
+
+        ChatHistory history = store.load(alice);
+        assertEquals(2, history.getHistory(bob).size());
+        assertEquals("hi bob", history.getHistory(bob).get(0).getText());
+        assertEquals("hi alice", history.getHistory(bob).get(1).getText());
+        assertEquals(2, store.load(bob).getHistory(alice).size());
+    }
+
+    /**
+     * Tests that a message is written once, to the conversation both users read it from
+     */
+    @Test
+    void messageIsStoredOnce() throws Exception {
+        User carol = new User("carol");
+        store.append(message(alice, bob, "to bob"));
+        store.append(message(carol, alice, "to alice"));
+        store.flush();
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(2, files.filter(path -> path.toString().endsWith(".log")).count());
+        }
+        assertEquals(Set.of(bob, carol), store.load(alice).getChatPartners());
+        assertEquals(Set.of(alice), store.load(carol).getChatPartners());
+        assertEquals("to alice", store.load(carol).getHistory(alice).get(0).getText());
+    }
+
+    /**
+     * Tests that login gets the newest page of a conversation and the pages before it follow the cursor to the start
+     */
+    @Test
+    void pagesOfAConversation() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            store.append(message(i % 2 == 0 ? alice : bob, i % 2 == 0 ? bob : alice, "message " + i));
+        }
+
+        ChatHistory recent = store.loadRecent(alice, 10);
+        assertEquals(10, recent.getHistory(bob).size());
+        assertEquals("message 15", recent.getHistory(bob).get(0).getText());
+        assertEquals(15, recent.getHistoryStart(bob));
+
+        ChatHistory page = store.loadPage(alice, bob, 15, 10);
+        assertEquals("message 5", page.getHistory(bob).get(0).getText());
+        assertEquals("message 14", page.getHistory(bob).get(9).getText());
+        assertEquals(5, page.getHistoryStart(bob));
+
+        ChatHistory first = store.loadPage(bob, alice, 5, 10);
+        assertEquals(5, first.getHistory(alice).size());
+        assertEquals(0, first.getHistoryStart(alice));
+        assertTrue(store.loadPage(bob, alice, 0, 10).getHistory(alice).isEmpty());
+    }
+
+    /**
+     * Tests that a log mapped by an earlier read is mapped again once it has grown
+     */
+    @Test
+    void pagesSeeLaterAppends() throws Exception {
+        store.append(message(alice, bob, "first"));
+        assertEquals(1, store.loadRecent(alice, 10).getHistory(bob).size());
+
+        store.append(message(bob, alice, "second"));
+        ChatHistory recent = store.loadRecent(alice, 10);
+        assertEquals(2, recent.getHistory(bob).size());
+        assertEquals("second", recent.getHistory(bob).get(1).getText());
+    }
+
+    /**
+     * Tests pages of a conversation longer than SparseIndex.STRIDE, before and after its index is read from the checkpoint
+     */
+    @Test
+    void pagesAreFoundWithTheSparseIndex() throws Exception {
+        int total = SparseIndex.STRIDE * 3 + 10;
+        for (int i = 0; i < total; i++) {
+            store.append(message(alice, bob, "message " + i));
+        }
+        for (int reopened = 0; reopened < 2; reopened++) {
+            ChatHistory page = store.loadPage(alice, bob, SparseIndex.STRIDE * 2 + 5, 70);
+            assertEquals(70, page.getHistory(bob).size());
+            assertEquals("message " + (SparseIndex.STRIDE * 2 + 5 - 70), page.getHistory(bob).get(0).getText());
+            assertEquals(SparseIndex.STRIDE * 2 + 5 - 70, page.getHistoryStart(bob));
+            assertEquals("message " + (total - 1), store.loadRecent(alice, 1).getHistory(bob).get(0).getText());
+
+            store.close();
+            store = new HistoryStore(directory.toString());
+        }
+        assertTrue(Files.size(directory.resolve(HistoryStore.conversationId(alice, bob) + "_conversation.sidx")) > 0);
+    }
+
+    /**
+     * Tests that a time range, and the messages since a time, are found with the timestamps of the SparseIndex, in
+     * the log and in the sealed segments before it, also once the index is read from its checkpoint
+     */
+    @Test
+    void rangeIsFoundByTimestamp() throws Exception {
+        for (int i = 0; i < SparseIndex.STRIDE * 6; i++) {
+            Message message = message(alice, bob, "message " + i);
+            message.setTimestamp(1_000 + i * 10L);
+            store.append(message);
+        }
+        store.flush();
+        String id = HistoryStore.conversationId(alice, bob);
+        assertEquals(SparseIndex.STRIDE * 2, store.seal(id, SparseIndex.STRIDE * 4));
+
+        for (int reopened = 0; reopened < 2; reopened++) {
+            for (long first : new long[] {5, 100, 200, 300}) {
+                ChatHistory range = store.loadRange(alice, bob, 1_000 + first * 10, 1_000 + (first + 70) * 10 - 5);
+                List<Message> messages = range.getHistory(bob);
+                assertEquals(70, messages.size());
+                assertEquals("message " + first, messages.get(0).getText());
+                assertEquals("message " + (first + 69), messages.get(69).getText());
+                assertEquals(first, range.getHistoryStart(bob));
+            }
+            assertTrue(store.loadRange(alice, bob, 0, 1_000).getHistory(bob).isEmpty());
+            assertEquals(SparseIndex.STRIDE * 6 - 100, store.storedSince(id, 1_000 + 100 * 10)); // In a segment
+            assertEquals(SparseIndex.STRIDE * 6 - 300, store.storedSince(id, 1_000 + 300 * 10 - 5));
+            assertEquals(SparseIndex.STRIDE * 6, store.loadRange(alice, bob, 0, Long.MAX_VALUE).getHistory(bob).size());
+            store.close();
+            store = new HistoryStore(directory.toString());
+        }
+    }
+
+    /**
+     * Tests that checkpointed entries past the end of a log cut by a crash are dropped
+     */
+    @Test
+    void sparseIndexEntriesLostInACrashAreDropped() throws Exception {
+        for (int i = 0; i < SparseIndex.STRIDE * 2; i++) {
+            store.append(message(alice, bob, "message " + i));
+        }
+        store.close();
+        Path log = conversationLog(alice, bob);
+        try (RandomAccessFile file = new RandomAccessFile(log.toFile(), "rw")) {
+            file.setLength(file.length() / 2);
+        }
+        store = new HistoryStore(directory.toString());
+
+        int kept = store.load(alice).getHistory(bob).size();
+        assertTrue(kept < SparseIndex.STRIDE * 2);
+        Message after = message(bob, alice, "after the crash");
+        store.append(after);
+        assertEquals(SparseIndex.STRIDE * 2, after.getSequence()); // The numbers of the messages lost are not given again
+        ChatHistory history = store.load(alice);
+        assertEquals(kept + 1, history.getHistory(bob).size());
+        assertEquals("after the crash", store.loadPage(alice, bob, after.getSequence() + 1, 1).getHistory(bob).get(0).getText());
+        assertEquals(kept - 1, store.loadPage(alice, bob, after.getSequence(), 1).getHistoryStart(bob));
+    }
+
+    /**
+     * Tests that a login after the first is served from the cache, with the messages written since
+     */
+    @Test
+    void recentMessagesAreCached() throws Exception {
+        store.append(message(alice, bob, "first"));
+        store.loadRecent(alice, 10);
+        long hits = ServerMetrics.counter("history.cacheHits");
+
+        store.append(message(bob, alice, "second"));
+        ChatHistory recent = store.loadRecent(bob, 10);
+        assertEquals(hits + 1, ServerMetrics.counter("history.cacheHits"));
+        assertEquals(2, recent.getHistory(alice).size());
+        assertEquals("second", recent.getHistory(alice).get(1).getText());
+        assertEquals(0, recent.getHistoryStart(alice));
+    }
+
+    /**
+     * Tests that compaction keeps the newest messages at their index, archives the rest and leaves the log appendable
+     */
+    @Test
+    void compactKeepsNewestMessages() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            store.append(message(alice, bob, "message " + i));
+        }
+        store.flush();
+        String id = HistoryStore.conversationId(alice, bob);
+        List<Message> dropped = store.compact(id, 30, true);
+        assertEquals(70, dropped.size());
+        assertEquals("message 69", dropped.get(69).getText());
+        assertEquals(30, store.storedMessages(id));
+        assertTrue(Files.size(directory.resolve("archive").resolve(id + "_conversation.log.gz")) > 0);
+
+        store.append(message(bob, alice, "after compaction"));
+        for (int reopened = 0; reopened < 2; reopened++) {
+            ChatHistory page = store.loadPage(alice, bob, 80, 20);
+            assertEquals(10, page.getHistory(bob).size());
+            assertEquals("message 70", page.getHistory(bob).get(0).getText());
+            assertEquals(70, page.getHistoryStart(bob));
+            assertTrue(store.loadPage(alice, bob, 70, 20).getHistory(bob).isEmpty());
+            ChatHistory recent = store.loadRecent(bob, 2);
+            assertEquals("after compaction", recent.getHistory(alice).get(1).getText());
+            assertEquals(99, recent.getHistoryStart(alice));
+
+            store.close();
+            store = new HistoryStore(directory.toString());
+        }
+        assertTrue(store.compact(id, 40, false).isEmpty());
+    }
+
+    /**
+     * Tests that messages appended while a conversation is compacted are all kept, in order
+     */
+    @Test
+    void compactWhileAppending() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            store.append(message(alice, bob, "message " + i));
+        }
+        store.flush();
+        Thread sender = new Thread(() -> {
+            try {
+                for (int i = 200; i < 2000; i++) {
+                    store.append(message(alice, bob, "message " + i));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        sender.start();
+        List<Message> dropped = store.compact(HistoryStore.conversationId(alice, bob), 50, false);
+        sender.join();
+
+        List<Message> kept = store.load(alice).getHistory(bob);
+        assertEquals(2000, dropped.size() + kept.size());
+        for (int i = 0; i < kept.size(); i++) {
+            assertEquals("message " + (dropped.size() + i), kept.get(i).getText());
+        }
+    }
+
+    /**
+     * Tests that pages are read across sealed segments and the log, at the same index as before they were sealed
+     */
+    @Test
+    void sealedMessagesKeepTheirIndex() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            store.append(message(alice, bob, "message " + i));
+        }
+        store.flush();
+        String id = HistoryStore.conversationId(alice, bob);
+        assertEquals(200, store.seal(id, 300));
+        for (int i = 500; i < 600; i++) {
+            store.append(message(alice, bob, "message " + i));
+        }
+        store.flush();
+        assertEquals(300, store.seal(id, 100));
+        assertEquals(100, store.unsealedMessages(id));
+        assertEquals(600, store.storedMessages(id));
+        assertTrue(Files.exists(directory.resolve(id + "_conversation.0.seg")));
+        assertTrue(Files.exists(directory.resolve(id + "_conversation.200.seg")));
+
+        for (int reopened = 0; reopened < 2; reopened++) {
+            for (long before : new long[] {30, 210, 230, 520, 600}) {
+                ChatHistory page = store.loadPage(alice, bob, before, 40);
+                List<Message> messages = page.getHistory(bob);
+                assertEquals(Math.min(before, 40), messages.size());
+                for (int i = 0; i < messages.size(); i++) {
+                    assertEquals("message " + (before - messages.size() + i), messages.get(i).getText());
+                }
+            }
+            assertEquals(600, store.load(alice).getHistory(bob).size());
+            store.close();
+            store = new HistoryStore(directory.toString());
+        }
+    }
+
+    /**
+     * Tests that messages are numbered in each conversation by their index, and go on from the log when it is reopened
+     */
+    @Test
+    void sequencesFollowTheLog() throws Exception {
+        MessageIds ids = new MessageIds(0);
+        for (int i = 0; i < 3; i++) {
+            Message message = message(alice, bob, "message " + i);
+            message.setId(ids.next());
+            store.append(message);
+            assertEquals(i, message.getSequence());
+        }
+        Message other = message(alice, new User("carol"), "other");
+        store.append(other);
+        assertEquals(0, other.getSequence());
+        store.flush();
+        store.seal(HistoryStore.conversationId(alice, bob), 1);
+        store.close();
+
+        store = new HistoryStore(directory.toString());
+        Message next = message(bob, alice, "message 3");
+        next.setId(ids.next());
+        store.append(next);
+        assertEquals(3, next.getSequence());
+        List<Message> stored = store.load(alice).getHistory(bob);
+        for (int i = 0; i < stored.size(); i++) {
+            assertEquals(i, stored.get(i).getSequence());
+            assertTrue(i == 0 || stored.get(i).getId() > stored.get(i - 1).getId());
+        }
+    }
+
+    /**
+     * Tests that a store restarted after a crash never gives again the number of a message delivered but not
+     * saved, and that the gap is skipped by the cursors of the pages
+     */
+    @Test
+    void sequencesAreNotReusedAfterACrash() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            store.append(message(alice, bob, "message " + i));
+        }
+        store.flush();
+        Path crashed = Files.createTempDirectory("crashed");
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) { // What the disk held when the server crashed
+                Files.copy(file, crashed.resolve(file.getFileName()));
+            }
+        }
+        Message lost = message(alice, bob, "lost");
+        store.append(lost);
+
+        HistoryStore restarted = new HistoryStore(crashed.toString());
+        try {
+            Message next = message(bob, alice, "after the crash");
+            restarted.append(next);
+            assertTrue(next.getSequence() > lost.getSequence());
+            ChatHistory before = restarted.loadPage(alice, bob, next.getSequence(), 10);
+            assertEquals(3, before.getHistory(bob).size());
+            assertEquals(0, before.getHistoryStart(bob));
+            ChatHistory last = restarted.loadPage(alice, bob, next.getSequence() + 1, 2);
+            assertEquals(List.of("message 2", "after the crash"), last.getHistory(bob).stream().map(Message::getText).toList());
+            assertEquals(2, last.getHistoryStart(bob));
+            ChatHistory recent = restarted.loadRecent(alice, 1);
+            assertEquals(next.getSequence(), recent.getHistoryStart(bob));
+        } finally {
+            restarted.close();
+            try (Stream<Path> files = Files.walk(crashed)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Tests that a message is not numbered when its log cannot be read, and that the next message reads it again
+     */
+    @Test
+    void unreadableLogIsNotNumbered() throws Exception {
+        Files.createDirectory(conversationLog(alice, bob));
+        assertThrows(IOException.class, () -> store.append(message(alice, bob, "lost")));
+
+        Files.delete(conversationLog(alice, bob));
+        Message next = message(alice, bob, "saved");
+        store.append(next);
+        assertEquals(0, next.getSequence());
+        assertEquals("saved", store.load(alice).getHistory(bob).get(0).getText());
+    }
+
+    /**
+     * Tests that a segment put in place by a seal stopped before the log was replaced is deleted, the log holds its messages
+     */
+    @Test
+    void segmentLeftByACrashIsDeleted() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            store.append(message(alice, bob, "message " + i));
+        }
+        store.flush();
+        String id = HistoryStore.conversationId(alice, bob);
+        Path log = conversationLog(alice, bob);
+        Path copy = directory.resolve("copy");
+        Files.copy(log, copy);
+        store.seal(id, 50);
+        store.close();
+        Files.move(copy, log, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(directory.resolve(id + "_conversation.sidx"));
+
+        store = new HistoryStore(directory.toString());
+        List<Message> messages = store.load(alice).getHistory(bob);
+        assertEquals(100, messages.size());
+        assertEquals("message 0", messages.get(0).getText());
+        assertFalse(Files.exists(directory.resolve(id + "_conversation.0.seg")));
+    }
+
+    /**
+     * Tests that compaction drops the segments before the messages kept, and the oldest messages of the log
+     */
+    @Test
+    void compactDropsWholeSegments() throws Exception {
+        String id = HistoryStore.conversationId(alice, bob);
+        for (int segment = 0; segment < 3; segment++) {
+            for (int i = 0; i < 100; i++) {
+                store.append(message(alice, bob, "message " + (segment * 100 + i)));
+            }
+            store.flush();
+            store.seal(id, 0);
+        }
+        for (int i = 300; i < 350; i++) {
+            store.append(message(alice, bob, "message " + i));
+        }
+        store.flush();
+
+        assertEquals(200, store.compact(id, 120, true).size());
+        assertTrue(Files.exists(directory.resolve("archive").resolve(id + "_conversation.100.seg")));
+        assertEquals(150, store.storedMessages(id));
+        assertEquals(130, store.compact(id, 20, false).size());
+        assertEquals(20, store.storedMessages(id));
+        assertFalse(Files.exists(directory.resolve(id + "_conversation.200.seg")));
+        assertTrue(store.loadPage(alice, bob, 330, 50).getHistory(bob).isEmpty());
+        ChatHistory page = store.loadPage(alice, bob, Long.MAX_VALUE, 50);
+        assertEquals(20, page.getHistory(bob).size());
+        assertEquals(330, page.getHistoryStart(bob));
+    }
+
+    @Test
+    void conversationIdIsCanonical() {
+        assertEquals(HistoryStore.conversationId(alice, bob), HistoryStore.conversationId(bob, alice));
+        assertNotEquals(HistoryStore.conversationId(new User("a_b"), new User("c")),
+                HistoryStore.conversationId(new User("a"), new User("b_c")));
+    }
+
+    /**
+     * Tests that the histories older servers kept per user become one conversation, which keeps growing
+     */
+    @Test
+    void userHistoriesAreMigrated() throws Exception {
+        store.close();
+        for (User owner : List.of(alice, bob)) {
+            ChatHistory old = new ChatHistory(owner);
+            old.addHistory(alice, bob, message(alice, bob, "from the old server"));
+            try (ObjectOutputStream out = new ObjectOutputStream(
+                    new FileOutputStream(directory.resolve(owner.getName() + "_chatHistory.ser").toFile()))) {
+                out.writeObject(old);
+            }
+        }
+        store = new HistoryStore(directory.toString());
+
+        assertEquals(1, store.load(alice).getHistory(bob).size());
+        assertEquals(1, store.load(bob).getHistory(alice).size());
+        assertTrue(Files.exists(conversationLog(alice, bob)));
+        assertTrue(Files.exists(directory.resolve("alice_chatHistory.ser.migrated")));
+        assertFalse(Files.exists(directory.resolve("bob_chatHistory.ser")));
+
+        store.append(message(bob, alice, "on the new one"));
+        ChatHistory history = store.load(alice);
+        assertEquals(2, history.getHistory(bob).size());
+        assertEquals("from the old server", history.getHistory(bob).get(0).getText());
+    }
+
+    /**
+     * Tests that a record cut off by a crash is dropped by the next server and later appends are read again
+     */
+    @Test
+    void brokenLastRecordIsDropped() throws Exception {
+        store.append(message(alice, bob, "kept"));
+        store.append(message(alice, bob, "cut off"));
+        store.close();
+        Path log = conversationLog(alice, bob);
+        try (RandomAccessFile file = new RandomAccessFile(log.toFile(), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        store = new HistoryStore(directory.toString());
+
+        assertEquals(1, store.load(alice).getHistory(bob).size());
+        store.append(message(alice, bob, "after the crash"));
+        ChatHistory history = store.load(alice);
+        assertEquals(2, history.getHistory(bob).size());
+        assertEquals("after the crash", history.getHistory(bob).get(1).getText());
+    }
+
+    /**
+     * Tests that a GROUP_COMMIT store runs the actions in order, each after the appends before it are in the log
+     */
+    @Test
+    void groupCommitActionsRunAfterWrite() throws Exception {
+        store.close();
+        store = new HistoryStore(directory.toString(), HistoryStore.Durability.GROUP_COMMIT, 0, 1);
+        Path log = conversationLog(alice, bob);
+        List<Long> logSizes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            store.append(message(alice, bob, "message " + i));
+            store.afterAppends(() -> logSizes.add(log.toFile().length()));
+        }
+        store.flush();
+
+        assertEquals(3, logSizes.size());
+        assertTrue(logSizes.get(0) > 0);
+        assertTrue(logSizes.get(0) <= logSizes.get(1) && logSizes.get(1) <= logSizes.get(2));
+        assertEquals(log.toFile().length(), (long) logSizes.get(2));
+    }
+
+    /**
+     * Tests that the writes of a group wait for it to fill and are then forced together, one force for the log
+     */
+    @Test
+    void groupIsForcedOnceWhenFull() throws Exception {
+        store.close();
+        store = new HistoryStore(directory.toString(), HistoryStore.Durability.GROUP_COMMIT, 60_000, 4);
+        long forcesBefore = ServerMetrics.counter("history.forces");
+        CountDownLatch committed = new CountDownLatch(4);
+        for (int i = 0; i < 3; i++) {
+            store.append(message(alice, bob, "message " + i));
+            store.afterAppends(committed::countDown);
+        }
+        Thread.sleep(100);
+        assertEquals(4, committed.getCount());
+
+        store.append(message(alice, bob, "message 3"));
+        store.afterAppends(committed::countDown);
+        assertTrue(committed.await(5, TimeUnit.SECONDS));
+        assertEquals(forcesBefore + 1, ServerMetrics.counter("history.forces"));
+    }
+
+    /**
+     * Tests that reading a page sees the messages of a group that is not forced yet, without forcing it
+     */
+    @Test
+    void readsDoNotCutTheGroupShort() throws Exception {
+        store.close();
+        store = new HistoryStore(directory.toString(), HistoryStore.Durability.GROUP_COMMIT, 60_000, 1000);
+        long forcesBefore = ServerMetrics.counter("history.forces");
+        CountDownLatch committed = new CountDownLatch(1);
+        store.append(message(alice, bob, "not forced yet"));
+        store.afterAppends(committed::countDown);
+
+        assertEquals("not forced yet", store.loadPage(alice, bob, 1, 10).getHistory(bob).get(0).getText());
+        assertEquals(1, store.loadRecent(bob, 10).getHistory(alice).size());
+        assertEquals(1, committed.getCount());
+        assertEquals(forcesBefore, ServerMetrics.counter("history.forces"));
+    }
+
+    @Test
+    void groupIsForcedWhenTimeIsUp() throws Exception {
+        store.close();
+        store = new HistoryStore(directory.toString(), HistoryStore.Durability.GROUP_COMMIT, 20, 1000);
+        CountDownLatch committed = new CountDownLatch(1);
+        store.append(message(alice, bob, "alone in its group"));
+        store.afterAppends(committed::countDown);
+        assertTrue(committed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, store.load(alice).getHistory(bob).size());
+    }
+
+    /**
+     * Tests that the sender is only told of a message once it is written, and never of one whose write failed
+     */
+    @Test
+    void savedRunsOnlyOnceWritten() throws Exception {
+        store.close();
+        store = new HistoryStore(directory.toString(), HistoryStore.Durability.BUFFERED);
+        List<String> saved = new CopyOnWriteArrayList<>();
+        store.append(message(alice, bob, "first"), () -> saved.add("first"));
+        store.flush();
+        Files.delete(conversationLog(alice, bob));
+        Files.createDirectory(conversationLog(alice, bob)); // The next write fails
+
+        store.append(message(alice, bob, "lost"), () -> saved.add("lost"));
+        store.append(message(alice, new User("carol"), "other"), () -> saved.add("other"));
+        store.flush();
+        assertEquals(List.of("first", "other"), saved);
+    }
+
+    @Test
+    void asyncActionsRunAtOnce() throws IOException {
+        List<String> order = new ArrayList<>();
+        store.append(message(alice, bob, "hi"));
+        store.afterAppends(() -> order.add("delivered"));
+        assertEquals(List.of("delivered"), order);
+    }
+}
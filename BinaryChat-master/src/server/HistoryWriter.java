@@ -0,0 +1,372 @@
+package server;
+
+import utils.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The writer thread of a HistoryStore. Appends and actions are queued, the writer takes everything queued at once
+ * and writes each log touched in one go, so the disk is never on the path of a message to its receiver.
+ * What a queued write promises is set by the Durability of the store. With GROUP_COMMIT the writer keeps the
+ * logs it wrote open and forces them together once groupMillis have passed or groupRecords are written,
+ * so every connection waiting in that time shares one FileChannel.force per log.
+ * Which log a message goes to, and what else is updated when it is written, is left to the Logs of the store.
+ *
+ * @author Baseer
+ */
+class HistoryWriter {
+    private static final int MAX_BATCH = 1024;
+    private static final Write STOP = new Write(null, null, true);
+
+    private final HistoryStore.Durability durability;
+    private final long groupNanos;
+    private final int groupRecords;
+    private final Logs logs;
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // The group not forced yet, only used by the writer thread
+    private final Map<File, FileChannel> unforced = new LinkedHashMap<>();
+    private final List<Runnable> waiting = new ArrayList<>();
+    private int unforcedRecords;
+    private long groupStart;
+
+    /**
+     * @pre assumes durability && logs != null, groupMillis >= 0, groupRecords > 0
+     * @param durability, what a queued append promises.
+     * @param groupMillis, the longest time a GROUP_COMMIT write waits to be forced.
+     * @param groupRecords, the number of records written that makes GROUP_COMMIT force them at once.
+     * @param logs, finds and writes the logs of the store.
+     * @post Starts the writer thread, stopped by close()
+     */
+    HistoryWriter(HistoryStore.Durability durability, int groupMillis, int groupRecords, Logs logs) {
+        this.durability = durability;
+        this.groupNanos = groupMillis * 1_000_000L;
+        this.groupRecords = groupRecords;
+        this.logs = logs;
+        this.writer = ServerThreads.start("history-writer", this::writeLoop);
+        ServerMetrics.gauge("history.queued", queue::size);
+    }
+
+    /**
+     * @pre None
+     * @return true once close() stopped the writer thread
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Appends to one conversation are written in the order they are queued.
+     * @pre assumes message != null
+     * @param message, the message to be appended to the log of its conversation.
+     * @param action, what to do once the message is saved as the Durability promises, or null. Not run if the
+     *        write failed
+     * @post The message is queued. Once the writer is closed it is written at once instead, and a failure logged
+     */
+    void append(Message message, Runnable action) {
+        if (closed) { // Nothing left to write it later
+            try {
+                appendTo(logs.conversationLog(message), List.of(message),
+                        durability.compareTo(HistoryStore.Durability.GROUP_COMMIT) >= 0);
+            } catch (IOException e) {
+                System.out.println("Failed to save history of "
+                        + HistoryStore.conversationId(message.getSender(), message.getReceiver()) + ": " + e.getMessage());
+                return;
+            }
+            if (action != null) {
+                action.run();
+            }
+            return;
+        }
+        queue.add(new Write(message, action, false));
+    }
+
+    /**
+     * See HistoryStore.afterAppends()
+     * @pre assumes action != null
+     * @param action, what to do once the appends queued before it are saved.
+     * @post ASYNC or closed: the action is run at once on this thread. Otherwise it is run on the writer thread
+     *       once the appends queued before it are saved as the Durability promises, or failed
+     */
+    void afterAppends(Runnable action) {
+        if (durability == HistoryStore.Durability.ASYNC || closed) {
+            action.run();
+        } else {
+            queue.add(new Write(null, action, false));
+        }
+    }
+
+    /**
+     * Used to change a log the writer may keep open.
+     * @pre assumes action != null
+     * @param action, what to do on the writer thread.
+     * @post The action is run by the writer once the logs it keeps open are forced and closed
+     */
+    void runCommitted(Runnable action) {
+        queue.add(new Write(null, action, true));
+    }
+
+    /**
+     * @pre None
+     * @post Every append queued before the call is written, and forced unless the store is ASYNC or BUFFERED
+     */
+    void flush() {
+        await(true);
+    }
+
+    /**
+     * Used before reading, what is queued must be readable but need not be forced. A GROUP_COMMIT group is not
+     * cut short for it.
+     * @pre None
+     * @post Every append queued before the call is written
+     */
+    void awaitWritten() {
+        await(false);
+    }
+
+    private void await(boolean force) {
+        if (closed || Thread.currentThread() == writer) {
+            return;
+        }
+        CountDownLatch written = new CountDownLatch(1);
+        queue.add(new Write(null, written::countDown, force, !force));
+        try {
+            written.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @pre None
+     * @post Writes what is queued and stops the writer thread, later appends are written at once
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        queue.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+        List<Write> rest = new ArrayList<>(); // Queued while the writer was stopping
+        queue.drainTo(rest);
+        writeBatch(rest);
+        commitGroup();
+        ServerMetrics.removeGauge("history.queued");
+    }
+
+    /**
+     * Writes the messages to the file at once, without the queue.
+     * @pre assumes file && messages != null, messages not empty
+     * @param file, the log the messages are appended to.
+     * @param messages, the messages of one conversation.
+     * @param force, true to force the log before returning.
+     * @throws IOException if the log could not be written
+     */
+    void appendTo(File file, List<Message> messages, boolean force) throws IOException {
+        ByteBuffer records = LogRecords.encode(messages);
+        try (FileChannel log = LogRecords.open(file)) {
+            logs.writeMessages(file, log, records, messages);
+            if (force) {
+                log.force(false);
+                ServerMetrics.increment("history.forces");
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<Write> batch = new ArrayList<>();
+        try {
+            boolean stop = false;
+            while (!stop) {
+                Write first = unforced.isEmpty()
+                        ? queue.take()
+                        : queue.poll(groupStart + groupNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (first == null) { // The group waited long enough
+                    commitGroup();
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                stop = writeBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("History writer interrupted, " + queue.size() + " writes not saved");
+        }
+    }
+
+    /**
+     * Writes every log touched by the batch once, then runs the waiting actions or adds them to the group.
+     * @return true if the batch holds STOP
+     */
+    private boolean writeBatch(List<Write> batch) {
+        long start = System.nanoTime();
+        Map<String, List<Message>> conversations = new LinkedHashMap<>();
+        Set<String> failed = new HashSet<>();
+        boolean stop = false;
+        boolean forceNow = false;
+        int appends = 0;
+        for (Write write : batch) {
+            ServerMetrics.recordTime("history.queueLag", start - write.queued);
+            if (write.message != null) {
+                String id = HistoryStore.conversationId(write.message.getSender(), write.message.getReceiver());
+                conversations.computeIfAbsent(id, key -> new ArrayList<>()).add(write.message);
+                appends++;
+            }
+            stop |= write == STOP;
+            forceNow |= write.force;
+        }
+        for (Map.Entry<String, List<Message>> conversation : conversations.entrySet()) {
+            try {
+                File log = logs.conversationLog(conversation.getValue().get(0));
+                if (durability == HistoryStore.Durability.GROUP_COMMIT) {
+                    appendToGroup(log, conversation.getValue());
+                } else if (durability == HistoryStore.Durability.PER_MESSAGE) {
+                    appendEachForced(log, conversation.getValue());
+                } else {
+                    appendTo(log, conversation.getValue(), false);
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to save history of " + conversation.getKey() + ": " + e.getMessage());
+                ServerMetrics.add("history.failedWrites", conversation.getValue().size());
+                failed.add(conversation.getKey());
+            }
+        }
+        if (appends > 0) {
+            ServerMetrics.recordValue("history.batchSize", appends);
+            ServerMetrics.recordTime("history.writeTime", System.nanoTime() - start);
+        }
+        for (Write write : batch) {
+            if (write.message != null
+                    && failed.contains(HistoryStore.conversationId(write.message.getSender(), write.message.getReceiver()))) {
+                continue; // Not saved, nothing to tell
+            }
+            if (write.action != null && write.written) {
+                write.action.run();
+            } else if (write.action != null) {
+                waiting.add(write.action);
+            }
+        }
+        if (durability != HistoryStore.Durability.GROUP_COMMIT || forceNow || unforced.isEmpty()
+                || unforcedRecords >= groupRecords || System.nanoTime() - groupStart >= groupNanos) {
+            commitGroup();
+        }
+        return stop;
+    }
+
+    /**
+     * Writes the records without forcing them, the log stays open until the group is committed.
+     */
+    private void appendToGroup(File file, List<Message> messages) throws IOException {
+        FileChannel log = unforced.get(file);
+        if (log == null) {
+            if (unforced.isEmpty()) {
+                groupStart = System.nanoTime();
+            }
+            log = LogRecords.open(file);
+            unforced.put(file, log);
+        }
+        logs.writeMessages(file, log, LogRecords.encode(messages), messages);
+        unforcedRecords += messages.size();
+    }
+
+    private void appendEachForced(File file, List<Message> messages) throws IOException {
+        try (FileChannel log = LogRecords.open(file)) {
+            for (Message message : messages) {
+                logs.writeMessages(file, log, LogRecords.encode(List.of(message)), List.of(message));
+                log.force(false);
+                ServerMetrics.increment("history.forces");
+            }
+        }
+    }
+
+    /**
+     * Forces and closes every log of the group with one force each, then runs the actions that waited for it.
+     */
+    private void commitGroup() {
+        if (!unforced.isEmpty()) {
+            long start = System.nanoTime();
+            for (Map.Entry<File, FileChannel> log : unforced.entrySet()) {
+                try (FileChannel channel = log.getValue()) {
+                    channel.force(false);
+                    ServerMetrics.increment("history.forces");
+                } catch (IOException e) {
+                    System.out.println("Failed to force history " + log.getKey().getName() + ": " + e.getMessage());
+                    ServerMetrics.increment("history.failedWrites");
+                }
+            }
+            ServerMetrics.recordValue("history.groupSize", unforcedRecords);
+            ServerMetrics.recordTime("history.forceTime", System.nanoTime() - start);
+            unforced.clear();
+            unforcedRecords = 0;
+        }
+        for (Runnable action : waiting) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                System.out.println("Failed to run action after history write: " + e);
+            }
+        }
+        waiting.clear();
+    }
+
+    /**
+     * What the writer needs of the store: the log of a conversation, and how records are added to it.
+     */
+    interface Logs {
+        /**
+         * @return the log of the conversation the message belongs to, created if it is new
+         * @throws IOException if the log could not be read or the conversation not added
+         */
+        File conversationLog(Message message) throws IOException;
+
+        /**
+         * Writes the records of the messages at the end of the open log, and updates what is kept of it.
+         * @throws IOException if the records could not be written
+         */
+        void writeMessages(File file, FileChannel log, ByteBuffer records, List<Message> messages) throws IOException;
+    }
+
+    /**
+     * A queued append, or an action to run once the appends before it are written. The action of an append runs
+     * once the message is saved.
+     */
+    private static class Write {
+        private final Message message;
+        private final Runnable action;
+        private final boolean force; // Commit the group without waiting for it to fill
+        private final boolean written; // Run the action once the batch is written, without waiting for the group
+        private final long queued = System.nanoTime();
+
+        Write(Message message, Runnable action, boolean force) {
+            this(message, action, force, false);
+        }
+
+        Write(Message message, Runnable action, boolean force, boolean written) {
+            this.message = message;
+            this.action = action;
+            this.force = force;
+            this.written = written;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package server;
+
+import utils.BinaryCodec;
+import utils.Message;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The record format of the files of the HistoryStore: conversation logs, user indexes and the archive.
+ * A file starts with MAGIC, or COMPACTED_MAGIC and the index of its first message for a compacted log, followed by
+ * records of [int length][int CRC32 of the body][body]. A record cut off by a crash is found by its length or
+ * checksum, readRecords() and scanRecords() stop at it.
+ *
+ * @author Baseer
+ */
+final class LogRecords {
+    static final byte[] MAGIC = {'B', 'C', 'L', 1};
+    static final byte[] COMPACTED_MAGIC = {'B', 'C', 'L', 2}; // Followed by the index of the first message
+    static final int COMPACTED_HEADER = COMPACTED_MAGIC.length + Long.BYTES;
+    static final int HEADER = 8;
+    static final int MAX_RECORD = 64 * 1024 * 1024;
+
+    private static final ThreadLocal<BinaryCodec> CODECS = ThreadLocal.withInitial(BinaryCodec::new);
+
+    private LogRecords() {
+    }
+
+    /**
+     * @return the file opened for appending, created if it does not exist
+     */
+    static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Appends the records to the file, which is started with MAGIC if it is empty.
+     */
+    static void write(FileChannel file, ByteBuffer records) throws IOException {
+        if (file.size() == 0) {
+            writeFully(file, ByteBuffer.wrap(MAGIC));
+        }
+        writeFully(file, records);
+    }
+
+    /**
+     * @return the records of the messages, encoded with the BinaryCodec of the calling thread
+     */
+    static ByteBuffer encode(List<Message> messages) {
+        BinaryCodec codec = CODECS.get();
+        CRC32 crc = new CRC32();
+        ByteBuffer records = ByteBuffer.allocate(Math.max(1024, messages.size() * 256));
+        for (Message message : messages) {
+            int length = codec.encode(message);
+            crc.reset();
+            crc.update(codec.buffer(), 0, length);
+            if (records.remaining() < HEADER + length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(records.capacity() * 2, records.position() + HEADER + length));
+                records.flip();
+                records = larger.put(records);
+            }
+            records.putInt(length).putInt((int) crc.getValue()).put(codec.buffer(), 0, length);
+        }
+        records.flip();
+        return records;
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Fills the buffer from the position in the file, a single read may return less than asked for.
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+        }
+    }
+
+    static void transferFully(FileChannel in, long from, long to, FileChannel out) throws IOException {
+        while (from < to) {
+            from += in.transferTo(from, to - from, out);
+        }
+    }
+
+    /**
+     * Hands every intact record of the file to the reader, and cuts away a record broken by a crash.
+     * A file shorter than MAGIC is deleted, it was cut off while its first record was written.
+     */
+    static void readRecords(File file, RecordReader reader) throws IOException {
+        if (file.length() < MAGIC.length) {
+            Files.delete(file.toPath());
+            return;
+        }
+        long validEnd = MAGIC.length;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (Arrays.equals(magic, COMPACTED_MAGIC)) {
+                in.readLong(); // The index of the first message, counted by the caller
+                validEnd = COMPACTED_HEADER;
+            } else if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a history file: " + file);
+            }
+            byte[] body = new byte[256];
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD) {
+                        break;
+                    }
+                    if (body.length < length) {
+                        body = new byte[Math.max(length, body.length * 2)];
+                    }
+                    in.readFully(body, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                reader.read(body, length);
+                validEnd += HEADER + length;
+            }
+        }
+        if (validEnd < file.length()) { // A crash cut the last record, new records must not follow its remains
+            System.out.println("Dropped " + (file.length() - validEnd) + " bytes of a broken record in " + file);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validEnd);
+            }
+        }
+    }
+
+    /**
+     * Hands the next count records of the channel to the reader, they were checked when the log was indexed.
+     */
+    static void streamRecords(FileChannel in, long count, RecordReader reader) throws IOException {
+        DataInputStream records = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in)));
+        byte[] body = new byte[256];
+        for (long i = 0; i < count; i++) {
+            int length = records.readInt();
+            records.readInt(); // The checksum
+            if (body.length < length) {
+                body = new byte[Math.max(length, body.length * 2)];
+            }
+            records.readFully(body, 0, length);
+            reader.read(body, length);
+        }
+    }
+
+    /**
+     * Checks the records of a mapped log in place, from the position up to count records or the first broken one.
+     * @return the position after the last intact record checked
+     */
+    static int scanRecords(ByteBuffer records, int position, long count, RecordPositions positions) {
+        ByteBuffer body = records.duplicate();
+        CRC32 crc = new CRC32();
+        for (long scanned = 0; scanned < count && records.limit() - position >= HEADER; scanned++) {
+            int length = records.getInt(position);
+            if (length <= 0 || length > MAX_RECORD || length > records.limit() - position - HEADER) {
+                break;
+            }
+            body.limit(position + HEADER + length).position(position + HEADER);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != records.getInt(position + 4)) {
+                break;
+            }
+            if (positions != null) {
+                positions.add(position);
+            }
+            position += HEADER + length;
+        }
+        return position;
+    }
+
+    /**
+     * @return the length of the MAGIC of the log, and of the first message index that follows COMPACTED_MAGIC
+     */
+    static int headerLength(ByteBuffer records, File log) throws IOException {
+        if (startsWith(records, COMPACTED_MAGIC) && records.limit() >= COMPACTED_HEADER) {
+            return COMPACTED_HEADER;
+        }
+        if (startsWith(records, MAGIC)) {
+            return MAGIC.length;
+        }
+        throw new IOException("Not a history file: " + log);
+    }
+
+    /**
+     * @return the index in the conversation of the first message of the log, 0 unless it was compacted
+     */
+    static long firstMessage(ByteBuffer records) {
+        return startsWith(records, COMPACTED_MAGIC) && records.limit() >= COMPACTED_HEADER
+                ? records.getLong(COMPACTED_MAGIC.length) : 0;
+    }
+
+    private static boolean startsWith(ByteBuffer records, byte[] magic) {
+        if (records.limit() < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (records.get(i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the timestamp of the message of the record at the position
+     */
+    static long timestampAt(ByteBuffer records, int position) throws IOException {
+        int length = records.getInt(position);
+        byte[] body = new byte[length];
+        records.get(position + HEADER, body, 0, length);
+        return BinaryCodec.decode(body, 0, length).getTimestamp();
+    }
+
+    /**
+     * Gets the body of every record of a file in turn, the array is reused for the next record.
+     */
+    interface RecordReader {
+        void read(byte[] body, int length) throws IOException;
+    }
+
+    /**
+     * The positions of the records found in a mapped log, in the order of the log.
+     */
+    static class RecordPositions {
+        int[] at = new int[64];
+        int count;
+
+        void add(int position) {
+            if (count == at.length) {
+                at = Arrays.copyOf(at, count * 2);
+            }
+            at[count++] = position;
+        }
+    }
+}
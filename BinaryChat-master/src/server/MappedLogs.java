@@ -0,0 +1,84 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps read-only mappings of history logs, so pages are read straight out of the page cache the OS shares
+ * between all readers, instead of being streamed into the heap for every request.
+ * The least recently used mappings are dropped once the mapped bytes pass the cap. Java has no way to unmap a
+ * file, a dropped mapping is released by the garbage collector when the last reader lets go of it.
+ * A log is only appended to, a mapping shorter than the file is replaced by one of the whole file.
+ *
+ * @author Baseer
+ */
+public class MappedLogs {
+    private final long maxBytes;
+    private final LinkedHashMap<File, MappedByteBuffer> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes;
+
+    /**
+     * @pre maxBytes > 0
+     * @param maxBytes, the mapped bytes kept before the least recently used mappings are dropped.
+     * @post Creates an empty cache
+     */
+    public MappedLogs(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * A file larger than the cap is still mapped, it is the only mapping kept until the next one.
+     * @pre assumes file != null, the file is shorter than 2 GB
+     * @param file, the log to be read.
+     * @return a read-only buffer over the whole file, from position 0. Owned by the caller
+     * @throws IOException if the file could not be mapped
+     */
+    public synchronized ByteBuffer map(File file) throws IOException {
+        MappedByteBuffer mapping = mappings.get(file);
+        if (mapping != null && mapping.capacity() == file.length()) {
+            ServerMetrics.increment("history.mapHits");
+            return mapping.duplicate();
+        }
+        remove(file);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ServerMetrics.increment("history.mapMisses");
+        mappings.put(file, mapping);
+        mappedBytes += mapping.capacity();
+        Iterator<Map.Entry<File, MappedByteBuffer>> eldest = mappings.entrySet().iterator();
+        while (mappedBytes > maxBytes && mappings.size() > 1) {
+            mappedBytes -= eldest.next().getValue().capacity();
+            eldest.remove();
+            ServerMetrics.increment("history.mapEvictions");
+        }
+        return mapping.duplicate();
+    }
+
+    /**
+     * @pre assumes file != null
+     * @param file, a log that is deleted or cut.
+     * @post The mapping of the file is dropped, the next map() maps it again
+     */
+    public synchronized void remove(File file) {
+        MappedByteBuffer mapping = mappings.remove(file);
+        if (mapping != null) {
+            mappedBytes -= mapping.capacity();
+        }
+    }
+
+    /**
+     * @pre None
+     * @return the bytes mapped by the mappings kept
+     */
+    public synchronized long mappedBytes() {
+        return mappedBytes;
+    }
+}
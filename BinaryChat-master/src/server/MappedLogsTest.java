@@ -0,0 +1,78 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedLogsTest {
+
+    Path directory;
+    MappedLogs mappedLogs;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("mapped");
+        mappedLogs = new MappedLogs(100);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private File file(String name, int size) throws IOException {
+        Path path = directory.resolve(name);
+        Files.write(path, new byte[size]);
+        return path.toFile();
+    }
+
+    @Test
+    void leastRecentlyUsedIsDropped() throws IOException {
+        File first = file("first", 40);
+        File second = file("second", 40);
+        File third = file("third", 40);
+        mappedLogs.map(first);
+        mappedLogs.map(second);
+        mappedLogs.map(first); // second is now the least recently used
+        mappedLogs.map(third);
+
+        assertEquals(80, mappedLogs.mappedBytes());
+        long misses = ServerMetrics.counter("history.mapMisses");
+        mappedLogs.map(first);
+        assertEquals(misses, ServerMetrics.counter("history.mapMisses"));
+        mappedLogs.map(second);
+        assertEquals(misses + 1, ServerMetrics.counter("history.mapMisses"));
+    }
+
+    @Test
+    void grownFileIsMappedAgain() throws IOException {
+        File log = file("log", 10);
+        assertEquals(10, mappedLogs.map(log).limit());
+        Files.write(log.toPath(), new byte[] {7}, StandardOpenOption.APPEND);
+
+        ByteBuffer mapping = mappedLogs.map(log);
+        assertEquals(11, mapping.limit());
+        assertEquals(7, mapping.get(10));
+        assertEquals(11, mappedLogs.mappedBytes());
+    }
+
+    @Test
+    void fileLargerThanTheCapIsMapped() throws IOException {
+        mappedLogs.map(file("small", 10));
+        assertEquals(200, mappedLogs.map(file("large", 200)).limit());
+        assertEquals(200, mappedLogs.mappedBytes());
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives every chat message the server routes an id of its own, unique among all servers with a different node
+ * and growing with time, so ids sort the messages in the order they were given.
+ * An id is 64 bits: 41 bits of milliseconds since EPOCH, 10 bits of node and 12 bits counting the ids given in
+ * the same millisecond. Lock-free: the last millisecond and counter are one AtomicLong that next() moves on with
+ * compareAndSet. When more than 4096 ids are taken in one millisecond, the ids after them borrow the next
+ * millisecond instead of waiting for it, and the clock catches up as soon as the burst is over. A clock going back
+ * is handled the same way, ids never go back with it.
+ *
+ * @author Baseer
+ */
+public class MessageIds {
+    /** The start of the time in an id, 2023-01-01T00:00:00Z */
+    public static final long EPOCH = 1_672_531_200_000L;
+    /** The highest node of a server */
+    public static final int MAX_NODE = (1 << 10) - 1;
+
+    private static final int COUNTER_BITS = 12;
+    private static final int NODE_BITS = 10;
+
+    private final long node;
+    private final AtomicLong last = new AtomicLong(); // The millisecond since EPOCH of the last id, and its counter
+
+    /**
+     * @pre 0 <= node <= MAX_NODE
+     * @param node, the number of this server, unique among the servers sharing ids.
+     * @post Creates a generator giving ids from the current time
+     */
+    public MessageIds(int node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node out of range: " + node);
+        }
+        this.node = node;
+    }
+
+    /**
+     * @pre None
+     * @return a new id, greater than every id given before by this generator
+     */
+    public long next() {
+        long now = (System.currentTimeMillis() - EPOCH) << COUNTER_BITS;
+        while (true) {
+            long previous = last.get();
+            long next = now > previous ? now : previous + 1;
+            if (last.compareAndSet(previous, next)) {
+                return (next >>> COUNTER_BITS) << (NODE_BITS + COUNTER_BITS) | node << COUNTER_BITS
+                        | (next & ((1 << COUNTER_BITS) - 1));
+            }
+        }
+    }
+
+    /**
+     * @pre id was given by next()
+     * @param id, a message id.
+     * @return the time the id was given in milliseconds since the epoch, later than it for an id borrowing time
+     */
+    public static long timestamp(long id) {
+        return (id >>> (NODE_BITS + COUNTER_BITS)) + EPOCH;
+    }
+
+    /**
+     * @pre id was given by next()
+     * @param id, a message id.
+     * @return the node of the server that gave the id
+     */
+    public static int node(long id) {
+        return (int) (id >>> COUNTER_BITS) & MAX_NODE;
+    }
+}
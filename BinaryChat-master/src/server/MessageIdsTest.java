@@ -0,0 +1,76 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageIdsTest {
+
+    @Test
+    void idsGrowAndCarryTheirTimeAndNode() {
+        MessageIds ids = new MessageIds(37);
+        long before = System.currentTimeMillis();
+        long previous = ids.next();
+        for (int i = 0; i < 100_000; i++) { // More than fit in one millisecond
+            long id = ids.next();
+            assertTrue(id > previous);
+            assertEquals(37, MessageIds.node(id));
+            previous = id;
+        }
+        assertTrue(MessageIds.timestamp(previous) >= before);
+    }
+
+    /**
+     * Tests that threads taking ids at the same time never get the same one, and each sees them growing
+     */
+    @Test
+    void idsAreUniqueAcrossThreads() throws InterruptedException {
+        MessageIds ids = new MessageIds(MessageIds.MAX_NODE);
+        int threads = 8;
+        int each = 20_000;
+        List<long[]> taken = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < threads; t++) {
+            long[] mine = new long[each];
+            taken.add(mine);
+            workers.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < each; i++) {
+                    mine[i] = ids.next();
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Set<Long> unique = new HashSet<>();
+        for (long[] mine : taken) {
+            for (int i = 0; i < each; i++) {
+                assertTrue(i == 0 || mine[i] > mine[i - 1]);
+                assertEquals(MessageIds.MAX_NODE, MessageIds.node(mine[i]));
+                unique.add(mine[i]);
+            }
+        }
+        assertEquals(threads * each, unique.size());
+    }
+
+    @Test
+    void nodeOutOfRange() {
+        assertThrows(IllegalArgumentException.class, () -> new MessageIds(-1));
+        assertThrows(IllegalArgumentException.class, () -> new MessageIds(MessageIds.MAX_NODE + 1));
+    }
+}
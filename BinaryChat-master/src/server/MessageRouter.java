@@ -0,0 +1,239 @@
+package server;
+
+import utils.Attachment;
+import utils.ChatHistory;
+import utils.Message;
+import utils.User;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * What the server does with a logged in client, whatever connection it uses. ClientConnection and NioConnection
+ * only read and write frames, and hand every login, logout and message they read to the MessageRouter shared by
+ * all connections of the server.
+ * Regular messages get their id, are queued to be stored once in the conversation of the two users and are
+ * forwarded to the receiver at once, whatever the Durability of the HistoryStore. A sender that speaks the binary
+ * protocol is told with MESSAGE_SAVED once its message is saved. An attachment is counted by the AttachmentStore and saved by its hash only, the thumbnail the store
+ * made of it is added to the copy a client gets, when it is forwarded and when it is in a history page.
+ * PRESENCE_RESYNC and HISTORY_PAGE are answered to the session that sent them.
+ * Histories are loaded on the Executor given, which for the NioServer keeps the disk off its event loops. So is a
+ * message with an attachment, which is counted and whose thumbnail is read before it is forwarded: the messages of
+ * its sender read after it wait in the lane of the sender until it is forwarded, so they keep their order.
+ *
+ * @author Lukas
+ */
+public class MessageRouter {
+    private final SessionRegistry registry;
+    private final PresenceTracker presence;
+    private final HistoryStore historyStore;
+    private final AttachmentStore attachments;
+    private final MessageIds messageIds;
+    private final Executor historyReads;
+    private final Map<Session, CompletableFuture<Void>> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * @pre assumes registry && presence && historyStore && attachments && messageIds && historyReads != null
+     * @param registry, the registry of logged in users shared by the server.
+     * @param presence, the tracker that sends the user list and its changes.
+     * @param historyStore, the store the chat history of the users is loaded from and saved to.
+     * @param attachments, the store counting the messages that refer to each attachment.
+     * @param messageIds, the generator of the ids of the messages routed.
+     * @param historyReads, runs the loading of histories and history pages, and the forwarding of attachments.
+     *                      Runnable::run runs them on the thread of the connection.
+     * @post Creates a router for the sessions of registry
+     */
+    public MessageRouter(SessionRegistry registry, PresenceTracker presence, HistoryStore historyStore,
+                         AttachmentStore attachments, MessageIds messageIds, Executor historyReads) {
+        this.registry = Objects.requireNonNull(registry);
+        this.presence = Objects.requireNonNull(presence);
+        this.historyStore = Objects.requireNonNull(historyStore);
+        this.attachments = Objects.requireNonNull(attachments);
+        this.messageIds = Objects.requireNonNull(messageIds);
+        this.historyReads = Objects.requireNonNull(historyReads);
+    }
+
+    /**
+     * @pre assumes session != null && session.getUser() != null
+     * @param session, the session of a user logging in.
+     * @return true if the session was registered, false if the user is already logged in.
+     */
+    public boolean register(Session session) {
+        return registry.register(session);
+    }
+
+    /**
+     * Called once the client got its OK.
+     * @pre register(session) returned true
+     * @param session, the session of the user that logged in.
+     * @post The user gets the list of online users, all other users online get the new user as a presence delta.
+     *       The recent history of the user is loaded on historyReads and sent to the user
+     */
+    public void join(Session session) {
+        presence.join(session);
+        historyReads.execute(() -> sendRecentHistory(session));
+    }
+
+    /**
+     * Can be called more than once, and for a session that never joined.
+     * @pre assumes session != null
+     * @param session, the session of the user that logged out.
+     * @post The session is no longer registered, every online user gets the logout as a presence delta.
+     */
+    public void leave(Session session) {
+        registry.unregister(session);
+        presence.leave(session);
+    }
+
+    /**
+     * @pre assumes sender && message != null, sender joined
+     * @param sender, the session the message was read from.
+     * @param message, the message read.
+     * @post PRESENCE_RESYNC is answered to sender, HISTORY_PAGE too once loaded on historyReads. Any other message
+     *       is forwarded to its receiver if it is online, a regular message gets its id and is queued to be saved in
+     *       the conversation first, it is forwarded unsaved if the conversation could not be read. The receiver never
+     *       waits for the disk, a BINARY sender gets MESSAGE_SAVED once the message is saved as the Durability of
+     *       the store promises, unless it is ASYNC. A message with an attachment, and the messages of sender after
+     *       it, are forwarded on historyReads instead of the calling thread, in the order they were read.
+     */
+    public void route(Session sender, Message message) {
+        if (message.getMessageType() == Message.MessageType.PRESENCE_RESYNC) {
+            presence.resync(sender);
+            return;
+        }
+        if (message.getMessageType() == Message.MessageType.HISTORY_PAGE) {
+            historyReads.execute(() -> sendHistoryPage(sender, message));
+            return;
+        }
+        if (message.getAttachment() != null || lanes.containsKey(sender)) { // The lane is only added to by this thread
+            CompletableFuture<Void> forwarded = lanes.compute(sender, (session, last) ->
+                    (last == null ? CompletableFuture.<Void>completedFuture(null) : last)
+                            .thenRunAsync(() -> forward(sender, message), historyReads)
+                            .exceptionally(e -> {
+                                System.out.println("Failed to forward message of " + sender.getUser().getName() + ": " + e);
+                                return null;
+                            }));
+            forwarded.whenComplete((result, e) -> lanes.remove(sender, forwarded));
+        } else {
+            forward(sender, message);
+        }
+    }
+
+    private void forward(Session sender, Message message) {
+        Session receiver = registry.lookup(message.getReceiver()); /* Forward the message to its receiver */
+        if (receiver == null || receiver == sender) {
+            return;
+        }
+        if (message.getMessageType() == Message.MessageType.REGULAR_MESSAGE) {
+            long id = messageIds.next();
+            message.setId(id);
+            message.setTimestamp(MessageIds.timestamp(id)); // The clock of the server orders the conversation
+            retainAttachment(sender, message);
+            try { // Once, in the conversation of the two users, which numbers it
+                historyStore.append(message, sender.getWireFormat() == Message.WireFormat.BINARY ? () -> saved(sender, message) : null);
+            } catch (IOException e) { // Still delivered, without a number it has no place in the history
+                System.out.println("Failed to save history of " + sender.getUser().getName() + ": " + e.getMessage());
+            }
+            receiver.sendMessage(withThumbnail(message, new HashMap<>())); // Copied once it has its number
+        } else {
+            receiver.sendMessage(message);
+        }
+    }
+
+    /**
+     * Runs on the writer thread of the store, which must never wait for one client.
+     */
+    private void saved(Session sender, Message message) {
+        Message saved = Message.builder()
+                .messageType(Message.MessageType.MESSAGE_SAVED)
+                .sender(message.getSender())
+                .receiver(message.getReceiver())
+                .timestamp(message.getTimestamp())
+                .build();
+        saved.setId(message.getId());
+        saved.setSequence(message.getSequence());
+        sender.sendMessageNow(saved);
+    }
+
+    /**
+     * The message is saved without a thumbnail, the bytes the client sent along are never kept.
+     */
+    private void retainAttachment(Session sender, Message message) {
+        Attachment attachment = message.getAttachment();
+        if (attachment == null) {
+            return;
+        }
+        if (!attachments.retain(attachment.getId())) {
+            System.out.println("Message from " + sender.getUser().getName() + " refers to unknown attachment " + attachment.getId());
+        }
+        message.setAttachment(new Attachment(attachment.getId(), attachment.getSize(), attachment.getContentType()));
+    }
+
+    /**
+     * @return a copy of the message carrying the thumbnail the store made of its image, the message itself if it
+     *         has none. Thumbnails already read are taken from the map
+     */
+    private Message withThumbnail(Message message, Map<String, byte[]> thumbnails) {
+        Attachment attachment = message.getAttachment();
+        if (attachment == null || !attachment.isImage()) {
+            return message;
+        }
+        byte[] thumbnail = thumbnails.computeIfAbsent(attachment.getId(), attachments::thumbnail); // Made when it was uploaded
+        if (thumbnail == null) {
+            return message;
+        }
+        return message.withAttachment(new Attachment(attachment.getId(), attachment.getSize(), attachment.getContentType(), thumbnail));
+    }
+
+    /**
+     * Replaces the messages of the history by copies carrying their thumbnail, the messages may be shared with the
+     * HistoryCache of the store.
+     */
+    private ChatHistory withThumbnails(ChatHistory history) {
+        Map<String, byte[]> thumbnails = new HashMap<>();
+        for (User partner : history.getChatPartners()) {
+            List<Message> messages = history.getHistory(partner);
+            messages.replaceAll(message -> withThumbnail(message, thumbnails));
+        }
+        return history;
+    }
+
+    private void sendRecentHistory(Session session) {
+        try {
+            ChatHistory storedHistory = historyStore.loadRecent(session.getUser(), ServerConfig.historyPageSize());
+            if (storedHistory == null) { // The log is created by the first message
+                return;
+            }
+            session.sendMessage(Message.builder()
+                    .messageType(Message.MessageType.CHAT_HISTORY)
+                    .chatHistory(withThumbnails(storedHistory))
+                    .build());
+        } catch (Exception e) {
+            System.out.println("Load Error: " + e.getMessage());
+        }
+    }
+
+    private void sendHistoryPage(Session session, Message request) {
+        if (request.getReceiver() == null) {
+            return;
+        }
+        int limit = request.getHistoryLimit() > 0
+                ? Math.min(request.getHistoryLimit(), HistoryStore.MAX_PAGE)
+                : ServerConfig.historyPageSize();
+        try {
+            session.sendMessage(Message.builder()
+                    .messageType(Message.MessageType.HISTORY_PAGE)
+                    .chatHistory(withThumbnails(historyStore.loadPage(session.getUser(), request.getReceiver(),
+                            Math.max(0, request.getHistoryCursor()), limit)))
+                    .build());
+        } catch (IOException e) {
+            System.out.println("Load Error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utils.Attachment;
+import utils.Message;
+import utils.User;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageRouterTest {
+
+    Path directory;
+    HistoryStore historyStore;
+    AttachmentStore attachments;
+    MessageRouter router;
+    TestSession alice;
+    TestSession bob;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("router");
+        historyStore = new HistoryStore(directory.resolve("history").toString(), HistoryStore.Durability.BUFFERED);
+        attachments = new AttachmentStore(directory.resolve("attachments").toString());
+        router = new MessageRouter(new SessionRegistry(), new PresenceTracker(0, 0), historyStore, attachments,
+                new MessageIds(0), Runnable::run);
+        alice = new TestSession(new User("alice"));
+        bob = new TestSession(new User("bob"));
+        assertTrue(router.register(alice));
+        router.join(alice);
+        assertTrue(router.register(bob));
+        router.join(bob);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        historyStore.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private Message message(TestSession sender, TestSession receiver, String text) {
+        return Message.builder()
+                .messageType(Message.MessageType.REGULAR_MESSAGE)
+                .sender(sender.getUser())
+                .receiver(receiver.getUser())
+                .text(text)
+                .build();
+    }
+
+    private List<Message> received(TestSession session, Message.MessageType type) {
+        return session.received.stream().filter(message -> message.getMessageType() == type).toList();
+    }
+
+    /**
+     * Tests that a regular message is numbered, saved once and delivered to its receiver only, without waiting for
+     * the disk. A binary sender is told once it is saved, by the writer thread without waiting for room in its queue
+     */
+    @Test
+    void regularMessageIsNumberedSavedAndForwarded() throws Exception {
+        alice.wireFormat = Message.WireFormat.BINARY;
+        router.route(alice, message(alice, bob, "hi bob"));
+        router.route(bob, message(bob, alice, "hi alice"));
+
+        List<Message> toBob = received(bob, Message.MessageType.REGULAR_MESSAGE);
+        assertEquals(1, toBob.size()); // Before the store wrote it
+        assertEquals("hi bob", toBob.get(0).getText());
+        assertNotEquals(0, toBob.get(0).getId());
+        assertEquals(MessageIds.timestamp(toBob.get(0).getId()), toBob.get(0).getTimestamp());
+        historyStore.flush();
+        List<Message> saved = received(alice, Message.MessageType.MESSAGE_SAVED);
+        assertEquals(1, saved.size());
+        assertEquals(toBob.get(0).getId(), saved.get(0).getId());
+        assertEquals(0, saved.get(0).getSequence());
+        assertTrue(alice.receivedNow.containsAll(saved));
+        assertTrue(received(bob, Message.MessageType.MESSAGE_SAVED).isEmpty()); // Not a binary client
+        Message toAlice = received(alice, Message.MessageType.REGULAR_MESSAGE).get(0);
+        assertEquals(1, toAlice.getSequence());
+        assertEquals(2, historyStore.load(alice.getUser()).getHistory(bob.getUser()).size());
+    }
+
+    /**
+     * Tests that the thumbnail sent by the client is replaced by the one the store made, and dropped for a file
+     * the store does not have. Only the hash is saved, the history sent at login carries the thumbnail again
+     */
+    @Test
+    void attachmentCarriesTheThumbnailOfTheStore() throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB), "png", png);
+        byte[] data = png.toByteArray();
+        String id = attachments.store(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+        byte[] forged = "not a thumbnail".getBytes();
+
+        Message stored = message(alice, bob, null);
+        stored.setAttachment(new Attachment(id, data.length, "image/png", forged));
+        router.route(alice, stored);
+        Message unknown = message(alice, bob, null);
+        unknown.setAttachment(new Attachment("0".repeat(64), 10, "image/png", forged));
+        router.route(alice, unknown);
+        historyStore.flush();
+
+        List<Message> toBob = received(bob, Message.MessageType.REGULAR_MESSAGE);
+        assertArrayEquals(attachments.thumbnail(id), toBob.get(0).getAttachment().getThumbnail());
+        assertEquals(1, toBob.get(1).getSequence());
+        assertEquals(1, attachments.references(id));
+        assertNull(toBob.get(1).getAttachment().getThumbnail());
+        assertNull(historyStore.load(bob.getUser()).getHistory(alice.getUser()).get(0).getAttachment().getThumbnail());
+
+        router.leave(bob);
+        TestSession again = new TestSession(bob.getUser());
+        assertTrue(router.register(again));
+        router.join(again);
+        Message history = received(again, Message.MessageType.CHAT_HISTORY).get(0);
+        Message sent = history.getChatHistory().getHistory(alice.getUser()).get(0);
+        assertArrayEquals(attachments.thumbnail(id), sent.getAttachment().getThumbnail());
+        assertNull(historyStore.loadPage(bob.getUser(), alice.getUser(), 1, 1)
+                .getHistory(alice.getUser()).get(0).getAttachment().getThumbnail());
+    }
+
+    /**
+     * Tests that a message with an attachment is counted and forwarded on historyReads, not on the thread that read
+     * it, and that the messages its sender sends after it wait for it while those of other users do not
+     */
+    @Test
+    void attachmentIsForwardedOffTheReadingThreadInOrder() throws Exception {
+        Queue<Runnable> historyReads = new ArrayDeque<>();
+        router = new MessageRouter(new SessionRegistry(), new PresenceTracker(0, 0), historyStore, attachments,
+                new MessageIds(0), historyReads::add);
+        assertTrue(router.register(alice));
+        assertTrue(router.register(bob));
+        byte[] data = "a file".getBytes();
+        String id = attachments.store(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+
+        Message withFile = message(alice, bob, "the file");
+        withFile.setAttachment(new Attachment(id, data.length, "text/plain"));
+        router.route(alice, withFile);
+        router.route(alice, message(alice, bob, "after the file"));
+        router.route(bob, message(bob, alice, "hi alice"));
+        assertTrue(received(bob, Message.MessageType.REGULAR_MESSAGE).isEmpty());
+        assertEquals(0, attachments.references(id));
+        assertEquals(1, received(alice, Message.MessageType.REGULAR_MESSAGE).size());
+
+        while (!historyReads.isEmpty()) {
+            historyReads.poll().run();
+        }
+        List<Message> toBob = received(bob, Message.MessageType.REGULAR_MESSAGE);
+        assertEquals(List.of("the file", "after the file"), toBob.stream().map(Message::getText).toList());
+        assertEquals(1, attachments.references(id));
+        router.route(alice, message(alice, bob, "once the lane is empty"));
+        assertEquals(3, received(bob, Message.MessageType.REGULAR_MESSAGE).size());
+    }
+
+    /**
+     * Tests that a message to a user that is offline, or to the sender itself, is neither delivered nor saved
+     */
+    @Test
+    void messageWithoutOnlineReceiverIsDropped() throws Exception {
+        TestSession carol = new TestSession(new User("carol"));
+        router.route(alice, message(alice, carol, "hi carol"));
+        router.route(alice, message(alice, alice, "note to self"));
+        historyStore.flush();
+
+        assertTrue(received(alice, Message.MessageType.REGULAR_MESSAGE).isEmpty());
+        assertNull(historyStore.load(alice.getUser()));
+    }
+
+    @Test
+    void historyPageIsAnsweredToTheSender() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            router.route(alice, message(alice, bob, "message " + i));
+        }
+        router.route(bob, Message.builder()
+                .messageType(Message.MessageType.HISTORY_PAGE)
+                .sender(bob.getUser())
+                .receiver(alice.getUser())
+                .historyCursor(4)
+                .historyLimit(2)
+                .build());
+
+        List<Message> pages = received(bob, Message.MessageType.HISTORY_PAGE);
+        assertEquals(1, pages.size());
+        List<Message> page = pages.get(0).getChatHistory().getHistory(alice.getUser());
+        assertEquals(List.of("message 2", "message 3"), page.stream().map(Message::getText).toList());
+        assertTrue(received(alice, Message.MessageType.HISTORY_PAGE).isEmpty());
+    }
+
+    /**
+     * Tests that a user that logs in gets its recent history, and that leaving twice logs out once
+     */
+    @Test
+    void joinSendsHistoryAndLeaveLogsOut() throws Exception {
+        router.route(alice, message(alice, bob, "hi bob"));
+        historyStore.flush();
+        TestSession again = new TestSession(bob.getUser());
+        assertFalse(router.register(again));
+        router.leave(bob);
+        router.leave(bob);
+        assertTrue(router.register(again));
+        router.join(again);
+        List<Message> history = received(again, Message.MessageType.CHAT_HISTORY);
+        assertEquals(1, history.size());
+        assertEquals("hi bob", history.get(0).getChatHistory().getHistory(alice.getUser()).get(0).getText());
+    }
+
+    private static class TestSession implements Session {
+        private final User user;
+        private final List<Message> received = new CopyOnWriteArrayList<>();
+        private final List<Message> receivedNow = new CopyOnWriteArrayList<>();
+        private volatile Message.WireFormat wireFormat = Message.WireFormat.SERIALIZED;
+
+        TestSession(User user) {
+            this.user = user;
+        }
+
+        @Override
+        public User getUser() {
+            return user;
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            received.add(message);
+        }
+
+        @Override
+        public Message.WireFormat getWireFormat() {
+            return wireFormat;
+        }
+
+        @Override
+        public void sendMessageNow(Message message) {
+            receivedNow.add(message);
+            received.add(message);
+        }
+    }
+}
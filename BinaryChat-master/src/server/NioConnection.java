@@ -0,0 +1,328 @@
+package server;
+
+import utils.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Objects;
+
+/**
+ * The state of one client connected to the NioServer.
+ * Owned by a single EventLoop, which calls onSelected() when the channel can be read or written.
+ * Does the same work as ClientConnection: the CLIENT_INFO handshake, then every message read is handed to the
+ * MessageRouter, but without a thread of its own.
+ *
+ * @author Baseer
+ */
+class NioConnection implements Session {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final MessageRouter router;
+    private final OutboundQueue<Message> outboundQueue;
+    private ByteBuffer pendingWrite;
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private boolean preambleRead;
+    private boolean registered;
+    private boolean closeAfterFlush;
+    private boolean closed;
+    private volatile boolean binary; // Read by the threads sending to the client
+    private BinaryCodec binaryCodec;
+    private volatile User user;
+
+    /**
+     * @pre assumes channel && loop && router != null
+     * @param channel, the non-blocking channel accepted from the client.
+     * @param loop, the event loop that owns this connection.
+     * @param router, the router shared by the server, which logs the user in and out and handles its messages.
+     * @post Creates an empty read buffer and outbound queue. The BLOCK overflow policy is
+     *       replaced by DISCONNECT, an event loop thread must never wait for another client.
+     */
+    NioConnection(SocketChannel channel, EventLoop loop, MessageRouter router) {
+        this.channel = Objects.requireNonNull(channel);
+        this.loop = Objects.requireNonNull(loop);
+        this.router = Objects.requireNonNull(router);
+        OutboundQueue.OverflowPolicy policy = ServerConfig.outboundPolicy();
+        if (policy == OutboundQueue.OverflowPolicy.BLOCK) {
+            policy = OutboundQueue.OverflowPolicy.DISCONNECT;
+        }
+        this.outboundQueue = new OutboundQueue<>(ServerConfig.outboundQueueCapacity(), policy, 0,
+                ClientConnection::isPresence);
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Must be called on the loop thread.
+     * @pre None
+     * @post The channel is registered for reads on the selector of the loop. A client that has not logged in
+     *       after ServerConfig.handshakeTimeoutMillis() is disconnected, as ConnectionManager does
+     */
+    void register() {
+        try {
+            key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+            loop.schedule(this::handshakeTimedOut, ServerConfig.handshakeTimeoutMillis());
+        } catch (IOException e) {
+            System.out.println("Failed to register connection: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void handshakeTimedOut() {
+        if (!closed && user == null) {
+            ServerMetrics.increment("handshake.timedOut");
+            System.out.println("Handshake timed out: " + channel);
+            close();
+        }
+    }
+
+    /**
+     * Called by the EventLoop when the channel is ready.
+     * @pre assumes key != null
+     * @param key, the selected key of this connection.
+     * @post Reads and handles all complete frames, and/or writes queued frames.
+     *       Closes the connection if the client disconnected or sent something invalid, never throws for it.
+     */
+    void onSelected(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (!closed && key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Error handling client connection: " + e.getMessage());
+            close();
+        } catch (RuntimeException e) { // A frame holding something else than a valid Message only closes this connection
+            System.out.println("Error handling client connection: " + e);
+            close();
+        }
+    }
+
+    private void read() throws IOException, ClassNotFoundException {
+        if (channel.read(readBuffer) == -1) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        if (!preambleRead) {
+            if (readBuffer.remaining() < FrameCodec.PREAMBLE.length) {
+                readBuffer.compact();
+                return;
+            }
+            byte[] head = new byte[FrameCodec.PREAMBLE.length];
+            readBuffer.get(head);
+            if (!FrameCodec.isPreamble(head)) {
+                throw new IOException("Client does not use the framed protocol, object stream clients need the threaded server");
+            }
+            preambleRead = true;
+        }
+
+        int needed = 0;
+        while (readBuffer.remaining() >= FrameCodec.HEADER_LENGTH) {
+            int length = readBuffer.getInt(readBuffer.position());
+            // Before the login a client gets no more memory than the read buffer it already has
+            FrameCodec.checkLength(length, user == null ? FrameCodec.MAX_HANDSHAKE_LENGTH : FrameCodec.MAX_FRAME_LENGTH);
+            if (readBuffer.remaining() < FrameCodec.HEADER_LENGTH + length) {
+                needed = FrameCodec.HEADER_LENGTH + length;
+                break;
+            }
+            int bodyStart = readBuffer.position() + FrameCodec.HEADER_LENGTH;
+            Message message = FrameCodec.decode(readBuffer.array(), readBuffer.arrayOffset() + bodyStart, length);
+            readBuffer.position(bodyStart + length);
+            onMessage(message);
+            if (closed) {
+                return;
+            }
+        }
+
+        if (needed > readBuffer.capacity()) {
+            // A frame bigger than the buffer, grow it to fit the whole frame
+            ByteBuffer bigger = ByteBuffer.allocate(needed);
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        } else if (!readBuffer.hasRemaining() && readBuffer.capacity() > READ_BUFFER_SIZE) {
+            // Give back the memory of a big frame once it is handled
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        } else {
+            readBuffer.compact();
+        }
+    }
+
+    private void onMessage(Message message) {
+        if (closeAfterFlush) { // DENIED, nothing more is read from the client
+            return;
+        }
+        if (user == null) {
+            handshake(message);
+            return;
+        }
+        router.route(this, message);
+    }
+
+    private void handshake(Message message) {
+        this.user = message.getSender();
+        this.registered = user != null && router.register(this);
+        boolean binaryAgreed = registered && message.getWireFormat() == Message.WireFormat.BINARY;
+
+        sendMessage(Message.builder()
+                .messageType(Message.MessageType.CLIENT_INFO)
+                .text(registered ? "OK" : "DENIED")
+                .wireFormat(binaryAgreed ? Message.WireFormat.BINARY : null)
+                .build());
+        if (binaryAgreed) { // Runs on the loop thread that encodes the frames, the client reads the OK in either format
+            binaryCodec = new BinaryCodec();
+            binary = true;
+        }
+
+        if (!registered) {
+            closeAfterFlush = true;
+            return;
+        }
+        System.out.println("New client connected: " + user.getName());
+        ServerMetrics.gauge("outbound.queueDepth." + user.getName(), outboundQueue::size);
+        router.join(this);
+    }
+
+    /**
+     * Can be called from any thread. The message is encoded and written by the loop that owns this connection.
+     * @pre assumes message != null
+     * @param message, the message to be sent to the client.
+     * @post The message is put in the outbound queue and the owning loop is asked to flush it.
+     *       If the queue is full and the overflow policy gives up, the slow client is disconnected.
+     */
+    @Override
+    public void sendMessage(Message message) {
+        boolean queued;
+        try {
+            queued = outboundQueue.offer(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        Runnable task = queued ? this::flushOrClose : this::closeSlowConsumer;
+        if (loop.inLoop()) {
+            task.run();
+        } else {
+            loop.execute(task);
+        }
+    }
+
+    private void closeSlowConsumer() {
+        if (!closed) {
+            ServerMetrics.increment("outbound.slowConsumerDisconnects");
+            System.out.println("Disconnecting slow client: " + (user == null ? channel : user.getName()));
+            close();
+        }
+    }
+
+    private void flushOrClose() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.out.println("Failed to send message");
+            close();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (closed || key == null) {
+            return;
+        }
+        while (true) {
+            if (pendingWrite == null) {
+                Message message = outboundQueue.poll();
+                if (message == null) {
+                    break;
+                }
+                pendingWrite = encode(message);
+                if (pendingWrite == null) {
+                    continue;
+                }
+            }
+            channel.write(pendingWrite);
+            if (pendingWrite.hasRemaining()) {
+                // The socket buffer is full, continue when the selector says the channel is writable
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            pendingWrite = null;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (closeAfterFlush) {
+            close();
+        }
+    }
+
+    private ByteBuffer encode(Message message) {
+        if (message.isBroadcast()) {
+            try { // A view of the shared frame, every connection keeps its own position
+                return ByteBuffer.wrap(FrameCodec.frame(message, binary ? Message.WireFormat.BINARY : Message.WireFormat.SERIALIZED));
+            } catch (IOException e) {
+                System.out.println("Failed to send message");
+                return null;
+            }
+        }
+        if (binary) {
+            int length = binaryCodec.encode(message);
+            ByteBuffer frame = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH + length);
+            frame.putInt(length).put(binaryCodec.buffer(), 0, length).flip();
+            return frame;
+        }
+        byte[] body;
+        try {
+            body = FrameCodec.encode(message);
+        } catch (IOException e) {
+            System.out.println("Failed to send message");
+            return null;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH + body.length);
+        frame.putInt(body.length).put(body).flip();
+        return frame;
+    }
+
+    /**
+     * Must be called on the loop thread.
+     * @pre None
+     * @post The channel is closed, and a logged in user is logged out
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close connection: " + e.getMessage());
+        }
+        outboundQueue.close();
+        pendingWrite = null;
+        if (registered) {
+            System.out.println(user.getName() + " disconnected!");
+            ServerMetrics.removeGauge("outbound.queueDepth." + user.getName());
+            router.leave(this);
+        }
+    }
+
+    @Override
+    public Message.WireFormat getWireFormat() {
+        return binary ? Message.WireFormat.BINARY : Message.WireFormat.SERIALIZED;
+    }
+
+    /**
+     * @pre None
+     * @return the user logged in on this connection, null before the handshake.
+     */
+    @Override
+    public User getUser() {
+        return user;
+    }
+}
@@ -0,0 +1,118 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A server built on non-blocking channels, used instead of ConnectionManager when started with -Dbinarychat.mode=nio
+ * A small fixed number of EventLoops handle the handshake, reads, routing and writes of all connections,
+ * so an idle client costs a buffer and a SelectionKey instead of three threads.
+ * Clients must use the framed protocol (see FrameCodec), the Message semantics are the same as in ClientConnection.
+ *
+ * @author Lukas
+ */
+public class NioServer implements Runnable {
+    private final int port;
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextLoop;
+    private final SessionRegistry registry;
+    private final PresenceTracker presence;
+    private final HistoryStore historyStore;
+    private final HistoryCompactor compactor;
+    private final MessageRouter router;
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * @pre port > 0, eventLoops > 0
+     * @param port, the port to listen on.
+     * @param eventLoops, the number of event loop threads.
+     * @param attachments, the store of the attachment server, counting the messages that refer to each file.
+     * @post Creates the event loops
+     *       Creates the SessionRegistry holding the logged in connections
+     *       Creates the PresenceTracker sending the user list and its changes
+     *       Creates the HistoryStore shared by all connections, and the HistoryCompactor keeping it within its retention
+     *       Creates the MessageRouter handling the messages of all connections, giving them ids with ServerConfig.nodeId()
+     *       and loading histories on ServerConfig.historyReadThreads() threads, so the event loops never read the disk
+     * @throws IOException if a selector could not be opened
+     */
+    public NioServer(int port, int eventLoops, AttachmentStore attachments) throws IOException {
+        this.port = port;
+        this.eventLoops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            this.eventLoops[i] = new EventLoop();
+        }
+        this.nextLoop = new AtomicInteger();
+        this.registry = new SessionRegistry();
+        this.presence = new PresenceTracker();
+        this.historyStore = new HistoryStore("ChatHistory");
+        this.router = new MessageRouter(registry, presence, historyStore, attachments, new MessageIds(ServerConfig.nodeId()),
+                Executors.newFixedThreadPool(ServerConfig.historyReadThreads(), ServerThreads.factory()));
+        this.compactor = new HistoryCompactor(historyStore, attachments, new File("ChatHistory", "retention.properties"),
+                ServerConfig.historyRetainMessages(), ServerConfig.historyRetainDays(), ServerConfig.historyArchive(),
+                ServerConfig.historySealMessages());
+        ServerMetrics.gauge("connections.active", registry::size);
+    }
+
+    /**
+     * @pre None
+     * @post Binds the server channel to the port
+     *       Starts one thread per event loop
+     *       Registers the server channel for accepts on the first event loop
+     *       Starts the HistoryCompactor
+     */
+    @Override
+    public void run() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+
+            for (int i = 0; i < eventLoops.length; i++) {
+                ServerThreads.start("nio-loop-" + i, eventLoops[i]);
+            }
+            ServerThreads.start("history-compactor", compactor);
+            EventLoop acceptLoop = eventLoops[0];
+            acceptLoop.execute(() -> {
+                try {
+                    serverChannel.register(acceptLoop.selector(), SelectionKey.OP_ACCEPT, this);
+                } catch (IOException e) {
+                    System.out.println("Server is offline");
+                    e.printStackTrace();
+                }
+            });
+            System.out.println("NIO server listening on port " + port + " with " + eventLoops.length + " event loops");
+        } catch (IOException e) {
+            System.out.println("Server is offline");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Called by the accepting EventLoop when the server channel is ready.
+     * @pre None
+     * @post Accepts all pending connections and hands them out to the event loops round-robin.
+     */
+    void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                System.out.println("New client connected: " + channel.getRemoteAddress());
+
+                EventLoop loop = eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)];
+                NioConnection connection = new NioConnection(channel, loop, router);
+                loop.execute(connection::register);
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to accept connection: " + e.getMessage());
+        }
+    }
+}
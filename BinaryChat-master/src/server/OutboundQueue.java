@@ -0,0 +1,210 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * A bounded queue of items waiting to be written to one client.
+ * Senders only put items in the queue, the writing is done by a writer task,
+ * so a client that reads slowly never blocks the thread that sends to it.
+ * What happens when the queue is full is decided by the OverflowPolicy.
+ *
+ * @param <T> the type of the queued items
+ * @author Lukas
+ */
+public class OutboundQueue<T> {
+
+    /**
+     * Decides what offer() does when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Drop the oldest queued presence update to make room. If there is none, the consumer is too slow. */
+        DROP_OLDEST_PRESENCE,
+        /** The consumer is too slow, offer() returns false right away. */
+        DISCONNECT,
+        /** Wait up to the block timeout for room, then give up like DISCONNECT. */
+        BLOCK
+    }
+
+    private final ArrayDeque<T> items;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockNanos;
+    private final Predicate<T> isPresence;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final Condition notFull;
+    private boolean closed;
+
+    /**
+     * @pre capacity > 0, assumes policy && isPresence != null
+     * @param capacity, the max number of queued items.
+     * @param policy, what to do when the queue is full.
+     * @param blockMillis, the max time offer() waits for room with the BLOCK policy.
+     * @param isPresence, tells which items are presence updates that may be dropped.
+     * @post Creates an empty open queue
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, long blockMillis, Predicate<T> isPresence) {
+        this.items = new ArrayDeque<>();
+        this.capacity = capacity;
+        this.policy = Objects.requireNonNull(policy);
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+        this.isPresence = Objects.requireNonNull(isPresence);
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.notFull = lock.newCondition();
+    }
+
+    /**
+     * @pre assumes item != null
+     * @param item, the item to be queued.
+     * @return false if the queue is full and the policy says the consumer should be disconnected,
+     *         or if the queue is closed. True otherwise, also when an older presence update was dropped.
+     * @throws InterruptedException if interrupted while waiting with the BLOCK policy
+     */
+    public boolean offer(T item) throws InterruptedException {
+        return offer(item, blockNanos);
+    }
+
+    /**
+     * Used by threads that must never wait for one consumer. With the BLOCK policy a full queue gives up at once,
+     * like DISCONNECT.
+     * @pre assumes item != null
+     * @param item, the item to be queued.
+     * @return false if the queue is full and the policy says the consumer should be disconnected,
+     *         or if the queue is closed. True otherwise, also when an older presence update was dropped.
+     */
+    public boolean offerNow(T item) {
+        try {
+            return offer(item, 0);
+        } catch (InterruptedException e) { // Not thrown without waiting
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private boolean offer(T item, long waitNanos) throws InterruptedException {
+        Objects.requireNonNull(item);
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (items.size() >= capacity && !makeRoom(item, waitNanos)) {
+                return false;
+            }
+            if (closed) {
+                return false;
+            }
+            if (items.size() < capacity) {
+                items.add(item);
+                notEmpty.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held and a full queue, returns false if the consumer should be disconnected
+    private boolean makeRoom(T item, long waitNanos) throws InterruptedException {
+        switch (policy) {
+            case DROP_OLDEST_PRESENCE:
+                Iterator<T> iterator = items.iterator();
+                while (iterator.hasNext()) {
+                    if (isPresence.test(iterator.next())) {
+                        iterator.remove();
+                        ServerMetrics.increment("outbound.dropped");
+                        return true;
+                    }
+                }
+                if (isPresence.test(item)) {
+                    ServerMetrics.increment("outbound.dropped"); // Nothing older to drop, drop the new update instead
+                    return true;
+                }
+                return false;
+            case BLOCK:
+                long nanos = waitNanos;
+                while (items.size() >= capacity && !closed) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = notFull.awaitNanos(nanos);
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Used by a blocking writer task.
+     * @pre None
+     * @return the oldest item, waits until one is queued. Null once the queue is closed.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return closed ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @pre None
+     * @return removes and returns the oldest item, or null if the queue is empty.
+     */
+    public T poll() {
+        lock.lock();
+        try {
+            return items.isEmpty() ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private T removeFirst() {
+        T item = items.removeFirst();
+        notFull.signal();
+        return item;
+    }
+
+    /**
+     * @pre None
+     * @return the number of queued items
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @pre None
+     * @post The queue is emptied, waiting take() and offer() calls return and later offers are refused.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            items.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundQueueTest {
+
+    private static OutboundQueue<String> queue(OutboundQueue.OverflowPolicy policy) {
+        return new OutboundQueue<>(2, policy, 50, item -> item.startsWith("presence"));
+    }
+
+    /**
+     * Tests that the oldest presence update is dropped to make room for a new message
+     */
+    @Test
+    void dropOldestPresenceMakesRoom() throws InterruptedException {
+        OutboundQueue<String> queue = queue(OutboundQueue.OverflowPolicy.DROP_OLDEST_PRESENCE);
+        assertTrue(queue.offer("presence 1"));
+        assertTrue(queue.offer("chat 1"));
+
+        assertTrue(queue.offer("chat 2"));
+
+        assertEquals(2, queue.size());
+        assertEquals("chat 1", queue.poll());
+        assertEquals("chat 2", queue.poll());
+    }
+
+    /**
+     * Tests that a full queue without presence updates asks for the consumer to be disconnected
+     */
+    @Test
+    void dropOldestPresenceWithoutPresenceGivesUp() throws InterruptedException {
+        OutboundQueue<String> queue = queue(OutboundQueue.OverflowPolicy.DROP_OLDEST_PRESENCE);
+        queue.offer("chat 1");
+        queue.offer("chat 2");
+
+        assertFalse(queue.offer("chat 3"));
+        assertTrue(queue.offer("presence 1")); // Dropped, but the consumer is not too slow for that
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    void disconnectWhenFull() throws InterruptedException {
+        OutboundQueue<String> queue = queue(OutboundQueue.OverflowPolicy.DISCONNECT);
+        queue.offer("presence 1");
+        queue.offer("presence 2");
+
+        assertFalse(queue.offer("presence 3"));
+        assertEquals("presence 1", queue.poll());
+    }
+
+    /**
+     * Tests that BLOCK gives up after the timeout, and waits for the writer to make room. The writer only takes
+     * once the offer is waiting, however late either thread runs
+     */
+    @Test
+    void blockWaitsForRoom() throws InterruptedException {
+        OutboundQueue<String> queue = queue(OutboundQueue.OverflowPolicy.BLOCK);
+        queue.offer("chat 1");
+        queue.offer("chat 2");
+        assertFalse(queue.offer("chat 3"));
+
+        OutboundQueue<String> waiting = new OutboundQueue<>(2, OutboundQueue.OverflowPolicy.BLOCK, 60_000,
+                item -> item.startsWith("presence"));
+        waiting.offer("chat 1");
+        waiting.offer("chat 2");
+        Thread offering = Thread.currentThread();
+        CountDownLatch offered = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            try {
+                offered.await();
+                while (offering.getState() != Thread.State.TIMED_WAITING) { // Waiting for room in the queue
+                    Thread.onSpinWait();
+                }
+                waiting.take();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        writer.start();
+        offered.countDown();
+        assertTrue(waiting.offer("chat 3"));
+        writer.join();
+        assertEquals(2, waiting.size());
+        assertEquals("chat 2", waiting.poll());
+    }
+
+    /**
+     * Tests that offerNow gives up at once on a full BLOCK queue, instead of waiting for the writer
+     */
+    @Test
+    void offerNowNeverWaits() throws InterruptedException {
+        OutboundQueue<String> queue = new OutboundQueue<>(2, OutboundQueue.OverflowPolicy.BLOCK, 60_000,
+                item -> item.startsWith("presence"));
+        assertTrue(queue.offerNow("chat 1"));
+        queue.offer("chat 2");
+
+        long start = System.nanoTime();
+        assertFalse(queue.offerNow("chat 3"));
+        assertTrue(System.nanoTime() - start < 1_000_000_000L);
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    void closeReleasesTakeAndRefusesOffers() throws InterruptedException {
+        OutboundQueue<String> queue = queue(OutboundQueue.OverflowPolicy.DISCONNECT);
+        queue.offer("chat 1");
+        queue.close();
+
+        assertNull(queue.take());
+        assertFalse(queue.offer("chat 2"));
+        assertEquals(0, queue.size());
+    }
+}
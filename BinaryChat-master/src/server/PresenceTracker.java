@@ -0,0 +1,232 @@
+package server;
+
+import utils.Message;
+import utils.User;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the list of online users and a version number that grows by one for every published change.
+ * A user that logs in gets the whole list once as a CLIENT_LIST, after that changes are sent as a
+ * PRESENCE_DELTA holding only the users that joined or left, so a login costs O(N) messages of constant
+ * size instead of N copies of the full list.
+ * Logins and logouts are collected for a short window and published together, so when many users log in
+ * at once every client gets one delta for the whole window instead of one per login. The window doubles
+ * while flushes keep coalescing several changes and halves when they carry a single one, between
+ * ServerConfig.presenceWindowMillis() and ServerConfig.presenceMaxWindowMillis(). A window of 0 publishes
+ * every change at once.
+ * A client that sees a delta whose base version is not its own version has missed one, it sends a
+ * PRESENCE_RESYNC and gets a new CLIENT_LIST.
+ * Snapshots and deltas are queued while holding the lock, so every connection gets them in version order.
+ * They are queued with Session.sendMessageNow(), so the lock is never held waiting for room for one client, a
+ * client too slow for its presence updates is disconnected even with the BLOCK overflow policy.
+ *
+ * @author Lukas
+ */
+public class PresenceTracker {
+    private final Map<User, Session> online;
+    private final LinkedHashSet<User> published;
+    private final LinkedHashSet<User> pendingJoined;
+    private final LinkedHashSet<User> pendingLeft;
+    private final ArrayList<Long> pendingSince;
+    private final ReentrantLock lock;
+    private final int minWindowMillis;
+    private final int maxWindowMillis;
+    private final ScheduledExecutorService flushTimer;
+    private volatile int windowMillis;
+    private boolean flushScheduled;
+    private long version;
+
+    /**
+     * @pre None
+     * @post Creates a tracker with the coalescing window of ServerConfig
+     */
+    public PresenceTracker() {
+        this(ServerConfig.presenceWindowMillis(), ServerConfig.presenceMaxWindowMillis());
+    }
+
+    /**
+     * @pre 0 <= minWindowMillis <= maxWindowMillis
+     * @param minWindowMillis, the shortest time changes are collected before they are published, 0 publishes at once.
+     * @param maxWindowMillis, the longest time changes are collected while many users log in and out.
+     * @post Creates a tracker with no users online at version 0
+     *       Registers the presence.windowMillis gauge in ServerMetrics
+     */
+    public PresenceTracker(int minWindowMillis, int maxWindowMillis) {
+        this.online = new LinkedHashMap<>();
+        this.published = new LinkedHashSet<>();
+        this.pendingJoined = new LinkedHashSet<>();
+        this.pendingLeft = new LinkedHashSet<>();
+        this.pendingSince = new ArrayList<>();
+        this.lock = new ReentrantLock();
+        this.minWindowMillis = minWindowMillis;
+        this.maxWindowMillis = Math.max(minWindowMillis, maxWindowMillis);
+        this.windowMillis = minWindowMillis;
+        this.flushTimer = minWindowMillis > 0 ? Executors.newSingleThreadScheduledExecutor(ServerThreads.factory()) : null;
+        ServerMetrics.gauge("presence.windowMillis", () -> windowMillis);
+    }
+
+    /**
+     * @pre assumes session != null && session.getUser() != null
+     * @param session, the session of the user that logged in.
+     * @post The user is online. session gets a CLIENT_LIST with the published users, and with every
+     *       other online session it gets the login in the next PRESENCE_DELTA.
+     */
+    public void join(Session session) {
+        User user = Objects.requireNonNull(session.getUser());
+        lock.lock();
+        try {
+            if (online.putIfAbsent(user, session) != null) {
+                return;
+            }
+            session.sendMessageNow(snapshot()); // Sent first, the delta holding this login is based on its version
+            if (!pendingLeft.remove(user)) { // Logging out and in within one window publishes nothing
+                pendingJoined.add(user);
+            }
+            changed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Only removes the user if session is the one that joined, the same rule as SessionRegistry.unregister.
+     * @pre assumes session != null
+     * @param session, the session of the user that logged out.
+     * @post The user is offline, every online session gets the logout in the next PRESENCE_DELTA.
+     */
+    public void leave(Session session) {
+        User user = session.getUser();
+        if (user == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (!online.remove(user, session)) {
+                return;
+            }
+            if (!pendingJoined.remove(user)) {
+                pendingLeft.add(user);
+            }
+            changed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Answers a PRESENCE_RESYNC.
+     * @pre assumes session != null
+     * @param session, the session that missed a version.
+     * @post session gets a CLIENT_LIST with the published users and the current version
+     */
+    public void resync(Session session) {
+        lock.lock();
+        try {
+            if (online.get(session.getUser()) == session) {
+                ServerMetrics.increment("presence.resyncs");
+                session.sendMessageNow(snapshot());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @pre None
+     * @return the current presence version
+     */
+    public long version() {
+        lock.lock();
+        try {
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @pre None
+     * @post Changes that are not published yet are published and the flush timer is stopped
+     */
+    public void close() {
+        flush();
+        if (flushTimer != null) {
+            flushTimer.shutdownNow();
+        }
+    }
+
+    private void changed() {
+        pendingSince.add(System.nanoTime());
+        if (flushTimer == null) {
+            flush();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            flushTimer.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            int events = pendingSince.size();
+            if (events == 0) {
+                return;
+            }
+            if (!pendingJoined.isEmpty() || !pendingLeft.isEmpty()) {
+                version++;
+                published.removeAll(pendingLeft);
+                published.addAll(pendingJoined);
+                Message delta = Message.builder()
+                        .messageType(Message.MessageType.PRESENCE_DELTA)
+                        .onlineUsers(new ArrayList<>(pendingJoined))
+                        .offlineUsers(new ArrayList<>(pendingLeft))
+                        .basePresenceVersion(version - 1)
+                        .presenceVersion(version)
+                        .broadcast(true)
+                        .build();
+                for (Session session : online.values()) {
+                    session.sendMessageNow(delta);
+                }
+                ServerMetrics.increment("presence.deltas");
+            }
+
+            long now = System.nanoTime();
+            for (long since : pendingSince) {
+                ServerMetrics.recordTime("presence.latency", now - since);
+            }
+            ServerMetrics.recordValue("presence.eventsPerFlush", events);
+            pendingJoined.clear();
+            pendingLeft.clear();
+            pendingSince.clear();
+            adaptWindow(events);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adaptWindow(int events) {
+        if (events > 1) {
+            windowMillis = Math.min(maxWindowMillis, Math.max(1, windowMillis * 2));
+        } else {
+            windowMillis = Math.max(minWindowMillis, windowMillis / 2);
+        }
+    }
+
+    private Message snapshot() {
+        return Message.builder()
+                .messageType(Message.MessageType.CLIENT_LIST)
+                .onlineUsers(new ArrayList<>(published))
+                .presenceVersion(version)
+                .build();
+    }
+}
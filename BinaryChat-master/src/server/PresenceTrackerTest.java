@@ -0,0 +1,123 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import utils.Message;
+import utils.User;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PresenceTrackerTest {
+
+    /**
+     * Tests that without a window a login gives the new user a snapshot followed by the delta holding its own login
+     */
+    @Test
+    void joinSendsSnapshotThenDelta() {
+        PresenceTracker tracker = new PresenceTracker(0, 0);
+        TestSession alice = new TestSession(new User("Alice"));
+        TestSession bob = new TestSession(new User("Bob"));
+
+        tracker.join(alice);
+        tracker.join(bob);
+
+        assertEquals(Message.MessageType.CLIENT_LIST, bob.received.get(0).getMessageType());
+        assertEquals(1, bob.received.get(0).getPresenceVersion());
+        assertEquals(List.of(new User("Alice")), bob.received.get(0).getOnlineUsers());
+
+        Message delta = bob.received.get(1);
+        assertEquals(Message.MessageType.PRESENCE_DELTA, delta.getMessageType());
+        assertEquals(1, delta.getBasePresenceVersion());
+        assertEquals(2, delta.getPresenceVersion());
+        assertEquals(List.of(new User("Bob")), delta.getOnlineUsers());
+        assertSame(delta, alice.received.get(alice.received.size() - 1));
+    }
+
+    /**
+     * Tests that the changes of one window are published as one delta, and that a login and logout cancel out
+     */
+    @Test
+    void windowCoalescesChanges() {
+        PresenceTracker tracker = new PresenceTracker(10_000, 10_000);
+        TestSession alice = new TestSession(new User("Alice"));
+        TestSession bob = new TestSession(new User("Bob"));
+        TestSession charlie = new TestSession(new User("Charlie"));
+
+        tracker.join(alice);
+        tracker.join(bob);
+        tracker.join(charlie);
+        tracker.leave(alice);
+        tracker.close();
+
+        assertEquals(2, bob.received.size());
+        Message delta = bob.received.get(1);
+        assertEquals(0, delta.getBasePresenceVersion());
+        assertEquals(1, delta.getPresenceVersion());
+        assertEquals(List.of(new User("Bob"), new User("Charlie")), delta.getOnlineUsers());
+        assertTrue(delta.getOfflineUsers().isEmpty());
+        assertEquals(1, tracker.version());
+    }
+
+    @Test
+    void leaveOfDeniedSessionIsIgnored() {
+        PresenceTracker tracker = new PresenceTracker(0, 0);
+        TestSession alice = new TestSession(new User("Alice"));
+        TestSession aliceAgain = new TestSession(new User("Alice"));
+
+        tracker.join(alice);
+        tracker.leave(aliceAgain);
+
+        assertEquals(1, tracker.version());
+        tracker.resync(alice);
+        assertEquals(List.of(new User("Alice")), alice.received.get(alice.received.size() - 1).getOnlineUsers());
+    }
+
+    /**
+     * Tests that a session whose queue would make the sender wait never holds up the logins of the others
+     */
+    @Test
+    void presenceNeverWaitsForASession() {
+        PresenceTracker tracker = new PresenceTracker(0, 0);
+        TestSession slow = new TestSession(new User("Slow")) {
+            @Override
+            public void sendMessage(Message message) {
+                throw new AssertionError("Presence waited for " + message.getMessageType());
+            }
+        };
+        TestSession bob = new TestSession(new User("Bob"));
+
+        tracker.join(slow);
+        tracker.join(bob);
+        tracker.resync(slow);
+        tracker.leave(bob);
+
+        assertEquals(5, slow.received.size());
+        assertEquals(Message.MessageType.CLIENT_LIST, slow.received.get(3).getMessageType());
+    }
+
+    private static class TestSession implements Session {
+        private final User user;
+        private final List<Message> received = new ArrayList<>();
+
+        TestSession(User user) {
+            this.user = user;
+        }
+
+        @Override
+        public User getUser() {
+            return user;
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            received.add(message);
+        }
+
+        @Override
+        public void sendMessageNow(Message message) {
+            received.add(message);
+        }
+    }
+}
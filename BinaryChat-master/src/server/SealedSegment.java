@@ -0,0 +1,345 @@
+package server;
+
+import utils.BinaryCodec;
+import utils.Message;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The older messages of a conversation, moved out of its log by HistoryStore.seal() into a file that is never
+ * written again. The records are kept as in the log, [int length][int CRC32 of the body][body], but compressed
+ * BLOCK_MESSAGES at a time with Deflater, each block on its own so a page only inflates the blocks it is in.
+ * Every block is compressed with the same preset dictionary, sampled from the records of the segment, so a
+ * block starts with the names and field layout the messages share instead of learning them again.
+ * The file is MAGIC, [int dictionary length][dictionary], the blocks as [int compressed length][int length]
+ * [int CRC32 of the compressed bytes][compressed bytes], the position of every block as a long, and
+ * [long first message][long messages][int blocks][int BLOCK_MESSAGES] followed by MAGIC again.
+ * A segment is written under a temporary name and only renamed when complete, so the end is always there.
+ *
+ * @author Baseer
+ */
+public final class SealedSegment {
+    /** The number of messages compressed together */
+    public static final int BLOCK_MESSAGES = 64;
+
+    private static final byte[] MAGIC = {'B', 'C', 'Z', 1};
+    private static final int DICTIONARY_BYTES = 8 * 1024;
+    private static final int BLOCK_HEADER = 12;
+    private static final int TRAILER = 2 * Long.BYTES + 2 * Integer.BYTES + MAGIC.length;
+
+    private final File file;
+    private final long first;
+    private final long count;
+    private final byte[] dictionary;
+    private final long[] blocks; // The position of each block, and the end of the last one
+
+    private SealedSegment(File file, long first, long count, byte[] dictionary, long[] blocks) {
+        this.file = file;
+        this.first = first;
+        this.count = count;
+        this.dictionary = dictionary;
+        this.blocks = blocks;
+    }
+
+    /**
+     * Used on a sample of the records to be sealed, spread over all of them. If the samples do not fit, every
+     * n-th one is taken so the dictionary still covers the whole segment.
+     * @pre assumes samples != null
+     * @param samples, bodies of records of the segment, in the order of the segment.
+     * @return a preset dictionary of at most 8 KB made of the samples
+     */
+    public static byte[] train(List<byte[]> samples) {
+        long total = 0;
+        for (byte[] sample : samples) {
+            total += sample.length;
+        }
+        int every = (int) Math.max(1, (total + DICTIONARY_BYTES - 1) / DICTIONARY_BYTES);
+        byte[] dictionary = new byte[DICTIONARY_BYTES];
+        int length = 0;
+        for (int i = 0; i < samples.size() && length < DICTIONARY_BYTES; i += every) {
+            byte[] sample = samples.get(i);
+            int take = Math.min(sample.length, DICTIONARY_BYTES - length);
+            System.arraycopy(sample, 0, dictionary, length, take);
+            length += take;
+        }
+        return Arrays.copyOf(dictionary, length);
+    }
+
+    /**
+     * @pre assumes file != null
+     * @param file, a complete segment.
+     * @return the segment, with its dictionary and the positions of its blocks read
+     * @throws IOException if the file could not be read or is not a complete segment, also when a length or
+     *         position in it does not fit the file
+     */
+    public static SealedSegment open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MAGIC.length + Integer.BYTES + TRAILER) {
+                throw new IOException("Not a sealed segment: " + file);
+            }
+            ByteBuffer trailer = readFully(channel, size - TRAILER, TRAILER);
+            long first = trailer.getLong();
+            long count = trailer.getLong();
+            int blockCount = trailer.getInt();
+            int blockMessages = trailer.getInt();
+            byte[] magic = new byte[MAGIC.length];
+            trailer.get(magic);
+            ByteBuffer header = readFully(channel, 0, MAGIC.length + Integer.BYTES);
+            byte[] start = new byte[MAGIC.length];
+            header.get(start);
+            if (!Arrays.equals(magic, MAGIC) || !Arrays.equals(start, MAGIC) || blockMessages != BLOCK_MESSAGES
+                    || blockCount < 0 || count < 0) {
+                throw new IOException("Not a sealed segment: " + file);
+            }
+            int dictionaryLength = header.getInt();
+            long blocksStart = MAGIC.length + Integer.BYTES + (long) dictionaryLength;
+            long indexStart = size - TRAILER - (long) blockCount * Long.BYTES;
+            if (dictionaryLength < 0 || dictionaryLength > DICTIONARY_BYTES || first < 0
+                    || blockCount > Integer.MAX_VALUE / Long.BYTES || indexStart < blocksStart
+                    || blockCount != (count + BLOCK_MESSAGES - 1) / BLOCK_MESSAGES) {
+                throw new IOException("Broken sealed segment: " + file);
+            }
+            byte[] dictionary = new byte[dictionaryLength];
+            readFully(channel, MAGIC.length + Integer.BYTES, dictionaryLength).get(dictionary);
+            ByteBuffer index = readFully(channel, indexStart, blockCount * Long.BYTES);
+            long[] blocks = new long[blockCount + 1];
+            for (int i = 0; i < blockCount; i++) {
+                blocks[i] = index.getLong();
+            }
+            blocks[blockCount] = indexStart;
+            for (int i = 0; i < blockCount; i++) { // The blocks follow the dictionary and each other, each with its header
+                long length = blocks[i + 1] - blocks[i];
+                if ((i == 0 && blocks[0] != blocksStart) || length < BLOCK_HEADER || length > Integer.MAX_VALUE) {
+                    throw new IOException("Broken sealed segment: " + file);
+                }
+            }
+            return new SealedSegment(file, first, count, dictionary, blocks);
+        }
+    }
+
+    /**
+     * @pre None
+     * @return the index in the conversation of the first message of the segment
+     */
+    public long first() {
+        return first;
+    }
+
+    /**
+     * @pre None
+     * @return the number of messages in the segment
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * @pre None
+     * @return the file of the segment
+     */
+    public File file() {
+        return file;
+    }
+
+    /**
+     * Inflates only the blocks holding the messages.
+     * @pre first() <= from <= to <= first() + count()
+     * @param from, the index in the conversation of the first message read.
+     * @param to, the index the messages read end before.
+     * @return the messages, decoded
+     * @throws IOException if the file could not be read or a block is broken
+     */
+    public List<Message> read(long from, long to) throws IOException {
+        List<Message> messages = new ArrayList<>((int) (to - from));
+        if (from >= to) {
+            return messages;
+        }
+        Inflater inflater = new Inflater();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int block = (int) ((from - first) / BLOCK_MESSAGES); block <= (to - 1 - first) / BLOCK_MESSAGES; block++) {
+                ByteBuffer records = ByteBuffer.wrap(inflate(channel, block, inflater));
+                CRC32 crc = new CRC32();
+                for (long message = first + (long) block * BLOCK_MESSAGES; records.hasRemaining(); message++) {
+                    int length = records.getInt();
+                    int checksum = records.getInt();
+                    if (length < 0 || length > records.remaining()) {
+                        throw new IOException("Broken block " + block + " in " + file);
+                    }
+                    if (message >= from && message < to) {
+                        crc.reset();
+                        crc.update(records.array(), records.position(), length);
+                        if ((int) crc.getValue() != checksum) {
+                            throw new IOException("Broken record " + message + " in " + file);
+                        }
+                        messages.add(BinaryCodec.decode(records.array(), records.position(), length));
+                    }
+                    records.position(records.position() + length);
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        ServerMetrics.add("history.sealedReads", messages.size());
+        return messages;
+    }
+
+    private byte[] inflate(FileChannel channel, int block, Inflater inflater) throws IOException {
+        ByteBuffer compressed = readFully(channel, blocks[block], (int) (blocks[block + 1] - blocks[block]));
+        int compressedLength = compressed.getInt();
+        int length = compressed.getInt();
+        int checksum = compressed.getInt();
+        if (compressedLength != compressed.remaining() || length < 0) { // Checked before the lengths are used
+            throw new IOException("Broken block " + block + " in " + file);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(compressed.array(), BLOCK_HEADER, compressedLength);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Broken block " + block + " in " + file);
+        }
+        byte[] records = new byte[length];
+        inflater.reset();
+        inflater.setInput(compressed.array(), BLOCK_HEADER, compressedLength);
+        try {
+            int inflated = 0;
+            while (inflated < length) {
+                int read = inflater.inflate(records, inflated, length - inflated);
+                if (read == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary);
+                } else if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Broken block " + block + " in " + file);
+                }
+                inflated += read;
+            }
+        } catch (DataFormatException | IllegalArgumentException e) { // Thrown for a dictionary not matching the block
+            throw new IOException("Broken block " + block + " in " + file, e);
+        }
+        return records;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Writes a segment record by record, a block at a time.
+     */
+    public static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final long first;
+        private final byte[] dictionary;
+        private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        private final CRC32 crc = new CRC32();
+        private final List<Long> blocks = new ArrayList<>();
+        private ByteBuffer block = ByteBuffer.allocate(16 * 1024);
+        private byte[] compressed = new byte[16 * 1024];
+        private int blockMessages;
+        private long count;
+
+        /**
+         * @pre assumes file && dictionary != null
+         * @param file, the file written, replaced if it exists.
+         * @param first, the index in the conversation of the first message added.
+         * @param dictionary, the preset dictionary of the blocks, see train(). May be empty
+         * @throws IOException if the file could not be created
+         */
+        public Writer(File file, long first, byte[] dictionary) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.first = first;
+            this.dictionary = dictionary;
+            write(ByteBuffer.allocate(MAGIC.length + Integer.BYTES + dictionary.length)
+                    .put(MAGIC).putInt(dictionary.length).put(dictionary).flip());
+        }
+
+        /**
+         * @pre assumes body != null
+         * @param body, the array holding the body of the next record.
+         * @param length, the length of the body.
+         * @throws IOException if a full block could not be written
+         */
+        public void add(byte[] body, int length) throws IOException {
+            if (block.remaining() < 8 + length) {
+                block = ByteBuffer.allocate(Math.max(block.capacity() * 2, block.position() + 8 + length)).put(block.flip());
+            }
+            crc.reset();
+            crc.update(body, 0, length);
+            block.putInt(length).putInt((int) crc.getValue()).put(body, 0, length);
+            count++;
+            if (++blockMessages == BLOCK_MESSAGES) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * @pre None
+         * @post The last block, the positions of the blocks and the end are written and forced, the file is closed
+         * @throws IOException if the file could not be written
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (blockMessages > 0) {
+                    writeBlock();
+                }
+                ByteBuffer end = ByteBuffer.allocate(blocks.size() * Long.BYTES + TRAILER);
+                for (long position : blocks) {
+                    end.putLong(position);
+                }
+                end.putLong(first).putLong(count).putInt(blocks.size()).putInt(BLOCK_MESSAGES).put(MAGIC);
+                write(end.flip());
+                channel.force(false);
+            } finally {
+                deflater.end();
+                channel.close();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            deflater.reset();
+            if (dictionary.length > 0) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(block.array(), 0, block.position());
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            crc.reset();
+            crc.update(compressed, 0, length);
+            blocks.add(channel.position());
+            write(ByteBuffer.allocate(BLOCK_HEADER + length)
+                    .putInt(length).putInt(block.position()).putInt((int) crc.getValue()).put(compressed, 0, length).flip());
+            block.clear();
+            blockMessages = 0;
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
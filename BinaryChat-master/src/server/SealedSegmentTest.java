@@ -0,0 +1,139 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utils.BinaryCodec;
+import utils.Message;
+import utils.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SealedSegmentTest {
+
+    Path directory;
+    File file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("sealed");
+        file = directory.resolve("segment.seg").toFile();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Writes count messages, the first one being message first of the conversation
+     * @return the length of the dictionary written
+     */
+    private int write(long first, int count, boolean dictionary) throws IOException {
+        BinaryCodec codec = new BinaryCodec();
+        List<byte[]> bodies = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int length = codec.encode(Message.builder()
+                    .messageType(Message.MessageType.REGULAR_MESSAGE)
+                    .sender(new User("alice"))
+                    .receiver(new User("bob"))
+                    .text("message " + (first + i))
+                    .build());
+            bodies.add(Arrays.copyOf(codec.buffer(), length));
+        }
+        byte[] trained = dictionary ? SealedSegment.train(bodies) : new byte[0];
+        try (SealedSegment.Writer writer = new SealedSegment.Writer(file, first, trained)) {
+            for (byte[] body : bodies) {
+                writer.add(body, body.length);
+            }
+        }
+        return trained.length;
+    }
+
+    @Test
+    void readsAcrossBlocks() throws IOException {
+        write(1000, SealedSegment.BLOCK_MESSAGES * 3 + 5, true);
+        SealedSegment segment = SealedSegment.open(file);
+
+        assertEquals(1000, segment.first());
+        assertEquals(SealedSegment.BLOCK_MESSAGES * 3 + 5, segment.count());
+        List<Message> page = segment.read(1050, 1150);
+        assertEquals(100, page.size());
+        assertEquals("message 1050", page.get(0).getText());
+        assertEquals("message 1149", page.get(99).getText());
+        List<Message> last = segment.read(segment.first() + segment.count() - 1, segment.first() + segment.count());
+        assertEquals("message " + (1000 + segment.count() - 1), last.get(0).getText());
+    }
+
+    @Test
+    void dictionaryMakesBlocksSmaller() throws IOException {
+        write(0, SealedSegment.BLOCK_MESSAGES * 20, false);
+        long plain = file.length();
+        int dictionary = write(0, SealedSegment.BLOCK_MESSAGES * 20, true);
+
+        assertTrue(dictionary > 0);
+        assertTrue(file.length() - dictionary < plain, file.length() - dictionary + " >= " + plain);
+        assertEquals("message 700", SealedSegment.open(file).read(700, 701).get(0).getText());
+    }
+
+    @Test
+    void brokenBlockIsFound() throws IOException {
+        write(0, SealedSegment.BLOCK_MESSAGES * 2, true);
+        SealedSegment segment = SealedSegment.open(file);
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            long inLastBlock = file.length() - 28 - 2 * Long.BYTES - 5; // Before the block positions and the end
+            raw.seek(inLastBlock);
+            int value = raw.read();
+            raw.seek(inLastBlock);
+            raw.write(value ^ 0xff);
+        }
+
+        assertThrows(IOException.class, () -> segment.read(0, SealedSegment.BLOCK_MESSAGES * 2));
+    }
+
+    @Test
+    void cutOffSegmentIsNotOpened() throws IOException {
+        write(0, 10, true);
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.setLength(file.length() - 1);
+        }
+
+        assertThrows(IOException.class, () -> SealedSegment.open(file));
+    }
+
+    /**
+     * Tests that a length that does not fit the file is reported as a broken segment, not thrown as an index error
+     */
+    @Test
+    void lengthsOutsideTheFileAreRejected() throws IOException {
+        int dictionary = write(0, SealedSegment.BLOCK_MESSAGES * 2, true);
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(8 + dictionary); // The compressed length of the first block
+            raw.writeInt(Integer.MAX_VALUE);
+        }
+        SealedSegment segment = SealedSegment.open(file);
+        assertThrows(IOException.class, () -> segment.read(0, 1));
+
+        for (boolean trailer : new boolean[] {false, true}) { // The dictionary length, the block count
+            write(0, SealedSegment.BLOCK_MESSAGES * 2, true); // Its length depends on the timestamps compressed
+            try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+                raw.seek(trailer ? file.length() - 12 : 4);
+                raw.writeInt(Integer.MAX_VALUE);
+            }
+            assertThrows(IOException.class, () -> SealedSegment.open(file));
+        }
+    }
+}
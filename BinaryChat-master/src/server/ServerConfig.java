@@ -0,0 +1,277 @@
+package server;
+
+/**
+ * Holds the settings of the server. Every setting has a default value that can be
+ * overridden with a system property when the server is started, e.g. -Dbinarychat.mode=nio
+ *
+ * @author Lukas
+ */
+public final class ServerConfig {
+    private static final String PREFIX = "binarychat.";
+
+    private ServerConfig() {
+    }
+
+    /**
+     * @pre None
+     * @return the port the server listens on. Default 2023
+     */
+    public static int port() {
+        return intProperty("port", 2023);
+    }
+
+    /**
+     * @pre None
+     * @return true if the server should run the selector based NioServer instead of
+     *         the thread-per-connection ConnectionManager. Default false
+     */
+    public static boolean nioMode() {
+        return "nio".equalsIgnoreCase(System.getProperty(PREFIX + "mode", "threaded"));
+    }
+
+    /**
+     * @pre None
+     * @return true if connections, their readers and the acceptor should run on virtual threads. Default false
+     */
+    public static boolean virtualThreads() {
+        return "virtual".equalsIgnoreCase(System.getProperty(PREFIX + "threads", "platform"));
+    }
+
+    /**
+     * @pre None
+     * @return the node of this server in the message ids it gives, see MessageIds. Servers sharing
+     *         conversations need a node each. Default 0
+     */
+    public static int nodeId() {
+        int node = intProperty("nodeId", 0);
+        if (node < 0 || node > MessageIds.MAX_NODE) {
+            System.out.println("Invalid value for " + PREFIX + "nodeId: " + node + ", using 0");
+            return 0;
+        }
+        return node;
+    }
+
+    /**
+     * @pre None
+     * @return the number of event loop threads used by the NioServer. Default is the number of processors.
+     */
+    public static int eventLoops() {
+        return Math.max(1, intProperty("eventLoops", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @pre None
+     * @return the number of handshakes the ConnectionManager runs in parallel. Default 8
+     */
+    public static int handshakeThreads() {
+        return Math.max(1, intProperty("handshakeThreads", 8));
+    }
+
+    /**
+     * @pre None
+     * @return the number of accepted sockets that may wait for a handshake thread, more are closed. Default 256
+     */
+    public static int handshakeQueue() {
+        return Math.max(1, intProperty("handshakeQueue", 256));
+    }
+
+    /**
+     * @pre None
+     * @return the time in milliseconds a client has to finish its login before it is disconnected. Default 10000
+     */
+    public static int handshakeTimeoutMillis() {
+        return Math.max(1, intProperty("handshakeTimeoutMillis", 10_000));
+    }
+
+    /**
+     * @pre None
+     * @return the max number of messages queued for one client. Default 1024
+     */
+    public static int outboundQueueCapacity() {
+        return Math.max(1, intProperty("outboundQueue", 1024));
+    }
+
+    /**
+     * @pre None
+     * @return what to do when the outbound queue of a client is full, set with
+     *         drop-oldest-presence, disconnect or block. Default drop-oldest-presence
+     */
+    public static OutboundQueue.OverflowPolicy outboundPolicy() {
+        String value = System.getProperty(PREFIX + "outboundPolicy", "drop-oldest-presence");
+        try {
+            return OutboundQueue.OverflowPolicy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid value for " + PREFIX + "outboundPolicy: " + value + ", using drop-oldest-presence");
+            return OutboundQueue.OverflowPolicy.DROP_OLDEST_PRESENCE;
+        }
+    }
+
+    /**
+     * @pre None
+     * @return the time in milliseconds a sender waits for room with the block policy. Default 1000
+     */
+    public static int outboundBlockMillis() {
+        return Math.max(0, intProperty("outboundBlockMillis", 1000));
+    }
+
+    /**
+     * @pre None
+     * @return when a chat message counts as saved, set with async, buffered, group-commit or per-message. Default async
+     */
+    public static HistoryStore.Durability historyDurability() {
+        String value = System.getProperty(PREFIX + "historyDurability", "async");
+        try {
+            return HistoryStore.Durability.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid value for " + PREFIX + "historyDurability: " + value + ", using async");
+            return HistoryStore.Durability.ASYNC;
+        }
+    }
+
+    /**
+     * @pre None
+     * @return the longest time in milliseconds a history write waits to be forced with group-commit. Default 10
+     */
+    public static int groupCommitMillis() {
+        return Math.max(0, intProperty("groupCommitMillis", 10));
+    }
+
+    /**
+     * @pre None
+     * @return the number of history records that are forced at once with group-commit, without waiting longer. Default 256
+     */
+    public static int groupCommitRecords() {
+        return Math.max(1, intProperty("groupCommitRecords", 256));
+    }
+
+    /**
+     * @pre None
+     * @return the number of messages of each conversation sent at login, and in a history page a client
+     *         asks for without a limit. Default 50
+     */
+    public static int historyPageSize() {
+        return Math.max(1, intProperty("historyPageSize", 50));
+    }
+
+    /**
+     * @pre None
+     * @return the number of threads the NioServer loads histories and history pages on, off its event loops. Default 4
+     */
+    public static int historyReadThreads() {
+        return Math.max(1, intProperty("historyReadThreads", 4));
+    }
+
+    /**
+     * @pre None
+     * @return the estimated bytes of recent messages the server keeps in memory for all conversations,
+     *         set in megabytes. Default 64 MB
+     */
+    public static long historyCacheBytes() {
+        return Math.max(1, intProperty("historyCacheMegabytes", 64)) * 1024L * 1024L;
+    }
+
+    /**
+     * @pre None
+     * @return the number of newest messages kept of each conversation, older ones are dropped by the
+     *         HistoryCompactor. 0 keeps every message. Default 0
+     */
+    public static int historyRetainMessages() {
+        return Math.max(0, intProperty("historyRetainMessages", 0));
+    }
+
+    /**
+     * @pre None
+     * @return the number of days the messages of a conversation are kept, older ones are dropped by the
+     *         HistoryCompactor. 0 keeps them whatever their age. Default 0
+     */
+    public static int historyRetainDays() {
+        return Math.max(0, intProperty("historyRetainDays", 0));
+    }
+
+    /**
+     * @pre None
+     * @return true if the messages dropped from a conversation are moved to ChatHistory/archive. Default false
+     */
+    public static boolean historyArchive() {
+        return Boolean.parseBoolean(System.getProperty(PREFIX + "historyArchive", "false").trim());
+    }
+
+    /**
+     * @pre None
+     * @return the number of newest messages left in the log of a conversation when the HistoryCompactor moves the
+     *         older ones to a compressed segment, once the log holds twice as many. 0 never seals. Default 0
+     */
+    public static int historySealMessages() {
+        return Math.max(0, intProperty("historySealMessages", 0));
+    }
+
+    /**
+     * @pre None
+     * @return the time in minutes between two runs of the HistoryCompactor. Default 60
+     */
+    public static int compactionMinutes() {
+        return Math.max(1, intProperty("compactionMinutes", 60));
+    }
+
+    /**
+     * @pre None
+     * @return the bytes of conversation logs kept mapped for reading history pages, set in megabytes. Default 256 MB
+     */
+    public static long historyMappedBytes() {
+        return Math.max(1, intProperty("historyMappedMegabytes", 256)) * 1024L * 1024L;
+    }
+
+    /**
+     * @pre None
+     * @return the port attachments are uploaded to and downloaded from. Default the chat port + 1
+     */
+    public static int attachmentPort() {
+        return intProperty("attachmentPort", port() + 1);
+    }
+
+    /**
+     * @pre None
+     * @return the largest attachment in bytes the server accepts, set in megabytes with maxAttachmentMegabytes. Default 25 MB
+     */
+    public static long maxAttachmentBytes() {
+        return Math.max(0, intProperty("maxAttachmentMegabytes", 25)) * 1024L * 1024L;
+    }
+
+    /**
+     * @pre None
+     * @return the time in seconds an interrupted upload is kept for the client to resume it. Default 600
+     */
+    public static int uploadResumeSeconds() {
+        return Math.max(1, intProperty("uploadResumeSeconds", 600));
+    }
+
+    /**
+     * @pre None
+     * @return the shortest time in milliseconds logins and logouts are collected before the
+     *         user list changes are sent. 0 sends every change at once. Default 50
+     */
+    public static int presenceWindowMillis() {
+        return Math.max(0, intProperty("presenceWindowMillis", 50));
+    }
+
+    /**
+     * @pre None
+     * @return the longest collecting time in milliseconds, reached while many users log in or out. Default 200
+     */
+    public static int presenceMaxWindowMillis() {
+        return Math.max(presenceWindowMillis(), intProperty("presenceMaxWindowMillis", 200));
+    }
+
+    static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid value for " + PREFIX + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds the counters, gauges and timers of the server, shown by the ServerView.
+ * Counters only go up, gauges are read when a snapshot is taken and timers keep the count,
+ * total and max of the recorded durations in microseconds. Recorded values keep the same for any other number.
+ *
+ * @author David
+ */
+public final class ServerMetrics {
+    private static final ConcurrentMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongAccumulator> MAXIMUMS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+    private ServerMetrics() {
+    }
+
+    /**
+     * @pre assumes name != null
+     * @param name, the counter to be increased by one.
+     */
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * @pre assumes name != null
+     * @param name, the counter to be increased.
+     * @param delta, the amount to add.
+     */
+    public static void add(String name, long delta) {
+        COUNTERS.computeIfAbsent(name, key -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * @pre assumes name != null
+     * @param name, the timer the duration is recorded to.
+     * @param nanos, the duration in nanoseconds.
+     * @post name.count is increased by one, name.totalMicros by the duration and name.maxMicros is updated
+     */
+    public static void recordTime(String name, long nanos) {
+        long micros = nanos / 1000;
+        increment(name + ".count");
+        add(name + ".totalMicros", micros);
+        MAXIMUMS.computeIfAbsent(name + ".maxMicros", key -> new LongAccumulator(Math::max, 0)).accumulate(micros);
+    }
+
+    /**
+     * @pre assumes name != null
+     * @param name, the distribution the value is recorded to.
+     * @param value, the value to record, like the size of a batch.
+     * @post name.count is increased by one, name.total by the value and name.max is updated
+     */
+    public static void recordValue(String name, long value) {
+        increment(name + ".count");
+        add(name + ".total", value);
+        MAXIMUMS.computeIfAbsent(name + ".max", key -> new LongAccumulator(Math::max, 0)).accumulate(value);
+    }
+
+    /**
+     * @pre assumes name && value != null
+     * @param name, the name of the gauge.
+     * @param value, read every time a snapshot is taken.
+     * @post Replaces any gauge with the same name
+     */
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    /**
+     * @pre assumes name != null
+     * @param name, the gauge to be removed.
+     */
+    public static void removeGauge(String name) {
+        GAUGES.remove(name);
+    }
+
+    /**
+     * @pre assumes name != null
+     * @param name, the counter to be read.
+     * @return the current value of the counter, 0 if it was never increased
+     */
+    public static long counter(String name) {
+        LongAdder counter = COUNTERS.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * @pre None
+     * @return all counters, maximums and gauges sorted by name
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        COUNTERS.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        MAXIMUMS.forEach((name, max) -> snapshot.put(name, max.get()));
+        GAUGES.forEach((name, gauge) -> snapshot.put(name, gauge.getAsLong()));
+        return snapshot;
+    }
+}
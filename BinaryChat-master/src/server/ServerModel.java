@@ -1,6 +1,8 @@
 package server;
 
 import utils.*;
+
+import java.io.IOException;
 /**
  * Represents the server's model.
  * Responsible for managing the uptime of the server
@@ -15,15 +17,29 @@ public class ServerModel implements Observable {
     /**
      * @pre None
      * @post Initiates int uptime at 0 seconds
-     *       Creates a connectionManager
-     *       Creates and starts a new thread that runs the connectionManager
+     *       Creates a connectionManager, or a NioServer if the server is started in nio mode
+     *       Creates and starts a new thread that runs it
+     *       Starts the AttachmentServer on ServerConfig.attachmentPort(), its store is shared with the chat server
+     *       which counts the messages referring to each file
      */
     public ServerModel() {
         uptime = 0;
 
-        ConnectionManager connectionManager = new ConnectionManager();
-        Thread managerThread = new Thread(connectionManager);
+        AttachmentStore attachments = new AttachmentStore("Attachments");
+        Runnable server;
+        if (ServerConfig.nioMode()) {
+            try {
+                server = new NioServer(ServerConfig.port(), ServerConfig.eventLoops(), attachments);
+            } catch (IOException e) {
+                System.out.println("Failed to start NIO server, falling back to threaded mode: " + e.getMessage());
+                server = new ConnectionManager(attachments);
+            }
+        } else {
+            server = new ConnectionManager(attachments);
+        }
+        Thread managerThread = new Thread(server);
         managerThread.start();
+        new Thread(new AttachmentServer(ServerConfig.attachmentPort(), attachments), "attachment-server").start();
     }
     /**
      * @pre None
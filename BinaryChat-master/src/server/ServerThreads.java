@@ -0,0 +1,73 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads used for client connections, their readers and the SocketQueue acceptor.
+ * With -Dbinarychat.threads=virtual the threads are virtual threads, so thousands of mostly idle
+ * connections do not cost thousands of platform thread stacks. Virtual threads need Java 21,
+ * on older runtimes platform threads are used and a warning is printed.
+ *
+ * @author Lukas
+ */
+public final class ServerThreads {
+    private static final ThreadFactory FACTORY = createFactory();
+
+    private ServerThreads() {
+    }
+
+    /**
+     * @pre assumes name && task != null
+     * @param name, the name of the thread, used in logs and thread dumps.
+     * @param task, the task to run.
+     * @return the started thread
+     */
+    public static Thread start(String name, Runnable task) {
+        Thread thread = FACTORY.newThread(task);
+        thread.setName(name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @pre None
+     * @return the thread factory in use, virtual or platform depending on the configuration.
+     */
+    public static ThreadFactory factory() {
+        return FACTORY;
+    }
+
+    /**
+     * @pre None
+     * @return true if the threads created are virtual threads
+     */
+    public static boolean isVirtual() {
+        return !(FACTORY instanceof PlatformThreadFactory);
+    }
+
+    private static ThreadFactory createFactory() {
+        if (ServerConfig.virtualThreads()) {
+            try {
+                // Thread.ofVirtual().factory(), looked up by reflection so the server still builds on Java 17
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+                return (ThreadFactory) factory.invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads are not available on Java " + Runtime.version().feature()
+                        + ", using platform threads");
+            }
+        }
+        return new PlatformThreadFactory();
+    }
+
+    private static class PlatformThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            return new Thread(task, "server-" + count.incrementAndGet());
+        }
+    }
+}
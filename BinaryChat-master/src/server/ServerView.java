@@ -3,26 +3,28 @@ package server;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import java.awt.*;
+import java.util.Map;
 import java.util.Objects;
 
 import utils.Observer;
 
 /**
- * Responsible for creating and updating the GUI for the server's uptime.
+ * Responsible for creating and updating the GUI for the server's uptime and the ServerMetrics.
  *
  * @author Baseer
  */
 public class ServerView implements Observer {
     private final ServerModel model;
     private final JLabel uptimeLabel;
+    private final JLabel metricsLabel;
 
     /**
      * @pre assumens model != null
      * @param model, the model to be displayed by the view.
      * @post Creates a JFrame
-     *       Creates an Uptimelabel
+     *       Creates an Uptimelabel and a metricsLabel
      *       Runs method update that get the uptime in seconds from model and add it to Uptimelabel
-     *       Adds uptimelabel to Jframe.
+     *       Adds uptimelabel and metricsLabel to Jframe.
      */
     public ServerView(ServerModel model) {
         this.model = Objects.requireNonNull(model);
@@ -31,6 +33,7 @@ public class ServerView implements Observer {
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
         uptimeLabel = new JLabel();
+        metricsLabel = new JLabel();
         update();
         frame.setLocationRelativeTo(null);
         int yPos = (frame.getHeight() + 80);
@@ -38,8 +41,10 @@ public class ServerView implements Observer {
 
         uptimeLabel.setHorizontalAlignment(JLabel.CENTER);
         uptimeLabel.setVerticalAlignment(JLabel.CENTER);
-        frame.getContentPane().add(uptimeLabel, BorderLayout.CENTER);
-        frame.setSize(300,150);
+        frame.getContentPane().add(uptimeLabel, BorderLayout.PAGE_START);
+        metricsLabel.setFont(new Font("Dialog", Font.PLAIN, 11));
+        frame.getContentPane().add(metricsLabel, BorderLayout.CENTER);
+        frame.setSize(360,420);
         frame.setMinimumSize(frame.getSize());
         frame.setVisible(true);
         frame.pack();
@@ -91,9 +96,25 @@ public class ServerView implements Observer {
     /**
      * @pre None
      * @post updates the uptimeLabel with the latest info. +1 second
+     *       updates the metricsLabel with a snapshot of the ServerMetrics
      */
     @Override
     public void update() {
         uptimeLabel.setText(formatTime(model.getUptime()));
+        metricsLabel.setText(formatMetrics(ServerMetrics.snapshot()));
+    }
+
+    /**
+     * @pre assumes metrics != null
+     * @param metrics, the metrics to be formatted.
+     * @return an html string with one "name: value" line per metric
+     * @post metrics is unchanged
+     */
+    public static String formatMetrics(Map<String, Long> metrics) {
+        StringBuilder sb = new StringBuilder("<html>");
+        for (Map.Entry<String, Long> metric : metrics.entrySet()) {
+            sb.append(metric.getKey()).append(": ").append(metric.getValue()).append("<br>");
+        }
+        return sb.append("</html>").toString();
     }
 }
\ No newline at end of file
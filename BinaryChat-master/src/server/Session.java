@@ -0,0 +1,45 @@
+package server;
+
+import utils.Message;
+import utils.User;
+
+/**
+ * A logged in client, as seen by the routing code. Implemented by ClientConnection for the threaded
+ * server and by NioConnection for the NioServer.
+ *
+ * @author Baseer
+ */
+public interface Session {
+
+    /**
+     * @pre None
+     * @return the user logged in on this session
+     */
+    User getUser();
+
+    /**
+     * @pre assumes message != null
+     * @param message, the message to be delivered to the client.
+     * @post The message is written, or queued for writing, to the client.
+     */
+    void sendMessage(Message message);
+
+    /**
+     * @pre None
+     * @return the format the messages to the client are encoded in. Only a BINARY client knows MESSAGE_SAVED
+     */
+    default Message.WireFormat getWireFormat() {
+        return Message.WireFormat.SERIALIZED;
+    }
+
+    /**
+     * Used by threads that must never wait for one client, like the writer thread of the HistoryStore.
+     * @pre assumes message != null
+     * @param message, the message to be delivered to the client.
+     * @post The message is queued for writing without waiting for room. If there is none the client is handled as
+     *       too slow, also with the BLOCK overflow policy.
+     */
+    default void sendMessageNow(Message message) {
+        sendMessage(message); // Right for sessions whose sendMessage() never waits
+    }
+}
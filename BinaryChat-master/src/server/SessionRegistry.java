@@ -0,0 +1,95 @@
+package server;
+
+import utils.Message;
+import utils.User;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The server wide registry of logged in users, keyed by User.
+ * Routing a message is a single lookup of the receiver, and a login is an atomic put-if-absent,
+ * so two clients logging in with the same name at the same time can never both be accepted.
+ *
+ * @author Lukas
+ */
+public class SessionRegistry {
+    private final ConcurrentMap<User, Session> sessions;
+
+    /**
+     * @pre None
+     * @post Creates an empty registry
+     */
+    public SessionRegistry() {
+        this.sessions = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @pre assumes session != null && session.getUser() != null
+     * @param session, the session to be registered.
+     * @return true if the session was registered, false if the user is already logged in.
+     */
+    public boolean register(Session session) {
+        return sessions.putIfAbsent(Objects.requireNonNull(session.getUser()), session) == null;
+    }
+
+    /**
+     * Only removes the session if it is the one registered for its user, so a denied login
+     * can never log out the user that is already online.
+     * @pre assumes session != null
+     * @param session, the session to be removed.
+     * @return true if the session was removed
+     */
+    public boolean unregister(Session session) {
+        User user = session.getUser();
+        return user != null && sessions.remove(user, session);
+    }
+
+    /**
+     * @pre None
+     * @param user, the user to look up.
+     * @return the session of the user, or null if the user is not logged in.
+     */
+    public Session lookup(User user) {
+        return user == null ? null : sessions.get(user);
+    }
+
+    /**
+     * @pre None
+     * @return a live view of all sessions, safe to iterate while users log in and out.
+     */
+    public Collection<Session> sessions() {
+        return sessions.values();
+    }
+
+    /**
+     * Build the message with broadcast(true), so it is encoded once instead of once per session.
+     * @pre assumes message != null
+     * @param message, the message to be sent.
+     * @post message is sent to every registered session
+     */
+    public void broadcast(Message message) {
+        for (Session session : sessions.values()) {
+            session.sendMessage(message);
+        }
+    }
+
+    /**
+     * @pre None
+     * @return a new list with the users logged in right now
+     */
+    public ArrayList<User> onlineUsers() {
+        return new ArrayList<>(sessions.keySet());
+    }
+
+    /**
+     * @pre None
+     * @return the number of logged in users
+     */
+    public int size() {
+        return sessions.size();
+    }
+}
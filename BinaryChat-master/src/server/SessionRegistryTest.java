@@ -0,0 +1,96 @@
+package server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utils.Message;
+import utils.User;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionRegistryTest {
+
+    SessionRegistry registry;
+    TestSession alice;
+    TestSession bob;
+    TestSession aliceAgain;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SessionRegistry();
+        alice = new TestSession(new User("Alice"));
+        bob = new TestSession(new User("Bob"));
+        aliceAgain = new TestSession(new User("Alice"));
+    }
+
+    /**
+     * Tests that a second session with the same username is denied
+     */
+    @Test
+    void registerDeniesSameUser() {
+        assertTrue(registry.register(alice));
+        assertTrue(registry.register(bob));
+        assertFalse(registry.register(aliceAgain));
+        assertEquals(2, registry.size());
+        assertSame(alice, registry.lookup(new User("Alice")));
+    }
+
+    /**
+     * Tests that a denied session can not log out the session that is already online
+     */
+    @Test
+    void unregisterOnlyRemovesRegisteredSession() {
+        registry.register(alice);
+
+        assertFalse(registry.unregister(aliceAgain));
+        assertSame(alice, registry.lookup(new User("Alice")));
+
+        assertTrue(registry.unregister(alice));
+        assertNull(registry.lookup(new User("Alice")));
+        assertTrue(registry.register(aliceAgain));
+    }
+
+    @Test
+    void lookupUnknownOrNullUser() {
+        registry.register(alice);
+        assertNull(registry.lookup(new User("Charlie")));
+        assertNull(registry.lookup(null));
+    }
+
+    @Test
+    void broadcastReachesEverySession() {
+        registry.register(alice);
+        registry.register(bob);
+        Message message = Message.builder()
+                .messageType(Message.MessageType.CLIENT_LIST)
+                .onlineUsers(registry.onlineUsers())
+                .build();
+
+        registry.broadcast(message);
+
+        assertEquals(1, alice.received.size());
+        assertEquals(1, bob.received.size());
+        assertEquals(2, alice.received.get(0).getOnlineUsers().size());
+    }
+
+    private static class TestSession implements Session {
+        private final User user;
+        private final List<Message> received = new ArrayList<>();
+
+        TestSession(User user) {
+            this.user = user;
+        }
+
+        @Override
+        public User getUser() {
+            return user;
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            received.add(message);
+        }
+    }
+}
@@ -22,7 +22,7 @@ public class SocketQueue implements AutoCloseable{
      * @param port, the port number to be opened in the socket.
      * @post Creates new serverSocket with given port
      *       Creates new LinkedBlockingQueue
-     *       Creates and start new thread accepting incoming connections to the port.
+     *       Creates and start new thread from ServerThreads accepting incoming connections to the port.
      *       Adds the incoming connections to the queue
      * @throws IOException if a socket cannot be opened.
      */
@@ -30,7 +30,7 @@ public class SocketQueue implements AutoCloseable{
         serverSocket = new ServerSocket(port);
         socketQueue = new LinkedBlockingQueue<>();
 
-        new Thread(() -> {
+        ServerThreads.start("socket-queue", () -> {
             while (true) {
                 try {
                     Socket socket = serverSocket.accept();
@@ -39,7 +39,7 @@ public class SocketQueue implements AutoCloseable{
                     e.printStackTrace();
                 }
             }
-        }).start();
+        });
     }
     /**
      * @pre None
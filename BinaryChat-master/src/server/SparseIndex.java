@@ -0,0 +1,226 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The position in a conversation log of every STRIDE-th message, so a page is found by going to the position
+ * of the message at or before it and skipping at most STRIDE - 1 records, however long the conversation is.
+ * Every entry also holds the timestamp of its message, so the messages of a time range are found by a binary
+ * search of the entries instead of a read of the whole log.
+ * Entries are added as messages are appended and checkpointed to a file next to the log, one entry at a time,
+ * so a store opening the log only checks the entries against it and reads what came after the last one.
+ * The checkpoint is never forced, an entry lost in a crash is found again from the log.
+ * The checkpoint starts with MAGIC followed by entries of [long position][long timestamp], entry k being message
+ * k * STRIDE. A checkpoint of an older version, holding positions only, is written again from the log.
+ * Messages are counted from the first one in the log, which is message first() of the conversation once the log
+ * was compacted.
+ *
+ * @author Baseer
+ */
+public class SparseIndex {
+    /** The number of messages between two entries */
+    public static final int STRIDE = 64;
+
+    private static final byte[] MAGIC = {'B', 'C', 'S', 2};
+    private static final int ENTRY = 2 * Long.BYTES;
+
+    private final File file;
+    private final long start;
+    private final long first;
+    private long[] positions = new long[16];
+    private long[] timestamps = new long[16];
+    private int entries;
+    private boolean stale; // A checkpoint of another version, replaced by keep()
+    private long count;
+    private long end;
+
+    /**
+     * @pre assumes file != null
+     * @param file, the checkpoint of the index.
+     * @param start, the position of the first message in the log.
+     * @param first, the index in the conversation of the first message in the log.
+     * @post Creates an index holding the entries of the checkpoint, if it exists, and no messages.
+     *       The entries are to be checked by the caller and the messages after them added, see keep() and add()
+     * @throws IOException if the checkpoint could not be read
+     */
+    public SparseIndex(File file, long start, long first) throws IOException {
+        this.file = file;
+        this.start = start;
+        this.first = first;
+        this.end = start;
+        if (file.exists() && file.length() >= MAGIC.length) {
+            ByteBuffer checkpoint = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            byte[] magic = new byte[MAGIC.length];
+            checkpoint.get(magic);
+            stale = !Arrays.equals(magic, MAGIC);
+            while (!stale && checkpoint.remaining() >= ENTRY) { // A cut off entry is left out
+                addEntry(checkpoint.getLong(), checkpoint.getLong());
+            }
+        }
+    }
+
+    /**
+     * @pre None
+     * @return the position of the first message in the log
+     */
+    public long start() {
+        return start;
+    }
+
+    /**
+     * @pre None
+     * @return the index in the conversation of the first message in the log, 0 unless the log was compacted
+     */
+    public long first() {
+        return first;
+    }
+
+    /**
+     * @pre None
+     * @return the number of entries read from the checkpoint or added
+     */
+    public synchronized int entries() {
+        return entries;
+    }
+
+    /**
+     * @pre 0 <= entry < entries()
+     * @param entry, the number of the entry.
+     * @return the position of message entry * STRIDE
+     */
+    public synchronized long entry(int entry) {
+        return positions[entry];
+    }
+
+    /**
+     * @pre 0 <= entry < entries()
+     * @param entry, the number of the entry.
+     * @return the timestamp of message entry * STRIDE
+     */
+    public synchronized long timestamp(int entry) {
+        return timestamps[entry];
+    }
+
+    /**
+     * Timestamps grow with the messages, only messages routed at the same moment can be saved a little out of order.
+     * @pre None
+     * @param timestamp, a timestamp in milliseconds since the epoch.
+     * @return the last entry whose message is older than timestamp, -1 if there is none
+     */
+    public synchronized int entryBefore(long timestamp) {
+        int low = 0;
+        int high = entries;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * @pre None
+     * @return true if the next message added becomes an entry, only then its timestamp is needed
+     */
+    public synchronized boolean entryDue() {
+        return count % STRIDE == 0 && count / STRIDE == entries;
+    }
+
+    /**
+     * Used once the entries of the checkpoint are checked, the messages from the last entry kept on are to be added.
+     * @pre 0 <= entries <= entries()
+     * @param entries, the number of entries found in the log.
+     * @post The entries after them are dropped, from the checkpoint too. The index holds the messages before the last
+     *       entry kept, and ends at its position
+     * @throws IOException if the checkpoint could not be written
+     */
+    public synchronized void keep(int entries) throws IOException {
+        if (entries < this.entries || !file.exists() || stale) {
+            ByteBuffer checkpoint = ByteBuffer.allocate(MAGIC.length + entries * ENTRY);
+            checkpoint.put(MAGIC);
+            for (int i = 0; i < entries; i++) {
+                checkpoint.putLong(positions[i]).putLong(timestamps[i]);
+            }
+            checkpoint.flip();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (checkpoint.hasRemaining()) {
+                    channel.write(checkpoint);
+                }
+            }
+            stale = false;
+        }
+        this.entries = entries;
+        this.count = entries == 0 ? 0 : (entries - 1) * (long) STRIDE;
+        this.end = entries == 0 ? start : positions[entries - 1];
+    }
+
+    /**
+     * @pre assumes position == end(), the message is in the log
+     * @param position, the position of the message appended.
+     * @param next, the position after it.
+     * @param timestamp, the timestamp of the message, only used if entryDue().
+     * @post The message is counted, and checkpointed as a new entry if its number is a multiple of STRIDE
+     * @throws IOException if the checkpoint could not be written
+     */
+    public synchronized void add(long position, long next, long timestamp) throws IOException {
+        if (entryDue()) {
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY).putLong(position).putLong(timestamp).flip();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                if (channel.size() == 0) {
+                    channel.write(ByteBuffer.wrap(MAGIC));
+                }
+                while (entry.hasRemaining()) {
+                    channel.write(entry);
+                }
+            }
+            addEntry(position, timestamp);
+        }
+        count++;
+        end = next;
+    }
+
+    /**
+     * @pre None
+     * @return the number of messages in the log, all of them in the index
+     */
+    public synchronized long count() {
+        return count;
+    }
+
+    /**
+     * @pre None
+     * @return the position after the last message in the index, where the next one is appended
+     */
+    public synchronized long end() {
+        return end;
+    }
+
+    /**
+     * @pre 0 <= message < count()
+     * @param message, the index of a message in the log.
+     * @return the position of the message (message / STRIDE) * STRIDE, the message is message % STRIDE records after it
+     */
+    public synchronized long seek(long message) {
+        return positions[(int) (message / STRIDE)];
+    }
+
+    private void addEntry(long position, long timestamp) {
+        if (entries == positions.length) {
+            positions = Arrays.copyOf(positions, entries * 2);
+            timestamps = Arrays.copyOf(timestamps, entries * 2);
+        }
+        positions[entries] = position;
+        timestamps[entries++] = timestamp;
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * Makes the small images shown in the chat in place of an uploaded image.
+ * The image is decoded with subsampling, only every n:th pixel is read, so a large photo never
+ * needs its full size in memory before it is scaled down.
+ *
+ * @author David
+ */
+public final class Thumbnails {
+    public static final int MAX_SIDE = 150;
+
+    private Thumbnails() {
+    }
+
+    /**
+     * @pre assumes image != null
+     * @param image, the file holding the image.
+     * @return the thumbnail encoded as JPEG, or PNG if the image is transparent, no side longer than MAX_SIDE.
+     *         null if the file is not an image ImageIO can read
+     * @throws IOException if the file could not be read
+     */
+    public static byte[] create(Path image) throws IOException {
+        BufferedImage source;
+        try (ImageInputStream in = ImageIO.createImageInputStream(image.toFile())) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, longest / (MAX_SIDE * 2)); // Keeps twice the pixels needed, for a smooth scale
+                param.setSourceSubsampling(step, step, 0, 0);
+                source = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        double scale = Math.min(1.0, (double) MAX_SIDE / Math.max(source.getWidth(), source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+        boolean transparent = source.getColorModel().hasAlpha();
+        BufferedImage thumbnail = new BufferedImage(width, height,
+                transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(thumbnail, transparent ? "png" : "jpg", out);
+        return out.toByteArray();
+    }
+}
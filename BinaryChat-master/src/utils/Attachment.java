@@ -0,0 +1,107 @@
+package utils;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Describes a file that was uploaded to the attachment server, sent in a Message instead of the file itself.
+ * The bytes are fetched separately over the attachment port, see AttachmentTransfer.
+ * An image carries the small thumbnail the server made of it, shown in the chat until the full image is opened.
+ *
+ * @author David
+ */
+public class Attachment implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+    private final long size;
+    private final String contentType;
+    private final byte[] thumbnail;
+
+    /**
+     * @pre assumes id && contentType != null, size >= 0
+     * @param id, the id the attachment server gave the file.
+     * @param size, the size of the file in bytes.
+     * @param contentType, the MIME type of the file, e.g. image/png
+     * @post Creates a descriptor with the given values
+     */
+    public Attachment(String id, long size, String contentType) {
+        this(id, size, contentType, null);
+    }
+
+    /**
+     * @pre assumes id && contentType != null, size >= 0
+     * @param id, the id the attachment server gave the file.
+     * @param size, the size of the file in bytes.
+     * @param contentType, the MIME type of the file, e.g. image/png
+     * @param thumbnail, the encoded thumbnail made by the server, or null if there is none.
+     * @post Creates a descriptor with the given values
+     */
+    public Attachment(String id, long size, String contentType, byte[] thumbnail) {
+        this.id = Objects.requireNonNull(id);
+        this.size = size;
+        this.contentType = Objects.requireNonNull(contentType);
+        this.thumbnail = thumbnail;
+    }
+
+    /**
+     * @pre None
+     * @return the id of the file on the attachment server
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @pre None
+     * @return the size of the file in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @pre None
+     * @return the MIME type of the file
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @pre None
+     * @return the encoded thumbnail, a JPEG or PNG, or null if the file has none. Must not be changed
+     */
+    public byte[] getThumbnail() {
+        return thumbnail;
+    }
+
+    /**
+     * @pre None
+     * @return true if the file is an image that can be shown in the chat
+     */
+    public boolean isImage() {
+        return contentType.startsWith("image/");
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Attachment)) {
+            return false;
+        }
+        return id.equals(((Attachment) other).id);
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return id + " (" + contentType + ", " + size + " bytes)";
+    }
+}
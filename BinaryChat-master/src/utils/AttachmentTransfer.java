@@ -0,0 +1,75 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The protocol spoken on the attachment port, next to the chat port so a big file never holds up chat messages.
+ * Every transfer uses a connection of its own, all numbers are big-endian and strings are written with writeUTF.
+ * Files travel in chunks of at most CHUNK_SIZE bytes, each chunk is an int length followed by the bytes.
+ * A stored file is named by the SHA-256 of its content (see sha256), so a file sent many times is stored once.
+ *   Upload:   client sends MAGIC, UPLOAD, upload id ("" for a new upload), SHA-256, content type and size (long).
+ *             Server answers EXISTS, the id and the thumbnail if it already has the file, the client sends nothing more.
+ *             Otherwise OK, the upload id and the offset to continue from (0 for a new upload),
+ *             or TOO_LARGE and the max size, or NOT_FOUND if the upload to resume is unknown.
+ *             Client sends chunks from the offset, the server answers every chunk with ACK and the new offset.
+ *             After the last chunk the server answers OK, the id of the stored file and the thumbnail,
+ *             or REJECTED if the file does not have the SHA-256 the client sent.
+ *             If the connection drops, the client reconnects with the upload id and continues from the last ACK.
+ *   Download: client sends MAGIC, DOWNLOAD, the id and the offset to start from (the bytes it already has).
+ *             Server answers OK and the size (long) followed by chunks from the offset, or NOT_FOUND.
+ *             If the connection drops, the client reconnects with the number of bytes it has written.
+ * A thumbnail is an int length followed by a JPEG or PNG of at most 150x150 pixels, length 0 if the file is no image.
+ * The server sends files with FileChannel.transferTo, so their bytes never pass through the Java heap.
+ *
+ * @author David
+ */
+public final class AttachmentTransfer {
+    public static final byte[] MAGIC = {'B', 'C', 'A', 4};
+    public static final byte UPLOAD = 'U';
+    public static final byte DOWNLOAD = 'D';
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    public static final byte OK = 0;
+    public static final byte NOT_FOUND = 1;
+    public static final byte REJECTED = 2;
+    public static final byte TOO_LARGE = 3;
+    public static final byte ACK = 4;
+    public static final byte EXISTS = 5;
+
+    private AttachmentTransfer() {
+    }
+
+    /**
+     * Reads the file through a small direct buffer, the file is never held in memory as a whole.
+     * @pre assumes file != null
+     * @param file, the file to be hashed, read from position 0 to its size.
+     * @return the SHA-256 of the file as 64 lower case hex digits, used as the id of the stored file
+     * @throws IOException if the file could not be read
+     */
+    public static String sha256(FileChannel file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Every Java platform has SHA-256
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long position = 0;
+        int read;
+        while ((read = file.read(buffer, position)) > 0) {
+            position += read;
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
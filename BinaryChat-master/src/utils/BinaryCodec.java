@@ -0,0 +1,479 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Encodes and decodes Message objects in the compact binary format, the alternative to Java serialization
+ * inside a frame. Agreed on in the CLIENT_INFO handshake, see Message.WireFormat.
+ * A frame body in this format is:
+ *   VERSION (1 byte), message type (1 byte), field mask (varint), then every field set in the mask in bit order.
+ * Strings are a varint byte length followed by UTF-8, users are sent as their name, numbers are varints,
+ * lists are a varint count followed by the items. An attachment is a kind byte followed by its data:
+ * ATTACHMENT_INLINE holds the bytes of a FileSerialized, ATTACHMENT_REFERENCE the id, size, content type
+ * and thumbnail bytes (length 0 when there is none) of a file on the attachment server. A message carries one or the other, the reference wins if both are set.
+ * The history starts of a chat history are a field of their own after it, a varint count of (user, start) pairs,
+ * so histories encoded before there were pages still decode.
+ * The time a message was sent is a varint of epoch milliseconds, TIMESTAMP. The formatted TIME is only written for
+ * a message saved by an older server without one, logs written by them still decode.
+ * The id and sequence number the server gives a chat message are one field, MESSAGE_ID, two varints set together.
+ * Unlike a serialized frame there are no class descriptors, and the first byte can never be the 0xAC
+ * that starts a serialized frame, which lets FrameCodec.decode read both formats.
+ * An encoder writes into one buffer that grows and is reused, so encoding creates no objects per field.
+ * Not thread safe, every writer keeps its own BinaryCodec.
+ *
+ * @author Lukas
+ */
+public final class BinaryCodec {
+    public static final byte VERSION = 1;
+    public static final byte ATTACHMENT_INLINE = 1;
+    public static final byte ATTACHMENT_REFERENCE = 2;
+
+    private static final int TIME = 1;
+    private static final int SENDER = 1 << 1;
+    private static final int RECEIVER = 1 << 2;
+    private static final int TEXT = 1 << 3;
+    private static final int FILE = 1 << 4;
+    private static final int ONLINE_USERS = 1 << 5;
+    private static final int OFFLINE_USERS = 1 << 6;
+    private static final int PRESENCE_VERSION = 1 << 7;
+    private static final int BASE_PRESENCE_VERSION = 1 << 8;
+    private static final int CHAT_HISTORY = 1 << 9;
+    private static final int WIRE_FORMAT = 1 << 10;
+    private static final int HISTORY_CURSOR = 1 << 11;
+    private static final int HISTORY_LIMIT = 1 << 12;
+    private static final int HISTORY_STARTS = 1 << 13;
+    private static final int TIMESTAMP = 1 << 14;
+    private static final int MESSAGE_ID = 1 << 15;
+
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    private static final Message.WireFormat[] WIRE_FORMATS = Message.WireFormat.values();
+
+    private byte[] buffer;
+    private int position;
+
+    /**
+     * @pre None
+     * @post Creates an encoder with a small buffer, it grows to fit the biggest message encoded
+     */
+    public BinaryCodec() {
+        this.buffer = new byte[256];
+    }
+
+    /**
+     * @pre assumes message != null
+     * @param message, the message to be encoded.
+     * @return the length of the encoded message, the bytes are at the start of buffer()
+     * @post buffer() holds the encoded message until the next call
+     */
+    public int encode(Message message) {
+        position = 0;
+        writeByte(VERSION);
+        writeMessage(message);
+        return position;
+    }
+
+    /**
+     * @pre None
+     * @return the buffer encode() writes to, valid up to the length returned by encode()
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * @pre assumes message != null
+     * @param message, the message to be encoded.
+     * @return a new array holding only the encoded message
+     */
+    public byte[] encodeToArray(Message message) {
+        return Arrays.copyOf(buffer, encode(message));
+    }
+
+    /**
+     * @pre assumes data != null
+     * @param data, the buffer holding the frame body.
+     * @param offset, where the frame body starts in data.
+     * @param length, the length of the frame body.
+     * @return true if the frame body is in this format
+     */
+    public static boolean isBinary(byte[] data, int offset, int length) {
+        return length > 0 && data[offset] == VERSION;
+    }
+
+    /**
+     * @pre assumes data != null
+     * @param data, the buffer holding the frame body.
+     * @param offset, where the frame body starts in data.
+     * @param length, the length of the frame body.
+     * @return the decoded message
+     * @post data is unchanged
+     * @throws IOException if the bytes are not a valid message of this VERSION
+     */
+    public static Message decode(byte[] data, int offset, int length) throws IOException {
+        if (!isBinary(data, offset, length)) {
+            throw new IOException("Unsupported binary message version");
+        }
+        Reader reader = new Reader(data, offset + 1, offset + length);
+        Message message = reader.readMessage(false);
+        if (reader.position != reader.limit) {
+            throw new IOException("Unexpected bytes after binary message");
+        }
+        return message;
+    }
+
+    private void writeMessage(Message message) {
+        writeByte(message.getMessageType() == null ? -1 : message.getMessageType().ordinal());
+        int fields = 0;
+        fields |= message.getTimestamp() == 0 && message.getTime() != null ? TIME : 0;
+        fields |= message.getSender() != null ? SENDER : 0;
+        fields |= message.getReceiver() != null ? RECEIVER : 0;
+        fields |= message.getText() != null ? TEXT : 0;
+        fields |= message.getFile() != null || message.getAttachment() != null ? FILE : 0;
+        fields |= message.getOnlineUsers() != null ? ONLINE_USERS : 0;
+        fields |= message.getOfflineUsers() != null ? OFFLINE_USERS : 0;
+        fields |= message.getPresenceVersion() != 0 ? PRESENCE_VERSION : 0;
+        fields |= message.getBasePresenceVersion() != 0 ? BASE_PRESENCE_VERSION : 0;
+        fields |= message.getChatHistory() != null ? CHAT_HISTORY : 0;
+        fields |= message.getWireFormat() != null ? WIRE_FORMAT : 0;
+        fields |= message.getHistoryCursor() != 0 ? HISTORY_CURSOR : 0;
+        fields |= message.getHistoryLimit() != 0 ? HISTORY_LIMIT : 0;
+        fields |= message.getChatHistory() != null && !message.getChatHistory().historyStarts().isEmpty() ? HISTORY_STARTS : 0;
+        fields |= message.getTimestamp() != 0 ? TIMESTAMP : 0;
+        fields |= message.getId() != 0 ? MESSAGE_ID : 0;
+        writeVarLong(fields);
+
+        if ((fields & TIME) != 0) {
+            writeString(message.getTime());
+        }
+        if ((fields & SENDER) != 0) {
+            writeUser(message.getSender());
+        }
+        if ((fields & RECEIVER) != 0) {
+            writeUser(message.getReceiver());
+        }
+        if ((fields & TEXT) != 0) {
+            writeString(message.getText());
+        }
+        if ((fields & FILE) != 0 && message.getAttachment() != null) {
+            Attachment attachment = message.getAttachment();
+            writeByte(ATTACHMENT_REFERENCE);
+            writeString(attachment.getId());
+            writeVarLong(attachment.getSize());
+            writeString(attachment.getContentType());
+            writeBytes(attachment.getThumbnail() != null ? attachment.getThumbnail() : new byte[0]);
+        } else if ((fields & FILE) != 0) {
+            writeByte(ATTACHMENT_INLINE);
+            writeBytes(message.getFile().getData());
+        }
+        if ((fields & ONLINE_USERS) != 0) {
+            writeUsers(message.getOnlineUsers());
+        }
+        if ((fields & OFFLINE_USERS) != 0) {
+            writeUsers(message.getOfflineUsers());
+        }
+        if ((fields & PRESENCE_VERSION) != 0) {
+            writeVarLong(message.getPresenceVersion());
+        }
+        if ((fields & BASE_PRESENCE_VERSION) != 0) {
+            writeVarLong(message.getBasePresenceVersion());
+        }
+        if ((fields & CHAT_HISTORY) != 0) {
+            writeChatHistory(message.getChatHistory());
+        }
+        if ((fields & WIRE_FORMAT) != 0) {
+            writeByte(message.getWireFormat().ordinal());
+        }
+        if ((fields & HISTORY_CURSOR) != 0) {
+            writeVarLong(message.getHistoryCursor());
+        }
+        if ((fields & HISTORY_LIMIT) != 0) {
+            writeVarLong(message.getHistoryLimit());
+        }
+        if ((fields & HISTORY_STARTS) != 0) {
+            Map<User, Long> starts = message.getChatHistory().historyStarts();
+            writeVarLong(starts.size());
+            for (Map.Entry<User, Long> start : starts.entrySet()) {
+                writeUser(start.getKey());
+                writeVarLong(start.getValue());
+            }
+        }
+        if ((fields & TIMESTAMP) != 0) {
+            writeVarLong(message.getTimestamp());
+        }
+        if ((fields & MESSAGE_ID) != 0) {
+            writeVarLong(message.getId());
+            writeVarLong(message.getSequence());
+        }
+    }
+
+    private void writeChatHistory(ChatHistory chatHistory) {
+        writeUser(chatHistory.getOwner());
+        Map<User, ArrayList<Message>> entries = chatHistory.entries();
+        writeVarLong(entries.size());
+        for (Map.Entry<User, ArrayList<Message>> entry : entries.entrySet()) {
+            writeUser(entry.getKey());
+            writeVarLong(entry.getValue().size());
+            for (Message message : entry.getValue()) {
+                writeMessage(message);
+            }
+        }
+    }
+
+    private void writeUsers(ArrayList<User> users) {
+        writeVarLong(users.size());
+        for (int i = 0; i < users.size(); i++) {
+            writeUser(users.get(i));
+        }
+    }
+
+    private void writeUser(User user) {
+        writeString(user.getName());
+    }
+
+    private void writeString(String value) {
+        int length = value.length();
+        int utf8Length = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                utf8Length++;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (!Character.isSurrogate(c)) {
+                utf8Length += 3;
+            } else if (isSurrogatePair(value, i)) {
+                utf8Length += 4;
+                i++;
+            } else {
+                utf8Length++; // A lone surrogate is written as '?', like String.getBytes(UTF_8) does
+            }
+        }
+        writeVarLong(utf8Length);
+        ensure(utf8Length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (!Character.isSurrogate(c)) {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (isSurrogatePair(value, i)) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                buffer[position++] = '?';
+            }
+        }
+    }
+
+    private static boolean isSurrogatePair(String value, int index) {
+        return Character.isHighSurrogate(value.charAt(index)) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1));
+    }
+
+    private void writeBytes(byte[] data) {
+        writeVarLong(data.length);
+        ensure(data.length);
+        System.arraycopy(data, 0, buffer, position, data.length);
+        position += data.length;
+    }
+
+    private void writeVarLong(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeByte(int value) {
+        ensure(1);
+        buffer[position++] = (byte) value;
+    }
+
+    private void ensure(int bytes) {
+        if (position + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+        }
+    }
+
+    /**
+     * Reads one frame body, never past its limit. A chat history holds messages, but never another chat history,
+     * so a frame cannot nest histories deep enough to overflow the stack of the reading thread.
+     */
+    private static final class Reader {
+        private final byte[] data;
+        private final int limit;
+        private int position;
+
+        private Reader(byte[] data, int position, int limit) {
+            this.data = data;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        private Message readMessage(boolean inHistory) throws IOException {
+            int type = readByte();
+            if (type >= TYPES.length) {
+                throw new IOException("Unknown message type " + type);
+            }
+            long fields = readVarLong();
+            if (inHistory && (fields & CHAT_HISTORY) != 0) {
+                throw new IOException("Chat history inside a chat history");
+            }
+            Message.Builder builder = Message.builder().messageType(type < 0 ? null : TYPES[type]);
+            ChatHistory chatHistory = null;
+
+            if ((fields & TIME) != 0) {
+                builder.time(readString());
+            }
+            if ((fields & SENDER) != 0) {
+                builder.sender(readUser());
+            }
+            if ((fields & RECEIVER) != 0) {
+                builder.receiver(readUser());
+            }
+            if ((fields & TEXT) != 0) {
+                builder.text(readString());
+            }
+            if ((fields & FILE) != 0) {
+                byte kind = readByte();
+                if (kind == ATTACHMENT_REFERENCE) {
+                    String id = readString();
+                    long size = readVarLong();
+                    String contentType = readString();
+                    byte[] thumbnail = readBytes();
+                    builder.attachment(new Attachment(id, size, contentType, thumbnail.length > 0 ? thumbnail : null));
+                } else if (kind == ATTACHMENT_INLINE) {
+                    builder.file(new FileSerialized(readBytes()));
+                } else {
+                    throw new IOException("Unknown attachment kind " + kind);
+                }
+            }
+            if ((fields & ONLINE_USERS) != 0) {
+                builder.onlineUsers(readUsers());
+            }
+            if ((fields & OFFLINE_USERS) != 0) {
+                builder.offlineUsers(readUsers());
+            }
+            if ((fields & PRESENCE_VERSION) != 0) {
+                builder.presenceVersion(readVarLong());
+            }
+            if ((fields & BASE_PRESENCE_VERSION) != 0) {
+                builder.basePresenceVersion(readVarLong());
+            }
+            if ((fields & CHAT_HISTORY) != 0) {
+                chatHistory = readChatHistory();
+                builder.chatHistory(chatHistory);
+            }
+            if ((fields & WIRE_FORMAT) != 0) {
+                int format = readByte();
+                builder.wireFormat(format >= 0 && format < WIRE_FORMATS.length ? WIRE_FORMATS[format] : null);
+            }
+            if ((fields & HISTORY_CURSOR) != 0) {
+                builder.historyCursor(readVarLong());
+            }
+            if ((fields & HISTORY_LIMIT) != 0) {
+                builder.historyLimit((int) readVarLong());
+            }
+            if ((fields & HISTORY_STARTS) != 0) {
+                if (chatHistory == null) {
+                    throw new IOException("History starts without a chat history");
+                }
+                int count = readLength();
+                for (int i = 0; i < count; i++) {
+                    chatHistory.setHistoryStart(readUser(), readVarLong());
+                }
+            }
+            if ((fields & TIMESTAMP) != 0) {
+                builder.timestamp(readVarLong());
+            }
+            if ((fields & MESSAGE_ID) != 0) {
+                builder.identity(readVarLong(), readVarLong());
+            }
+            return builder.build();
+        }
+
+        private ChatHistory readChatHistory() throws IOException {
+            ChatHistory chatHistory = new ChatHistory(readUser());
+            Map<User, ArrayList<Message>> entries = chatHistory.entries();
+            int partners = readLength();
+            for (int i = 0; i < partners; i++) {
+                User partner = readUser();
+                int count = readLength();
+                ArrayList<Message> messages = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    messages.add(readMessage(true));
+                }
+                entries.put(partner, messages);
+            }
+            return chatHistory;
+        }
+
+        private ArrayList<User> readUsers() throws IOException {
+            int count = readLength();
+            ArrayList<User> users = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                users.add(readUser());
+            }
+            return users;
+        }
+
+        private User readUser() throws IOException {
+            return new User(readString());
+        }
+
+        private String readString() throws IOException {
+            int length = readLength();
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        private byte[] readBytes() throws IOException {
+            int length = readLength();
+            byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        private int readLength() throws IOException {
+            long length = readVarLong();
+            if (length < 0 || length > limit - position) {
+                throw new IOException("Invalid length in binary message: " + length);
+            }
+            return (int) length;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in binary message");
+        }
+
+        private byte readByte() throws IOException {
+            if (position >= limit) {
+                throw new IOException("Truncated binary message");
+            }
+            return data[position++];
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCodecTest {
+
+    BinaryCodec codec;
+    User alice;
+    User bob;
+
+    @BeforeEach
+    void setUp() {
+        codec = new BinaryCodec();
+        alice = new User("Alice");
+        bob = new User("Bob åäö 😀");
+    }
+
+    private Message roundTrip(Message message) throws Exception {
+        int length = codec.encode(message);
+        byte[] frame = new byte[length + 3];
+        System.arraycopy(codec.buffer(), 0, frame, 3, length);
+        return FrameCodec.decode(frame, 3, length);
+    }
+
+    @Test
+    void regularMessage() throws Exception {
+        Message message = Message.builder()
+                .sender(alice)
+                .receiver(bob)
+                .text("hej 😀 ö")
+                .file(new FileSerialized(new byte[]{1, 2, 3}))
+                .build();
+
+        Message decoded = roundTrip(message);
+
+        assertEquals(Message.MessageType.REGULAR_MESSAGE, decoded.getMessageType());
+        assertEquals(alice, decoded.getSender());
+        assertEquals(bob, decoded.getReceiver());
+        assertEquals(message.getText(), decoded.getText());
+        assertEquals(message.getTimestamp(), decoded.getTimestamp());
+        assertNull(decoded.getTime());
+        assertArrayEquals(new byte[]{1, 2, 3}, decoded.getFile().getData());
+        assertNull(decoded.getOnlineUsers());
+        assertNull(decoded.getChatHistory());
+    }
+
+    /**
+     * Tests that a message saved by an older server keeps its formatted time and gets no timestamp
+     */
+    @Test
+    void legacyTimeWithoutTimestamp() throws Exception {
+        Message decoded = roundTrip(Message.builder()
+                .sender(alice)
+                .receiver(bob)
+                .text("old")
+                .time("12:34:56")
+                .build());
+
+        assertEquals("12:34:56", decoded.getTime());
+        assertEquals(0, decoded.getTimestamp());
+    }
+
+    @Test
+    void idAndSequence() throws Exception {
+        Message message = Message.builder()
+                .sender(alice)
+                .receiver(bob)
+                .text("numbered")
+                .timestamp(1_700_000_000_000L)
+                .build();
+        message.setId(0x1234_5678_9abc_def0L);
+        message.setSequence(41);
+
+        Message decoded = roundTrip(message);
+
+        assertEquals(message.getId(), decoded.getId());
+        assertEquals(41, decoded.getSequence());
+        assertEquals(0, roundTrip(Message.builder().sender(alice).receiver(bob).text("not routed").build()).getId());
+    }
+
+    @Test
+    void attachmentReference() throws Exception {
+        byte[] thumbnail = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3};
+        Attachment attachment = new Attachment("29c340be-8c29-4a9e-8d24-cef6e2fb0441", 5_000_000, "image/png", thumbnail);
+        Message decoded = roundTrip(Message.builder()
+                .sender(alice)
+                .receiver(bob)
+                .text("")
+                .attachment(attachment)
+                .build());
+
+        assertEquals(attachment, decoded.getAttachment());
+        assertEquals(5_000_000, decoded.getAttachment().getSize());
+        assertTrue(decoded.getAttachment().isImage());
+        assertArrayEquals(thumbnail, decoded.getAttachment().getThumbnail());
+        assertNull(decoded.getFile());
+    }
+
+    @Test
+    void presenceAndClientInfo() throws Exception {
+        ArrayList<User> joined = new ArrayList<>();
+        joined.add(alice);
+        Message delta = roundTrip(Message.builder()
+                .messageType(Message.MessageType.PRESENCE_DELTA)
+                .onlineUsers(joined)
+                .offlineUsers(new ArrayList<>())
+                .basePresenceVersion(300)
+                .presenceVersion(301)
+                .build());
+        assertEquals(joined, delta.getOnlineUsers());
+        assertTrue(delta.getOfflineUsers().isEmpty());
+        assertEquals(300, delta.getBasePresenceVersion());
+        assertEquals(301, delta.getPresenceVersion());
+
+        Message info = roundTrip(Message.builder()
+                .messageType(Message.MessageType.CLIENT_INFO)
+                .text("OK")
+                .wireFormat(Message.WireFormat.BINARY)
+                .build());
+        assertEquals("OK", info.getText());
+        assertEquals(Message.WireFormat.BINARY, info.getWireFormat());
+        assertNull(info.getSender());
+    }
+
+    @Test
+    void chatHistory() throws Exception {
+        ChatHistory history = new ChatHistory(alice);
+        history.addHistory(alice, bob, Message.builder().sender(alice).receiver(bob).text("1").build());
+        history.addHistory(bob, alice, Message.builder().sender(bob).receiver(alice).text("2").build());
+
+        Message decoded = roundTrip(Message.builder()
+                .messageType(Message.MessageType.CHAT_HISTORY)
+                .chatHistory(history)
+                .build());
+
+        ArrayList<Message> messages = decoded.getChatHistory().getHistory(bob);
+        assertEquals(2, messages.size());
+        assertEquals("1", messages.get(0).getText());
+        assertEquals(bob, messages.get(1).getSender());
+    }
+
+    @Test
+    void historyPage() throws Exception {
+        Message request = roundTrip(Message.builder()
+                .messageType(Message.MessageType.HISTORY_PAGE)
+                .sender(alice)
+                .receiver(bob)
+                .historyCursor(120)
+                .historyLimit(50)
+                .build());
+        assertEquals(Message.MessageType.HISTORY_PAGE, request.getMessageType());
+        assertEquals(120, request.getHistoryCursor());
+        assertEquals(50, request.getHistoryLimit());
+
+        ChatHistory page = new ChatHistory(alice);
+        page.addOlderHistory(bob, List.of(Message.builder().sender(bob).receiver(alice).text("70").build()), 70);
+        ChatHistory decoded = roundTrip(Message.builder()
+                .messageType(Message.MessageType.HISTORY_PAGE)
+                .chatHistory(page)
+                .build()).getChatHistory();
+        assertEquals(70, decoded.getHistoryStart(bob));
+        assertEquals("70", decoded.getHistory(bob).get(0).getText());
+        assertEquals(0, decoded.getHistoryStart(alice));
+    }
+
+    /**
+     * Tests that a serialized frame is still decoded, and that a cut off binary frame is rejected
+     */
+    @Test
+    void readsBothFormatsAndRejectsTruncated() throws Exception {
+        Message message = Message.builder().sender(alice).receiver(bob).text("hej").build();
+        byte[] serialized = FrameCodec.encode(message);
+        assertFalse(BinaryCodec.isBinary(serialized, 0, serialized.length));
+        assertEquals("hej", FrameCodec.decode(serialized, 0, serialized.length).getText());
+
+        int length = codec.encode(message);
+        assertTrue(length < serialized.length);
+        assertThrows(IOException.class, () -> BinaryCodec.decode(codec.buffer(), 0, length - 1));
+    }
+
+    /**
+     * Tests that a number cut off at the end of the frame is not read from the bytes after it
+     */
+    @Test
+    void neverReadsPastTheFrame() throws Exception {
+        int length = codec.encode(Message.builder()
+                .messageType(Message.MessageType.PRESENCE_DELTA)
+                .presenceVersion(300)
+                .build());
+        byte[] data = Arrays.copyOf(codec.buffer(), length + 1);
+        assertThrows(IOException.class, () -> BinaryCodec.decode(data, 0, length - 1));
+    }
+
+    /**
+     * Tests that a chat history holding a message with a chat history is rejected, however deep it would nest
+     */
+    @Test
+    void nestedChatHistoryIsRejected() throws Exception {
+        ChatHistory inner = new ChatHistory(alice);
+        inner.addHistory(alice, bob, Message.builder().sender(alice).receiver(bob).text("1").build());
+        ChatHistory outer = new ChatHistory(alice);
+        outer.addHistory(alice, bob, Message.builder().sender(alice).receiver(bob).chatHistory(inner).build());
+        int length = codec.encode(Message.builder()
+                .messageType(Message.MessageType.CHAT_HISTORY)
+                .chatHistory(outer)
+                .build());
+        assertThrows(IOException.class, () -> BinaryCodec.decode(codec.buffer(), 0, length));
+    }
+}
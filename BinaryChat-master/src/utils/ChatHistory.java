@@ -2,18 +2,26 @@ package utils;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * Keeps a hashmap that stores a chat history array for each user(key)
  * that has communicated with the current user on this client.
+ * The array can hold only the newest part of a conversation, the history start tells where in the
+ * conversation it begins and older pages are added in front of it.
  *
  * @author Ebrahim
  */
 public class ChatHistory implements Serializable {
+    private static final long serialVersionUID = 7423247342640632406L;
     private final User user;
     private final HashMap<User, ArrayList<Message>> chatHistory;
+    private HashMap<User, Long> historyStarts; // null in histories saved before there were pages
 
     /**
      * @pre Assumes user != null
@@ -27,6 +35,82 @@ public class ChatHistory implements Serializable {
         chatHistory = new HashMap<>();
     }
 
+    /**
+     * @pre None
+     * @return the user the chat history belongs to
+     * @post user is unchanged
+     */
+    User getOwner() {
+        return user;
+    }
+
+    /**
+     * Used by BinaryCodec to encode and decode the whole history.
+     * @pre None
+     * @return the history of every user chatted with, keyed by that user. Not a copy.
+     */
+    Map<User, ArrayList<Message>> entries() {
+        return chatHistory;
+    }
+
+    /**
+     * @pre None
+     * @return the users the current user has a chat history with.
+     * @post chatHistory is unchanged.
+     */
+    public Set<User> getChatPartners() {
+        return Collections.unmodifiableSet(chatHistory.keySet());
+    }
+
+    /**
+     * Used by BinaryCodec to encode and decode where each conversation starts.
+     * @pre None
+     * @return the history start of every conversation that does not start at 0. Not a copy.
+     */
+    Map<User, Long> historyStarts() {
+        if (historyStarts == null) {
+            historyStarts = new HashMap<>();
+        }
+        return historyStarts;
+    }
+
+    /**
+     * @pre assumes receiver != null
+     * @param receiver, the user the conversation is with.
+     * @return the sequence number of the first message held, 0 if it is held from its start.
+     * @post chatHistory is unchanged.
+     */
+    public long getHistoryStart(User receiver) {
+        Long start = historyStarts == null ? null : historyStarts.get(receiver);
+        return start == null ? 0 : start;
+    }
+
+    /**
+     * @pre assumes receiver != null, start >= 0
+     * @param receiver, the user the conversation is with.
+     * @param start, the sequence number of the first message held.
+     * @post The history start of the conversation is set
+     */
+    public void setHistoryStart(User receiver, long start) {
+        if (start == 0) {
+            historyStarts().remove(receiver);
+        } else {
+            historyStarts().put(receiver, start);
+        }
+    }
+
+    /**
+     * @pre assumes receiver && page != null, start >= 0
+     * @param receiver, the user the conversation is with.
+     * @param page, the messages just before the first message held, oldest first.
+     * @param start, the sequence number of the first message of the page.
+     * @post The page is put in front of the conversation, which now starts at start
+     */
+    public void addOlderHistory(User receiver, List<Message> page, long start) {
+        chatHistory.computeIfAbsent(receiver, user -> new ArrayList<>()).addAll(0, page);
+        setHistoryStart(receiver, start);
+    }
+
     private void createNewHistory(User receiver) {
         chatHistory.put(receiver, new ArrayList<Message>());
     }
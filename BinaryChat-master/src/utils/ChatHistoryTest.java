@@ -96,5 +96,21 @@ class ChatHistoryTest {
         assertEquals(2, history.getHistory(testUser2).size());
     }
 
-}
 
+    /**
+     * Tests that an older page goes in front of the conversation and moves its start
+     */
+    @Test
+    void addOlderHistoryPrependsPage() {
+        var history = new ChatHistory(testUser1);
+        history.addHistory(testUser2, testUser1, testMessage);
+        history.setHistoryStart(testUser2, 5);
+
+        history.addOlderHistory(testUser2, java.util.List.of(testMessage2), 4);
+
+        assertEquals(4, history.getHistoryStart(testUser2));
+        assertSame(testMessage2, history.getHistory(testUser2).get(0));
+        assertSame(testMessage, history.getHistory(testUser2).get(1));
+        assertEquals(0, history.getHistoryStart(new User("nobody")));
+    }
+}
@@ -9,6 +9,7 @@ import java.io.*;
  * @author David
  */
 public class FileSerialized implements Serializable {
+    private static final long serialVersionUID = -6273478205942741245L;
     private final byte[] data;
 
     /**
@@ -26,6 +27,16 @@ public class FileSerialized implements Serializable {
             fileInputStream.read(data);
         }
     }
+    /**
+     * Used by BinaryCodec when a file is decoded.
+     * @pre assumes data != null
+     * @param data, the contents of the file.
+     * @post this.data = data
+     */
+    FileSerialized(byte[] data) {
+        this.data = data;
+    }
+
     /**
      * @pre None
      * @return the byte[] data holding the file.
@@ -0,0 +1,126 @@
+package utils;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes Message objects as self contained frames.
+ * A framed stream starts with the PREAMBLE, after that every frame is a 4 byte big-endian length
+ * followed by that many bytes holding one Message written with its own ObjectOutputStream.
+ * Since every frame is decoded on its own, a reader can tell exactly where a message ends
+ * without blocking, which is what the non-blocking server needs.
+ * Once the binary format is agreed on in the handshake the frame bodies are written by BinaryCodec instead,
+ * decode() reads both since a serialized body always starts with 0xAC.
+ *
+ * @author Lukas
+ */
+public final class FrameCodec {
+    /**
+     * Sent first by clients using the framed protocol. Can never be confused with the 0xACED magic
+     * that starts a plain ObjectOutputStream.
+     */
+    public static final byte[] PREAMBLE = {'B', 'C', 'H', 1};
+    public static final int HEADER_LENGTH = 4;
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    /** The largest frame read before the client logged in, a CLIENT_INFO is far smaller */
+    public static final int MAX_HANDSHAKE_LENGTH = 8 * 1024;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * @pre assumes message != null
+     * @param message, the message to be encoded.
+     * @return the serialized message, without the length header.
+     * @post message is unchanged
+     * @throws IOException if the message could not be serialized
+     */
+    public static byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes a whole frame, header included. The frame of a broadcast message is kept in the message,
+     * so sending it to N users costs one encoding and N writes of the same bytes.
+     * Two writers may both encode a frame the first time, they produce equal bytes and either is kept.
+     * @pre assumes message != null
+     * @param message, the message to be encoded.
+     * @param format, the wire format of the receiver.
+     * @return the frame, must not be modified since it may be shared
+     * @post message is unchanged, except that a broadcast message now holds its frame for format
+     * @throws IOException if the message could not be serialized
+     */
+    public static byte[] frame(Message message, Message.WireFormat format) throws IOException {
+        byte[] frame = message.cachedFrame(format);
+        if (frame != null) {
+            return frame;
+        }
+        byte[] body = format == Message.WireFormat.BINARY ? new BinaryCodec().encodeToArray(message) : encode(message);
+        frame = new byte[HEADER_LENGTH + body.length];
+        frame[0] = (byte) (body.length >>> 24);
+        frame[1] = (byte) (body.length >>> 16);
+        frame[2] = (byte) (body.length >>> 8);
+        frame[3] = (byte) body.length;
+        System.arraycopy(body, 0, frame, HEADER_LENGTH, body.length);
+        if (message.isBroadcast()) {
+            message.cacheFrame(format, frame);
+        }
+        return frame;
+    }
+
+    /**
+     * @pre assumes data != null
+     * @param data, the buffer holding the frame body.
+     * @param offset, where the frame body starts in data.
+     * @param length, the length of the frame body.
+     * @return the decoded message, from either a serialized or a binary frame body
+     * @post data is unchanged
+     * @throws IOException if the bytes could not be decoded
+     * @throws ClassNotFoundException if the frame does not hold a known class
+     */
+    public static Message decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        if (BinaryCodec.isBinary(data, offset, length)) {
+            return BinaryCodec.decode(data, offset, length);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length))) {
+            return (Message) in.readObject();
+        }
+    }
+
+    /**
+     * @pre None
+     * @param length, the length read from a frame header.
+     * @post throws if the length can not belong to a valid frame.
+     * @throws IOException if length < 0 || length > MAX_FRAME_LENGTH
+     */
+    public static void checkLength(int length) throws IOException {
+        checkLength(length, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * @pre 0 <= max <= MAX_FRAME_LENGTH
+     * @param length, the length read from a frame header.
+     * @param max, the largest frame allowed at this point of the connection, e.g. MAX_HANDSHAKE_LENGTH.
+     * @post throws if the length can not belong to a valid frame.
+     * @throws IOException if length < 0 || length > max
+     */
+    public static void checkLength(int length, int max) throws IOException {
+        if (length < 0 || length > max) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * @pre assumes head != null
+     * @param head, the first bytes received on a connection.
+     * @return true if head starts with the PREAMBLE
+     * @post head is unchanged
+     */
+    public static boolean isPreamble(byte[] head) {
+        return head.length >= PREAMBLE.length && Arrays.equals(head, 0, PREAMBLE.length, PREAMBLE, 0, PREAMBLE.length);
+    }
+}
@@ -0,0 +1,90 @@
+package utils;
+
+import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The framed protocol, every message is sent as a length-prefixed frame encoded by FrameCodec,
+ * or by BinaryCodec once useBinary() is called.
+ *
+ * @author Lukas
+ */
+public class FramedMessageStream implements MessageStream {
+    private final ReentrantLock writeLock = new ReentrantLock(); // Not synchronized, so writers on virtual threads don't pin
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final BinaryCodec binaryCodec = new BinaryCodec(); // Only used while holding writeLock
+    private volatile boolean binary;
+
+    /**
+     * @pre assumes in && out != null, the PREAMBLE is already handled by the caller.
+     * @param in, the stream to read frames from.
+     * @param out, the stream to write frames to.
+     * @post Wraps the streams in buffered data streams
+     */
+    public FramedMessageStream(InputStream in, OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    @Override
+    public void write(Message message) throws IOException {
+        if (message.isBroadcast()) {
+            writeFrame(FrameCodec.frame(message, binary ? Message.WireFormat.BINARY : Message.WireFormat.SERIALIZED));
+            return;
+        }
+        byte[] body = binary ? null : FrameCodec.encode(message);
+        writeLock.lock();
+        try {
+            if (body == null) {
+                int length = binaryCodec.encode(message);
+                out.writeInt(length);
+                out.write(binaryCodec.buffer(), 0, length);
+            } else {
+                out.writeInt(body.length);
+                out.write(body);
+            }
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeFrame(byte[] frame) throws IOException {
+        writeLock.lock();
+        try {
+            out.write(frame);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Message read() throws IOException, ClassNotFoundException {
+        int length = in.readInt();
+        FrameCodec.checkLength(length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return FrameCodec.decode(body, 0, length);
+    }
+
+    @Override
+    public boolean supportsBinary() {
+        return true;
+    }
+
+    @Override
+    public void useBinary() {
+        binary = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+}
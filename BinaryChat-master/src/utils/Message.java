@@ -1,30 +1,52 @@
 package utils;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.text.DateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.Locale;
 
 /** The Message class´s purpose is to hold different information that is sent between the client and the server.
  *  The message class can create different types of messages, and is determined of the Enum MessageType.
- *  MessageType = Regular_message: Holds information belonging to chat-messages sent between two users, such as sender,receiver,text,file
- *  MessageType = Chat_history: Holds a whole class "Chathistory" and can be used when getting chathistory from server
- *  MessageType = Client_list: Holds an Arraylist containing users online. Used for updating the clients userlist
- *  MessageType = Client_Info, used for sending the username belonging to the client to the server when connecting
+ *  MessageType = Regular_message: Holds information belonging to chat-messages sent between two users, such as sender,receiver,text,
+ *                and an attachment describing a file on the attachment server (file is only set in messages from older clients)
+ *  MessageType = Chat_history: Holds a class "Chathistory" sent at login, with the most recent page of every conversation
+ *  MessageType = History_page: Sent by a client with the receiver, historyCursor and historyLimit to ask for the messages
+ *                of a conversation before the cursor. The answer holds them as a Chathistory with one conversation.
+ *  MessageType = Client_list: Holds an Arraylist containing users online and the presence version it matches. Used for updating the clients userlist
+ *  MessageType = Presence_delta: Holds the users that joined (onlineUsers) and left (offlineUsers) between two presence versions
+ *  MessageType = Presence_resync: Sent by a client that missed a presence version, the server answers with a Client_list
+ *  MessageType = Message_saved: Sent to a client using the binary protocol once a message it sent is saved as the server
+ *                promises, with the sender, receiver, id, sequence number and timestamp the server gave the message
+ *  MessageType = Client_Info, used for sending the username belonging to the client to the server when connecting.
+ *                The client sets wireFormat to ask for the binary protocol, the answer tells if the server agreed.
  *  MessageType = Exit, used for disconnecting the connection between server and client.
  *  MessageType = VALIDATE. Used in validation process.
+ *  A message carries the time it was sent as epoch milliseconds, set when it is built and again by the server when it
+ *  arrives there, so the clock of the server orders the messages of every client. Clients format it when it is shown.
+ *  The server also gives a chat message an id unique among its messages and its sequence number in the conversation,
+ *  higher than that of every message before it. Both are 0 for a message the server has not routed.
  *
  * @author Lukas
  */
 public class Message implements Serializable {
+    // Pinned to the value computed for the original class, so saved chat histories still load when fields are added
+    private static final long serialVersionUID = -4119898310032206763L;
+
+    // Older servers and clients only know the time formatted, see getTime()
+    private static final DateTimeFormatter LEGACY_TIME = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
 
     private String time;
+    private long timestamp;
+    private long id;
+    private long sequence;
     /**
      * Enumerates the types of messages that can be sent.
      */
     public enum MessageType {
-        REGULAR_MESSAGE, CHAT_HISTORY, CLIENT_LIST, CLIENT_INFO
+        REGULAR_MESSAGE, CHAT_HISTORY, CLIENT_LIST, CLIENT_INFO, PRESENCE_DELTA, PRESENCE_RESYNC, HISTORY_PAGE, MESSAGE_SAVED
     }
     /**
      * Enumerates the possible validation results when validating a user.
@@ -32,13 +54,30 @@ public class Message implements Serializable {
     public enum VALIDATE {
         ALLOWED, DENIED, NETWORK_ERROR
     }
+    /**
+     * Enumerates how messages are encoded in frames, see FrameCodec and BinaryCodec.
+     */
+    public enum WireFormat {
+        SERIALIZED, BINARY
+    }
     private final MessageType messageType;
     private final ArrayList<User> onlineUsers;
+    private final ArrayList<User> offlineUsers;
+    private final long presenceVersion;
+    private final long basePresenceVersion;
     private final ChatHistory chatHistory;
     private final User sender;
     private final User receiver;
     private final String text;
     private final FileSerialized file;
+    private Attachment attachment;
+    private final WireFormat wireFormat;
+    private final boolean broadcast;
+    private final long historyCursor;
+    private final int historyLimit;
+    // The frames of a broadcast message, encoded by the first writer and shared by all others (see FrameCodec.frame)
+    private transient volatile byte[] serializedFrame;
+    private transient volatile byte[] binaryFrame;
 
     /**
      * @return A new instance of the Message.Builder class.
@@ -57,26 +96,106 @@ public class Message implements Serializable {
      * @param onlineUsers, the arraylist containing users online on the server
      * @param chatHistory, the instance of the class Chathistory to be added to the message.
      * @post Constructs a new Message instance with the given parameters. Which some can be null
-     *       Creates a new locale, language = Swedish, Country = Sweden
-     *       Creates new dateformat = current timeformat in locale (Sweden)
-     *       Set the time to current time when the message was created
+     *       Set the timestamp to current time when the message was created
      */
     public Message(User sender, User receiver, FileSerialized file, String text, MessageType messageType, ArrayList<User> onlineUsers, ChatHistory chatHistory) {
-        this.sender = sender;
-        this.receiver = receiver;
-        this.file = file;
-        this.text = text;
-        this.messageType = messageType;
-        this.onlineUsers = onlineUsers;
-        this.chatHistory = chatHistory;
+        this(builder()
+                .sender(sender)
+                .receiver(receiver)
+                .file(file)
+                .text(text)
+                .messageType(messageType)
+                .onlineUsers(onlineUsers)
+                .chatHistory(chatHistory));
+    }
+
+    private Message(Builder builder) {
+        this.sender = builder.sender;
+        this.receiver = builder.receiver;
+        this.file = builder.file;
+        this.attachment = builder.attachment;
+        this.text = builder.text;
+        this.messageType = builder.messageType;
+        this.onlineUsers = builder.onlineUsers;
+        this.offlineUsers = builder.offlineUsers;
+        this.presenceVersion = builder.presenceVersion;
+        this.basePresenceVersion = builder.basePresenceVersion;
+        this.chatHistory = builder.chatHistory;
+        this.wireFormat = builder.wireFormat;
+        this.broadcast = builder.broadcast;
+        this.historyCursor = builder.historyCursor;
+        this.historyLimit = builder.historyLimit;
+
+        this.time = builder.time;
+        this.id = builder.id;
+        this.sequence = builder.sequence;
+        // A decoded message keeps the time it was sent, one saved by an older server only has it formatted
+        this.timestamp = builder.timestamp != 0 || builder.time != null ? builder.timestamp : System.currentTimeMillis();
+    }
+
+    /**
+     * @pre None
+     * @return The time at which the message was sent in milliseconds since the epoch, 0 for a message saved by an
+     *         older server that only has getTime()
+     * @post timestamp is unchanged
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Used by the server when a message arrives, before it is saved or forwarded.
+     * @pre timestamp > 0
+     * @param timestamp, the time the server got the message in milliseconds since the epoch.
+     * @post getTimestamp() == timestamp
+     */
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @pre None
+     * @return The id the server gave the message when it routed it, see server.MessageIds. 0 if it has none
+     * @post id is unchanged
+     */
+    public long getId() {
+        return id;
+    }
 
-        Locale locale = new Locale("se", "SE");
-        DateFormat dateFormat = DateFormat.getTimeInstance(DateFormat.DEFAULT, locale);
-        this.time = dateFormat.format(new Date()); // Time format 00:00:00
+    /**
+     * Used by the server when it routes a message.
+     * @pre id != 0
+     * @param id, the id the server gives the message.
+     * @post getId() == id
+     */
+    public void setId(long id) {
+        this.id = id;
     }
+
     /**
      * @pre None
-     * @return The time at which the message was sent.
+     * @return The sequence number of the message in its conversation, given by the server when it saved it, it grows
+     *         with every message but may skip some. Only set if getId() != 0
+     * @post sequence is unchanged
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Used by the server when it saves a message.
+     * @pre sequence >= 0
+     * @param sequence, the sequence number of the message in its conversation.
+     * @post getSequence() == sequence
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @pre None
+     * @return The time of day at which a message saved by an older server was sent, formatted 00:00:00 by it.
+     *         Null for other messages, see getTimestamp()
      * @post Time is unchanged
      */
     public String getTime() {
@@ -119,6 +238,56 @@ public class Message implements Serializable {
         return file;
     }
 
+    /**
+     * @pre None
+     * @return The descriptor of the file attached to the message, null if there is none
+     * @post attachment is unchanged
+     */
+    public Attachment getAttachment() {
+        return attachment;
+    }
+
+    /**
+     * Used by the server when it routes a message, the thumbnail sent by the client is dropped before it is saved.
+     * @pre None
+     * @param attachment, the descriptor of the file as the server stores it.
+     * @post getAttachment() == attachment
+     */
+    public void setAttachment(Attachment attachment) {
+        this.attachment = attachment;
+    }
+
+    /**
+     * Used by the server to hand a stored message to a client with the thumbnail of its attachment, the stored
+     * message is shared and must not be changed.
+     * @pre None
+     * @param attachment, the descriptor the copy carries.
+     * @return a copy of the message with the attachment instead of its own, every other field the same
+     * @post this message is unchanged
+     */
+    public Message withAttachment(Attachment attachment) {
+        Builder copy = builder()
+                .sender(sender)
+                .receiver(receiver)
+                .file(file)
+                .attachment(attachment)
+                .text(text)
+                .messageType(messageType)
+                .onlineUsers(onlineUsers)
+                .offlineUsers(offlineUsers)
+                .presenceVersion(presenceVersion)
+                .basePresenceVersion(basePresenceVersion)
+                .chatHistory(chatHistory)
+                .wireFormat(wireFormat)
+                .broadcast(broadcast)
+                .historyCursor(historyCursor)
+                .historyLimit(historyLimit)
+                .time(time)
+                .timestamp(timestamp)
+                .identity(id, sequence);
+        return copy.build();
+    }
+
     /**
      * @pre None
      * @return The messageType of the message
@@ -137,6 +306,81 @@ public class Message implements Serializable {
         return onlineUsers;
     }
 
+    /**
+     * @pre None
+     * @return The users that went offline in a PRESENCE_DELTA message
+     * @post offlineUsers is unchanged
+     */
+    public ArrayList<User> getOfflineUsers() {
+        return offlineUsers;
+    }
+
+    /**
+     * @pre None
+     * @return The presence version of a CLIENT_LIST, or the version reached by applying a PRESENCE_DELTA
+     * @post presenceVersion is unchanged
+     */
+    public long getPresenceVersion() {
+        return presenceVersion;
+    }
+
+    /**
+     * @pre None
+     * @return The presence version a PRESENCE_DELTA must be applied on
+     * @post basePresenceVersion is unchanged
+     */
+    public long getBasePresenceVersion() {
+        return basePresenceVersion;
+    }
+
+    /**
+     * @pre None
+     * @return The wire format asked for or agreed on in a CLIENT_INFO message, null if not set
+     * @post wireFormat is unchanged
+     */
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * @pre None
+     * @return true if the message is sent to many users and its encoded frame is shared
+     * @post broadcast is unchanged
+     */
+    public boolean isBroadcast() {
+        return broadcast;
+    }
+
+    /**
+     * @pre None
+     * @return The sequence number a HISTORY_PAGE request asks for the messages before
+     * @post historyCursor is unchanged
+     */
+    public long getHistoryCursor() {
+        return historyCursor;
+    }
+
+    /**
+     * @pre None
+     * @return The max number of messages a HISTORY_PAGE request asks for, 0 for the servers page size
+     * @post historyLimit is unchanged
+     */
+    public int getHistoryLimit() {
+        return historyLimit;
+    }
+
+    byte[] cachedFrame(WireFormat format) {
+        return format == WireFormat.BINARY ? binaryFrame : serializedFrame;
+    }
+
+    void cacheFrame(WireFormat format, byte[] frame) {
+        if (format == WireFormat.BINARY) {
+            binaryFrame = frame;
+        } else {
+            serializedFrame = frame;
+        }
+    }
+
     /**
      * @pre None
      * @return The text of the message converted
@@ -146,6 +390,35 @@ public class Message implements Serializable {
         return chatHistory;
     }
 
+    /**
+     * Java serialization is only used with older clients and for saved histories, which know the time formatted.
+     * The time is formatted into the stream only, the message is not changed: a broadcast is written by many
+     * connections at once.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("time", time == null && timestamp != 0 ? LEGACY_TIME.format(Instant.ofEpochMilli(timestamp)) : time);
+        fields.put("timestamp", timestamp);
+        fields.put("id", id);
+        fields.put("sequence", sequence);
+        fields.put("messageType", messageType);
+        fields.put("onlineUsers", onlineUsers);
+        fields.put("offlineUsers", offlineUsers);
+        fields.put("presenceVersion", presenceVersion);
+        fields.put("basePresenceVersion", basePresenceVersion);
+        fields.put("chatHistory", chatHistory);
+        fields.put("sender", sender);
+        fields.put("receiver", receiver);
+        fields.put("text", text);
+        fields.put("file", file);
+        fields.put("attachment", attachment);
+        fields.put("wireFormat", wireFormat);
+        fields.put("broadcast", broadcast);
+        fields.put("historyCursor", historyCursor);
+        fields.put("historyLimit", historyLimit);
+        out.writeFields();
+    }
+
     /**
      * @pre None
      * @return The text of the message converted
@@ -163,10 +436,22 @@ public class Message implements Serializable {
         private User sender;
         private User receiver;
         private FileSerialized file;
+        private Attachment attachment;
         private String text;
         private MessageType messageType = MessageType.REGULAR_MESSAGE; // default value
         private ArrayList<User> onlineUsers;
+        private ArrayList<User> offlineUsers;
+        private long presenceVersion;
+        private long basePresenceVersion;
         private ChatHistory chatHistory;
+        private WireFormat wireFormat;
+        private boolean broadcast;
+        private long historyCursor;
+        private int historyLimit;
+        private String time;
+        private long timestamp;
+        private long id;
+        private long sequence;
 
         /**
          * Sets the sender of the message.
@@ -204,6 +489,18 @@ public class Message implements Serializable {
             return this;
         }
 
+        /**
+         * Sets the attachment of the message.
+         * @pre None
+         * @param attachment the descriptor of a file uploaded to the attachment server.
+         * @return the builder object containing the given attachment param.
+         * @post this.attachment = attachment
+         */
+        public Builder attachment(Attachment attachment) {
+            this.attachment = attachment;
+            return this;
+        }
+
         /**
          * Sets the text of the message.
          * @pre assumes text != null
@@ -240,6 +537,129 @@ public class Message implements Serializable {
             return this;
         }
 
+        /**
+         * Sets the users that went offline, used by PRESENCE_DELTA messages.
+         * @pre assumes offlineUsers != null
+         * @param offlineUsers the Arraylist<user> to add to the message.
+         * @return the builder object containing the given offlineUsers param.
+         * @post this.offlineUsers = offlineUsers
+         */
+        public Builder offlineUsers(ArrayList<User> offlineUsers) {
+            this.offlineUsers = offlineUsers;
+            return this;
+        }
+
+        /**
+         * Sets the presence version of the message.
+         * @pre presenceVersion >= 0
+         * @param presenceVersion the version of the user list, or the version a delta leads to.
+         * @return the builder object containing the given presenceVersion param.
+         * @post this.presenceVersion = presenceVersion
+         */
+        public Builder presenceVersion(long presenceVersion) {
+            this.presenceVersion = presenceVersion;
+            return this;
+        }
+
+        /**
+         * Sets the presence version a delta applies on.
+         * @pre basePresenceVersion >= 0
+         * @param basePresenceVersion the version the receiver must have to apply the delta.
+         * @return the builder object containing the given basePresenceVersion param.
+         * @post this.basePresenceVersion = basePresenceVersion
+         */
+        public Builder basePresenceVersion(long basePresenceVersion) {
+            this.basePresenceVersion = basePresenceVersion;
+            return this;
+        }
+
+        /**
+         * Sets the wire format of a CLIENT_INFO message.
+         * @pre None
+         * @param wireFormat the format the client asks for, or the format the server agreed on.
+         * @return the builder object containing the given wireFormat param.
+         * @post this.wireFormat = wireFormat
+         */
+        public Builder wireFormat(WireFormat wireFormat) {
+            this.wireFormat = wireFormat;
+            return this;
+        }
+
+        /**
+         * Marks a message that is sent to many users, like presence updates and announcements.
+         * Such a message is encoded once per wire format and the same bytes are written to every receiver.
+         * @pre None
+         * @param broadcast true if the message is sent to many users.
+         * @return the builder object containing the given broadcast param.
+         * @post this.broadcast = broadcast
+         */
+        public Builder broadcast(boolean broadcast) {
+            this.broadcast = broadcast;
+            return this;
+        }
+
+        /**
+         * Sets where in the conversation a HISTORY_PAGE request starts.
+         * @pre historyCursor >= 0
+         * @param historyCursor the history start of the oldest message the client has, the page ends before it.
+         * @return the builder object containing the given historyCursor param.
+         * @post this.historyCursor = historyCursor
+         */
+        public Builder historyCursor(long historyCursor) {
+            this.historyCursor = historyCursor;
+            return this;
+        }
+
+        /**
+         * Sets how many messages a HISTORY_PAGE request asks for.
+         * @pre historyLimit >= 0
+         * @param historyLimit the max number of messages, 0 for the servers page size.
+         * @return the builder object containing the given historyLimit param.
+         * @post this.historyLimit = historyLimit
+         */
+        public Builder historyLimit(int historyLimit) {
+            this.historyLimit = historyLimit;
+            return this;
+        }
+
+        /**
+         * Sets the formatted time of a decoded message saved by an older server, which has no timestamp.
+         * @pre None
+         * @param time the time of day the message was sent.
+         * @return the builder object containing the given time param.
+         * @post this.time = time
+         */
+        Builder time(String time) {
+            this.time = time;
+            return this;
+        }
+
+        /**
+         * Sets the time a message was sent, instead of the current time.
+         * @pre timestamp > 0
+         * @param timestamp the time in milliseconds since the epoch.
+         * @return the builder object containing the given timestamp param.
+         * @post this.timestamp = timestamp
+         */
+        public Builder timestamp(long timestamp) {
+            this.timestamp = timestamp;
+            return this;
+        }
+
+        /**
+         * Sets the id and sequence number the server gave a decoded message.
+         * @pre id != 0, sequence >= 0
+         * @param id the id of the message.
+         * @param sequence the sequence number of the message in its conversation.
+         * @return the builder object containing the given id and sequence params.
+         * @post this.id = id, this.sequence = sequence
+         */
+        Builder identity(long id, long sequence) {
+            this.id = id;
+            this.sequence = sequence;
+            return this;
+        }
+
         /**
          * Sets the class ChatHistory of the message.
          * @pre assumes chatHistory  != null
@@ -258,7 +678,7 @@ public class Message implements Serializable {
          * @post the builder instances is discarded
          */
         public Message build() {
-            return new Message(sender, receiver, file, text, messageType, onlineUsers, chatHistory);
+            return new Message(this);
         }
     }
 }
@@ -0,0 +1,90 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+/**
+ * A blocking, two-way stream of Message objects over a socket.
+ * Hides whether the messages travel as one long ObjectOutputStream (the original protocol)
+ * or as length-prefixed frames (see FrameCodec).
+ *
+ * @author Lukas
+ */
+public interface MessageStream extends AutoCloseable {
+
+    /**
+     * @pre assumes message != null
+     * @param message, the message to be sent.
+     * @post the message is written and flushed to the socket.
+     * @throws IOException if the message could not be written
+     */
+    void write(Message message) throws IOException;
+
+    /**
+     * @pre None
+     * @return the next message on the stream, blocks until one arrives.
+     * @throws IOException if the stream is closed or broken
+     * @throws ClassNotFoundException if an unknown object is received
+     */
+    Message read() throws IOException, ClassNotFoundException;
+
+    @Override
+    void close() throws IOException;
+
+    /**
+     * @pre None
+     * @return true if the stream can switch to the binary format (see BinaryCodec)
+     */
+    default boolean supportsBinary() {
+        return false;
+    }
+
+    /**
+     * Called by both sides once the binary format is agreed on in the CLIENT_INFO handshake.
+     * Reading is not affected, a framed stream reads both formats.
+     * @pre supportsBinary()
+     * @post Messages written from now on are encoded by BinaryCodec
+     * @throws UnsupportedOperationException if the stream can not use the binary format
+     */
+    default void useBinary() {
+        throw new UnsupportedOperationException("Only framed streams support the binary format");
+    }
+
+    /**
+     * Opens the client side of a connection.
+     * @pre assumes socket != null and is connected
+     * @param socket, the socket connected to the server.
+     * @param framed, true to use the framed protocol, false for a plain object stream.
+     * @return a stream using the chosen protocol
+     * @throws IOException if the streams could not be opened
+     */
+    static MessageStream open(Socket socket, boolean framed) throws IOException {
+        if (framed) {
+            socket.getOutputStream().write(FrameCodec.PREAMBLE);
+            return new FramedMessageStream(socket.getInputStream(), socket.getOutputStream());
+        }
+        return new ObjectMessageStream(socket.getInputStream(), socket.getOutputStream());
+    }
+
+    /**
+     * Opens the server side of a connection. Looks at the first bytes sent by the client to find out
+     * which protocol it speaks, so clients using either protocol can connect.
+     * @pre assumes socket != null and is connected
+     * @param socket, the socket accepted from a client.
+     * @return a stream using the protocol the client uses
+     * @throws IOException if the streams could not be opened or the client closed the connection
+     */
+    static MessageStream accept(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        byte[] head = new byte[FrameCodec.PREAMBLE.length];
+        in.mark(head.length);
+        int read = in.readNBytes(head, 0, head.length);
+        if (read == head.length && FrameCodec.isPreamble(head)) {
+            return new FramedMessageStream(in, socket.getOutputStream());
+        }
+        in.reset();
+        return new ObjectMessageStream(in, socket.getOutputStream());
+    }
+}
@@ -4,10 +4,11 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
-import java.text.DateFormat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.Locale;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -57,14 +58,34 @@ class MessageTest {
 
 
     @Test
-    void getTime() {
-        Locale locale = new Locale("se", "SE");
-        DateFormat dateFormat = DateFormat.getTimeInstance(DateFormat.DEFAULT, locale);
-        String expectedTime = dateFormat.format(new Date());
-
-        String actualTime = msg.getTime();
+    void getTimestamp() {
+        long before = System.currentTimeMillis();
+        Message built = Message.builder().sender(sven).receiver(anders).text(message).build();
+
+        assertTrue(built.getTimestamp() >= before && built.getTimestamp() <= System.currentTimeMillis());
+        assertNull(built.getTime());
+        built.setTimestamp(42);
+        assertEquals(42, built.getTimestamp());
+    }
 
-        assertEquals(expectedTime, actualTime);
+    /**
+     * Tests that a serialized message still holds the formatted time older clients show, without it being set on
+     * the message written
+     */
+    @Test
+    void serializedMessageKeepsTheTimeFormatted() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(msg);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            Message read = (Message) in.readObject();
+            assertEquals(msg.getTimestamp(), read.getTimestamp());
+            assertTrue(read.getTime().matches("\\d\\d:\\d\\d:\\d\\d"), read.getTime());
+            assertEquals(msg.getText(), read.getText());
+            assertEquals(msg.getSender(), read.getSender());
+        }
+        assertNull(msg.getTime());
     }
 
     @Test
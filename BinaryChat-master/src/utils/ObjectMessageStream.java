@@ -0,0 +1,54 @@
+package utils;
+
+import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The original protocol, one ObjectOutputStream and one ObjectInputStream that live as long as the connection.
+ *
+ * @author Lukas
+ */
+public class ObjectMessageStream implements MessageStream {
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ObjectOutputStream objectOutputStream;
+    private final ObjectInputStream objectInputStream;
+
+    /**
+     * @pre assumes in && out != null
+     * @param in, the stream to read messages from.
+     * @param out, the stream to write messages to.
+     * @post The ObjectOutputStream is created first so the header is sent before
+     *       the ObjectInputStream waits for the header from the other side.
+     * @throws IOException if the streams could not be created
+     */
+    public ObjectMessageStream(InputStream in, OutputStream out) throws IOException {
+        this.objectOutputStream = new ObjectOutputStream(out);
+        this.objectOutputStream.flush();
+        this.objectInputStream = new ObjectInputStream(in);
+    }
+
+    @Override
+    public void write(Message message) throws IOException {
+        writeLock.lock();
+        try {
+            objectOutputStream.writeObject(message);
+            objectOutputStream.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Message read() throws IOException, ClassNotFoundException {
+        return (Message) objectInputStream.readObject();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            objectOutputStream.close();
+        } finally {
+            objectInputStream.close();
+        }
+    }
+}
@@ -10,6 +10,8 @@ import java.util.Objects;
  * @author Baseer
  */
 public class User implements Serializable {
+    private static final long serialVersionUID = 278223909036066106L;
+
     String name;
 
     private int hashCode;